@@ -2,17 +2,11 @@ package org.pals.analysis.analyser;
 
 import java.io.File;
 
-import javax.script.ScriptException;
-
 import org.apache.log4j.Logger;
-import org.pals.analysis.analyser.handler.BenchPlotHandler;
-import org.pals.analysis.analyser.handler.CSV2NetCDFHandler;
-import org.pals.analysis.analyser.handler.EmpBenchmarkHandler;
-import org.pals.analysis.analyser.handler.ModelPlotHandler;
-import org.pals.analysis.analyser.handler.ObsPlotHandler;
-import org.pals.analysis.analyser.handler.QCPlotHandler;
-import org.pals.analysis.analyser.handler.dao.PalsREngine;
-import org.pals.analysis.analyser.handler.dao.PalsRserveEngine;
+import org.pals.analysis.analyser.handler.RequestHandler;
+import org.pals.analysis.analyser.handler.RequestHandlerRegistry;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePool;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePoolImpl;
 import org.pals.analysis.rabbitmq.AnalysisServlet;
 import org.pals.analysis.request.AnalysisException;
 import org.pals.analysis.request.AnalysisReply;
@@ -20,10 +14,10 @@ import org.pals.analysis.request.AnalysisRequest;
 
 /**
  * The analyser is a facade to deal with all analysis requests. It provides a
- * switchboard to branch out to appropriate handlers. Currently the handlers are
- * hard-wired in this class. In the future, they may be dynamically wired as
- * beans. Interfaces may be used to allow dynamic wiring of handler
- * implementations.
+ * switchboard to branch out to appropriate handlers, which it looks up in a
+ * RequestHandlerRegistry by the analysisName. The registry is normally shared
+ * by all workers and wired by AnalysisServlet; new analyses are added to the
+ * registry, not to this class.
  * 
  * All analysis requests could be passed to R server by a uniform way, e.g.,
  * generating R statements to set arguments as R variables and then calling the
@@ -41,73 +35,83 @@ public class AnalyserImpl implements Analyser
 	private final static Logger LOGGER = Logger.getLogger(AnalysisServlet.class
 			.getName());
 
-	// PalsREngine should be created only once per analyzer
-	private PalsRserveEngine palsRserveEngine = null;
+	// The pool is normally shared by all workers
+	private PalsRserveEnginePool enginePool = null;
+	// The handlers, also shared by all workers
+	private volatile RequestHandlerRegistry handlerRegistry = null;
+
+	public AnalyserImpl()
+	{
+		this(null, null);
+	}
+
+	public AnalyserImpl(PalsRserveEnginePool enginePool,
+			RequestHandlerRegistry handlerRegistry)
+	{
+		this.enginePool = enginePool;
+		this.handlerRegistry = handlerRegistry;
+	}
 
 	public AnalysisReply analyse(AnalysisRequest request, File inputDataDir,
 			File outputDataDir) throws AnalysisException
 	{
-		if (this.palsRserveEngine == null)
-
-		this.palsRserveEngine = new PalsRserveEngine();
+		RequestHandlerRegistry registry = this.handlerRegistry;
+		if (registry == null) registry = getHandlerRegistry();
 
-		AnalysisReply reply = null;
 		String analysisName = request.getAnalysisName();
-		if (AnalysisRequest.CVS2NETCDF.equals(analysisName))
+		RequestHandler handler = registry.getHandler(analysisName);
+		if (handler == null) throw new AnalysisException(
+				"unrecognized analysisName: " + analysisName);
+
+		if (LOGGER.isDebugEnabled()) LOGGER.debug("calling "
+				+ handler.getClass().getSimpleName());
+		return handler.handleRequest(request, inputDataDir, outputDataDir);
+	}
+
+	/**
+	 * Creates a registry of the built-in handlers if none has been given
+	 * 
+	 * @return
+	 * @throws AnalysisException
+	 */
+	public synchronized RequestHandlerRegistry getHandlerRegistry()
+			throws AnalysisException
+	{
+		if (this.handlerRegistry == null)
 		{
-			CSV2NetCDFHandler handler = new CSV2NetCDFHandler(
-					this.palsRserveEngine, inputDataDir, outputDataDir);
+			RequestHandlerRegistry registry = new RequestHandlerRegistry();
+			registry.registerDefaults(getEnginePool(), null, null);
+			this.handlerRegistry = registry;
+		}
+		return this.handlerRegistry;
+	}
+
+	public synchronized void setHandlerRegistry(
+			RequestHandlerRegistry handlerRegistry)
+	{
+		this.handlerRegistry = handlerRegistry;
+	}
 
-			LOGGER.debug("calling CSV2NetCDFHandler");
-			reply = handler.handleRequest(request);
-			LOGGER.debug("returned from CSV2NetCDFHandler");
+	/**
+	 * Creates a default pool if none has been given
+	 * 
+	 * @return
+	 * @throws AnalysisException
+	 */
+	public synchronized PalsRserveEnginePool getEnginePool()
+			throws AnalysisException
+	{
+		if (this.enginePool == null)
+		{
+			PalsRserveEnginePoolImpl pool = new PalsRserveEnginePoolImpl();
+			pool.init();
+			this.enginePool = pool;
 		}
-		else
-			if (AnalysisRequest.QCPLOT.equals(analysisName))
-			{
-				QCPlotHandler handler = new QCPlotHandler(
-						this.palsRserveEngine, inputDataDir, outputDataDir);
-				reply = handler.handleRequest(request);
-			}
-			else
-				if (AnalysisRequest.EMPBENCH.equals(analysisName))
-				{
-					EmpBenchmarkHandler handler = new EmpBenchmarkHandler(
-							this.palsRserveEngine, inputDataDir, outputDataDir);
-					reply = handler.handleRequest(request);
-				}
-				else
-					if (analysisName.startsWith(AnalysisRequest.OBS))
-					{
-						ObsPlotHandler handler = new ObsPlotHandler(
-								this.palsRserveEngine,
-								inputDataDir, outputDataDir);
-						reply = handler.handleRequest(request);
-					}
-					else
-						if (analysisName.startsWith(AnalysisRequest.MODEL))
-						{
-							ModelPlotHandler handler = new ModelPlotHandler(
-									this.palsRserveEngine, inputDataDir,
-									outputDataDir);
-							reply = handler.handleRequest(request);
-						}
-						else
-							if (analysisName.startsWith(AnalysisRequest.BENCH))
-							{
-								BenchPlotHandler handler = new BenchPlotHandler(
-										this.palsRserveEngine, inputDataDir,
-										outputDataDir);
-								reply = handler.handleRequest(request);
-							}
-							else
-							{
-								String msg = "unrecognized analysisName: "
-										+ analysisName;
-								AnalysisException e = new AnalysisException(msg);
-								throw e;
-							}
+		return this.enginePool;
+	}
 
-		return reply;
+	public synchronized void setEnginePool(PalsRserveEnginePool enginePool)
+	{
+		this.enginePool = enginePool;
 	}
 }
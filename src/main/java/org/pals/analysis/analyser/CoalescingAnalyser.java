@@ -0,0 +1,235 @@
+package org.pals.analysis.analyser;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.pals.analysis.request.AnalysisTimeoutException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Lets concurrent identical requests share one analysis (single flight). The
+ * first request of a kind is analysed by the delegate, normally an
+ * AnalyserImpl; an identical request arriving while it runs waits for that
+ * analysis instead of running R again, and gets a copy of its reply.
+ *
+ * Requests are identical if they have the same analysisName, the same
+ * analysisArguments (compared in a canonical form, i.e. regardless of the
+ * order of the keys) and the same data directories. Nothing is kept once the
+ * analysis is done; the CSV2NetCDFResultCache covers later resubmissions,
+ * even of the same content from a different URL.
+ *
+ * Every caller gets its own requestId in the reply. The worker builds the
+ * reply properties from its own delivery, so the correlationId is the
+ * caller's too. A failure of the shared analysis is a failure of all of its
+ * callers. Its timeout is not: the shared analysis runs to the deadline of
+ * the first request, and a caller waits for it no longer than its own
+ * deadline, and analyses again if the first one timed out before that.
+ *
+ * Only the CVS2NETCDF conversions are coalesced by default, as they are the
+ * long and often repeated ones.
+ *
+ * One instance must be shared by all workers to coalesce across them.
+ *
+ * @author Yoichi
+ *
+ */
+public class CoalescingAnalyser implements Analyser
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(CoalescingAnalyser.class.getName());
+	private static final ObjectWriter KEY_WRITER = new ObjectMapper()
+			.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+			.writer();
+
+	private final Analyser delegate;
+	/** the analyses that are coalesced; all if null */
+	private Set<String> analysisNames = Collections
+			.singleton(AnalysisRequest.CVS2NETCDF);
+	private final Map<String, CompletableFuture<AnalysisReply>> inFlight = new ConcurrentHashMap<String, CompletableFuture<AnalysisReply>>();
+	private final AtomicLong numOfCoalesced = new AtomicLong();
+
+	public CoalescingAnalyser(Analyser delegate)
+	{
+		this.delegate = delegate;
+	}
+
+	public AnalysisReply analyse(AnalysisRequest request, File inputDataDir,
+			File outputDataDir) throws AnalysisException
+	{
+		String key = createKey(request, inputDataDir, outputDataDir);
+		if (key == null) return this.delegate.analyse(request, inputDataDir,
+				outputDataDir);
+
+		CompletableFuture<AnalysisReply> future = new CompletableFuture<AnalysisReply>();
+		CompletableFuture<AnalysisReply> running;
+		while ((running = this.inFlight.putIfAbsent(key, future)) != null)
+		{
+			try
+			{
+				return follow(request, running);
+			}
+			catch (AnalysisTimeoutException e)
+			{
+				if (isPastDeadline(request)) throw e;
+				// the running analysis had an earlier deadline than this one
+				LOGGER.info(request.getRequestId() + ": the running "
+						+ request.getAnalysisName()
+						+ " timed out; analysing it again");
+			}
+		}
+
+		try
+		{
+			AnalysisReply reply = this.delegate.analyse(request, inputDataDir,
+					outputDataDir);
+			future.complete(reply);
+			return reply;
+		}
+		catch (AnalysisException e)
+		{
+			future.completeExceptionally(e);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			this.inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * Waits for the running analysis of an identical request, until the
+	 * deadline of this request
+	 *
+	 * @param request
+	 * @param running
+	 * @return a copy of its reply with the requestId of this request, or null
+	 *         if its reply is null
+	 * @throws AnalysisTimeoutException
+	 *             if either deadline passed
+	 * @throws AnalysisException
+	 */
+	private AnalysisReply follow(AnalysisRequest request,
+			CompletableFuture<AnalysisReply> running) throws AnalysisException
+	{
+		this.numOfCoalesced.incrementAndGet();
+		LOGGER.info(request.getRequestId() + ": joined the running "
+				+ request.getAnalysisName());
+		AnalysisReply reply;
+		try
+		{
+			long deadline = request.getDeadline();
+			if (deadline <= 0) reply = running.get();
+			else
+				reply = running.get(
+						Math.max(0, deadline - System.currentTimeMillis()),
+						TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			throw new AnalysisTimeoutException("deadline passed waiting for "
+					+ "the running " + request.getAnalysisName());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new AnalysisException(e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof AnalysisTimeoutException) throw new AnalysisTimeoutException(
+					cause, cause.getMessage());
+			throw new AnalysisException(cause, cause.getMessage());
+		}
+
+		if (reply == null) return null;
+		Map<String, Object> analysisResults = null;
+		if (reply.getAnalysisResults() != null) analysisResults = new HashMap<String, Object>(
+				reply.getAnalysisResults());
+		return new AnalysisReply(request.getRequestId(), reply.getStatus(),
+				analysisResults);
+	}
+
+	private static boolean isPastDeadline(AnalysisRequest request)
+	{
+		long deadline = request.getDeadline();
+		return deadline > 0 && System.currentTimeMillis() >= deadline;
+	}
+
+	/**
+	 * @return the key of identical requests, or null if the request is not
+	 *         coalesced
+	 */
+	String createKey(AnalysisRequest request, File inputDataDir,
+			File outputDataDir)
+	{
+		String analysisName = request.getAnalysisName();
+		if (analysisName == null) return null;
+		Set<String> names = this.analysisNames;
+		if (names != null && !names.contains(analysisName)) return null;
+		try
+		{
+			return analysisName + '\n' + inputDataDir + '\n' + outputDataDir
+					+ '\n'
+					+ KEY_WRITER.writeValueAsString(request.getAnalysisArguments());
+		}
+		catch (JsonProcessingException e)
+		{
+			// not coalesced, but analysed as usual
+			LOGGER.warn("can't create the key of " + request.getRequestId()
+					+ ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of requests that were served by another's analysis
+	 */
+	public long getNumOfCoalesced()
+	{
+		return numOfCoalesced.get();
+	}
+
+	public int getNumOfInFlight()
+	{
+		return this.inFlight.size();
+	}
+
+	public Analyser getDelegate()
+	{
+		return delegate;
+	}
+
+	public Set<String> getAnalysisNames()
+	{
+		return analysisNames;
+	}
+
+	public void setAnalysisNames(Set<String> analysisNames)
+	{
+		this.analysisNames = analysisNames;
+	}
+}
@@ -0,0 +1,325 @@
+package org.pals.analysis.analyser.handler;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisReply;
+
+/**
+ * A staged pipeline for requests that fetch input files, run R and store
+ * output files. Each stage has its own bounded thread pool and the stages are
+ * connected by bounded queues, so while one request is in R the next one is
+ * being fetched and the previous one is being stored. The compute pool should
+ * be as large as the Rserve engine pool, so R never waits for file transfers.
+ *
+ * A full queue blocks the upstream stage, i.e. it throttles fetching rather
+ * than rejecting requests. The store stage only starts the uploads of a job;
+ * its reply is completed by whichever thread finishes the last upload, so a
+ * store thread is not held while the files are transferred.
+ *
+ * @author Yoichi
+ *
+ */
+public class AnalysisPipeline
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(AnalysisPipeline.class.getName());
+
+	/**
+	 * The three stages of a request. fail() is called instead of the
+	 * remaining stages when a stage throws, or when the future of store()
+	 * completes exceptionally, and must clean up whatever the earlier stages
+	 * have left behind.
+	 */
+	public interface Job
+	{
+		public abstract void fetch() throws AnalysisException;
+
+		public abstract void compute() throws AnalysisException;
+
+		/**
+		 * Starts storing the output files
+		 *
+		 * @return completed with the reply when all the files are stored
+		 * @throws AnalysisException
+		 *             if the uploads can't be started
+		 */
+		public abstract CompletableFuture<AnalysisReply> store()
+				throws AnalysisException;
+
+		public abstract AnalysisReply fail(Exception e);
+	}
+
+	private int fetchThreads = 2;
+	private int computeThreads = 4;
+	private int storeThreads = 2;
+	private int queueCapacity = 8;
+
+	private ThreadPoolExecutor fetchExecutor;
+	private ThreadPoolExecutor computeExecutor;
+	private ThreadPoolExecutor storeExecutor;
+
+	public void init()
+	{
+		this.fetchExecutor = createExecutor("fetch", this.fetchThreads);
+		this.computeExecutor = createExecutor("compute", this.computeThreads);
+		this.storeExecutor = createExecutor("store", this.storeThreads);
+		LOGGER.info("pipeline started: fetch=" + this.fetchThreads
+				+ " compute=" + this.computeThreads + " store="
+				+ this.storeThreads);
+	}
+
+	public void destroy()
+	{
+		if (this.fetchExecutor != null) this.fetchExecutor.shutdown();
+		if (this.computeExecutor != null) this.computeExecutor.shutdown();
+		if (this.storeExecutor != null) this.storeExecutor.shutdown();
+	}
+
+	/**
+	 * Puts the job into the fetch queue
+	 *
+	 * @param job
+	 * @return the reply, which is completed after the store stage
+	 */
+	public CompletableFuture<AnalysisReply> submit(Job job)
+	{
+		CompletableFuture<AnalysisReply> future = new CompletableFuture<AnalysisReply>();
+		execute(this.fetchExecutor, new FetchTask(job, future), job, future);
+		return future;
+	}
+
+	/**
+	 * Submits the job and waits for its reply
+	 *
+	 * @param job
+	 * @return
+	 */
+	public AnalysisReply process(Job job)
+	{
+		try
+		{
+			return submit(job).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return job.fail(e);
+		}
+		catch (ExecutionException e)
+		{
+			// the tasks complete the future normally even on failure
+			return job.fail(e);
+		}
+	}
+
+	private void execute(ThreadPoolExecutor executor, Runnable task, Job job,
+			CompletableFuture<AnalysisReply> future)
+	{
+		try
+		{
+			executor.execute(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			future.complete(job.fail(e));
+		}
+	}
+
+	private class FetchTask implements Runnable
+	{
+		private final Job job;
+		private final CompletableFuture<AnalysisReply> future;
+
+		FetchTask(Job job, CompletableFuture<AnalysisReply> future)
+		{
+			this.job = job;
+			this.future = future;
+		}
+
+		public void run()
+		{
+			try
+			{
+				this.job.fetch();
+			}
+			catch (Exception e)
+			{
+				this.future.complete(this.job.fail(e));
+				return;
+			}
+			execute(computeExecutor, new ComputeTask(this.job, this.future),
+					this.job, this.future);
+		}
+	}
+
+	private class ComputeTask implements Runnable
+	{
+		private final Job job;
+		private final CompletableFuture<AnalysisReply> future;
+
+		ComputeTask(Job job, CompletableFuture<AnalysisReply> future)
+		{
+			this.job = job;
+			this.future = future;
+		}
+
+		public void run()
+		{
+			try
+			{
+				this.job.compute();
+			}
+			catch (Exception e)
+			{
+				this.future.complete(this.job.fail(e));
+				return;
+			}
+			execute(storeExecutor, new StoreTask(this.job, this.future),
+					this.job, this.future);
+		}
+	}
+
+	private class StoreTask implements Runnable
+	{
+		private final Job job;
+		private final CompletableFuture<AnalysisReply> future;
+
+		StoreTask(Job job, CompletableFuture<AnalysisReply> future)
+		{
+			this.job = job;
+			this.future = future;
+		}
+
+		public void run()
+		{
+			try
+			{
+				this.job.store().whenComplete(
+						new BiConsumer<AnalysisReply, Throwable>()
+						{
+							public void accept(AnalysisReply reply,
+									Throwable e)
+							{
+								if (e == null) future.complete(reply);
+								else
+									future.complete(job.fail(toException(e)));
+							}
+						});
+			}
+			catch (Exception e)
+			{
+				this.future.complete(this.job.fail(e));
+			}
+		}
+	}
+
+	/**
+	 * @param e
+	 *            a failure of a future
+	 * @return the exception it wraps, or the failure as an exception
+	 */
+	public static Exception toException(Throwable e)
+	{
+		if (e instanceof CompletionException && e.getCause() != null) e = e
+				.getCause();
+		if (e instanceof Exception) return (Exception) e;
+		return new AnalysisException(e);
+	}
+
+	/**
+	 * A fixed size pool whose bounded queue blocks the submitting thread when
+	 * it is full
+	 *
+	 * @param stageName
+	 * @param numOfThreads
+	 * @return
+	 */
+	private ThreadPoolExecutor createExecutor(final String stageName,
+			int numOfThreads)
+	{
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadPoolExecutor(numOfThreads, numOfThreads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+						this.queueCapacity), new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "pipeline-"
+								+ stageName + "-" + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler()
+				{
+					public void rejectedExecution(Runnable runnable,
+							ThreadPoolExecutor executor)
+					{
+						if (executor.isShutdown()) throw new RejectedExecutionException(
+								stageName + " stage is shut down");
+						BlockingQueue<Runnable> queue = executor.getQueue();
+						try
+						{
+							queue.put(runnable);
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+							throw new RejectedExecutionException(e);
+						}
+					}
+				});
+	}
+
+	public int getFetchThreads()
+	{
+		return fetchThreads;
+	}
+
+	public void setFetchThreads(int fetchThreads)
+	{
+		this.fetchThreads = fetchThreads;
+	}
+
+	public int getComputeThreads()
+	{
+		return computeThreads;
+	}
+
+	public void setComputeThreads(int computeThreads)
+	{
+		this.computeThreads = computeThreads;
+	}
+
+	public int getStoreThreads()
+	{
+		return storeThreads;
+	}
+
+	public void setStoreThreads(int storeThreads)
+	{
+		this.storeThreads = storeThreads;
+	}
+
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity)
+	{
+		this.queueCapacity = queueCapacity;
+	}
+}
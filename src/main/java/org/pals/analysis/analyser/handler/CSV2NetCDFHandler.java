@@ -2,20 +2,29 @@ package org.pals.analysis.analyser.handler;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.handler.cache.CSV2NetCDFResultCache;
 import org.pals.analysis.analyser.handler.dao.CSV2NetCDFDao;
-import org.pals.analysis.analyser.handler.dao.PalsRserveEngine;
+import org.pals.analysis.analyser.handler.dao.CSV2NetCDFDaoRserve;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePool;
+import org.pals.analysis.analyser.handler.remoteFileHandler.FileProtocolHandler;
 import org.pals.analysis.analyser.handler.remoteFileHandler.RemoteFileHandler;
 import org.pals.analysis.analyser.handler.remoteFileHandler.UrlProtocolHandlerFactory;
 import org.pals.analysis.request.AnalysisException;
 import org.pals.analysis.request.AnalysisReply;
 import org.pals.analysis.request.AnalysisRequest;
+import org.pals.analysis.request.AnalysisTimeoutException;
 
 /**
  * A Handler knows what needs to be done with the analysis parameters and sets
@@ -32,6 +41,16 @@ import org.pals.analysis.request.AnalysisRequest;
  * It reads/writes files using URL protocols with regards to remote files, but
  * all local files use File://
  * 
+ * The work is split into fetch, compute and store stages (CSV2NetCDFJob). With
+ * an AnalysisPipeline they run on separate thread pools, so R is not idle
+ * while files are transferred for other requests. The output files are
+ * stored concurrently and the reply is made as soon as the last one is
+ * stored.
+ * 
+ * The local CSV file is deleted once converted. Behind a
+ * CachingRemoteFileHandler it is a link to, or a copy of, the cached input, so
+ * the cache keeps the file for the next request.
+ * 
  * TODO: URL protocol handlers should be defined as separate classes. They can
  * share the same API, since this handler knows what the protocol handlers
  * should do but does not care how they do.
@@ -61,91 +80,254 @@ public class CSV2NetCDFHandler implements RequestHandler
 	public static final String CVS_FILE_SUFFIX = ".csv";
 	public static final String FLUX_FILE_SUFFIX = ".flux.nc";
 	public static final String MET_FILE_SUFFIX = ".met.nc";
+	private static final Map<String, String> OUTPUT_FILE_SUFFIXES = new HashMap<String, String>();
+	static
+	{
+		OUTPUT_FILE_SUFFIXES.put(OBS_FLUX, FLUX_FILE_SUFFIX);
+		OUTPUT_FILE_SUFFIXES.put(OBS_MET, MET_FILE_SUFFIX);
+	}
 
-	private Map<String, Object> analysisArguments;
+	private CSV2NetCDFDao csv2NetCDFDao;
 
-	private PalsRserveEngine palsRserveEngine;
-	private File inputDataDir;
-	private File outputDataDir;
+	/** optional; when null, every request is converted by R */
+	private CSV2NetCDFResultCache resultCache;
 
-	// This has to be set before this instance can be used
-	// TODO: This should be set by IoCs
-	private CSV2NetCDFDao csv2NetCDFDao;
+	/** optional; when null, the stages run one after another on this thread */
+	private AnalysisPipeline pipeline;
 
-	public CSV2NetCDFHandler(PalsRserveEngine palsRserveEngine,
-			File inputDataDir, File outputDataDir)
+	public CSV2NetCDFHandler(PalsRserveEnginePool enginePool)
 	{
-		this.palsRserveEngine = palsRserveEngine;
-		this.inputDataDir = inputDataDir;
-		this.outputDataDir = outputDataDir;
+		this.csv2NetCDFDao = new CSV2NetCDFDaoRserve(enginePool);
 	}
 
 	/**
 	 * Main method
 	 */
-	public AnalysisReply handleRequest(AnalysisRequest request)
+	public AnalysisReply handleRequest(AnalysisRequest request,
+			File inputDataDir, File outputDataDir)
 	{
 		LOGGER.debug("handleRequest");
 
-		AnalysisReply reply = null;
-
-		analysisArguments = request.getAnalysisArguments();
-
-		UUID requestId = request.getRequestId();
-		String requestIdStr = requestId.toString();
-		String obsCsvUrlStr = (String) analysisArguments.get(OBS_CSV);
-		String userName = (String) analysisArguments.get(USER_NAME);
-		String dataSetName = (String) analysisArguments.get(DATA_SET_NAME);
-		String dataSetVersionName = (String) analysisArguments
-				.get(DATA_SET_VERSION_NAME);
-		String longitude = (String) analysisArguments.get(LONGITUDE);
-		String latitude = (String) analysisArguments.get(LATITUDE);
-		String elevation = (String) analysisArguments.get(ELEVATION);
-		String towerHeight = (String) analysisArguments.get(TOWER_HEIGHT);
-
-		URL remoteFileUrl;
-		File csvLocalFile = null;
-		Map<String, File> outputLocalFiles = null;
-		URL storeUrl = null;
-		Map<String, URL> remoteOutputFileUrls = null;
+		CSV2NetCDFJob job = new CSV2NetCDFJob(request, inputDataDir,
+				outputDataDir);
+		if (this.pipeline != null) return this.pipeline.process(job);
+
 		try
 		{
-			remoteFileUrl = new URL(obsCsvUrlStr);
-			String csvLocalFileName = requestIdStr + CVS_FILE_SUFFIX;
-			csvLocalFile = new File(inputDataDir, csvLocalFileName);
-			copyRemoteFileToLocal(remoteFileUrl, csvLocalFile);
-
-			outputLocalFiles = convertCSV2NetCDF(csvLocalFile,
-					this.outputDataDir, requestIdStr, userName, dataSetName,
-					dataSetVersionName, longitude, latitude, elevation,
-					towerHeight);
-
-			// clean up when all succeeded
-			deleteLocalFile(csvLocalFile);
-			// store away output files
-			storeUrl = getStoreUrl(remoteFileUrl); // use the same store
-			remoteOutputFileUrls = putFilesIntoStore(storeUrl, outputLocalFiles);
-			deleteLocalFiles(outputLocalFiles);
-
-			reply = makeNormReply(requestId, remoteOutputFileUrls);
+			job.fetch();
+			job.compute();
+			return job.store().get();
 		}
-		catch (MalformedURLException e)
+		catch (AnalysisException e)
 		{
-			LOGGER.warn(e);
-			reply = makeErrorReply(requestId, e);
+			return job.fail(e);
 		}
-		catch (AnalysisException e)
+		catch (InterruptedException e)
 		{
-			LOGGER.warn(e);
-			reply = makeErrorReply(requestId, e);
+			Thread.currentThread().interrupt();
+			return job.fail(e);
 		}
-		catch (IOException e)
+		catch (ExecutionException e)
+		{
+			return job.fail(AnalysisPipeline.toException(e.getCause()));
+		}
+	}
+
+	/**
+	 * The state of one request while it goes through the fetch, compute and
+	 * store stages, which may run on different threads of the pipeline.
+	 */
+	private class CSV2NetCDFJob implements AnalysisPipeline.Job
+	{
+		private final UUID requestId;
+		private final String requestIdStr;
+		private final String obsCsvUrlStr;
+		private final String userName;
+		private final String dataSetName;
+		private final String dataSetVersionName;
+		private final String longitude;
+		private final String latitude;
+		private final String elevation;
+		private final String towerHeight;
+		private final File inputDataDir;
+		private final File outputDataDir;
+		private final long deadline;
+
+		private URL remoteFileUrl;
+		private File csvLocalFile;
+		private Map<String, File> outputLocalFiles;
+		private String cacheKey;
+		private boolean isCacheEntryPinned = false;
+
+		CSV2NetCDFJob(AnalysisRequest request, File inputDataDir,
+				File outputDataDir)
+		{
+			this.inputDataDir = inputDataDir;
+			this.outputDataDir = outputDataDir;
+			Map<String, Object> analysisArguments = request
+					.getAnalysisArguments();
+			this.requestId = request.getRequestId();
+			this.deadline = request.getDeadline();
+			this.requestIdStr = this.requestId.toString();
+			this.obsCsvUrlStr = (String) analysisArguments.get(OBS_CSV);
+			this.userName = (String) analysisArguments.get(USER_NAME);
+			this.dataSetName = (String) analysisArguments.get(DATA_SET_NAME);
+			this.dataSetVersionName = (String) analysisArguments
+					.get(DATA_SET_VERSION_NAME);
+			this.longitude = (String) analysisArguments.get(LONGITUDE);
+			this.latitude = (String) analysisArguments.get(LATITUDE);
+			this.elevation = (String) analysisArguments.get(ELEVATION);
+			this.towerHeight = (String) analysisArguments.get(TOWER_HEIGHT);
+		}
+
+		/**
+		 * Copies the CSV file and looks up the result cache
+		 */
+		public void fetch() throws AnalysisException
+		{
+			try
+			{
+				this.remoteFileUrl = new URL(this.obsCsvUrlStr);
+				String csvLocalFileName = this.requestIdStr + CVS_FILE_SUFFIX;
+				this.csvLocalFile = new File(this.inputDataDir,
+						csvLocalFileName);
+				MessageDigest digest = resultCache != null ? CSV2NetCDFResultCache
+						.createDigest() : null;
+				boolean isDigested = copyRemoteFileToLocal(
+						this.remoteFileUrl, this.csvLocalFile, digest);
+
+				if (resultCache != null)
+				{
+					Map<String, String> arguments = createCacheArguments(
+							this.userName, this.dataSetName,
+							this.dataSetVersionName, this.longitude,
+							this.latitude, this.elevation, this.towerHeight);
+					this.cacheKey = isDigested ? resultCache.createKey(digest,
+							arguments) : resultCache.createKey(
+							this.csvLocalFile, arguments);
+					this.outputLocalFiles = resultCache.acquire(this.cacheKey);
+					this.isCacheEntryPinned = this.outputLocalFiles != null;
+					if (this.isCacheEntryPinned) LOGGER.info(this.requestIdStr
+							+ ": result cache hit " + this.cacheKey);
+				}
+			}
+			catch (IOException e)
+			{
+				throw new AnalysisException(e);
+			}
+		}
+
+		/**
+		 * Runs R unless the result was cached
+		 */
+		public void compute() throws AnalysisException
+		{
+			try
+			{
+				if (this.outputLocalFiles == null)
+				{
+					// e.g. it has waited too long in the pipeline
+					if (this.deadline > 0
+							&& System.currentTimeMillis() >= this.deadline) throw new AnalysisTimeoutException(
+							"deadline passed before R evaluation");
+					this.outputLocalFiles = convertCSV2NetCDF(
+							this.csvLocalFile, this.outputDataDir,
+							this.requestIdStr, this.userName,
+							this.dataSetName, this.dataSetVersionName,
+							this.longitude, this.latitude, this.elevation,
+							this.towerHeight, this.deadline);
+					if (this.cacheKey != null)
+					{
+						this.outputLocalFiles = resultCache.put(this.cacheKey,
+								this.outputLocalFiles);
+						this.isCacheEntryPinned = true;
+					}
+				}
+				// clean up when all succeeded
+				deleteLocalFile(this.csvLocalFile);
+			}
+			catch (IOException e)
+			{
+				throw new AnalysisException(e);
+			}
+		}
+
+		/**
+		 * Stores away the output files. The local files are deleted, or the
+		 * cache entry is released, when all of them are stored; on failure
+		 * fail() releases the entry.
+		 */
+		public CompletableFuture<AnalysisReply> store()
+				throws AnalysisException
+		{
+			CompletableFuture<Map<String, URL>> stored;
+			try
+			{
+				URL storeUrl = getStoreUrl(this.remoteFileUrl); // use the same
+																// store
+				stored = putFilesIntoStore(storeUrl, this.outputLocalFiles,
+						this.requestIdStr);
+			}
+			catch (IOException e)
+			{
+				throw new AnalysisException(e);
+			}
+			return stored.thenApply(new Function<Map<String, URL>, AnalysisReply>()
+			{
+				public AnalysisReply apply(Map<String, URL> remoteOutputFileUrls)
+				{
+					try
+					{
+						// cached files stay in the cache
+						if (cacheKey == null) deleteLocalFiles(outputLocalFiles);
+					}
+					catch (AnalysisException e)
+					{
+						throw new CompletionException(e);
+					}
+					finally
+					{
+						releaseCacheEntry();
+					}
+					return makeNormReply(requestId, remoteOutputFileUrls);
+				}
+			});
+		}
+
+		public AnalysisReply fail(Exception e)
 		{
 			LOGGER.warn(e);
-			reply = makeErrorReply(requestId, e);
+			releaseCacheEntry();
+			return makeErrorReply(this.requestId, e);
 		}
 
-		return reply;
+		private void releaseCacheEntry()
+		{
+			if (!this.isCacheEntryPinned) return;
+			this.isCacheEntryPinned = false;
+			resultCache.release(this.cacheKey);
+		}
+	}
+
+	/**
+	 * The arguments that make up the result cache key together with the CSV
+	 * content
+	 * 
+	 * @return
+	 */
+	private Map<String, String> createCacheArguments(String userName,
+			String dataSetName, String dataSetVersionName, String longitude,
+			String latitude, String elevation, String towerHeight)
+	{
+		Map<String, String> arguments = new LinkedHashMap<String, String>();
+		arguments.put(USER_NAME, userName);
+		arguments.put(DATA_SET_NAME, dataSetName);
+		arguments.put(DATA_SET_VERSION_NAME, dataSetVersionName);
+		arguments.put(LONGITUDE, longitude);
+		arguments.put(LATITUDE, latitude);
+		arguments.put(ELEVATION, elevation);
+		arguments.put(TOWER_HEIGHT, towerHeight);
+		return arguments;
 	}
 
 	/**
@@ -180,7 +362,10 @@ public class CSV2NetCDFHandler implements RequestHandler
 	private AnalysisReply makeErrorReply(UUID requestId, Exception e)
 	{
 		AnalysisReply reply = new AnalysisReply(requestId);
-		reply.setStatus(AnalysisReply.Status.ERROR);
+		if (e instanceof AnalysisTimeoutException) reply
+				.setStatus(AnalysisReply.Status.TIMEOUT);
+		else
+			reply.setStatus(AnalysisReply.Status.ERROR);
 
 		return reply;
 	}
@@ -189,15 +374,25 @@ public class CSV2NetCDFHandler implements RequestHandler
 	 * Copy a remote file to a local file
 	 * @param remoteFileUrl
 	 * @param localFile
+	 * @param digest
+	 *            to be updated with the content on the way, if possible; may be
+	 *            null
+	 * @return true if the digest has been updated
 	 * @throws IOException
 	 */
-	private void copyRemoteFileToLocal(URL remoteFileUrl, File localFile)
-			throws IOException
+	private boolean copyRemoteFileToLocal(URL remoteFileUrl, File localFile,
+			MessageDigest digest) throws IOException
 	{
-		String protocol = remoteFileUrl.getProtocol();
 		RemoteFileHandler remoteFileHandler = UrlProtocolHandlerFactory
-				.getHandler(protocol);
+				.getHandler(remoteFileUrl);
+		if (digest != null && remoteFileHandler instanceof FileProtocolHandler)
+		{
+			((FileProtocolHandler) remoteFileHandler).ingest(remoteFileUrl,
+					localFile, digest);
+			return true;
+		}
 		remoteFileHandler.copyRemoteFileToLocal(remoteFileUrl, localFile);
+		return false;
 	}
 
 	/**
@@ -207,46 +402,51 @@ public class CSV2NetCDFHandler implements RequestHandler
 	 */
 	private URL getStoreUrl(URL remoteFileUrl)
 	{
-		String protocol = remoteFileUrl.getProtocol();
 		RemoteFileHandler remoteFileHandler = UrlProtocolHandlerFactory
-				.getHandler(protocol);
+				.getHandler(remoteFileUrl);
 		URL remoreStoreUrl = remoteFileHandler.getStoreUrl(remoteFileUrl);
 		return remoreStoreUrl;
 	}
 
 	/**
-	 * Copy from local files to remote files
+	 * Copy from local files to remote files, all at once. The remote files are
+	 * named after the request, whatever the local file names are.
 	 * 
 	 * @param storeUrl
 	 * @param outputFileLocalUrls
-	 * @return
+	 * @param requestIdStr
+	 * @return completed with the remote file URLs when all are stored
 	 * @throws IOException 
 	 */
-	private Map<String, URL> putFilesIntoStore(URL storeUrl,
-			Map<String, File> outputFileLocalFiles)
+	private CompletableFuture<Map<String, URL>> putFilesIntoStore(URL storeUrl,
+			Map<String, File> outputFileLocalFiles, String requestIdStr)
 			throws IOException
 	{
-		String protocol = storeUrl.getProtocol();
 		RemoteFileHandler remoteFileHandler = UrlProtocolHandlerFactory
-				.getHandler(protocol);
+				.getHandler(storeUrl);
 
 		// create remote file URLs
 		Map<String, URL> remoteUrls = new HashMap<String, URL>();
 		String remoteDirStr = storeUrl.toExternalForm();
 		URL remoteFileUrl = null;
-		File localFile = null;
-		String localFileName = null;
+		String remoteFileName = null;
 		for (String key : outputFileLocalFiles.keySet())
 		{
-			localFile = outputFileLocalFiles.get(key);
-			localFileName = localFile.getName();
-			remoteFileUrl = new URL(remoteDirStr + "/" + localFileName);
+			remoteFileName = requestIdStr + OUTPUT_FILE_SUFFIXES.get(key);
+			remoteFileUrl = new URL(remoteDirStr + "/" + remoteFileName);
 			remoteUrls.put(key, remoteFileUrl);
 		}
 
 		// Then, let the handler do the copying
-		remoteFileHandler.storeFilesIntoStore(outputFileLocalFiles, remoteUrls);
-		return remoteUrls;
+		final Map<String, URL> storedUrls = remoteUrls;
+		return remoteFileHandler.storeFilesIntoStoreAsync(outputFileLocalFiles,
+				remoteUrls).thenApply(new Function<Void, Map<String, URL>>()
+		{
+			public Map<String, URL> apply(Void ignore)
+			{
+				return storedUrls;
+			}
+		});
 	}
 
 	/**
@@ -295,14 +495,16 @@ public class CSV2NetCDFHandler implements RequestHandler
 	 * @param latitude
 	 * @param elevation
 	 * @param towerHeight
+	 * @param deadline
+	 *            epoch millis; 0 for none
 	 * @return
 	 * @throws AnalysisException
 	 */
 	private Map<String, File> convertCSV2NetCDF(File localCSVFile,
 			File outputDataDir, String requestIdStr, String userName,
 			String dataSetName, String dataSetVersionName, String longitude,
-			String latitude, String elevation, String towerHeight)
-			throws AnalysisException
+			String latitude, String elevation, String towerHeight,
+			long deadline) throws AnalysisException
 	{
 		LOGGER.debug("convertCSV2NetCDF()");
 
@@ -311,17 +513,10 @@ public class CSV2NetCDFHandler implements RequestHandler
 		File metNetCDFFile = new File(outputDataDir, requestIdStr
 				+ MET_FILE_SUFFIX);
 
-		/*
-		 * The engine should be set in IoC so it does not have to know its
-		 * implementation or be created here with R_LIBS_USER
-		 */
-		if (this.csv2NetCDFDao == null) this.csv2NetCDFDao = new CSV2NetCDFDao(
-				this.palsRserveEngine);
-
 		Map<String, File> outputNetCDFFiles = this.csv2NetCDFDao
 				.convertCSV2NetCDF(localCSVFile, fluxNetCDFFile, metNetCDFFile,
 						userName, dataSetName, dataSetVersionName, longitude,
-						latitude, elevation, towerHeight);
+						latitude, elevation, towerHeight, deadline);
 
 		return outputNetCDFFiles;
 	}
@@ -335,4 +530,24 @@ public class CSV2NetCDFHandler implements RequestHandler
 	{
 		this.csv2NetCDFDao = csv2NetCDFDao;
 	}
+
+	public CSV2NetCDFResultCache getResultCache()
+	{
+		return resultCache;
+	}
+
+	public void setResultCache(CSV2NetCDFResultCache resultCache)
+	{
+		this.resultCache = resultCache;
+	}
+
+	public AnalysisPipeline getPipeline()
+	{
+		return pipeline;
+	}
+
+	public void setPipeline(AnalysisPipeline pipeline)
+	{
+		this.pipeline = pipeline;
+	}
 }
@@ -2,27 +2,22 @@ package org.pals.analysis.analyser.handler;
 
 import java.io.File;
 
-import org.pals.analysis.analyser.handler.dao.PalsRserveEngine;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePool;
 import org.pals.analysis.request.AnalysisException;
 import org.pals.analysis.request.AnalysisReply;
 import org.pals.analysis.request.AnalysisRequest;
 
 public class EmpBenchmarkHandler implements RequestHandler
 {
-	private String inputDataDirPath;
-	private String outputDataDirPath;
-	private PalsRserveEngine palsRserveEngine;
+	private PalsRserveEnginePool enginePool;
 
-	public EmpBenchmarkHandler(PalsRserveEngine palsRserveEngine,
-			File inputDataDir, File outputDataDir)
+	public EmpBenchmarkHandler(PalsRserveEnginePool enginePool)
 	{
-		this.palsRserveEngine = palsRserveEngine;
-		this.inputDataDirPath = inputDataDirPath;
-		this.outputDataDirPath = outputDataDirPath;
+		this.enginePool = enginePool;
 	}
 
-	public AnalysisReply handleRequest(AnalysisRequest request)
-			throws AnalysisException
+	public AnalysisReply handleRequest(AnalysisRequest request,
+			File inputDataDir, File outputDataDir) throws AnalysisException
 	{
 		// TODO Auto-generated method stub
 		return null;
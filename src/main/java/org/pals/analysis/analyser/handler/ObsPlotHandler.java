@@ -2,22 +2,20 @@ package org.pals.analysis.analyser.handler;
 
 import java.io.File;
 
-import org.pals.analysis.analyser.handler.dao.PalsRserveEngine;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePool;
 import org.pals.analysis.request.AnalysisException;
 import org.pals.analysis.request.AnalysisReply;
 import org.pals.analysis.request.AnalysisRequest;
 
 public class ObsPlotHandler implements RequestHandler
 {
-	public ObsPlotHandler(PalsRserveEngine palsRserveEngine,
-			File inputDataDir,
-			File outputDataDir)
+	public ObsPlotHandler(PalsRserveEnginePool enginePool)
 	{
 		// TODO Auto-generated constructor stub
 	}
 
-	public AnalysisReply handleRequest(AnalysisRequest request)
-			throws AnalysisException
+	public AnalysisReply handleRequest(AnalysisRequest request,
+			File inputDataDir, File outputDataDir) throws AnalysisException
 	{
 		// TODO Auto-generated method stub
 		return null;
@@ -1,18 +1,23 @@
 package org.pals.analysis.analyser.handler;
 
+import java.io.File;
+
 import org.pals.analysis.request.AnalysisException;
 import org.pals.analysis.request.AnalysisReply;
 import org.pals.analysis.request.AnalysisRequest;
 
 /**
- * The purpose of this interface is not for dynamic wiring, but to provide a
- * uniform interface.
+ * A uniform interface for the handlers, which are registered by analysis name
+ * in a RequestHandlerRegistry.
+ * 
+ * A handler instance serves all requests of its analysis on all workers, so it
+ * must not keep per-request state in its fields.
  * 
  * @author Yoichi
  * 
  */
 public interface RequestHandler
 {
-	public abstract AnalysisReply handleRequest(AnalysisRequest request)
-			throws AnalysisException;
-}
\ No newline at end of file
+	public abstract AnalysisReply handleRequest(AnalysisRequest request,
+			File inputDataDir, File outputDataDir) throws AnalysisException;
+}
@@ -0,0 +1,170 @@
+package org.pals.analysis.analyser.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.pals.analysis.analyser.handler.cache.CSV2NetCDFResultCache;
+import org.pals.analysis.analyser.handler.dao.CSV2NetCDFDao;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePool;
+import org.pals.analysis.request.AnalysisRequest;
+
+/**
+ * Maps analysis names to the RequestHandlers that serve them. A handler is
+ * registered either for an exact name, e.g. CVS2NETCDF, or for a name prefix,
+ * e.g. OBS for OBS* requests. Exact names are looked up in a hash map; the
+ * prefixes are only tried when there is no exact match, longest first.
+ * getHandler() does not allocate.
+ *
+ * The registry and its handlers are shared by all workers. Additional
+ * analyses are plugged in from the applicationContext.xml through the
+ * handlers and prefixHandlers properties; registerDefaults() then adds the
+ * built-in handlers for the names that are not configured there. The
+ * csv2NetCDFDao property chooses the conversion engine of the built-in
+ * CVS2NETCDF handler; it is the Rserve one if not set.
+ *
+ * @author Yoichi
+ *
+ */
+public class RequestHandlerRegistry
+{
+	private final Map<String, RequestHandler> handlers = new ConcurrentHashMap<String, RequestHandler>();
+	/** longest prefix first; replaced, never modified */
+	private volatile PrefixHandler[] prefixHandlers = new PrefixHandler[0];
+	/** for the built-in CSV2NetCDFHandler; CSV2NetCDFDaoRserve if null */
+	private CSV2NetCDFDao csv2NetCDFDao = null;
+
+	/**
+	 * Registers the built-in handlers for the names and prefixes that have no
+	 * handler yet
+	 *
+	 * @param enginePool
+	 * @param resultCache
+	 *            may be null
+	 * @param pipeline
+	 *            may be null
+	 */
+	public synchronized void registerDefaults(PalsRserveEnginePool enginePool,
+			CSV2NetCDFResultCache resultCache, AnalysisPipeline pipeline)
+	{
+		if (!this.handlers.containsKey(AnalysisRequest.CVS2NETCDF))
+		{
+			CSV2NetCDFHandler csv2NetCDFHandler = new CSV2NetCDFHandler(
+					enginePool);
+			if (this.csv2NetCDFDao != null) csv2NetCDFHandler
+					.setCsv2NetCDFDao(this.csv2NetCDFDao);
+			csv2NetCDFHandler.setResultCache(resultCache);
+			csv2NetCDFHandler.setPipeline(pipeline);
+			register(AnalysisRequest.CVS2NETCDF, csv2NetCDFHandler);
+		}
+		if (!this.handlers.containsKey(AnalysisRequest.QCPLOT)) register(
+				AnalysisRequest.QCPLOT, new QCPlotHandler(enginePool));
+		if (!this.handlers.containsKey(AnalysisRequest.EMPBENCH)) register(
+				AnalysisRequest.EMPBENCH, new EmpBenchmarkHandler(enginePool));
+		if (!hasPrefix(AnalysisRequest.OBS)) registerPrefix(
+				AnalysisRequest.OBS, new ObsPlotHandler(enginePool));
+		if (!hasPrefix(AnalysisRequest.MODEL)) registerPrefix(
+				AnalysisRequest.MODEL, new ModelPlotHandler(enginePool));
+		if (!hasPrefix(AnalysisRequest.BENCH)) registerPrefix(
+				AnalysisRequest.BENCH, new BenchPlotHandler(enginePool));
+	}
+
+	public void register(String analysisName, RequestHandler handler)
+	{
+		this.handlers.put(analysisName, handler);
+	}
+
+	public synchronized void registerPrefix(String prefix,
+			RequestHandler handler)
+	{
+		List<PrefixHandler> sorted = new ArrayList<PrefixHandler>();
+		for (PrefixHandler prefixHandler : this.prefixHandlers)
+		{
+			if (!prefixHandler.prefix.equals(prefix)) sorted.add(prefixHandler);
+		}
+		int i = 0;
+		while (i < sorted.size()
+				&& sorted.get(i).prefix.length() >= prefix.length())
+			i++;
+		sorted.add(i, new PrefixHandler(prefix, handler));
+		this.prefixHandlers = sorted.toArray(new PrefixHandler[sorted.size()]);
+	}
+
+	/**
+	 * @param analysisName
+	 * @return the handler, or null if the analysisName is unknown
+	 */
+	public RequestHandler getHandler(String analysisName)
+	{
+		if (analysisName == null) return null;
+		RequestHandler handler = this.handlers.get(analysisName);
+		if (handler != null) return handler;
+		for (PrefixHandler prefixHandler : this.prefixHandlers)
+		{
+			if (analysisName.startsWith(prefixHandler.prefix))
+				return prefixHandler.handler;
+		}
+		return null;
+	}
+
+	/**
+	 * For Spring wiring
+	 *
+	 * @param handlers
+	 *            handlers by exact analysis name
+	 */
+	public void setHandlers(Map<String, RequestHandler> handlers)
+	{
+		for (Map.Entry<String, RequestHandler> entry : handlers.entrySet())
+		{
+			register(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * For Spring wiring
+	 *
+	 * @param prefixHandlers
+	 *            handlers by analysis name prefix
+	 */
+	public void setPrefixHandlers(Map<String, RequestHandler> prefixHandlers)
+	{
+		for (Map.Entry<String, RequestHandler> entry : prefixHandlers
+				.entrySet())
+		{
+			registerPrefix(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public CSV2NetCDFDao getCsv2NetCDFDao()
+	{
+		return csv2NetCDFDao;
+	}
+
+	public void setCsv2NetCDFDao(CSV2NetCDFDao csv2NetCDFDao)
+	{
+		this.csv2NetCDFDao = csv2NetCDFDao;
+	}
+
+	private boolean hasPrefix(String prefix)
+	{
+		for (PrefixHandler prefixHandler : this.prefixHandlers)
+		{
+			if (prefixHandler.prefix.equals(prefix)) return true;
+		}
+		return false;
+	}
+
+	private static class PrefixHandler
+	{
+		private final String prefix;
+		private final RequestHandler handler;
+
+		PrefixHandler(String prefix, RequestHandler handler)
+		{
+			this.prefix = prefix;
+			this.handler = handler;
+		}
+	}
+}
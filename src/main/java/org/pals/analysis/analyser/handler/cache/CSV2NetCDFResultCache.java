@@ -0,0 +1,182 @@
+package org.pals.analysis.analyser.handler.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.handler.remoteFileHandler.FileProtocolHandler;
+
+/**
+ * A disk-backed cache of CSV to NetCDF conversion results.
+ *
+ * The key is a SHA-256 hash of the CSV content and the normalised conversion
+ * arguments, so a resubmitted spreadsheet is found even if it comes from a
+ * different URL. Every entry is a directory under cacheDir holding the output
+ * files by their result keys (obsFlux, obsMet).
+ *
+ * An entry handed out by acquire() or put() is pinned and is not evicted
+ * until release() is called, so the caller can copy the files to the store
+ * safely.
+ *
+ * @author Yoichi
+ *
+ */
+public class CSV2NetCDFResultCache extends DiskLruCache
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(CSV2NetCDFResultCache.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 65536;
+
+	public CSV2NetCDFResultCache(File cacheDir, long maxBytes)
+	{
+		super(cacheDir, maxBytes);
+	}
+
+	@Override
+	protected boolean isEntry(File file)
+	{
+		return file.isDirectory();
+	}
+
+	/**
+	 * Creates the cache key from the CSV content and the arguments. Numeric
+	 * values are normalised, so "135" and "135.0" give the same key.
+	 *
+	 * @param csvFile
+	 * @param arguments
+	 *            argument names and values in a fixed order
+	 * @return hex SHA-256
+	 * @throws IOException
+	 */
+	public String createKey(File csvFile, Map<String, String> arguments)
+			throws IOException
+	{
+		MessageDigest digest = createDigest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream in = new FileInputStream(csvFile);
+		try
+		{
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				digest.update(buffer, 0, n);
+		}
+		finally
+		{
+			in.close();
+		}
+		return createKey(digest, arguments);
+	}
+
+	/**
+	 * Creates the same key as createKey(File, Map) from a digest that has
+	 * already been updated with the CSV content
+	 *
+	 * @param contentDigest
+	 *            from createDigest(); it is used up
+	 * @param arguments
+	 *            argument names and values in a fixed order
+	 * @return hex SHA-256
+	 */
+	public String createKey(MessageDigest contentDigest,
+			Map<String, String> arguments)
+	{
+		MessageDigest digest = contentDigest;
+		for (Map.Entry<String, String> argument : arguments.entrySet())
+		{
+			String line = "\n" + argument.getKey() + "="
+					+ normalise(argument.getValue());
+			digest.update(line.getBytes(UTF8));
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Looks up and pins an entry
+	 *
+	 * @param key
+	 * @return the cached files by result key, or null if not cached
+	 */
+	public Map<String, File> acquire(String key)
+	{
+		File entryDir = pin(key);
+		if (entryDir == null)
+		{
+			countMiss();
+			return null;
+		}
+		return listFiles(entryDir);
+	}
+
+	/**
+	 * Moves the output files into the cache as a new pinned entry. If another
+	 * thread has just cached the same key, its entry is used and the given
+	 * files are deleted.
+	 *
+	 * @param key
+	 * @param outputFiles
+	 *            files by result key; they are moved, not copied
+	 * @return the cached files by result key
+	 * @throws IOException
+	 */
+	public Map<String, File> put(String key, Map<String, File> outputFiles)
+			throws IOException
+	{
+		File tempDir = createTempFile(key);
+		if (!tempDir.mkdirs()) throw new IOException(
+				"can't create cache directory: " + tempDir);
+		try
+		{
+			for (Map.Entry<String, File> outputFile : outputFiles.entrySet())
+			{
+				moveFile(outputFile.getValue(), new File(tempDir, outputFile
+						.getKey()));
+			}
+		}
+		catch (IOException e)
+		{
+			delete(tempDir);
+			throw e;
+		}
+		return listFiles(add(key, tempDir));
+	}
+
+	private static Map<String, File> listFiles(File entryDir)
+	{
+		Map<String, File> files = new HashMap<String, File>();
+		for (File file : entryDir.listFiles())
+		{
+			files.put(file.getName(), file);
+		}
+		return files;
+	}
+
+	private static String normalise(String value)
+	{
+		if (value == null) return "";
+		String trimmed = value.trim();
+		try
+		{
+			return Double.toString(Double.parseDouble(trimmed));
+		}
+		catch (NumberFormatException e)
+		{
+			return trimmed;
+		}
+	}
+
+	private static void moveFile(File fromFile, File toFile)
+			throws IOException
+	{
+		if (fromFile.renameTo(toFile)) return;
+		// e.g. on a different file system
+		FileProtocolHandler.copyFile(fromFile, toFile);
+		if (!fromFile.delete()) LOGGER.warn("can't delete: " + fromFile);
+	}
+}
@@ -0,0 +1,305 @@
+package org.pals.analysis.analyser.handler.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * What the disk-backed caches share: entries under cacheDir named by their
+ * keys, each a file or a directory of files, whose total size is limited to
+ * maxBytes by evicting the least recently used ones. A pinned entry is not
+ * evicted until it is released as many times as it was pinned.
+ *
+ * An entry is written under a temporary name made by createTempFile() and
+ * renamed to its key when complete, so init() can tell the leftovers of an
+ * interrupted write from the entries, and deletes them.
+ *
+ * The subclasses make the keys and bring the entries in; they synchronize on
+ * the cache when they need to do more than one of these calls atomically.
+ *
+ * @author Yoichi
+ *
+ */
+public abstract class DiskLruCache
+{
+	private final static Logger LOGGER = Logger.getLogger(DiskLruCache.class
+			.getName());
+	protected static final String TEMP_SUFFIX = ".tmp";
+
+	private final File cacheDir;
+	private final long maxBytes;
+	private long totalBytes = 0;
+	/** in access order, i.e. the first one is the least recently used */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	protected DiskLruCache(File cacheDir, long maxBytes)
+	{
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Loads the entries left on disk by a previous run, oldest first
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void init() throws IOException
+	{
+		if (!this.cacheDir.isDirectory() && !this.cacheDir.mkdirs()) throw new IOException(
+				"can't create cache directory: " + this.cacheDir);
+
+		File[] files = this.cacheDir.listFiles();
+		Arrays.sort(files, new Comparator<File>()
+		{
+			public int compare(File f1, File f2)
+			{
+				return Long.valueOf(f1.lastModified()).compareTo(
+						f2.lastModified());
+			}
+		});
+		for (File file : files)
+		{
+			if (file.getName().endsWith(TEMP_SUFFIX))
+			{
+				delete(file);
+				continue;
+			}
+			if (!isEntry(file))
+			{
+				// not written by the cache
+				LOGGER.warn("ignoring " + file);
+				continue;
+			}
+			Entry entry = new Entry(file);
+			this.entries.put(file.getName(), entry);
+			this.totalBytes += entry.size;
+		}
+		evict();
+		LOGGER.info(getClass().getSimpleName() + " " + this.cacheDir + ": "
+				+ this.entries.size() + " entries, " + this.totalBytes
+				+ " bytes");
+	}
+
+	/**
+	 * @param file
+	 *            in cacheDir, not a temporary one
+	 * @return true if it has the form of an entry of this cache, i.e. a file
+	 *         or a directory
+	 */
+	protected abstract boolean isEntry(File file);
+
+	/**
+	 * Pins an entry and counts a hit if it is cached. A miss is counted by
+	 * the subclass with countMiss(), as only it knows whether the entry is
+	 * brought in.
+	 *
+	 * @param key
+	 * @return the entry, or null if it is not cached
+	 */
+	protected synchronized File pin(String key)
+	{
+		Entry entry = this.entries.get(key);
+		if (entry == null) return null;
+		this.hitCount.incrementAndGet();
+		entry.pins++;
+		return entry.file;
+	}
+
+	protected void countMiss()
+	{
+		this.missCount.incrementAndGet();
+	}
+
+	/**
+	 * Renames a complete temporary file or directory to its key and adds it
+	 * as a pinned entry, evicting others if the cache is full. If another
+	 * thread has just cached the same key, its entry is pinned instead and
+	 * the temporary one is deleted.
+	 *
+	 * @param key
+	 * @param tempFile
+	 *            from createTempFile()
+	 * @return the entry
+	 * @throws IOException
+	 *             if it can't be renamed; it is deleted then
+	 */
+	protected synchronized File add(String key, File tempFile)
+			throws IOException
+	{
+		Entry existing = this.entries.get(key);
+		if (existing != null)
+		{
+			existing.pins++;
+			delete(tempFile);
+			return existing.file;
+		}
+		File file = new File(this.cacheDir, key);
+		if (!tempFile.renameTo(file))
+		{
+			delete(tempFile);
+			throw new IOException("can't rename " + tempFile + " to " + file);
+		}
+		Entry entry = new Entry(file);
+		entry.pins = 1;
+		this.entries.put(key, entry);
+		this.totalBytes += entry.size;
+		evict();
+		return file;
+	}
+
+	/**
+	 * Unpins an entry
+	 *
+	 * @param key
+	 */
+	public synchronized void release(String key)
+	{
+		Entry entry = this.entries.get(key);
+		if (entry != null && entry.pins > 0) entry.pins--;
+		evict();
+	}
+
+	/**
+	 * @param key
+	 * @return a new temporary name in cacheDir for an entry being written
+	 */
+	protected File createTempFile(String key)
+	{
+		return new File(this.cacheDir, key + "." + UUID.randomUUID()
+				+ TEMP_SUFFIX);
+	}
+
+	/**
+	 * Removes the least recently used unpinned entries until the cache fits
+	 * into maxBytes
+	 */
+	private void evict()
+	{
+		List<File> evicted = new ArrayList<File>();
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (this.totalBytes > this.maxBytes && it.hasNext())
+		{
+			Entry entry = it.next();
+			if (entry.pins > 0) continue;
+			it.remove();
+			this.totalBytes -= entry.size;
+			evicted.add(entry.file);
+		}
+		for (File file : evicted)
+		{
+			LOGGER.debug("evicting " + file);
+			delete(file);
+		}
+	}
+
+	/**
+	 * Deletes a file, or a directory and the files in it
+	 *
+	 * @param file
+	 */
+	protected static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null) for (File child : files)
+		{
+			child.delete();
+		}
+		if (!file.delete()) LOGGER.warn("can't delete: " + file);
+	}
+
+	/**
+	 * @return a SHA-256 digest for the keys
+	 */
+	public static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every JRE has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	protected static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	public synchronized long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+	public synchronized int getNumOfEntries()
+	{
+		return entries.size();
+	}
+
+	public File getCacheDir()
+	{
+		return cacheDir;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	private static class Entry
+	{
+		private final File file;
+		private final long size;
+		private int pins = 0;
+
+		/**
+		 * @param file
+		 *            a file, or a directory of files
+		 */
+		Entry(File file)
+		{
+			this.file = file;
+			long size = file.length();
+			File[] files = file.listFiles();
+			if (files != null)
+			{
+				size = 0;
+				for (File child : files)
+					size += child.length();
+			}
+			this.size = size;
+		}
+	}
+}
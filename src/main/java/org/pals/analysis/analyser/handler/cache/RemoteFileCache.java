@@ -0,0 +1,185 @@
+package org.pals.analysis.analyser.handler.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pals.analysis.analyser.handler.remoteFileHandler.RemoteFileVersion;
+
+/**
+ * A disk-backed cache of remote input files, so that a CSV submitted again,
+ * e.g. for QC, reconversion or plotting, is not downloaded again.
+ *
+ * The key is a SHA-256 hash of the URL and the version of the remote file
+ * (ETag, Last-Modified and size), so a changed file is downloaded again under
+ * a new key and its old entry ages out. Every entry is one file under
+ * cacheDir named by its key.
+ *
+ * An entry handed out by acquire() is pinned and is not evicted until
+ * release() is called. Concurrent acquire() calls for a key that is not
+ * cached share one download: the first one loads the file and the others
+ * wait for it, and share its failure too.
+ *
+ * @author Yoichi
+ *
+ */
+public class RemoteFileCache extends DiskLruCache
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Brings a file into the cache
+	 */
+	public interface Loader
+	{
+		/**
+		 * @param file
+		 *            to be created with the content
+		 * @throws IOException
+		 */
+		public abstract void load(File file) throws IOException;
+	}
+
+	/** the downloads in progress by key */
+	private final Map<String, CompletableFuture<Void>> loads = new HashMap<String, CompletableFuture<Void>>();
+	private final AtomicLong sharedCount = new AtomicLong();
+
+	public RemoteFileCache(File cacheDir, long maxBytes)
+	{
+		super(cacheDir, maxBytes);
+	}
+
+	@Override
+	protected boolean isEntry(File file)
+	{
+		return file.isFile();
+	}
+
+	/**
+	 * @param url
+	 * @param version
+	 * @return hex SHA-256 of the URL and the version
+	 */
+	public String createKey(URL url, RemoteFileVersion version)
+	{
+		MessageDigest digest = createDigest();
+		String line = url.toExternalForm() + "\n" + version.getETag() + "\n"
+				+ version.getLastModified() + "\n" + version.getSize();
+		digest.update(line.getBytes(UTF8));
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Looks up and pins an entry, loading it if it is not cached
+	 *
+	 * @param key
+	 * @param loader
+	 *            called unless the entry is cached or being loaded by another
+	 *            thread
+	 * @return the cached file
+	 * @throws IOException
+	 *             if the file can't be loaded, here or by the other thread
+	 */
+	public File acquire(String key, Loader loader) throws IOException
+	{
+		while (true)
+		{
+			CompletableFuture<Void> load;
+			boolean isLoader = false;
+			synchronized (this)
+			{
+				File file = pin(key);
+				if (file != null) return file;
+				load = this.loads.get(key);
+				if (load == null)
+				{
+					load = new CompletableFuture<Void>();
+					this.loads.put(key, load);
+					isLoader = true;
+					countMiss();
+				}
+				else
+					this.sharedCount.incrementAndGet();
+			}
+			if (isLoader) return load(key, loader, load);
+			await(load, key);
+			// the entry may already be evicted again, then it is loaded again
+		}
+	}
+
+	private File load(String key, Loader loader, CompletableFuture<Void> load)
+			throws IOException
+	{
+		File tempFile = createTempFile(key);
+		File file;
+		try
+		{
+			loader.load(tempFile);
+			synchronized (this)
+			{
+				this.loads.remove(key);
+				file = add(key, tempFile);
+			}
+		}
+		catch (IOException e)
+		{
+			tempFile.delete();
+			synchronized (this)
+			{
+				this.loads.remove(key);
+			}
+			load.completeExceptionally(e);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			tempFile.delete();
+			synchronized (this)
+			{
+				this.loads.remove(key);
+			}
+			load.completeExceptionally(e);
+			throw e;
+		}
+		load.complete(null);
+		return file;
+	}
+
+	private static void await(CompletableFuture<Void> load, String key)
+			throws IOException
+	{
+		try
+		{
+			load.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for "
+					+ key);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return the number of acquire() calls that waited for another one's
+	 *         download
+	 */
+	public long getSharedCount()
+	{
+		return sharedCount.get();
+	}
+}
@@ -0,0 +1,509 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.handler.CSV2NetCDFHandler;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisTimeoutException;
+
+/**
+ * Converts the PALS flux tower spreadsheet in the JVM, without R. It is the
+ * alternative to CSV2NetCDFDaoRserve for deployments that want conversions to
+ * scale with the cores rather than with Rserve processes, and writes the same
+ * two NetCDF files as convertSpreadsheetToNcdf of the pals R package.
+ *
+ * The spreadsheet is read one row at a time and each row is appended to both
+ * files as a record, so memory does not grow with the length of the data set.
+ * Its layout is that of the PALS template:
+ *
+ * <ul>
+ * <li>the first row has the column names, including LocDate (d/m/yyyy) and
+ * LocHoD (the hour of the day, as a decimal)</li>
+ * <li>an optional second row has the units</li>
+ * <li>the other rows have the data; an empty, NA or -9999 value is missing</li>
+ * </ul>
+ *
+ * The met variables (SWdown, LWdown, Tair, ...) go to the met file and the
+ * flux variables (Rnet, Qle, Qh, ...) to the flux file. A column named after a
+ * variable with a "Flag" or "_qc" suffix is its quality control flag, written
+ * as &lt;variable&gt;_qc; if a variable has both, the first column is used and
+ * the other ignored. Other columns are ignored, as they are by R.
+ *
+ * The deadline of the request is checked against the clock after every row,
+ * so a spreadsheet that is read slowly does not overrun it by many rows.
+ *
+ * @author Yoichi
+ *
+ */
+public class CSV2NetCDFDaoJava implements CSV2NetCDFDao
+{
+	private final static Logger LOGGER = Logger.getLogger(CSV2NetCDFDaoJava.class
+			.getName());
+
+	public static final String DATE_COLUMN = "LocDate";
+	public static final String HOUR_COLUMN = "LocHoD";
+	public static final double FILL_VALUE = -9999;
+	public static final String PRODUCTION_SOURCE = "PALS analyser (Java)";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+			.ofPattern("d/M/yyyy");
+	private static final int FLUX = 0;
+	private static final int MET = 1;
+
+	/** name to {file, long_name, units} */
+	private static final Map<String, Object[]> VARIABLES = new LinkedHashMap<String, Object[]>();
+	static
+	{
+		addVariable(MET, "SWdown", "Surface incident shortwave radiation",
+				"W/m^2");
+		addVariable(MET, "LWdown", "Surface incident longwave radiation",
+				"W/m^2");
+		addVariable(MET, "Tair", "Near surface air temperature", "K");
+		addVariable(MET, "Qair", "Near surface specific humidity", "kg/kg");
+		addVariable(MET, "Rainf", "Rainfall rate", "mm/s");
+		addVariable(MET, "Snowf", "Snowfall rate", "mm/s");
+		addVariable(MET, "PSurf", "Surface air pressure", "Pa");
+		addVariable(MET, "CO2air", "Near surface CO2 concentration", "ppmv");
+		addVariable(MET, "Wind", "Scalar windspeed", "m/s");
+		addVariable(FLUX, "Rnet", "Net radiation", "W/m^2");
+		addVariable(FLUX, "SWup", "Reflected shortwave radiation", "W/m^2");
+		addVariable(FLUX, "Qle", "Latent heat flux", "W/m^2");
+		addVariable(FLUX, "Qh", "Sensible heat flux", "W/m^2");
+		addVariable(FLUX, "Qg", "Ground heat flux", "W/m^2");
+		addVariable(FLUX, "NEE", "Net ecosystem exchange", "umol/m^2/s");
+		addVariable(FLUX, "GPP", "Gross primary production", "umol/m^2/s");
+	}
+
+	private static void addVariable(int file, String name, String longName,
+			String units)
+	{
+		VARIABLES.put(name, new Object[] { file, longName, units });
+	}
+
+	public Map<String, File> convertCSV2NetCDF(File ovsCSVFile,
+			File obsFluxFile, File obsMetFile, String userName,
+			String dataSetName, String dataSetVersionName, String longitude,
+			String latitude, String elevation, String towerHeight,
+			long deadline) throws AnalysisException
+	{
+		double[] location = {
+				CSV2NetCDFDaoRserve.parseNumber(CSV2NetCDFHandler.LATITUDE,
+						latitude),
+				CSV2NetCDFDaoRserve.parseNumber(CSV2NetCDFHandler.LONGITUDE,
+						longitude),
+				CSV2NetCDFDaoRserve.parseNumber(CSV2NetCDFHandler.ELEVATION,
+						elevation),
+				CSV2NetCDFDaoRserve.parseNumber(
+						CSV2NetCDFHandler.TOWER_HEIGHT, towerHeight) };
+		Conversion conversion = new Conversion(ovsCSVFile, new File[] {
+				obsFluxFile, obsMetFile }, location, userName, dataSetName,
+				dataSetVersionName, deadline);
+		boolean done = false;
+		try
+		{
+			conversion.run();
+			done = true;
+		}
+		catch (IOException e)
+		{
+			throw new AnalysisException(e, "failed to convert " + ovsCSVFile
+					+ ": " + e.getMessage());
+		}
+		finally
+		{
+			conversion.close(done);
+		}
+		LOGGER.debug("converted " + conversion.numOfRows + " rows of "
+				+ ovsCSVFile);
+
+		Map<String, File> result = new HashMap<String, File>();
+		result.put(CSV2NetCDFHandler.OBS_FLUX, obsFluxFile);
+		result.put(CSV2NetCDFHandler.OBS_MET, obsMetFile);
+		return result;
+	}
+
+	/**
+	 * Splits a row of the spreadsheet. The template has no quoted commas, so
+	 * quotes are only stripped.
+	 *
+	 * @param line
+	 * @return the trimmed cells
+	 */
+	static String[] split(String line)
+	{
+		String[] cells = line.split(",", -1);
+		for (int i = 0; i < cells.length; i++)
+		{
+			String cell = cells[i].trim();
+			if (cell.length() >= 2 && cell.charAt(0) == '"'
+					&& cell.charAt(cell.length() - 1) == '"') cell = cell
+					.substring(1, cell.length() - 1).trim();
+			cells[i] = cell;
+		}
+		return cells;
+	}
+
+	/**
+	 * @param cell
+	 * @return the value, or FILL_VALUE if it is missing
+	 * @throws NumberFormatException
+	 */
+	static double parseValue(String cell)
+	{
+		if (cell.isEmpty() || "NA".equalsIgnoreCase(cell)
+				|| "NaN".equalsIgnoreCase(cell)) return FILL_VALUE;
+		double value = Double.parseDouble(cell);
+		return value == FILL_VALUE ? FILL_VALUE : value;
+	}
+
+	/**
+	 * The state of one conversion: the reader, the two writers and where
+	 * each column goes
+	 */
+	private static class Conversion
+	{
+		private final File csvFile;
+		private final File[] outputFiles;
+		private final double[] location;
+		private final String userName;
+		private final String dataSetName;
+		private final String dataSetVersionName;
+		private final long deadline;
+
+		private BufferedReader reader;
+		private final NetCDFClassicWriter[] writers = new NetCDFClassicWriter[2];
+		/** the record values of each writer, time first */
+		private final double[][] records = new double[2][];
+		/** per column: the writer, or -1 if the column is ignored */
+		private int[] columnFiles;
+		/** per column: the index in the record */
+		private int[] columnIndices;
+		private int dateColumn = -1;
+		private int hourColumn = -1;
+		private long startSeconds;
+		private long numOfRows = 0;
+
+		Conversion(File csvFile, File[] outputFiles, double[] location,
+				String userName, String dataSetName,
+				String dataSetVersionName, long deadline)
+		{
+			this.csvFile = csvFile;
+			this.outputFiles = outputFiles;
+			this.location = location;
+			this.userName = userName;
+			this.dataSetName = dataSetName;
+			this.dataSetVersionName = dataSetVersionName;
+			this.deadline = deadline;
+		}
+
+		void run() throws IOException, AnalysisException
+		{
+			this.reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(this.csvFile), UTF8), 65536);
+			String line = this.reader.readLine();
+			if (line == null) throw new AnalysisException("empty spreadsheet: "
+					+ this.csvFile);
+			String[] names = split(line);
+			for (int i = 0; i < names.length; i++)
+			{
+				if (DATE_COLUMN.equals(names[i])) this.dateColumn = i;
+				else if (HOUR_COLUMN.equals(names[i])) this.hourColumn = i;
+			}
+			if (this.dateColumn < 0 || this.hourColumn < 0) throw new AnalysisException(
+					DATE_COLUMN + " or " + HOUR_COLUMN + " is missing in "
+							+ this.csvFile);
+
+			String[] units = null;
+			String[] row = null;
+			int lineNumber = 1;
+			while ((line = this.reader.readLine()) != null)
+			{
+				lineNumber++;
+				if (line.trim().isEmpty()) continue;
+				row = split(line);
+				if (lineNumber == 2 && parseDate(row) == null)
+				{
+					units = row;
+					row = null;
+					continue;
+				}
+				break;
+			}
+			if (row == null) throw new AnalysisException("no data in "
+					+ this.csvFile);
+
+			createWriters(names, units, row, lineNumber);
+			writeRow(row, lineNumber);
+			this.numOfRows++;
+			checkDeadline();
+			while ((line = this.reader.readLine()) != null)
+			{
+				lineNumber++;
+				if (line.trim().isEmpty()) continue;
+				writeRow(split(line), lineNumber);
+				this.numOfRows++;
+				checkDeadline();
+			}
+		}
+
+		private void createWriters(String[] names, String[] units,
+				String[] firstRow, int lineNumber) throws IOException,
+				AnalysisException
+		{
+			this.startSeconds = parseTime(firstRow, lineNumber);
+			SimpleDateFormat format = new SimpleDateFormat(
+					"yyyy-MM-dd HH:mm:ss");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			String timeUnits = "seconds since "
+					+ format.format(new Date(this.startSeconds * 1000));
+
+			List<List<NetCDFClassicWriter.Variable>> recordVariables = new ArrayList<List<NetCDFClassicWriter.Variable>>();
+			int[] times = new int[2];
+			for (int file = 0; file < 2; file++)
+			{
+				NetCDFClassicWriter writer = new NetCDFClassicWriter(
+						this.outputFiles[file]);
+				this.writers[file] = writer;
+				int x = writer.addDimension("x", 1);
+				int y = writer.addDimension("y", 1);
+				times[file] = writer.addRecordDimension("time");
+				addLocation(writer, "latitude", "Latitude", "degrees_north",
+						this.location[0], y, x);
+				addLocation(writer, "longitude", "Longitude", "degrees_east",
+						this.location[1], y, x);
+				addLocation(writer, "elevation", "Site elevation above sea level",
+						"m", this.location[2], y, x);
+				addLocation(writer, "reference_height",
+						"Measurement height on flux tower", "m",
+						this.location[3], y, x);
+				writer.addVariable("time", NetCDFClassicWriter.NC_DOUBLE,
+						times[file]).addAttribute("units", timeUnits)
+						.addAttribute("long_name", "Time");
+				recordVariables.add(new ArrayList<NetCDFClassicWriter.Variable>());
+			}
+
+			this.columnFiles = new int[names.length];
+			this.columnIndices = new int[names.length];
+			List<Integer> qcColumns = new ArrayList<Integer>();
+			for (int i = 0; i < names.length; i++)
+			{
+				this.columnFiles[i] = -1;
+				Object[] info = VARIABLES.get(names[i]);
+				if (info == null)
+				{
+					if (getFlaggedName(names[i]) != null) qcColumns.add(i);
+					continue;
+				}
+				int file = (Integer) info[0];
+				String unit = units != null && i < units.length
+						&& !units[i].isEmpty() ? units[i] : (String) info[2];
+				NetCDFClassicWriter writer = this.writers[file];
+				NetCDFClassicWriter.Variable variable = writer
+						.addVariable(names[i], NetCDFClassicWriter.NC_FLOAT,
+								times[file], 1, 0)
+						.addAttribute("units", unit)
+						.addAttribute("long_name", info[1]);
+				variable.setFillValue(FILL_VALUE).addAttribute("missing_value",
+						variable.typedValue(FILL_VALUE));
+				this.columnFiles[i] = file;
+				this.columnIndices[i] = writer.getRecordVariables().size() - 1;
+			}
+			// the flags follow their variables, wherever their columns are
+			Set<String> flaggedNames = new HashSet<String>();
+			for (int i : qcColumns)
+			{
+				String name = getFlaggedName(names[i]);
+				if (!flaggedNames.add(name))
+				{
+					LOGGER.warn("ignoring " + names[i] + " of " + this.csvFile
+							+ ": " + name + " has another flag column");
+					continue;
+				}
+				int file = (Integer) VARIABLES.get(name)[0];
+				NetCDFClassicWriter writer = this.writers[file];
+				NetCDFClassicWriter.Variable variable = writer
+						.addVariable(name + "_qc", NetCDFClassicWriter.NC_INT,
+								times[file], 1, 0)
+						.addAttribute("units", "-")
+						.addAttribute("long_name",
+								name + " quality control flag");
+				variable.setFillValue(FILL_VALUE).addAttribute("missing_value",
+						variable.typedValue(FILL_VALUE));
+				this.columnFiles[i] = file;
+				this.columnIndices[i] = writer.getRecordVariables().size() - 1;
+			}
+
+			for (int file = 0; file < 2; file++)
+			{
+				NetCDFClassicWriter writer = this.writers[file];
+				writer.addGlobalAttribute("Production_time",
+						format.format(new Date()));
+				writer.addGlobalAttribute("Production_source",
+						PRODUCTION_SOURCE);
+				writer.addGlobalAttribute("PALS_dataset_name",
+						String.valueOf(this.dataSetName));
+				writer.addGlobalAttribute("PALS_dataset_version",
+						String.valueOf(this.dataSetVersionName));
+				writer.addGlobalAttribute("Contact",
+						String.valueOf(this.userName));
+				writer.create();
+				this.records[file] = new double[writer.getRecordVariables()
+						.size()];
+			}
+		}
+
+		private void writeRow(String[] row, int lineNumber)
+				throws IOException, AnalysisException
+		{
+			double time = parseTime(row, lineNumber) - this.startSeconds;
+			for (int file = 0; file < 2; file++)
+			{
+				Arrays.fill(this.records[file], FILL_VALUE);
+				this.records[file][0] = time;
+			}
+			for (int i = 0; i < this.columnFiles.length; i++)
+			{
+				int file = this.columnFiles[i];
+				if (file < 0 || i >= row.length) continue;
+				try
+				{
+					this.records[file][this.columnIndices[i]] = parseValue(row[i]);
+				}
+				catch (NumberFormatException e)
+				{
+					throw new AnalysisException(e, "invalid value at line "
+							+ lineNumber + " of " + this.csvFile + ": "
+							+ row[i]);
+				}
+			}
+			this.writers[FLUX].writeRecord(this.records[FLUX]);
+			this.writers[MET].writeRecord(this.records[MET]);
+		}
+
+		/**
+		 * @return the seconds since the epoch of the row
+		 */
+		private long parseTime(String[] row, int lineNumber)
+				throws AnalysisException
+		{
+			LocalDate date = parseDate(row);
+			if (date == null || this.hourColumn >= row.length) throw new AnalysisException(
+					"invalid " + DATE_COLUMN + " at line " + lineNumber
+							+ " of " + this.csvFile);
+			try
+			{
+				double hours = Double.parseDouble(row[this.hourColumn]);
+				return date.toEpochDay() * 86400 + Math.round(hours * 3600);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new AnalysisException(e, "invalid " + HOUR_COLUMN
+						+ " at line " + lineNumber + " of " + this.csvFile);
+			}
+		}
+
+		private LocalDate parseDate(String[] row)
+		{
+			if (this.dateColumn >= row.length) return null;
+			try
+			{
+				return LocalDate.parse(row[this.dateColumn], DATE_FORMAT);
+			}
+			catch (DateTimeParseException e)
+			{
+				return null;
+			}
+		}
+
+		private void checkDeadline() throws AnalysisTimeoutException
+		{
+			if (this.deadline > 0
+					&& System.currentTimeMillis() >= this.deadline) throw new AnalysisTimeoutException(
+					"deadline passed after " + this.numOfRows + " rows of "
+							+ this.csvFile);
+		}
+
+		/**
+		 * Closes the files, and deletes the outputs if the conversion failed
+		 */
+		void close(boolean done) throws AnalysisException
+		{
+			IOException error = null;
+			if (this.reader != null)
+			{
+				try
+				{
+					this.reader.close();
+				}
+				catch (IOException e)
+				{
+					LOGGER.warn("failed to close " + this.csvFile, e);
+				}
+			}
+			for (NetCDFClassicWriter writer : this.writers)
+			{
+				if (writer == null) continue;
+				try
+				{
+					writer.close();
+				}
+				catch (IOException e)
+				{
+					error = e;
+				}
+			}
+			if (!done || error != null)
+			{
+				for (File file : this.outputFiles)
+					file.delete();
+			}
+			if (done && error != null) throw new AnalysisException(error,
+					"failed to write " + error.getMessage());
+		}
+
+		private static void addLocation(NetCDFClassicWriter writer,
+				String name, String longName, String units, double value,
+				int y, int x)
+		{
+			writer.addVariable(name, NetCDFClassicWriter.NC_FLOAT, y, x)
+					.addAttribute("units", units)
+					.addAttribute("long_name", longName).setValues(value);
+		}
+	}
+
+	/**
+	 * @param column
+	 * @return the variable that the column is the quality control flag of,
+	 *         or null
+	 */
+	private static String getFlaggedName(String column)
+	{
+		String name = null;
+		if (column.endsWith("Flag")) name = column.substring(0,
+				column.length() - 4);
+		else if (column.endsWith("_qc")) name = column.substring(0,
+				column.length() - 3);
+		return name != null && VARIABLES.containsKey(name) ? name : null;
+	}
+}
@@ -0,0 +1,191 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.handler.CSV2NetCDFHandler;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisTimeoutException;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * This class is a data exchange layer between Java and R, and the default
+ * CSV2NetCDFDao.
+ * 
+ * convertCSV2NetCDF() is translated to an R function call and executed. The
+ * arguments are sent as typed values in one RFunctionCall, and the pals
+ * package is already loaded in the pooled engine. The evaluation is watched by
+ * the pool's RserveWatchdog until the deadline of the request, if any.
+ * 
+ * With the SHARED_DISK transport, R reads and writes the local paths, so
+ * Rserve must see the inputDataDir and outputDataDir of the analyser. With
+ * STREAM, the spreadsheet is sent into the working directory of the R session
+ * and the NetCDF files are fetched back over the connection by
+ * RserveFileTransfer, so Rserve can run on hosts without a shared disk.
+ * 
+ * @author Yoichi
+ * 
+ */
+public class CSV2NetCDFDaoRserve implements CSV2NetCDFDao
+{
+	private final static Logger LOGGER = Logger.getLogger(CSV2NetCDFDaoRserve.class
+			.getName());
+
+	/**
+	 * How the files get to and from R
+	 */
+	public enum Transport
+	{
+		SHARED_DISK, STREAM
+	}
+
+	private PalsRserveEnginePool enginePool;
+	private Transport transport = Transport.SHARED_DISK;
+	private RserveFileTransfer fileTransfer = new RserveFileTransfer();
+	
+	/**
+	 * TODO: Set the engine pool via IoC, than in this constructor.
+	 * @param enginePool 
+	 */
+	public CSV2NetCDFDaoRserve(PalsRserveEnginePool enginePool)
+	{
+		this.enginePool = enginePool;
+	}
+	
+	public Map<String, File> convertCSV2NetCDF(File ovsCSVFile, File obsFluxFile,
+			File obsMetFile, String userName, String dataSetName,
+			String dataSetVersionName, String longitude, String latitude,
+			String elevation, String towerHeight, long deadline)
+			throws AnalysisException
+	{
+		boolean isStreamed = this.transport == Transport.STREAM;
+		// the names in the working directory of the R session if streamed
+		String prefix = "pals-" + UUID.randomUUID();
+		String csvPath = isStreamed ? prefix + ".csv" : ovsCSVFile.getPath();
+		String fluxPath = isStreamed ? prefix + "_flux.nc" : obsFluxFile
+				.getPath();
+		String metPath = isStreamed ? prefix + "_met.nc" : obsMetFile
+				.getPath();
+		RFunctionCall call = new RFunctionCall(CSV2NetCDFHandler.FUNCTION_NAME)
+				.addString(csvPath).addString(fluxPath).addString(metPath)
+				.addString(userName).addString(dataSetName)
+				.addString(dataSetVersionName)
+				.addDouble(parseNumber(CSV2NetCDFHandler.LONGITUDE, longitude))
+				.addDouble(parseNumber(CSV2NetCDFHandler.LATITUDE, latitude))
+				.addDouble(parseNumber(CSV2NetCDFHandler.ELEVATION, elevation))
+				.addDouble(
+						parseNumber(CSV2NetCDFHandler.TOWER_HEIGHT, towerHeight));
+		LOGGER.debug(call);
+
+		Map<String, File> result = null;
+		// the engine is held only while R is evaluating or transferring
+		PalsRserveEngine engine = this.enginePool.borrowEngine();
+		ScheduledFuture<?> watch = this.enginePool.getWatchdog().watch(engine,
+				deadline);
+		try
+		{
+			if (isStreamed) this.fileTransfer.upload(engine.getConnection(),
+					ovsCSVFile, csvPath);
+			call.evaluate(engine.getConnection());
+			if (isStreamed)
+			{
+				this.fileTransfer.download(engine.getConnection(), fluxPath,
+						obsFluxFile);
+				this.fileTransfer.download(engine.getConnection(), metPath,
+						obsMetFile);
+			}
+			/*
+			 * It expects R to have thrown an exception if it failed to create
+			 * files. So, this engine just uses the input URLs as outputs
+			 * assuming it has succeeded.
+			 */
+			result = new HashMap<String, File>();
+			result.put(CSV2NetCDFHandler.OBS_FLUX, obsFluxFile);
+			result.put(CSV2NetCDFHandler.OBS_MET, obsMetFile);
+		}
+		catch (RserveException e)
+		{
+			if (engine.isKilled()) throw new AnalysisTimeoutException(e,
+					"R evaluation killed at the deadline");
+			throw new AnalysisException(e);
+		}
+		catch (IOException e)
+		{
+			if (engine.isKilled()) throw new AnalysisTimeoutException(e,
+					"R file transfer killed at the deadline");
+			throw new AnalysisException(e, e.getMessage());
+		}
+		finally
+		{
+			RserveWatchdog.cancel(watch);
+			if (isStreamed && !engine.isKilled())
+			{
+				this.fileTransfer.remove(engine.getConnection(), csvPath);
+				this.fileTransfer.remove(engine.getConnection(), fluxPath);
+				this.fileTransfer.remove(engine.getConnection(), metPath);
+			}
+			if (engine.isKilled()) this.enginePool.invalidateEngine(engine);
+			else
+				this.enginePool.returnEngine(engine);
+		}
+		return result;
+	}
+
+	/**
+	 * Numeric arguments arrive as strings in the request and are sent to R as
+	 * doubles
+	 * 
+	 * @param name
+	 * @param value
+	 * @return
+	 * @throws AnalysisException
+	 */
+	static double parseNumber(String name, String value)
+			throws AnalysisException
+	{
+		if (value == null) throw new AnalysisException(name + " is missing");
+		try
+		{
+			return Double.parseDouble(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new AnalysisException(e, "invalid " + name + ": " + value);
+		}
+	}
+
+	public Transport getTransport()
+	{
+		return transport;
+	}
+
+	public void setTransport(Transport transport)
+	{
+		this.transport = transport;
+	}
+
+	public RserveFileTransfer getFileTransfer()
+	{
+		return fileTransfer;
+	}
+
+	public void setFileTransfer(RserveFileTransfer fileTransfer)
+	{
+		this.fileTransfer = fileTransfer;
+	}
+
+	public PalsRserveEnginePool getEnginePool()
+	{
+		return enginePool;
+	}
+
+	public void setEnginePool(PalsRserveEnginePool enginePool)
+	{
+		this.enginePool = enginePool;
+	}
+}
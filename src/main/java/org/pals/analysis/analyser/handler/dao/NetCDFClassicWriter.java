@@ -0,0 +1,491 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A streaming writer of NetCDF classic format (CDF-1) files, enough for the
+ * PALS flux and met files: dimensions, one unlimited (record) dimension,
+ * attributes and numeric variables.
+ *
+ * The file is defined first (dimensions, variables, attributes, and the
+ * values of the fixed-size variables), then create() writes the header and
+ * the fixed-size data, and then writeRecord() appends one record at a time,
+ * so the records need not be kept in memory. close() patches the number of
+ * records into the header.
+ *
+ * @author Yoichi
+ * @see <a
+ *      href="http://www.unidata.ucar.edu/software/netcdf/docs/file_format_specifications.html">NetCDF
+ *      classic format</a>
+ */
+public class NetCDFClassicWriter implements Closeable
+{
+	public static final int NC_BYTE = 1;
+	public static final int NC_CHAR = 2;
+	public static final int NC_SHORT = 3;
+	public static final int NC_INT = 4;
+	public static final int NC_FLOAT = 5;
+	public static final int NC_DOUBLE = 6;
+
+	private static final byte[] MAGIC = { 'C', 'D', 'F', 1 };
+	private static final int NC_DIMENSION = 0x0A;
+	private static final int NC_VARIABLE = 0x0B;
+	private static final int NC_ATTRIBUTE = 0x0C;
+	private static final int NUMRECS_OFFSET = 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final List<String> dimensionNames = new ArrayList<String>();
+	private final List<Integer> dimensionLengths = new ArrayList<Integer>();
+	private int recordDimension = -1;
+	private final Map<String, Object> globalAttributes = new LinkedHashMap<String, Object>();
+	private final List<Variable> variables = new ArrayList<Variable>();
+	private final List<Variable> recordVariables = new ArrayList<Variable>();
+
+	private DataOutputStream out;
+	private int numOfRecords = 0;
+
+	public NetCDFClassicWriter(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @param name
+	 * @param length
+	 * @return the dimension id
+	 */
+	public int addDimension(String name, int length)
+	{
+		checkDefineMode();
+		this.dimensionNames.add(name);
+		this.dimensionLengths.add(length);
+		return this.dimensionNames.size() - 1;
+	}
+
+	/**
+	 * @param name
+	 * @return the id of the unlimited dimension
+	 */
+	public int addRecordDimension(String name)
+	{
+		if (this.recordDimension >= 0) throw new IllegalStateException(
+				"only one record dimension is allowed");
+		this.recordDimension = addDimension(name, 0);
+		return this.recordDimension;
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 *            a String, or a Short, Integer, Float or Double
+	 */
+	public void addGlobalAttribute(String name, Object value)
+	{
+		checkDefineMode();
+		this.globalAttributes.put(name, value);
+	}
+
+	/**
+	 * @param name
+	 * @param type
+	 *            NC_BYTE to NC_DOUBLE
+	 * @param dimensions
+	 *            dimension ids; a record variable has the record dimension
+	 *            first
+	 * @return the variable, to add attributes to
+	 */
+	public Variable addVariable(String name, int type, int... dimensions)
+	{
+		checkDefineMode();
+		for (int i = 0; i < dimensions.length; i++)
+		{
+			if (dimensions[i] == this.recordDimension && i > 0) throw new IllegalArgumentException(
+					"the record dimension must come first: " + name);
+		}
+		Variable variable = new Variable(name, type, dimensions);
+		this.variables.add(variable);
+		if (variable.isRecord) this.recordVariables.add(variable);
+		return variable;
+	}
+
+	/**
+	 * @return the record variables, in the order of the values of
+	 *         writeRecord()
+	 */
+	public List<Variable> getRecordVariables()
+	{
+		return recordVariables;
+	}
+
+	/**
+	 * Writes the header and the values of the fixed-size variables
+	 *
+	 * @throws IOException
+	 */
+	public void create() throws IOException
+	{
+		checkDefineMode();
+		// the header size does not depend on the offsets it contains
+		int headerSize = writeHeader(0).length;
+		long offset = headerSize;
+		for (Variable variable : this.variables)
+		{
+			if (variable.isRecord) continue;
+			variable.begin = offset;
+			offset += variable.vsize;
+		}
+		for (Variable variable : this.recordVariables)
+		{
+			variable.begin = offset;
+			offset += getRecordSlabSize(variable);
+		}
+		if (offset > Integer.MAX_VALUE) throw new IOException(
+				"too large for the classic format: " + this.file);
+
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(this.file), 65536));
+		this.out.write(writeHeader(headerSize));
+		for (Variable variable : this.variables)
+		{
+			if (variable.isRecord) continue;
+			for (int i = 0; i < variable.numOfValues; i++)
+			{
+				double value = variable.values != null
+						&& i < variable.values.length ? variable.values[i]
+						: variable.fillValue;
+				writeValue(this.out, variable.type, value);
+			}
+			pad(this.out, variable.numOfValues * sizeOf(variable.type));
+		}
+	}
+
+	/**
+	 * Appends one record
+	 *
+	 * @param values
+	 *            one value per record variable, in the order of
+	 *            getRecordVariables(); every value of a variable with more
+	 *            than one value per record is set to it
+	 * @throws IOException
+	 */
+	public void writeRecord(double... values) throws IOException
+	{
+		if (this.out == null) throw new IllegalStateException(
+				"create() has not been called");
+		if (values.length != this.recordVariables.size()) throw new IllegalArgumentException(
+				"expected " + this.recordVariables.size() + " values");
+		for (int v = 0; v < values.length; v++)
+		{
+			Variable variable = this.recordVariables.get(v);
+			for (int i = 0; i < variable.numOfValues; i++)
+			{
+				writeValue(this.out, variable.type, values[v]);
+			}
+			if (this.recordVariables.size() > 1) pad(this.out,
+					variable.numOfValues * sizeOf(variable.type));
+		}
+		this.numOfRecords++;
+	}
+
+	public int getNumOfRecords()
+	{
+		return numOfRecords;
+	}
+
+	/**
+	 * Finishes the file. If create() has not been called, nothing is written.
+	 */
+	public void close() throws IOException
+	{
+		if (this.out == null) return;
+		this.out.close();
+		this.out = null;
+		RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+		try
+		{
+			raf.seek(NUMRECS_OFFSET);
+			raf.writeInt(this.numOfRecords);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private byte[] writeHeader(int headerSize) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.write(MAGIC);
+		header.writeInt(this.numOfRecords);
+
+		if (this.dimensionNames.isEmpty()) writeAbsent(header);
+		else
+		{
+			header.writeInt(NC_DIMENSION);
+			header.writeInt(this.dimensionNames.size());
+			for (int i = 0; i < this.dimensionNames.size(); i++)
+			{
+				writeName(header, this.dimensionNames.get(i));
+				header.writeInt(this.dimensionLengths.get(i));
+			}
+		}
+
+		writeAttributes(header, this.globalAttributes);
+
+		if (this.variables.isEmpty()) writeAbsent(header);
+		else
+		{
+			header.writeInt(NC_VARIABLE);
+			header.writeInt(this.variables.size());
+			for (Variable variable : this.variables)
+			{
+				writeName(header, variable.name);
+				header.writeInt(variable.dimensions.length);
+				for (int dimension : variable.dimensions)
+				{
+					header.writeInt(dimension);
+				}
+				writeAttributes(header, variable.attributes);
+				header.writeInt(variable.type);
+				header.writeInt(variable.vsize);
+				header.writeInt(headerSize == 0 ? 0 : (int) variable.begin);
+			}
+		}
+		header.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeAttributes(DataOutputStream header,
+			Map<String, Object> attributes) throws IOException
+	{
+		if (attributes.isEmpty())
+		{
+			writeAbsent(header);
+			return;
+		}
+		header.writeInt(NC_ATTRIBUTE);
+		header.writeInt(attributes.size());
+		for (Map.Entry<String, Object> attribute : attributes.entrySet())
+		{
+			writeName(header, attribute.getKey());
+			Object value = attribute.getValue();
+			if (value instanceof String)
+			{
+				byte[] chars = ((String) value).getBytes(UTF8);
+				header.writeInt(NC_CHAR);
+				header.writeInt(chars.length);
+				header.write(chars);
+				pad(header, chars.length);
+				continue;
+			}
+			int type;
+			if (value instanceof Double) type = NC_DOUBLE;
+			else if (value instanceof Float) type = NC_FLOAT;
+			else if (value instanceof Short) type = NC_SHORT;
+			else if (value instanceof Integer) type = NC_INT;
+			else
+				throw new IllegalArgumentException("unsupported attribute: "
+						+ attribute.getKey());
+			header.writeInt(type);
+			header.writeInt(1);
+			writeValue(header, type, ((Number) value).doubleValue());
+			pad(header, sizeOf(type));
+		}
+	}
+
+	private static void writeName(DataOutputStream header, String name)
+			throws IOException
+	{
+		byte[] bytes = name.getBytes(UTF8);
+		header.writeInt(bytes.length);
+		header.write(bytes);
+		pad(header, bytes.length);
+	}
+
+	private static void writeAbsent(DataOutputStream header)
+			throws IOException
+	{
+		header.writeInt(0);
+		header.writeInt(0);
+	}
+
+	private static void writeValue(DataOutputStream out, int type,
+			double value) throws IOException
+	{
+		switch (type)
+		{
+		case NC_BYTE:
+			out.writeByte((int) value);
+			break;
+		case NC_SHORT:
+			out.writeShort((int) value);
+			break;
+		case NC_INT:
+			out.writeInt((int) value);
+			break;
+		case NC_FLOAT:
+			out.writeFloat((float) value);
+			break;
+		case NC_DOUBLE:
+			out.writeDouble(value);
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported type: " + type);
+		}
+	}
+
+	/**
+	 * Pads to a 4-byte boundary with zeros
+	 */
+	private static void pad(DataOutputStream out, int length)
+			throws IOException
+	{
+		for (int i = length % 4; i > 0 && i < 4; i++)
+			out.writeByte(0);
+	}
+
+	private static int sizeOf(int type)
+	{
+		switch (type)
+		{
+		case NC_BYTE:
+		case NC_CHAR:
+			return 1;
+		case NC_SHORT:
+			return 2;
+		case NC_INT:
+		case NC_FLOAT:
+			return 4;
+		case NC_DOUBLE:
+			return 8;
+		default:
+			throw new IllegalArgumentException("unsupported type: " + type);
+		}
+	}
+
+	private int getRecordSlabSize(Variable variable)
+	{
+		int size = variable.numOfValues * sizeOf(variable.type);
+		// a single record variable is not padded
+		if (this.recordVariables.size() == 1) return size;
+		return (size + 3) / 4 * 4;
+	}
+
+	private void checkDefineMode()
+	{
+		if (this.out != null) throw new IllegalStateException(
+				"the file has been created: " + this.file);
+	}
+
+	/**
+	 * A variable being defined
+	 */
+	public class Variable
+	{
+		private final String name;
+		private final int type;
+		private final int[] dimensions;
+		private final boolean isRecord;
+		/** per record for a record variable */
+		private final int numOfValues;
+		private final int vsize;
+		private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		private double[] values;
+		private double fillValue = 0;
+		private long begin;
+
+		Variable(String name, int type, int[] dimensions)
+		{
+			this.name = name;
+			this.type = type;
+			this.dimensions = dimensions;
+			this.isRecord = dimensions.length > 0
+					&& dimensions[0] == recordDimension;
+			int n = 1;
+			for (int i = this.isRecord ? 1 : 0; i < dimensions.length; i++)
+				n *= dimensionLengths.get(dimensions[i]);
+			this.numOfValues = n;
+			this.vsize = (n * sizeOf(type) + 3) / 4 * 4;
+		}
+
+		/**
+		 * @param name
+		 * @param value
+		 *            a String, or a Short, Integer, Float or Double
+		 * @return this variable
+		 */
+		public Variable addAttribute(String name, Object value)
+		{
+			checkDefineMode();
+			this.attributes.put(name, value);
+			return this;
+		}
+
+		/**
+		 * Sets the _FillValue attribute, which is also written for the
+		 * values of a fixed-size variable that are not set
+		 *
+		 * @param fillValue
+		 * @return this variable
+		 */
+		public Variable setFillValue(double fillValue)
+		{
+			this.fillValue = fillValue;
+			return addAttribute("_FillValue", typedValue(fillValue));
+		}
+
+		/**
+		 * @param values
+		 *            of a fixed-size variable, set before create()
+		 * @return this variable
+		 */
+		public Variable setValues(double... values)
+		{
+			checkDefineMode();
+			if (this.isRecord) throw new IllegalStateException(
+					"a record variable is written by writeRecord(): "
+							+ this.name);
+			this.values = values;
+			return this;
+		}
+
+		/**
+		 * @param value
+		 * @return the value as a Number of this variable's type, for
+		 *         attributes such as missing_value
+		 */
+		public Object typedValue(double value)
+		{
+			switch (this.type)
+			{
+			case NC_SHORT:
+				return Short.valueOf((short) value);
+			case NC_INT:
+				return Integer.valueOf((int) value);
+			case NC_FLOAT:
+				return Float.valueOf((float) value);
+			default:
+				return Double.valueOf(value);
+			}
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+	}
+}
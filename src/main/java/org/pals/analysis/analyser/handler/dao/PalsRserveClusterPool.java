@@ -0,0 +1,431 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.request.AnalysisException;
+
+/**
+ * Engines on several Rserve hosts behind one PalsRserveEnginePool, so that R
+ * compute scales out horizontally. Each endpoint ("host:port") has its own
+ * PalsRserveEnginePoolImpl.
+ *
+ * borrowEngine() routes to the healthy endpoint with the fewest evaluations
+ * in flight, ties broken round robin, and takes a spare engine without
+ * waiting, trying the next least loaded endpoint if there is none. Only if
+ * every healthy endpoint is busy does it wait, on the least loaded one. An
+ * endpoint that fails to create an engine is taken out of rotation; a busy one
+ * (PoolExhaustedException) is not. An endpoint out of rotation is probed every
+ * probeIntervalMillis and put back once an engine can be borrowed from it
+ * again. If no endpoint is healthy, all of them are tried before the request
+ * fails.
+ *
+ * returnEngine() and invalidateEngine() go to the endpoint the engine was
+ * borrowed from. All endpoints share the cluster's watchdog.
+ *
+ * @author Yoichi
+ *
+ */
+public class PalsRserveClusterPool implements PalsRserveEnginePool
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(PalsRserveClusterPool.class.getName());
+	/** waits as long as the pool of the endpoint is configured to */
+	private static final long POOL_WAIT = -1;
+
+	private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+	/** the endpoints of the borrowed engines */
+	private final Map<PalsRserveEngine, Endpoint> borrowed = new ConcurrentHashMap<PalsRserveEngine, Endpoint>();
+	private final AtomicInteger nextEndpoint = new AtomicInteger();
+	private final RserveWatchdog watchdog = new RserveWatchdog();
+	private long probeIntervalMillis = 30000;
+	private ScheduledExecutorService prober;
+
+	/**
+	 * @param endpoints
+	 *            host:port, or host for the default port 16311
+	 * @param minSizePerHost
+	 * @param maxSizePerHost
+	 */
+	public PalsRserveClusterPool(List<String> endpoints, int minSizePerHost,
+			int maxSizePerHost)
+	{
+		for (String endpoint : endpoints)
+		{
+			String name = endpoint.trim();
+			if (name.isEmpty()) continue;
+			int colon = name.lastIndexOf(':');
+			String host = colon < 0 ? name : name.substring(0, colon);
+			int port = colon < 0 ? 16311 : Integer.parseInt(name
+					.substring(colon + 1));
+			this.endpoints.add(new Endpoint(host + ":" + port,
+					new PalsRserveEnginePoolImpl(host, port, minSizePerHost,
+							maxSizePerHost)));
+		}
+		if (this.endpoints.isEmpty()) throw new IllegalArgumentException(
+				"no Rserve endpoints");
+	}
+
+	/**
+	 * @param pools
+	 *            the pool of each endpoint by its name
+	 */
+	PalsRserveClusterPool(Map<String, PalsRserveEnginePool> pools)
+	{
+		for (Map.Entry<String, PalsRserveEnginePool> entry : pools.entrySet())
+			this.endpoints.add(new Endpoint(entry.getKey(), entry.getValue()));
+	}
+
+	/**
+	 * Starts the pools of all endpoints and the probing. An endpoint that is
+	 * not reachable yet is out of rotation until a probe succeeds.
+	 */
+	public void init() throws AnalysisException
+	{
+		for (Endpoint endpoint : this.endpoints)
+		{
+			endpoint.pool.init();
+		}
+		this.prober = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "rserve-prober");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.prober.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				probeDownEndpoints();
+			}
+		}, this.probeIntervalMillis, this.probeIntervalMillis,
+				TimeUnit.MILLISECONDS);
+		LOGGER.info("Rserve cluster started with " + this.endpoints.size()
+				+ " endpoints");
+	}
+
+	public PalsRserveEngine borrowEngine() throws AnalysisException
+	{
+		return borrowEngine(POOL_WAIT);
+	}
+
+	/**
+	 * @param maxWaitMillis
+	 *            how long to wait on the least loaded busy endpoint
+	 */
+	public PalsRserveEngine borrowEngine(long maxWaitMillis)
+			throws AnalysisException
+	{
+		List<Endpoint> tried = new ArrayList<Endpoint>();
+		List<Endpoint> busy = new ArrayList<Endpoint>();
+		AnalysisException lastError = null;
+		boolean isHealthyOnly = true;
+		while (true)
+		{
+			Endpoint endpoint = chooseEndpoint(tried, isHealthyOnly);
+			if (endpoint == null)
+			{
+				if (isHealthyOnly && busy.isEmpty())
+				{
+					// none is healthy; they may have come back since
+					isHealthyOnly = false;
+					continue;
+				}
+				break;
+			}
+			tried.add(endpoint);
+			try
+			{
+				return borrowFrom(endpoint, 0);
+			}
+			catch (PoolExhaustedException e)
+			{
+				busy.add(endpoint);
+			}
+			catch (AnalysisException e)
+			{
+				markDown(endpoint, e);
+				lastError = e;
+			}
+		}
+
+		// all engines in use; wait for one of the least loaded endpoint
+		Endpoint endpoint = chooseEndpoint(busy);
+		if (endpoint == null)
+		{
+			if (lastError != null) throw lastError;
+			throw new AnalysisException("no Rserve endpoint available");
+		}
+		try
+		{
+			return borrowFrom(endpoint, maxWaitMillis);
+		}
+		catch (PoolExhaustedException e)
+		{
+			throw e;
+		}
+		catch (AnalysisException e)
+		{
+			markDown(endpoint, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param endpoint
+	 * @param maxWaitMillis
+	 *            POOL_WAIT for the endpoint's own
+	 */
+	private PalsRserveEngine borrowFrom(Endpoint endpoint, long maxWaitMillis)
+			throws AnalysisException
+	{
+		endpoint.inFlight.incrementAndGet();
+		try
+		{
+			PalsRserveEngine engine = maxWaitMillis == POOL_WAIT ? endpoint.pool
+					.borrowEngine() : endpoint.pool.borrowEngine(maxWaitMillis);
+			this.borrowed.put(engine, endpoint);
+			if (!endpoint.isHealthy) markUp(endpoint);
+			return engine;
+		}
+		catch (AnalysisException e)
+		{
+			endpoint.inFlight.decrementAndGet();
+			throw e;
+		}
+	}
+
+	public void returnEngine(PalsRserveEngine engine)
+	{
+		Endpoint endpoint = release(engine);
+		if (endpoint != null) endpoint.pool.returnEngine(engine);
+		else
+			engine.close();
+	}
+
+	public void invalidateEngine(PalsRserveEngine engine)
+	{
+		Endpoint endpoint = release(engine);
+		if (endpoint != null) endpoint.pool.invalidateEngine(engine);
+		else
+			engine.close();
+	}
+
+	public RserveWatchdog getWatchdog()
+	{
+		return watchdog;
+	}
+
+	public int getNumOfSpareEngines()
+	{
+		int numOfSpareEngines = 0;
+		for (Endpoint endpoint : this.endpoints)
+		{
+			if (endpoint.isHealthy) numOfSpareEngines += endpoint.pool
+					.getNumOfSpareEngines();
+		}
+		return numOfSpareEngines;
+	}
+
+	public void destroy()
+	{
+		if (this.prober != null) this.prober.shutdownNow();
+		this.watchdog.destroy();
+		for (Endpoint endpoint : this.endpoints)
+		{
+			endpoint.pool.destroy();
+		}
+		LOGGER.info("Rserve cluster destroyed");
+	}
+
+	/**
+	 * @param candidates
+	 * @return the least loaded of the candidates, or null if there is none
+	 */
+	private static Endpoint chooseEndpoint(List<Endpoint> candidates)
+	{
+		Endpoint chosen = null;
+		for (Endpoint endpoint : candidates)
+		{
+			if (chosen == null
+					|| endpoint.inFlight.get() < chosen.inFlight.get()) chosen = endpoint;
+		}
+		return chosen;
+	}
+
+	/**
+	 * @param tried
+	 *            the endpoints not to choose
+	 * @param isHealthyOnly
+	 * @return the least loaded endpoint, or null
+	 */
+	private Endpoint chooseEndpoint(List<Endpoint> tried, boolean isHealthyOnly)
+	{
+		int size = this.endpoints.size();
+		int start = (this.nextEndpoint.getAndIncrement() & Integer.MAX_VALUE)
+				% size;
+		Endpoint chosen = null;
+		for (int i = 0; i < size; i++)
+		{
+			Endpoint endpoint = this.endpoints.get((start + i) % size);
+			if (tried.contains(endpoint)) continue;
+			if (isHealthyOnly && !endpoint.isHealthy) continue;
+			if (chosen == null
+					|| endpoint.inFlight.get() < chosen.inFlight.get()) chosen = endpoint;
+		}
+		return chosen;
+	}
+
+	private Endpoint release(PalsRserveEngine engine)
+	{
+		Endpoint endpoint = this.borrowed.remove(engine);
+		if (endpoint != null) endpoint.inFlight.decrementAndGet();
+		return endpoint;
+	}
+
+	/**
+	 * Tries to borrow an engine from each endpoint out of rotation, without
+	 * waiting for a busy one
+	 */
+	void probeDownEndpoints()
+	{
+		for (Endpoint endpoint : this.endpoints)
+		{
+			if (endpoint.isHealthy) continue;
+			try
+			{
+				PalsRserveEngine engine = endpoint.pool.borrowEngine(0);
+				endpoint.pool.returnEngine(engine);
+				markUp(endpoint);
+			}
+			catch (PoolExhaustedException e)
+			{
+				LOGGER.debug("Rserve " + endpoint.name
+						+ " has no spare engine to probe");
+			}
+			catch (AnalysisException e)
+			{
+				LOGGER.debug("Rserve " + endpoint.name + " is still down: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	private void markDown(Endpoint endpoint, AnalysisException e)
+	{
+		if (!endpoint.isHealthy) return;
+		endpoint.isHealthy = false;
+		LOGGER.warn("Rserve " + endpoint.name + " is out of rotation: "
+				+ e.getMessage());
+	}
+
+	private void markUp(Endpoint endpoint)
+	{
+		endpoint.isHealthy = true;
+		LOGGER.info("Rserve " + endpoint.name + " is back in rotation");
+	}
+
+	/**
+	 * @return the evaluations in flight by endpoint
+	 */
+	public Map<String, Integer> getInFlight()
+	{
+		Map<String, Integer> inFlight = new LinkedHashMap<String, Integer>();
+		for (Endpoint endpoint : this.endpoints)
+			inFlight.put(endpoint.name, endpoint.inFlight.get());
+		return Collections.unmodifiableMap(inFlight);
+	}
+
+	/**
+	 * @return the names of the endpoints in rotation
+	 */
+	public List<String> getHealthyEndpoints()
+	{
+		List<String> names = new ArrayList<String>();
+		for (Endpoint endpoint : this.endpoints)
+		{
+			if (endpoint.isHealthy) names.add(endpoint.name);
+		}
+		return names;
+	}
+
+	public int getNumOfEndpoints()
+	{
+		return this.endpoints.size();
+	}
+
+	/**
+	 * Sets the idle timeout of the engines of every endpoint
+	 *
+	 * @param idleTimeoutMillis
+	 */
+	public void setIdleTimeoutMillis(long idleTimeoutMillis)
+	{
+		for (Endpoint endpoint : this.endpoints)
+		{
+			if (endpoint.pool instanceof PalsRserveEnginePoolImpl) ((PalsRserveEnginePoolImpl) endpoint.pool)
+					.setIdleTimeoutMillis(idleTimeoutMillis);
+		}
+	}
+
+	/**
+	 * Sets the recycling of the engines of every endpoint
+	 *
+	 * @param maxEvaluationsPerEngine
+	 *            0 for no limit
+	 * @param maxEngineMemoryMb
+	 *            0 for no limit
+	 */
+	public void setRecycling(int maxEvaluationsPerEngine,
+			double maxEngineMemoryMb)
+	{
+		for (Endpoint endpoint : this.endpoints)
+		{
+			if (!(endpoint.pool instanceof PalsRserveEnginePoolImpl)) continue;
+			PalsRserveEnginePoolImpl pool = (PalsRserveEnginePoolImpl) endpoint.pool;
+			pool.setMaxEvaluationsPerEngine(maxEvaluationsPerEngine);
+			pool.setMaxEngineMemoryMb(maxEngineMemoryMb);
+		}
+	}
+
+	public long getProbeIntervalMillis()
+	{
+		return probeIntervalMillis;
+	}
+
+	public void setProbeIntervalMillis(long probeIntervalMillis)
+	{
+		this.probeIntervalMillis = probeIntervalMillis;
+	}
+
+	/**
+	 * One Rserve host
+	 */
+	private static class Endpoint
+	{
+		private final String name;
+		private final PalsRserveEnginePool pool;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile boolean isHealthy = true;
+
+		Endpoint(String name, PalsRserveEnginePool pool)
+		{
+			this.name = name;
+			this.pool = pool;
+		}
+	}
+}
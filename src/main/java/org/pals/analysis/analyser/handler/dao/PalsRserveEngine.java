@@ -44,11 +44,21 @@ import org.rosuda.REngine.Rserve.RserveException;
  * 
  * The startup script is in /etc/initi.d and reads /etc/RServ.conf
  * 
+ * Engines are shared by all workers through PalsRserveEnginePool, so the
+ * connection and package loading are paid once per engine, not per request.
+ * 
+ * Rserve runs every connection in a forked R process, whose pid is read at
+ * connection time. kill() ends that process from a second connection, which
+ * is the only way to stop an evaluation that does not return.
+ * 
+ * That forked process keeps whatever a request leaves behind, so reset()
+ * clears the global environment and closes the graphics devices between
+ * requests. The pool recycles the engine, i.e. closes it and lets Rserve fork
+ * a fresh process, after a number of evaluations or above a memory size.
+ * 
  * @author Yoichi
  * 
- *         TODO: Each Worker instance probably should keep an instance of this
- *         engine. TODO: Package method should be load/unload, rather than
- *         set/get.
+ *         TODO: Package method should be load/unload, rather than set/get.
  */
 public class PalsRserveEngine
 {
@@ -66,6 +76,10 @@ public class PalsRserveEngine
 	private RConnection connection;
 	private String rLibsUserPath = R_LIBS_USER;
 	private String palsPkgName = PALS_PKG;
+	/** of the R process serving this connection; -1 if unknown */
+	private int pid = -1;
+	private volatile boolean isKilled = false;
+	private int numOfEvaluations = 0;
 
 	/**
 	 * Creating a script engine is an expensive step
@@ -94,11 +108,25 @@ public class PalsRserveEngine
 		boolean isConnected = this.connection.isConnected();
 		if (!isConnected) throw new AnalysisException(
 				"REngine is not connected");
+		this.pid = readPid();
 		setDisplay(display);
 		setRLibsUserPath(null);
 		setPalsAPIPkgName(null);
 	}
 
+	/**
+	 * An engine that is not connected, for tests of the pools. It is never
+	 * valid, and closing or killing it does nothing.
+	 *
+	 * @param host
+	 * @param port
+	 */
+	PalsRserveEngine(String host, int port)
+	{
+		this.host = host;
+		this.port = port;
+	}
+
 	public void setDisplay(String display) throws AnalysisException
 	{
 		this.display = display;
@@ -183,7 +211,7 @@ public class PalsRserveEngine
 			rStatement = "library(pals)";
 			LOGGER.debug(rStatement);
 			this.connection.eval(rStatement);
-			rStatement = "library(" + palsPkgName + "')";
+			rStatement = "library(" + palsPkgName + ")";
 			LOGGER.debug(rStatement);
 			this.connection.eval(rStatement);
 		}
@@ -219,4 +247,132 @@ public class PalsRserveEngine
 	{
 		return connection;
 	}
+
+	/**
+	 * Checks that the session is still connected and can evaluate R
+	 * 
+	 * @return false if the session cannot be used any longer
+	 */
+	public boolean isValid()
+	{
+		if (this.connection == null || !this.connection.isConnected())
+			return false;
+		try
+		{
+			this.connection.eval("TRUE");
+		}
+		catch (RserveException e)
+		{
+			LOGGER.debug("validation failed: " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Kills the R process of this session, e.g. in the middle of an eval()
+	 * that has run past its deadline, and closes the connection. The eval()
+	 * then fails with an RserveException. The engine can't be used any more.
+	 * 
+	 * @return false if it had already been killed
+	 */
+	public synchronized boolean kill()
+	{
+		if (this.isKilled) return false;
+		this.isKilled = true;
+		if (this.pid > 0)
+		{
+			RConnection control = null;
+			try
+			{
+				control = new RConnection(this.host, this.port);
+				control.voidEval("tools::pskill(" + this.pid
+						+ ", tools::SIGKILL)");
+			}
+			catch (RserveException e)
+			{
+				LOGGER.warn("can't kill R process " + this.pid + ": "
+						+ e.getMessage());
+			}
+			finally
+			{
+				if (control != null) control.close();
+			}
+		}
+		if (this.connection != null) this.connection.close();
+		LOGGER.warn("killed R process " + this.pid);
+		return true;
+	}
+
+	/**
+	 * Ends an evaluation: removes the objects of the global environment,
+	 * closes the graphics devices and collects the garbage. The attached
+	 * packages stay loaded.
+	 * 
+	 * @return the megabytes used by R after the reset
+	 * @throws AnalysisException
+	 *             if the session is broken
+	 */
+	public double reset() throws AnalysisException
+	{
+		this.numOfEvaluations++;
+		try
+		{
+			return this.connection.eval(
+					"{ rm(list = ls(envir = globalenv(), all.names = TRUE), "
+							+ "envir = globalenv()); graphics.off(); "
+							+ "sum(gc()[, 2]) }").asDouble();
+		}
+		catch (RserveException e)
+		{
+			throw new AnalysisException(e);
+		}
+		catch (REXPMismatchException e)
+		{
+			throw new AnalysisException(e);
+		}
+	}
+
+	/**
+	 * @return the evaluations ended by reset()
+	 */
+	public int getNumOfEvaluations()
+	{
+		return numOfEvaluations;
+	}
+
+	public boolean isKilled()
+	{
+		return isKilled;
+	}
+
+	public int getPid()
+	{
+		return pid;
+	}
+
+	private int readPid()
+	{
+		try
+		{
+			return this.connection.eval("Sys.getpid()").asInteger();
+		}
+		catch (RserveException e)
+		{
+			LOGGER.warn("can't read the R process id: " + e.getMessage());
+		}
+		catch (REXPMismatchException e)
+		{
+			LOGGER.warn("can't read the R process id: " + e.getMessage());
+		}
+		return -1;
+	}
+
+	/**
+	 * Closes the connection, which ends the R session of this engine
+	 */
+	public void close()
+	{
+		if (this.connection != null) this.connection.close();
+	}
 }
@@ -0,0 +1,59 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import org.pals.analysis.request.AnalysisException;
+
+/**
+ * A pool of warm PalsRserveEngine sessions shared by all workers. Each engine
+ * is connected and has its R packages loaded when it is created, so a request
+ * only borrows an engine for the duration of its R evaluation.
+ *
+ * An engine must always be given back with either returnEngine() or, if the
+ * session is broken, invalidateEngine(). An engine killed by the watchdog
+ * is broken.
+ *
+ * @author Yoichi
+ *
+ */
+public interface PalsRserveEnginePool
+{
+	abstract public void init() throws AnalysisException;
+
+	/**
+	 * Waits for an engine as long as the pool is configured to
+	 * 
+	 * @return
+	 * @throws PoolExhaustedException
+	 *             if all engines stayed in use
+	 * @throws AnalysisException
+	 *             if no engine could be created
+	 */
+	abstract public PalsRserveEngine borrowEngine() throws AnalysisException;
+
+	/**
+	 * @param maxWaitMillis
+	 *            how long to wait for an engine to be returned; 0 not to wait
+	 * @return
+	 * @throws PoolExhaustedException
+	 *             if all engines stayed in use
+	 * @throws AnalysisException
+	 *             if no engine could be created
+	 */
+	abstract public PalsRserveEngine borrowEngine(long maxWaitMillis)
+			throws AnalysisException;
+
+	abstract public void returnEngine(PalsRserveEngine engine);
+
+	abstract public void invalidateEngine(PalsRserveEngine engine);
+
+	/**
+	 * @return kills the sessions of evaluations that run past their deadlines
+	 */
+	abstract public RserveWatchdog getWatchdog();
+
+	/**
+	 * @return how many engines can be borrowed now without waiting
+	 */
+	abstract public int getNumOfSpareEngines();
+
+	abstract public void destroy();
+}
@@ -0,0 +1,525 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.request.AnalysisException;
+
+/**
+ * A bounded pool of PalsRserveEngine sessions on one Rserve host.
+ *
+ * init() creates minSize engines, i.e. connects them and loads the R packages,
+ * before the first request arrives. borrowEngine() validates an idle engine
+ * before handing it out, creates a new one while the pool has fewer than
+ * maxSize engines, and otherwise waits up to maxWaitMillis for one to be
+ * returned before it throws a PoolExhaustedException. Idle engines are used last-in first-out, so the surplus engines
+ * stay idle and are closed by the eviction task after idleTimeoutMillis, down
+ * to minSize. When the watchdog has killed an engine, the pool is refilled
+ * to minSize at once rather than at the next eviction run.
+ *
+ * returnEngine() resets the session (see PalsRserveEngine.reset()), and
+ * recycles the engine instead of keeping it once it has served
+ * maxEvaluationsPerEngine requests or R uses more than maxEngineMemoryMb
+ * after the reset. A recycled engine is replaced at once, like a killed one.
+ *
+ * The engines are created by an EngineFactory, which connects a
+ * PalsRserveEngine unless another one is set.
+ *
+ * @author Yoichi
+ *
+ */
+public class PalsRserveEnginePoolImpl implements PalsRserveEnginePool
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(PalsRserveEnginePoolImpl.class.getName());
+
+	private final static String HOST = "localhost";
+	private final static int PORT = 16311;
+	private final static String DISPLAY = "localhost:100.0";
+
+	/**
+	 * Creates connected engines
+	 */
+	public interface EngineFactory
+	{
+		public abstract PalsRserveEngine createEngine(String host, int port,
+				String display) throws AnalysisException;
+	}
+
+	private static final EngineFactory RSERVE_ENGINE_FACTORY = new EngineFactory()
+	{
+		public PalsRserveEngine createEngine(String host, int port,
+				String display) throws AnalysisException
+		{
+			return new PalsRserveEngine(host, port, display);
+		}
+	};
+
+	private String host = HOST;
+	private int port = PORT;
+	private String display = DISPLAY;
+	private int minSize = 1;
+	private int maxSize = 4;
+	private long maxWaitMillis = 60000;
+	private long idleTimeoutMillis = 600000;
+	private long evictionIntervalMillis = 60000;
+	/** 0 for no limit */
+	private int maxEvaluationsPerEngine = 100;
+	/** 0 for no limit */
+	private double maxEngineMemoryMb = 1024;
+	private long numOfRecycled = 0;
+	private EngineFactory engineFactory = RSERVE_ENGINE_FACTORY;
+
+	/** the first one is the most recently returned */
+	private final LinkedList<IdleEngine> idleEngines = new LinkedList<IdleEngine>();
+	/** idle, borrowed and being created */
+	private int numOfEngines = 0;
+	private boolean isDestroyed = false;
+	private ScheduledExecutorService evictor;
+	private final RserveWatchdog watchdog = new RserveWatchdog();
+
+	public PalsRserveEnginePoolImpl()
+	{
+		super();
+	}
+
+	public PalsRserveEnginePoolImpl(String host, int port, int minSize,
+			int maxSize)
+	{
+		this.host = host;
+		this.port = port;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Creates the minimum number of engines and starts the eviction task. It
+	 * does not fail if Rserve is not reachable yet; engines are then created
+	 * on demand.
+	 */
+	public void init() throws AnalysisException
+	{
+		this.evictor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "rserve-evictor");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.evictor.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				evictIdleEngines();
+				fillToMinSize();
+			}
+		}, this.evictionIntervalMillis, this.evictionIntervalMillis,
+				TimeUnit.MILLISECONDS);
+
+		fillToMinSize();
+		LOGGER.info("Rserve pool " + this.host + ":" + this.port + " started with "
+				+ this.numOfEngines + " engines");
+	}
+
+	public PalsRserveEngine borrowEngine() throws AnalysisException
+	{
+		return borrowEngine(this.maxWaitMillis);
+	}
+
+	public PalsRserveEngine borrowEngine(long maxWaitMillis)
+			throws AnalysisException
+	{
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		while (true)
+		{
+			PalsRserveEngine engine = null;
+			synchronized (this)
+			{
+				if (this.isDestroyed) throw new AnalysisException(
+						"Rserve pool is destroyed");
+				if (!this.idleEngines.isEmpty())
+				{
+					engine = this.idleEngines.removeFirst().engine;
+				}
+				else
+					if (this.numOfEngines < this.maxSize)
+					{
+						this.numOfEngines++;
+					}
+					else
+					{
+						long waitMillis = deadline - System.currentTimeMillis();
+						if (waitMillis <= 0) throw new PoolExhaustedException(
+								"no Rserve engine available within "
+										+ maxWaitMillis + " ms");
+						try
+						{
+							this.wait(waitMillis);
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+							throw new AnalysisException(e);
+						}
+						continue;
+					}
+			}
+
+			if (engine == null) return createCountedEngine();
+			if (engine.isValid()) return engine;
+
+			LOGGER.warn("discarding broken Rserve engine");
+			invalidateEngine(engine);
+		}
+	}
+
+	public void returnEngine(PalsRserveEngine engine)
+	{
+		if (!resetEngine(engine))
+		{
+			synchronized (this)
+			{
+				this.numOfRecycled++;
+			}
+			discardEngine(engine, true);
+			return;
+		}
+		addIdleEngine(engine);
+	}
+
+	public void invalidateEngine(PalsRserveEngine engine)
+	{
+		discardEngine(engine, engine.isKilled());
+	}
+
+	/**
+	 * @param engine
+	 * @return false if the engine should be recycled
+	 */
+	private boolean resetEngine(PalsRserveEngine engine)
+	{
+		double usedMb;
+		try
+		{
+			usedMb = engine.reset();
+		}
+		catch (AnalysisException e)
+		{
+			LOGGER.warn("can't reset Rserve engine: " + e.getMessage());
+			return false;
+		}
+		if (this.maxEvaluationsPerEngine > 0
+				&& engine.getNumOfEvaluations() >= this.maxEvaluationsPerEngine)
+		{
+			LOGGER.debug("recycling Rserve engine after "
+					+ engine.getNumOfEvaluations() + " evaluations");
+			return false;
+		}
+		if (this.maxEngineMemoryMb > 0 && usedMb > this.maxEngineMemoryMb)
+		{
+			LOGGER.info("recycling Rserve engine using " + usedMb + " MB");
+			return false;
+		}
+		return true;
+	}
+
+	private void addIdleEngine(PalsRserveEngine engine)
+	{
+		synchronized (this)
+		{
+			if (!this.isDestroyed)
+			{
+				this.idleEngines.addFirst(new IdleEngine(engine));
+				this.notifyAll();
+				return;
+			}
+		}
+		discardEngine(engine, false);
+	}
+
+	/**
+	 * @param engine
+	 * @param isReplaced
+	 *            whether to refill the pool to minSize at once
+	 */
+	private void discardEngine(PalsRserveEngine engine, boolean isReplaced)
+	{
+		engine.close();
+		ScheduledExecutorService replacer;
+		synchronized (this)
+		{
+			this.numOfEngines--;
+			this.notifyAll();
+			replacer = this.isDestroyed ? null : this.evictor;
+		}
+		if (isReplaced && replacer != null)
+		{
+			replacer.execute(new Runnable()
+			{
+				public void run()
+				{
+					fillToMinSize();
+				}
+			});
+		}
+	}
+
+	public RserveWatchdog getWatchdog()
+	{
+		return watchdog;
+	}
+
+	public void destroy()
+	{
+		List<IdleEngine> engines;
+		synchronized (this)
+		{
+			this.isDestroyed = true;
+			engines = new ArrayList<IdleEngine>(this.idleEngines);
+			this.idleEngines.clear();
+			this.notifyAll();
+		}
+		if (this.evictor != null) this.evictor.shutdownNow();
+		this.watchdog.destroy();
+		for (IdleEngine idleEngine : engines)
+		{
+			invalidateEngine(idleEngine.engine);
+		}
+		LOGGER.info("Rserve pool " + this.host + ":" + this.port + " destroyed");
+	}
+
+	/**
+	 * Creates an engine for which numOfEngines has already been incremented
+	 *
+	 * @return
+	 * @throws AnalysisException
+	 */
+	private PalsRserveEngine createCountedEngine() throws AnalysisException
+	{
+		try
+		{
+			return this.engineFactory.createEngine(this.host, this.port,
+					this.display);
+		}
+		catch (AnalysisException e)
+		{
+			synchronized (this)
+			{
+				this.numOfEngines--;
+				this.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the engines that have been idle longer than idleTimeoutMillis,
+	 * keeping at least minSize engines.
+	 */
+	private void evictIdleEngines()
+	{
+		List<PalsRserveEngine> evicted = new ArrayList<PalsRserveEngine>();
+		synchronized (this)
+		{
+			long expiry = System.currentTimeMillis() - this.idleTimeoutMillis;
+			Iterator<IdleEngine> it = this.idleEngines.descendingIterator();
+			while (it.hasNext()
+					&& this.numOfEngines - evicted.size() > this.minSize)
+			{
+				IdleEngine idleEngine = it.next();
+				if (idleEngine.returnTime > expiry) break;
+				it.remove();
+				evicted.add(idleEngine.engine);
+			}
+		}
+		for (PalsRserveEngine engine : evicted)
+		{
+			LOGGER.debug("evicting idle Rserve engine");
+			invalidateEngine(engine);
+		}
+	}
+
+	/**
+	 * Creates engines until there are at least minSize of them
+	 */
+	private void fillToMinSize()
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (this.isDestroyed || this.numOfEngines >= this.minSize) return;
+				this.numOfEngines++;
+			}
+			try
+			{
+				addIdleEngine(createCountedEngine());
+			}
+			catch (AnalysisException e)
+			{
+				LOGGER.warn("cannot create Rserve engine: " + e.getMessage());
+				return;
+			}
+		}
+	}
+
+	public synchronized int getNumOfEngines()
+	{
+		return numOfEngines;
+	}
+
+	public synchronized int getNumOfIdleEngines()
+	{
+		return idleEngines.size();
+	}
+
+	/**
+	 * @return the engines closed after too many evaluations or too much
+	 *         memory
+	 */
+	public synchronized long getNumOfRecycled()
+	{
+		return numOfRecycled;
+	}
+
+	public synchronized int getNumOfSpareEngines()
+	{
+		return this.maxSize - this.numOfEngines + this.idleEngines.size();
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public void setHost(String host)
+	{
+		this.host = host;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public void setPort(int port)
+	{
+		this.port = port;
+	}
+
+	public String getDisplay()
+	{
+		return display;
+	}
+
+	public void setDisplay(String display)
+	{
+		this.display = display;
+	}
+
+	public int getMinSize()
+	{
+		return minSize;
+	}
+
+	public void setMinSize(int minSize)
+	{
+		this.minSize = minSize;
+	}
+
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize)
+	{
+		this.maxSize = maxSize;
+	}
+
+	public long getMaxWaitMillis()
+	{
+		return maxWaitMillis;
+	}
+
+	public void setMaxWaitMillis(long maxWaitMillis)
+	{
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	public long getIdleTimeoutMillis()
+	{
+		return idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(long idleTimeoutMillis)
+	{
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public long getEvictionIntervalMillis()
+	{
+		return evictionIntervalMillis;
+	}
+
+	public void setEvictionIntervalMillis(long evictionIntervalMillis)
+	{
+		this.evictionIntervalMillis = evictionIntervalMillis;
+	}
+
+	public int getMaxEvaluationsPerEngine()
+	{
+		return maxEvaluationsPerEngine;
+	}
+
+	public void setMaxEvaluationsPerEngine(int maxEvaluationsPerEngine)
+	{
+		this.maxEvaluationsPerEngine = maxEvaluationsPerEngine;
+	}
+
+	public double getMaxEngineMemoryMb()
+	{
+		return maxEngineMemoryMb;
+	}
+
+	public void setMaxEngineMemoryMb(double maxEngineMemoryMb)
+	{
+		this.maxEngineMemoryMb = maxEngineMemoryMb;
+	}
+
+	public EngineFactory getEngineFactory()
+	{
+		return engineFactory;
+	}
+
+	/**
+	 * @param engineFactory
+	 *            to be set before init()
+	 */
+	public void setEngineFactory(EngineFactory engineFactory)
+	{
+		this.engineFactory = engineFactory;
+	}
+
+	private static class IdleEngine
+	{
+		private final PalsRserveEngine engine;
+		private final long returnTime;
+
+		IdleEngine(PalsRserveEngine engine)
+		{
+			this.engine = engine;
+			this.returnTime = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import org.pals.analysis.request.AnalysisException;
+
+/**
+ * No engine was returned to a pool at its maximum size in time. The host is
+ * busy rather than broken, so it is not taken out of rotation.
+ * 
+ * @author Yoichi
+ * 
+ */
+public class PoolExhaustedException extends AnalysisException
+{
+	private static final long serialVersionUID = 4410938325317846927L;
+
+	public PoolExhaustedException(String msg)
+	{
+		super(msg);
+	}
+}
@@ -0,0 +1,138 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPGenericVector;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.RList;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * A statement builder for calling an R function over Rserve with typed
+ * arguments.
+ *
+ * The arguments are collected as REXP values, sent to R with a single assign()
+ * of one list and the function is run by do.call() on that list. So a call
+ * costs two round trips however many arguments it has, and argument values
+ * are never spliced into R source text, i.e. a quote in a file name or data
+ * set name cannot break or alter the statement.
+ *
+ * <pre>
+ * REXP result = new RFunctionCall(&quot;convertSpreadsheetToNcdf&quot;)
+ * 		.addString(csvPath).addDouble(longitude).evaluate(rConnection);
+ * </pre>
+ *
+ * Arguments added without a name are positional.
+ *
+ * @author Yoichi
+ *
+ */
+public class RFunctionCall
+{
+	/** R variable that holds the argument list during the call */
+	public static final String ARGUMENTS_SYMBOL = ".palsArgs";
+	private static final Pattern FUNCTION_NAME_PATTERN = Pattern
+			.compile("[A-Za-z.][A-Za-z0-9._]*(::[A-Za-z.][A-Za-z0-9._]*)?");
+
+	private final String functionName;
+	private final List<REXP> arguments = new ArrayList<REXP>();
+	private final List<String> argumentNames = new ArrayList<String>();
+	private boolean isNamed = false;
+
+	/**
+	 * @param functionName
+	 *            a plain R function name, optionally package qualified
+	 */
+	public RFunctionCall(String functionName)
+	{
+		if (functionName == null
+				|| !FUNCTION_NAME_PATTERN.matcher(functionName).matches()) throw new IllegalArgumentException(
+				"invalid R function name: " + functionName);
+		this.functionName = functionName;
+	}
+
+	public RFunctionCall addString(String value)
+	{
+		return add(null, new REXPString(value));
+	}
+
+	public RFunctionCall addString(String name, String value)
+	{
+		return add(name, new REXPString(value));
+	}
+
+	public RFunctionCall addDouble(double value)
+	{
+		return add(null, new REXPDouble(value));
+	}
+
+	public RFunctionCall addDouble(String name, double value)
+	{
+		return add(name, new REXPDouble(value));
+	}
+
+	/**
+	 * Adds any REXP, e.g. a raw vector
+	 *
+	 * @param name
+	 *            argument name, or null for a positional argument
+	 * @param value
+	 * @return this builder
+	 */
+	public RFunctionCall add(String name, REXP value)
+	{
+		this.arguments.add(value);
+		this.argumentNames.add(name == null ? "" : name);
+		if (name != null) this.isNamed = true;
+		return this;
+	}
+
+	/**
+	 * Sends the arguments and calls the function
+	 *
+	 * @param rConnection
+	 * @return the value of the function
+	 * @throws RserveException
+	 */
+	public REXP evaluate(RConnection rConnection) throws RserveException
+	{
+		RList argumentList;
+		if (this.isNamed) argumentList = new RList(this.arguments,
+				this.argumentNames.toArray(new String[0]));
+		else
+			argumentList = new RList(this.arguments);
+		rConnection.assign(ARGUMENTS_SYMBOL, new REXPGenericVector(
+				argumentList));
+		return rConnection.eval(toStatement());
+	}
+
+	/**
+	 * @return the R statement evaluated after the arguments are assigned
+	 */
+	public String toStatement()
+	{
+		return "do.call(" + this.functionName + ", " + ARGUMENTS_SYMBOL + ")";
+	}
+
+	/**
+	 * For logging only
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(this.functionName).append("(");
+		for (int i = 0; i < this.arguments.size(); i++)
+		{
+			if (i > 0) sb.append(", ");
+			String name = this.argumentNames.get(i);
+			if (name.length() > 0) sb.append(name).append("=");
+			sb.append(this.arguments.get(i).toDebugString());
+		}
+		return sb.append(")").toString();
+	}
+}
@@ -0,0 +1,251 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPMismatchException;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.REXPString;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.rosuda.REngine.Rserve.RserveException;
+
+/**
+ * Moves files between the JVM and the working directory of an R session over
+ * the Rserve connection itself, so that Rserve needs no disk shared with the
+ * analyser and can run on other hosts.
+ *
+ * A file up to rawTransferMaxBytes is sent as one raw vector and written by
+ * writeBin(), or read by readBin() in the same evaluation that checks its
+ * size, i.e. in one round trip. A larger file is streamed with the Rserve
+ * file API (createFile/openFile) in chunks of chunkSize, through a buffer
+ * that is reused by the thread.
+ *
+ * Remote names are relative to the working directory of the session; they
+ * are passed to R as values, never spliced into R source text.
+ *
+ * @author Yoichi
+ *
+ */
+public class RserveFileTransfer
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(RserveFileTransfer.class.getName());
+
+	/** R variable that holds the remote name during a transfer */
+	public static final String FILE_SYMBOL = ".palsFile";
+
+	private int chunkSize = 65536;
+	private int rawTransferMaxBytes = 1024 * 1024;
+	private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+	/**
+	 * @param connection
+	 * @param localFile
+	 * @param remoteName
+	 * @throws IOException
+	 */
+	public void upload(RConnection connection, File localFile,
+			String remoteName) throws IOException
+	{
+		long length = localFile.length();
+		InputStream in = new FileInputStream(localFile);
+		try
+		{
+			if (length <= this.rawTransferMaxBytes)
+			{
+				byte[] bytes = new byte[(int) length];
+				int n = 0;
+				while (n < bytes.length)
+				{
+					int read = in.read(bytes, n, bytes.length - n);
+					if (read < 0) throw new IOException(localFile
+							+ " was truncated while being read");
+					n += read;
+				}
+				writeBin(connection, bytes, remoteName);
+			}
+			else
+			{
+				OutputStream out = createFile(connection, remoteName);
+				try
+				{
+					copy(in, out);
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+		}
+		catch (RserveException e)
+		{
+			throw new IOException("failed to upload " + localFile + ": "
+					+ e.getMessage(), e);
+		}
+		finally
+		{
+			in.close();
+		}
+		LOGGER.debug("uploaded " + length + " bytes to " + remoteName);
+	}
+
+	/**
+	 * @param connection
+	 * @param remoteName
+	 * @param localFile
+	 * @throws IOException
+	 *             also if the remote file does not exist
+	 */
+	public void download(RConnection connection, String remoteName,
+			File localFile) throws IOException
+	{
+		try
+		{
+			REXP result = readBinOrSize(connection, remoteName);
+			if (result.isRaw())
+			{
+				OutputStream out = new FileOutputStream(localFile);
+				try
+				{
+					out.write(result.asBytes());
+				}
+				finally
+				{
+					out.close();
+				}
+				return;
+			}
+			// NA, a logical, if there is no such file
+			if (!result.isNumeric()) throw new IOException("no " + remoteName
+					+ " in the R session");
+		}
+		catch (RserveException e)
+		{
+			throw new IOException("failed to download " + remoteName + ": "
+					+ e.getMessage(), e);
+		}
+		catch (REXPMismatchException e)
+		{
+			throw new IOException("failed to download " + remoteName + ": "
+					+ e.getMessage(), e);
+		}
+
+		InputStream in = openFile(connection, remoteName);
+		try
+		{
+			OutputStream out = new FileOutputStream(localFile);
+			try
+			{
+				copy(in, out);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		LOGGER.debug("downloaded " + localFile.length() + " bytes of "
+				+ remoteName);
+	}
+
+	/**
+	 * Removes a remote file, logging rather than throwing if it fails
+	 *
+	 * @param connection
+	 * @param remoteName
+	 */
+	public void remove(RConnection connection, String remoteName)
+	{
+		try
+		{
+			connection.removeFile(remoteName);
+		}
+		catch (RserveException e)
+		{
+			LOGGER.debug("can't remove " + remoteName + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * The calls on the connection, which the tests override
+	 */
+
+	void writeBin(RConnection connection, byte[] bytes, String remoteName)
+			throws RserveException
+	{
+		new RFunctionCall("writeBin").add(null, new REXPRaw(bytes))
+				.addString(remoteName).evaluate(connection);
+	}
+
+	/**
+	 * @return the content of the remote file if it is not larger than
+	 *         rawTransferMaxBytes, otherwise its size; NA if it does not exist
+	 */
+	REXP readBinOrSize(RConnection connection, String remoteName)
+			throws RserveException
+	{
+		connection.assign(FILE_SYMBOL, new REXPString(remoteName));
+		return connection.eval("local({ size <- file.info(" + FILE_SYMBOL
+				+ ")$size; if (is.na(size)) NA else if (size <= "
+				+ this.rawTransferMaxBytes + ") readBin(" + FILE_SYMBOL
+				+ ", \"raw\", size) else size })");
+	}
+
+	OutputStream createFile(RConnection connection, String remoteName)
+			throws IOException
+	{
+		return connection.createFile(remoteName);
+	}
+
+	InputStream openFile(RConnection connection, String remoteName)
+			throws IOException
+	{
+		return connection.openFile(remoteName);
+	}
+
+	private void copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buffer = this.buffers.get();
+		if (buffer == null || buffer.length != this.chunkSize)
+		{
+			buffer = new byte[this.chunkSize];
+			this.buffers.set(buffer);
+		}
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+	}
+
+	public int getRawTransferMaxBytes()
+	{
+		return rawTransferMaxBytes;
+	}
+
+	/**
+	 * @param rawTransferMaxBytes
+	 *            the largest file sent as one raw vector; 0 to always stream
+	 */
+	public void setRawTransferMaxBytes(int rawTransferMaxBytes)
+	{
+		this.rawTransferMaxBytes = rawTransferMaxBytes;
+	}
+}
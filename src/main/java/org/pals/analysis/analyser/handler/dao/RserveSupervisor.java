@@ -0,0 +1,373 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.request.AnalysisException;
+
+/**
+ * Launches and owns local Rserve daemons, one per port from basePort, so that
+ * the analyser does not depend on an init script having started Rserve. A
+ * daemon that exits while the supervisor is running, e.g. because it crashed
+ * or was killed, is started again on the same port after restartDelayMillis.
+ * The engines of that port fail meanwhile and are replaced by the pool.
+ *
+ * Each daemon runs in the foreground so that its process is owned here; the
+ * default command is
+ *
+ * <pre>
+ * R --no-save --slave -e Rserve::run.Rserve(port={port})
+ * </pre>
+ *
+ * where {port} is replaced by the port of the daemon. Rserve forks one R
+ * process per connection, and that is where memory builds up, so the
+ * recycling after a number of evaluations or above a memory size is done per
+ * engine by PalsRserveEnginePoolImpl; getEndpoints() gives the ports to a
+ * PalsRserveClusterPool.
+ *
+ * destroy() also kills the R processes forked by the daemons, which
+ * Process.destroy() would leave running, through ProcessHandle on Java 9 and
+ * later. On Java 8 only the daemons themselves are stopped, and their forked
+ * sessions end when their clients close the connections.
+ *
+ * @author Yoichi
+ *
+ */
+public class RserveSupervisor
+{
+	private final static Logger LOGGER = Logger.getLogger(RserveSupervisor.class
+			.getName());
+
+	public static final String PORT_PLACEHOLDER = "{port}";
+
+	private List<String> command = Arrays.asList("R", "--no-save", "--slave",
+			"-e", "Rserve::run.Rserve(port=" + PORT_PLACEHOLDER + ")");
+	private int basePort = 16311;
+	private int numOfDaemons = 2;
+	private long startupTimeoutMillis = 30000;
+	private long restartDelayMillis = 1000;
+
+	private final List<Daemon> daemons = new ArrayList<Daemon>();
+	private final AtomicLong numOfRestarts = new AtomicLong();
+	private volatile boolean isStopped = false;
+	private boolean isStarted = false;
+
+	/**
+	 * Starts the daemons and waits until they accept connections
+	 *
+	 * @throws AnalysisException
+	 *             if a daemon can't be started or does not listen within
+	 *             startupTimeoutMillis
+	 */
+	public synchronized void start() throws AnalysisException
+	{
+		if (this.isStarted)
+		{
+			// the daemons are already on their ports
+			LOGGER.warn("the Rserve daemons are already started");
+			return;
+		}
+		this.isStarted = true;
+		this.isStopped = false;
+		for (int i = 0; i < this.numOfDaemons; i++)
+		{
+			Daemon daemon = new Daemon(this.basePort + i);
+			this.daemons.add(daemon);
+			try
+			{
+				daemon.launch();
+			}
+			catch (IOException e)
+			{
+				destroy();
+				throw new AnalysisException(e, "can't start Rserve on port "
+						+ daemon.port + ": " + e.getMessage());
+			}
+			daemon.monitor.start();
+		}
+		long deadline = System.currentTimeMillis() + this.startupTimeoutMillis;
+		for (Daemon daemon : this.daemons)
+		{
+			if (!awaitListening(daemon.port, deadline))
+			{
+				destroy();
+				throw new AnalysisException("Rserve on port " + daemon.port
+						+ " is not listening after " + this.startupTimeoutMillis
+						+ " ms");
+			}
+		}
+		LOGGER.info("started " + this.numOfDaemons + " Rserve daemons from port "
+				+ this.basePort);
+	}
+
+	/**
+	 * Stops the daemons and the R processes they have forked; they are not
+	 * restarted
+	 */
+	public synchronized void destroy()
+	{
+		this.isStopped = true;
+		for (Daemon daemon : this.daemons)
+		{
+			daemon.monitor.interrupt();
+			Process process = daemon.process;
+			if (process != null) destroyTree(process);
+		}
+		this.daemons.clear();
+		this.isStarted = false;
+		LOGGER.info("stopped the Rserve daemons; restarts="
+				+ this.numOfRestarts.get());
+	}
+
+	/**
+	 * Destroys a process and its descendants. ProcessHandle is looked up by
+	 * reflection, since the code is compiled for Java 8.
+	 *
+	 * @param process
+	 */
+	static void destroyTree(Process process)
+	{
+		Object[] descendants = new Object[0];
+		Method destroy = null;
+		try
+		{
+			Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+			Object handle = Process.class.getMethod("toHandle").invoke(process);
+			// listed first, as they are no longer descendants once it is gone
+			descendants = ((Stream<?>) handleClass.getMethod("descendants")
+					.invoke(handle)).toArray();
+			destroy = handleClass.getMethod("destroy");
+		}
+		catch (ClassNotFoundException e)
+		{
+			// Java 8
+		}
+		catch (Exception e)
+		{
+			LOGGER.warn("can't list the processes forked by Rserve: " + e);
+		}
+		process.destroy();
+		for (Object descendant : descendants)
+		{
+			try
+			{
+				destroy.invoke(descendant);
+			}
+			catch (Exception e)
+			{
+				LOGGER.warn("can't destroy a process forked by Rserve: " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return localhost:port of every daemon
+	 */
+	public List<String> getEndpoints()
+	{
+		List<String> endpoints = new ArrayList<String>();
+		for (int i = 0; i < this.numOfDaemons; i++)
+			endpoints.add("localhost:" + (this.basePort + i));
+		return endpoints;
+	}
+
+	/**
+	 * @param port
+	 * @return true if a daemon accepted a connection on the port before the
+	 *         deadline
+	 */
+	static boolean awaitListening(int port, long deadline)
+	{
+		while (true)
+		{
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(new InetSocketAddress("localhost", port), 1000);
+				return true;
+			}
+			catch (IOException e)
+			{
+				if (System.currentTimeMillis() >= deadline) return false;
+			}
+			finally
+			{
+				try
+				{
+					socket.close();
+				}
+				catch (IOException ignore)
+				{
+				}
+			}
+			try
+			{
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @param port
+	 * @return the process of the daemon on the port, or null
+	 */
+	Process getProcess(int port)
+	{
+		for (Daemon daemon : this.daemons)
+		{
+			if (daemon.port == port) return daemon.process;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of daemons started and not destroyed
+	 */
+	synchronized int getNumOfStartedDaemons()
+	{
+		return this.daemons.size();
+	}
+
+	public long getNumOfRestarts()
+	{
+		return numOfRestarts.get();
+	}
+
+	public List<String> getCommand()
+	{
+		return command;
+	}
+
+	/**
+	 * @param command
+	 *            the program and its arguments; {port} is replaced by the port
+	 */
+	public void setCommand(List<String> command)
+	{
+		this.command = command;
+	}
+
+	public int getBasePort()
+	{
+		return basePort;
+	}
+
+	public void setBasePort(int basePort)
+	{
+		this.basePort = basePort;
+	}
+
+	public int getNumOfDaemons()
+	{
+		return numOfDaemons;
+	}
+
+	public void setNumOfDaemons(int numOfDaemons)
+	{
+		this.numOfDaemons = numOfDaemons;
+	}
+
+	public long getStartupTimeoutMillis()
+	{
+		return startupTimeoutMillis;
+	}
+
+	public void setStartupTimeoutMillis(long startupTimeoutMillis)
+	{
+		this.startupTimeoutMillis = startupTimeoutMillis;
+	}
+
+	public long getRestartDelayMillis()
+	{
+		return restartDelayMillis;
+	}
+
+	public void setRestartDelayMillis(long restartDelayMillis)
+	{
+		this.restartDelayMillis = restartDelayMillis;
+	}
+
+	/**
+	 * One daemon and the thread that restarts it
+	 */
+	private class Daemon implements Runnable
+	{
+		private final int port;
+		private final Thread monitor;
+		private volatile Process process;
+
+		Daemon(int port)
+		{
+			this.port = port;
+			this.monitor = new Thread(this, "rserve-daemon-" + port);
+			this.monitor.setDaemon(true);
+		}
+
+		void launch() throws IOException
+		{
+			List<String> arguments = new ArrayList<String>();
+			for (String argument : command)
+				arguments.add(argument.replace(PORT_PLACEHOLDER,
+						String.valueOf(this.port)));
+			ProcessBuilder builder = new ProcessBuilder(arguments);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+			this.process = builder.start();
+		}
+
+		public void run()
+		{
+			while (!isStopped)
+			{
+				int exitValue;
+				try
+				{
+					exitValue = this.process.waitFor();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				if (isStopped) return;
+				LOGGER.warn("Rserve on port " + this.port + " exited with "
+						+ exitValue + "; restarting");
+				try
+				{
+					Thread.sleep(restartDelayMillis);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				synchronized (RserveSupervisor.this)
+				{
+					if (isStopped) return;
+					try
+					{
+						launch();
+						numOfRestarts.incrementAndGet();
+					}
+					catch (IOException e)
+					{
+						// tried again after the delay
+						LOGGER.error("can't restart Rserve on port "
+								+ this.port + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+}
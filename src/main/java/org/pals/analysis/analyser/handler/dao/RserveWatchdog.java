@@ -0,0 +1,100 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Kills the R session of an engine whose evaluation is still running at the
+ * deadline of its request. RConnection.eval() has no timeout and can't be
+ * interrupted, so killing the R process is the only way to free the worker
+ * thread and the engine. The pool then replaces the engine.
+ *
+ * The caller watches the engine for the duration of the evaluation:
+ *
+ * <pre>
+ * ScheduledFuture&lt;?&gt; watch = watchdog.watch(engine, deadline);
+ * try
+ * {
+ * 	call.evaluate(engine.getConnection());
+ * }
+ * finally
+ * {
+ * 	RserveWatchdog.cancel(watch);
+ * }
+ * </pre>
+ *
+ * and invalidates the engine if isKilled() is true afterwards.
+ *
+ * @author Yoichi
+ *
+ */
+public class RserveWatchdog
+{
+	private final static Logger LOGGER = Logger.getLogger(RserveWatchdog.class
+			.getName());
+
+	private final ScheduledExecutorService scheduler;
+	private final AtomicLong numOfKilled = new AtomicLong();
+
+	public RserveWatchdog()
+	{
+		this.scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "rserve-watchdog");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * @param engine
+	 * @param deadline
+	 *            epoch millis; 0 for no deadline
+	 * @return the watch to cancel when the evaluation ends, or null if there
+	 *         is no deadline
+	 */
+	public ScheduledFuture<?> watch(final PalsRserveEngine engine,
+			long deadline)
+	{
+		if (deadline <= 0) return null;
+		long delay = Math.max(0, deadline - System.currentTimeMillis());
+		return this.scheduler.schedule(new Runnable()
+		{
+			public void run()
+			{
+				LOGGER.warn("deadline passed; killing Rserve session "
+						+ engine.getPid());
+				if (engine.kill()) numOfKilled.incrementAndGet();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param watch
+	 *            may be null
+	 */
+	public static void cancel(ScheduledFuture<?> watch)
+	{
+		if (watch != null) watch.cancel(false);
+	}
+
+	public void destroy()
+	{
+		this.scheduler.shutdownNow();
+	}
+
+	public long getNumOfKilled()
+	{
+		return numOfKilled.get();
+	}
+}
@@ -0,0 +1,298 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs S3 requests with AWS Signature Version 4. The payload is not hashed
+ * (UNSIGNED-PAYLOAD), so a file can be streamed without being read twice; the
+ * signed headers are host, x-amz-content-sha256 and x-amz-date.
+ *
+ * @author Yoichi
+ *
+ */
+class AwsV4Signer
+{
+	static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+	private static final String SERVICE = "s3";
+	private static final String UTF_8 = "UTF-8";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String accessKey;
+	private final String secretKey;
+	private final String region;
+
+	AwsV4Signer(String accessKey, String secretKey, String region)
+	{
+		this.accessKey = accessKey;
+		this.secretKey = secretKey;
+		this.region = region;
+	}
+
+	/**
+	 * Sets the headers of the signature on a connection that is not
+	 * connected yet
+	 *
+	 * @param connection
+	 * @param method
+	 * @param url
+	 *            with its path encoded by encodePath()
+	 * @param parameters
+	 *            the query parameters, not encoded
+	 * @param now
+	 */
+	void sign(HttpURLConnection connection, String method, URL url,
+			SortedMap<String, String> parameters, Date now)
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String amzDate = format.format(now);
+		String date = amzDate.substring(0, 8);
+
+		SortedMap<String, String> headers = new TreeMap<String, String>();
+		headers.put("host", hostHeader(url));
+		headers.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+		headers.put("x-amz-date", amzDate);
+		String canonicalRequest = canonicalRequest(method, url.getPath(),
+				canonicalQuery(parameters), headers, UNSIGNED_PAYLOAD);
+		String signature = signature(date,
+				stringToSign(amzDate, scope(date), canonicalRequest));
+
+		connection.setRequestProperty("x-amz-date", amzDate);
+		connection.setRequestProperty("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+		connection.setRequestProperty("Authorization", ALGORITHM
+				+ " Credential=" + this.accessKey + "/" + scope(date)
+				+ ", SignedHeaders=" + signedHeaders(headers) + ", Signature="
+				+ signature);
+	}
+
+	/**
+	 * @param method
+	 * @param path
+	 *            encoded
+	 * @param query
+	 *            canonical
+	 * @param headers
+	 *            the signed headers by their names in lower case
+	 * @param payloadHash
+	 *            hex SHA-256 of the body, or UNSIGNED-PAYLOAD
+	 * @return
+	 */
+	static String canonicalRequest(String method, String path, String query,
+			SortedMap<String, String> headers, String payloadHash)
+	{
+		StringBuilder request = new StringBuilder();
+		request.append(method).append('\n').append(path).append('\n')
+				.append(query).append('\n');
+		for (Map.Entry<String, String> header : headers.entrySet())
+			request.append(header.getKey()).append(':')
+					.append(header.getValue().trim()).append('\n');
+		request.append('\n').append(signedHeaders(headers)).append('\n')
+				.append(payloadHash);
+		return request.toString();
+	}
+
+	static String stringToSign(String amzDate, String scope,
+			String canonicalRequest)
+	{
+		try
+		{
+			return ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+					+ hex(sha256(canonicalRequest.getBytes(UTF_8)));
+		}
+		catch (GeneralSecurityException e)
+		{
+			// SHA-256 comes with every JRE
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param date
+	 *            yyyyMMdd
+	 * @param stringToSign
+	 * @return the signature in hex
+	 */
+	String signature(String date, String stringToSign)
+	{
+		try
+		{
+			byte[] key = hmac(("AWS4" + this.secretKey).getBytes(UTF_8), date);
+			key = hmac(key, this.region);
+			key = hmac(key, SERVICE);
+			key = hmac(key, "aws4_request");
+			return hex(hmac(key, stringToSign));
+		}
+		catch (GeneralSecurityException e)
+		{
+			// HmacSHA256 comes with every JRE
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param date
+	 *            yyyyMMdd
+	 * @return the credential scope
+	 */
+	String scope(String date)
+	{
+		return date + "/" + this.region + "/" + SERVICE + "/aws4_request";
+	}
+
+	private static String signedHeaders(SortedMap<String, String> headers)
+	{
+		StringBuilder names = new StringBuilder();
+		for (String name : headers.keySet())
+		{
+			if (names.length() > 0) names.append(';');
+			names.append(name);
+		}
+		return names.toString();
+	}
+
+	/**
+	 * @param parameters
+	 * @return the parameters, sorted and encoded, as both the canonical and
+	 *         the actual query
+	 */
+	static String canonicalQuery(SortedMap<String, String> parameters)
+	{
+		StringBuilder query = new StringBuilder();
+		for (Map.Entry<String, String> parameter : parameters.entrySet())
+		{
+			if (query.length() > 0) query.append('&');
+			query.append(encode(parameter.getKey(), true)).append('=')
+					.append(encode(parameter.getValue(), true));
+		}
+		return query.toString();
+	}
+
+	/**
+	 * @param path
+	 *            not encoded
+	 * @return the path with every segment encoded as S3 expects
+	 */
+	static String encodePath(String path)
+	{
+		return encode(path, false);
+	}
+
+	/**
+	 * @param path
+	 * @return the path with its %XX escapes decoded as UTF-8
+	 */
+	static String decodePath(String path)
+	{
+		if (path.indexOf('%') < 0) return path;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try
+		{
+			for (int i = 0; i < path.length(); i++)
+			{
+				char c = path.charAt(i);
+				if (c == '%' && i + 2 < path.length())
+				{
+					bytes.write(Integer.parseInt(path.substring(i + 1, i + 3),
+							16));
+					i += 2;
+				}
+				else
+					bytes.write(String.valueOf(c).getBytes(UTF_8));
+			}
+			return bytes.toString(UTF_8);
+		}
+		catch (IOException e)
+		{
+			// not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param url
+	 * @return the Host header HttpURLConnection sends for the URL
+	 */
+	static String hostHeader(URL url)
+	{
+		int port = url.getPort();
+		if (port == -1 || port == url.getDefaultPort()) return url.getHost();
+		return url.getHost() + ":" + port;
+	}
+
+	/**
+	 * URI-encodes as RFC 3986, i.e. everything but the unreserved characters
+	 */
+	private static String encode(String s, boolean isSlashEncoded)
+	{
+		StringBuilder encoded = new StringBuilder();
+		byte[] bytes;
+		try
+		{
+			bytes = s.getBytes(UTF_8);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		for (byte b : bytes)
+		{
+			char c = (char) (b & 0xff);
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')
+					|| (c >= '0' && c <= '9') || c == '-' || c == '_'
+					|| c == '.' || c == '~' || (c == '/' && !isSlashEncoded)) encoded
+					.append(c);
+			else
+				encoded.append('%').append(Character.toUpperCase(HEX[c >> 4]))
+						.append(Character.toUpperCase(HEX[c & 0xf]));
+		}
+		return encoded.toString();
+	}
+
+	private static byte[] hmac(byte[] key, String data)
+			throws GeneralSecurityException, UnsupportedEncodingException
+	{
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(data.getBytes(UTF_8));
+	}
+
+	private static byte[] sha256(byte[] data) throws GeneralSecurityException
+	{
+		return MessageDigest.getInstance("SHA-256").digest(data);
+	}
+
+	private static String hex(byte[] bytes)
+	{
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,123 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.handler.cache.RemoteFileCache;
+
+/**
+ * Puts a RemoteFileCache in front of the downloads of another handler. The
+ * version of the remote file is asked first, which for HTTP and S3 is a HEAD
+ * request, and the file is only downloaded if that version of it is not
+ * cached yet; several requests for it at once share one download. The
+ * download is conditional on that version, so a file that changes after the
+ * HEAD fails the request rather than being cached under the old version. A
+ * file whose store gives neither an ETag nor a modification time can't be
+ * checked and is always downloaded.
+ *
+ * The local file is hard-linked to the cached one when possible, or else a
+ * copy. The handlers of the requests only read their input and then delete
+ * it, which leaves the cached file as it is.
+ *
+ * Storing is left to the other handler.
+ *
+ * @author Yoichi
+ *
+ */
+public class CachingRemoteFileHandler implements RemoteFileHandler
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(CachingRemoteFileHandler.class.getName());
+
+	private final RemoteFileHandler handler;
+	private final RemoteFileCache cache;
+
+	/**
+	 * @param handler
+	 *            does the transfers
+	 * @param cache
+	 *            may be shared by several handlers
+	 */
+	public CachingRemoteFileHandler(RemoteFileHandler handler,
+			RemoteFileCache cache)
+	{
+		this.handler = handler;
+		this.cache = cache;
+	}
+
+	public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile)
+			throws IOException
+	{
+		RemoteFileVersion version = this.handler.getVersion(remoteFileUrl);
+		if (!version.hasValidator())
+		{
+			this.handler.copyRemoteFileToLocal(remoteFileUrl, localFile);
+			return;
+		}
+		copyRemoteFileToLocal(remoteFileUrl, localFile, version);
+	}
+
+	/**
+	 * Takes the version from the cache, or else downloads it on the condition
+	 * that the file is still that version, so that a file changed since it was
+	 * asked for is not cached under the old version
+	 */
+	public void copyRemoteFileToLocal(final URL remoteFileUrl, File localFile,
+			final RemoteFileVersion version) throws IOException
+	{
+		String key = this.cache.createKey(remoteFileUrl, version);
+		File cachedFile = this.cache.acquire(key, new RemoteFileCache.Loader()
+		{
+			public void load(File file) throws IOException
+			{
+				LOGGER.debug("caching " + remoteFileUrl + " " + version);
+				handler.copyRemoteFileToLocal(remoteFileUrl, file, version);
+			}
+		});
+		try
+		{
+			if (!FileProtocolHandler.link(cachedFile, localFile)) FileProtocolHandler
+					.copyFile(cachedFile, localFile);
+		}
+		finally
+		{
+			this.cache.release(key);
+		}
+	}
+
+	public void storeFilesIntoStore(Map<String, File> localFiles,
+			Map<String, URL> remoteUrls) throws IOException
+	{
+		this.handler.storeFilesIntoStore(localFiles, remoteUrls);
+	}
+
+	public CompletableFuture<Void> storeFilesIntoStoreAsync(
+			Map<String, File> localFiles, Map<String, URL> remoteUrls)
+	{
+		return this.handler.storeFilesIntoStoreAsync(localFiles, remoteUrls);
+	}
+
+	public URL getStoreUrl(URL remoteFileUrl)
+	{
+		return this.handler.getStoreUrl(remoteFileUrl);
+	}
+
+	public RemoteFileVersion getVersion(URL remoteFileUrl) throws IOException
+	{
+		return this.handler.getVersion(remoteFileUrl);
+	}
+
+	public RemoteFileHandler getHandler()
+	{
+		return handler;
+	}
+
+	public RemoteFileCache getCache()
+	{
+		return cache;
+	}
+}
@@ -7,25 +7,111 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
 
 /**
  * File protocol handler is a trivial class which simply uses File operations
  * with URL. It discards the "protocol://user@host" part of the information.
- * 
+ *
+ * With linkEnabled (the default), a file is hard-linked rather than copied
+ * when the source and the destination are on the same file system, so a
+ * large spreadsheet or NetCDF file is not copied at all. Otherwise it is
+ * copied in chunks into a temporary file next to the destination, which is
+ * then renamed atomically, so a reader never sees a partial file. A linked
+ * file shares its content with the source, so the files in the store must not
+ * be modified in place, e.g. while one is also an entry of the result cache.
+ *
+ * storeFilesIntoStoreAsync() copies all the files at once with
+ * AsynchronousFileChannels on the shared I/O pool; a chunk is read, written
+ * and the next one read by completion handlers, so no thread waits for a
+ * copy to finish.
+ *
+ * ingest() also computes a digest of the content on the way, so that the
+ * content is not read again for the result cache key.
+ *
  * @author Yoichi
- * 
+ *
  */
 public class FileProtocolHandler implements RemoteFileHandler
 {
+	private final static Logger LOGGER = Logger
+			.getLogger(FileProtocolHandler.class.getName());
+
+	/** the most transferred by one transferTo() call */
+	private static final long TRANSFER_CHUNK_SIZE = 64L * 1024 * 1024;
+	private static final int DIGEST_BUFFER_SIZE = 1024 * 1024;
+	private static final int ASYNC_BUFFER_SIZE = 1024 * 1024;
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private volatile boolean linkEnabled = true;
+
 	public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile)
 			throws IOException
 	{
-		String remoteFilePath = remoteFileUrl.getPath();
-		File remoteFile = new File(remoteFilePath);
+		ingest(remoteFileUrl, localFile, null);
+	}
 
-		copyFile2File(remoteFile, localFile);
+	/**
+	 * Checks the modification time and the size of the file before and after
+	 * it is brought in; one replaced meanwhile is deleted again
+	 */
+	public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile,
+			RemoteFileVersion version) throws IOException
+	{
+		checkVersion(remoteFileUrl, version);
+		copyRemoteFileToLocal(remoteFileUrl, localFile);
+		boolean isChecked = false;
+		try
+		{
+			checkVersion(remoteFileUrl, version);
+			isChecked = true;
+		}
+		finally
+		{
+			if (!isChecked) localFile.delete();
+		}
+	}
+
+	/**
+	 * Brings a remote file into the local data directory
+	 *
+	 * @param remoteFileUrl
+	 * @param localFile
+	 * @param digest
+	 *            updated with the content, if not null
+	 * @throws IOException
+	 */
+	public void ingest(URL remoteFileUrl, File localFile, MessageDigest digest)
+			throws IOException
+	{
+		File remoteFile = new File(remoteFileUrl.getPath());
+		if (this.linkEnabled && link(remoteFile, localFile))
+		{
+			if (digest != null) digest(remoteFile, digest);
+			return;
+		}
+		copyFile(remoteFile, localFile, digest);
 	}
 
 	/**
@@ -35,7 +121,7 @@ public class FileProtocolHandler implements RemoteFileHandler
 	 * with Java File. So, it does not really have to use the URL form. The
 	 * reason why the URL form is used is the compatibility. The API needs to
 	 * use URL for cases when files are stored using other URL protocols.
-	 * 
+	 *
 	 * @throws IOException
 	 */
 	public void storeFilesIntoStore(Map<String, File> localFiles,
@@ -51,42 +137,218 @@ public class FileProtocolHandler implements RemoteFileHandler
 			remoteFileUrl = remoteUrls.get(key);
 			remoteFilePath = remoteFileUrl.getPath();
 			remoteFile = new File(remoteFilePath);
-			copyFile2File(localFile, remoteFile);
+			if (this.linkEnabled && link(localFile, remoteFile)) continue;
+			copyFile(localFile, remoteFile);
+		}
+	}
+
+	/**
+	 * Links or copies every file concurrently
+	 */
+	public CompletableFuture<Void> storeFilesIntoStoreAsync(
+			Map<String, File> localFiles, Map<String, URL> remoteUrls)
+	{
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (String key : localFiles.keySet())
+		{
+			File localFile = localFiles.get(key);
+			File remoteFile = new File(remoteUrls.get(key).getPath());
+			if (this.linkEnabled && link(localFile, remoteFile)) continue;
+			futures.add(copyFileAsync(localFile, remoteFile,
+					UrlProtocolHandlerFactory.getIoExecutor()));
 		}
+		return CompletableFuture.allOf(futures
+				.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+	/**
+	 * Copies into a temporary file in the destination directory and renames
+	 * it to the destination, like copyFile(), without blocking the caller
+	 *
+	 * @param fromFile
+	 * @param toFile
+	 * @param executor
+	 *            runs the reads, the writes and their completion handlers
+	 * @return completed when the destination is renamed, or exceptionally
+	 */
+	static CompletableFuture<Void> copyFileAsync(File fromFile, File toFile,
+			ExecutorService executor)
+	{
+		AsyncCopy copy = new AsyncCopy(fromFile, toFile);
+		copy.start(executor);
+		return copy.future;
 	}
-	
+
 	/**
-	 * Actual copy method
+	 * Actual copy method, also used for other local copies
 	 * @param fromFile
 	 * @param toFile
 	 * @throws IOException
 	 */
-	private void copyFile2File(File fromFile, File toFile) throws IOException
+	public static void copyFile(File fromFile, File toFile) throws IOException
 	{
+		copyFile(fromFile, toFile, null);
+	}
+
+	/**
+	 * Copies into a temporary file in the destination directory and renames
+	 * it to the destination. Without a digest, the channels transfer the
+	 * content, in chunks because transferTo() may transfer less than asked.
+	 *
+	 * @param fromFile
+	 * @param toFile
+	 * @param digest
+	 *            updated with the content, if not null
+	 * @throws IOException
+	 */
+	public static void copyFile(File fromFile, File toFile,
+			MessageDigest digest) throws IOException
+	{
+		File tempFile = new File(toFile.getAbsoluteFile().getParentFile(),
+				toFile.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
 		FileInputStream fileInputStream = null;
 		FileOutputStream fileOutputStream = null;
-		FileChannel inputChannel = null;
-		FileChannel outputChannel = null;
+		boolean isCopied = false;
 		try
 		{
 			fileInputStream = new FileInputStream(fromFile);
-			inputChannel = fileInputStream.getChannel();
-			fileOutputStream = new FileOutputStream(toFile);
-			outputChannel = fileOutputStream.getChannel();
+			FileChannel inputChannel = fileInputStream.getChannel();
+			fileOutputStream = new FileOutputStream(tempFile);
+			FileChannel outputChannel = fileOutputStream.getChannel();
 
-			long position = 0;
-			outputChannel.transferFrom(inputChannel, position,
-					inputChannel.size());
+			if (digest == null)
+			{
+				long size = inputChannel.size();
+				long position = 0;
+				while (position < size)
+				{
+					long n = inputChannel.transferTo(position,
+							Math.min(TRANSFER_CHUNK_SIZE, size - position),
+							outputChannel);
+					if (n <= 0) throw new IOException(fromFile
+							+ " was truncated while being copied");
+					position += n;
+				}
+			}
+			else
+			{
+				ByteBuffer buffer = ByteBuffer
+						.allocateDirect(DIGEST_BUFFER_SIZE);
+				while (inputChannel.read(buffer) != -1)
+				{
+					buffer.flip();
+					buffer.mark();
+					digest.update(buffer);
+					buffer.reset();
+					while (buffer.hasRemaining())
+						outputChannel.write(buffer);
+					buffer.clear();
+				}
+			}
+			fileOutputStream.close();
+			fileOutputStream = null;
+			rename(tempFile, toFile);
+			isCopied = true;
 		}
 		finally
 		{
-			if (inputChannel != null) inputChannel.close();
 			if (fileInputStream != null) fileInputStream.close();
-			if (outputChannel != null) outputChannel.close();
 			if (fileOutputStream != null) fileOutputStream.close();
+			if (!isCopied) tempFile.delete();
+		}
+	}
+
+	/**
+	 * Hard-links the destination to the source, replacing the destination.
+	 * Like copyFile(), it links a temporary name in the destination directory
+	 * and renames it, so a reader never finds the destination missing.
+	 *
+	 * @param fromFile
+	 * @param toFile
+	 * @return false if a link can't be made, e.g. across file systems
+	 */
+	static boolean link(File fromFile, File toFile)
+	{
+		File tempFile = new File(toFile.getAbsoluteFile().getParentFile(),
+				toFile.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+		try
+		{
+			Files.createLink(tempFile.toPath(), fromFile.toPath());
+			rename(tempFile, toFile);
+			return true;
+		}
+		catch (IOException e)
+		{
+			LOGGER.debug("can't link " + toFile + ": " + e.getMessage());
+		}
+		catch (UnsupportedOperationException e)
+		{
+			LOGGER.debug("can't link " + toFile + ": " + e.getMessage());
+		}
+		tempFile.delete();
+		return false;
+	}
+
+	static void rename(File fromFile, File toFile) throws IOException
+	{
+		try
+		{
+			Files.move(fromFile.toPath(), toFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(fromFile.toPath(), toFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void digest(File file, MessageDigest digest)
+			throws IOException
+	{
+		FileInputStream fileInputStream = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = fileInputStream.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+			while (channel.read(buffer) != -1)
+			{
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		finally
+		{
+			fileInputStream.close();
 		}
 	}
 
+	/**
+	 * The modification time and the size of the file
+	 */
+	public RemoteFileVersion getVersion(URL remoteFileUrl) throws IOException
+	{
+		File remoteFile = new File(remoteFileUrl.getPath());
+		if (!remoteFile.isFile()) throw new FileNotFoundException(
+				remoteFile.toString());
+		return new RemoteFileVersion(null, String.valueOf(remoteFile
+				.lastModified()), remoteFile.length());
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the file is no longer the version
+	 */
+	private void checkVersion(URL remoteFileUrl, RemoteFileVersion version)
+			throws IOException
+	{
+		RemoteFileVersion current = getVersion(remoteFileUrl);
+		if (!version.matches(current)) throw new IOException(remoteFileUrl
+				+ " has changed: " + current + " instead of " + version);
+	}
+
 	/**
 	 * This returns the path without the file name, i.e. remote data directory
 	 * URL
@@ -107,4 +369,169 @@ public class FileProtocolHandler implements RemoteFileHandler
 		}
 		return remoteDirUrl;
 	}
+
+	public boolean isLinkEnabled()
+	{
+		return linkEnabled;
+	}
+
+	public void setLinkEnabled(boolean linkEnabled)
+	{
+		this.linkEnabled = linkEnabled;
+	}
+
+	/**
+	 * One asynchronous copy; the reads and the writes alternate on one buffer
+	 * at the same file position
+	 */
+	private static class AsyncCopy
+	{
+		private final File fromFile;
+		private final File toFile;
+		private final File tempFile;
+		private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		private final ByteBuffer buffer = ByteBuffer
+				.allocateDirect(ASYNC_BUFFER_SIZE);
+		private AsynchronousFileChannel inputChannel;
+		private AsynchronousFileChannel outputChannel;
+		private long position = 0;
+
+		private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>()
+		{
+			public void completed(Integer n, Void attachment)
+			{
+				if (n.intValue() == -1)
+				{
+					finish();
+					return;
+				}
+				buffer.flip();
+				write();
+			}
+
+			public void failed(Throwable e, Void attachment)
+			{
+				fail(e);
+			}
+		};
+
+		private final CompletionHandler<Integer, Void> writeHandler = new CompletionHandler<Integer, Void>()
+		{
+			public void completed(Integer n, Void attachment)
+			{
+				position += n.intValue();
+				if (buffer.hasRemaining()) write();
+				else
+				{
+					buffer.clear();
+					read();
+				}
+			}
+
+			public void failed(Throwable e, Void attachment)
+			{
+				fail(e);
+			}
+		};
+
+		AsyncCopy(File fromFile, File toFile)
+		{
+			this.fromFile = fromFile;
+			this.toFile = toFile;
+			this.tempFile = new File(toFile.getAbsoluteFile().getParentFile(),
+					toFile.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+		}
+
+		void start(ExecutorService executor)
+		{
+			Set<OpenOption> readOptions = Collections
+					.<OpenOption> singleton(StandardOpenOption.READ);
+			Set<OpenOption> writeOptions = new HashSet<OpenOption>(
+					Arrays.asList(StandardOpenOption.WRITE,
+							StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING));
+			try
+			{
+				this.inputChannel = AsynchronousFileChannel.open(
+						this.fromFile.toPath(), readOptions, executor);
+				this.outputChannel = AsynchronousFileChannel.open(
+						this.tempFile.toPath(), writeOptions, executor);
+			}
+			catch (Exception e)
+			{
+				fail(e);
+				return;
+			}
+			read();
+		}
+
+		private void read()
+		{
+			try
+			{
+				this.inputChannel.read(this.buffer, this.position, null,
+						this.readHandler);
+			}
+			catch (Exception e)
+			{
+				// e.g. the I/O pool is shut down
+				fail(e);
+			}
+		}
+
+		private void write()
+		{
+			try
+			{
+				this.outputChannel.write(this.buffer, this.position, null,
+						this.writeHandler);
+			}
+			catch (Exception e)
+			{
+				fail(e);
+			}
+		}
+
+		private void finish()
+		{
+			try
+			{
+				this.outputChannel.force(false);
+				close();
+				rename(this.tempFile, this.toFile);
+				this.future.complete(null);
+			}
+			catch (IOException e)
+			{
+				fail(e);
+			}
+		}
+
+		private void fail(Throwable e)
+		{
+			close();
+			this.tempFile.delete();
+			LOGGER.warn("can't copy " + this.fromFile + " to " + this.toFile
+					+ ": " + e);
+			this.future.completeExceptionally(e);
+		}
+
+		private void close()
+		{
+			closeQuietly(this.inputChannel);
+			closeQuietly(this.outputChannel);
+		}
+
+		private static void closeQuietly(AsynchronousFileChannel channel)
+		{
+			if (channel == null) return;
+			try
+			{
+				channel.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
 }
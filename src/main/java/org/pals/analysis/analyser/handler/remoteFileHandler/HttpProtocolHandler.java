@@ -0,0 +1,433 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fetches files from plain http and https URLs, e.g. datasets submitted from
+ * the portal, and stores files with PUT, e.g. to a WebDAV store.
+ *
+ * A download is streamed into a temporary file next to the local file, which
+ * is renamed when complete. If the connection breaks, or the response ends
+ * before its Content-Length, the download is resumed up to maxResumes times
+ * with a Range request from the bytes already written; If-Range makes the
+ * server send the whole file again instead if it has changed meanwhile.
+ * Without an ETag or Last-Modified to check that, the download starts over.
+ *
+ * A download can be made conditional on a version of the file, e.g. the one
+ * a cache asked for with HEAD and keys the file by. Its strong ETag is sent
+ * with If-Match, or else its modification time with If-Unmodified-Since, so a
+ * server that has a newer file answers 412 Precondition Failed; the version
+ * of the response is also checked, for servers that ignore the headers.
+ *
+ * The connections are HttpURLConnections, which the JRE keeps alive and
+ * reuses per host as long as every response is read to the end and closed.
+ * At most maxConnections requests of this handler are open at once, e.g.
+ * while the uploads of many requests run on the shared I/O pool; the others
+ * wait for one to finish.
+ *
+ * @author Yoichi
+ *
+ */
+public class HttpProtocolHandler implements RemoteFileHandler
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(HttpProtocolHandler.class.getName());
+
+	public static final String HTTP_PROTOCOL = "http";
+	public static final String HTTPS_PROTOCOL = "https";
+
+	private static final String TEMP_SUFFIX = ".part";
+	private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+			.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+	private int maxResumes = 3;
+	private int connectTimeoutMillis = 10000;
+	private int readTimeoutMillis = 60000;
+	private int maxConnections = 8;
+	private Semaphore connections = new Semaphore(maxConnections, true);
+
+	public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile)
+			throws IOException
+	{
+		download(remoteFileUrl, localFile, null);
+	}
+
+	/**
+	 * Downloads the file only if it is still the given version
+	 */
+	public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile,
+			RemoteFileVersion version) throws IOException
+	{
+		download(remoteFileUrl, localFile, version);
+	}
+
+	/**
+	 * Downloads a file, resuming it if the connection breaks
+	 *
+	 * @param remoteFileUrl
+	 * @param localFile
+	 *            replaced when the download is complete
+	 * @param expectedVersion
+	 *            the file must still be, or null for any
+	 * @return the version downloaded
+	 * @throws IOException
+	 *             also with the status 412 if the file is no longer the
+	 *             expected version
+	 */
+	public RemoteFileVersion download(URL remoteFileUrl, File localFile,
+			RemoteFileVersion expectedVersion) throws IOException
+	{
+		File tempFile = new File(localFile.getAbsoluteFile().getParentFile(),
+				localFile.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+		FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+		boolean isDownloaded = false;
+		try
+		{
+			FileChannel channel = fileOutputStream.getChannel();
+			RemoteFileVersion version = null;
+			long written = 0;
+			int numOfResumes = 0;
+			while (true)
+			{
+				HttpURLConnection connection = open("GET", remoteFileUrl);
+				if (expectedVersion != null) setPrecondition(connection,
+						expectedVersion);
+				boolean isResuming = written > 0 && version != null
+						&& version.getRangeValidator() != null;
+				if (isResuming)
+				{
+					connection.setRequestProperty("Range", "bytes=" + written
+							+ "-");
+					connection.setRequestProperty("If-Range",
+							version.getRangeValidator());
+				}
+				try
+				{
+					int responseCode = connection.getResponseCode();
+					HttpTransfer.checkResponse(connection, remoteFileUrl);
+
+					long expectedSize;
+					if (isResuming
+							&& responseCode == HttpURLConnection.HTTP_PARTIAL)
+					{
+						expectedSize = checkContentRange(connection,
+								remoteFileUrl, written, version);
+					}
+					else
+					{
+						// the whole file, possibly a newer one
+						if (written > 0)
+						{
+							LOGGER.info(remoteFileUrl
+									+ " is sent again from the start");
+							channel.truncate(0);
+							written = 0;
+						}
+						version = HttpTransfer.getVersion(connection);
+						if (expectedVersion != null
+								&& !expectedVersion.matches(version)) throw new HttpTransfer.HttpStatusException(
+								remoteFileUrl + " has changed: " + version
+										+ " instead of " + expectedVersion,
+								HttpURLConnection.HTTP_PRECON_FAILED);
+						expectedSize = version.getSize();
+					}
+
+					transfer(connection.getInputStream(), fileOutputStream);
+					written = channel.size();
+					if (expectedSize >= 0 && written < expectedSize) throw new IOException(
+							"connection closed after " + written + " of "
+									+ expectedSize + " bytes");
+					break;
+				}
+				catch (HttpTransfer.HttpStatusException e)
+				{
+					throw e;
+				}
+				catch (IOException e)
+				{
+					// keep what has arrived for the resumed request
+					written = channel.size();
+					if (numOfResumes >= this.maxResumes) throw e;
+					numOfResumes++;
+					LOGGER.warn("resuming " + remoteFileUrl + " at " + written
+							+ " bytes: " + e.getMessage());
+				}
+				finally
+				{
+					close(connection);
+				}
+			}
+			fileOutputStream.close();
+			fileOutputStream = null;
+			FileProtocolHandler.rename(tempFile, localFile);
+			isDownloaded = true;
+			return version;
+		}
+		finally
+		{
+			if (fileOutputStream != null) fileOutputStream.close();
+			if (!isDownloaded) tempFile.delete();
+		}
+	}
+
+	/**
+	 * HEADs the file; a server that does not allow HEAD gives no version
+	 */
+	public RemoteFileVersion getVersion(URL remoteFileUrl) throws IOException
+	{
+		HttpURLConnection connection = open("HEAD", remoteFileUrl);
+		try
+		{
+			HttpTransfer.checkResponse(connection, remoteFileUrl);
+			return HttpTransfer.getVersion(connection);
+		}
+		catch (HttpTransfer.HttpStatusException e)
+		{
+			if (e.getStatus() != HttpURLConnection.HTTP_BAD_METHOD
+					&& e.getStatus() != HttpURLConnection.HTTP_NOT_IMPLEMENTED) throw e;
+			return new RemoteFileVersion(null, null, -1);
+		}
+		finally
+		{
+			close(connection);
+		}
+	}
+
+	/**
+	 * Stores the files; blocks until all are stored
+	 */
+	public void storeFilesIntoStore(Map<String, File> localFiles,
+			Map<String, URL> remoteUrls) throws IOException
+	{
+		HttpTransfer.await(storeFilesIntoStoreAsync(localFiles, remoteUrls),
+				"storing");
+	}
+
+	/**
+	 * PUTs every file concurrently
+	 */
+	public CompletableFuture<Void> storeFilesIntoStoreAsync(
+			Map<String, File> localFiles, Map<String, URL> remoteUrls)
+	{
+		ExecutorService executor = UrlProtocolHandlerFactory.getIoExecutor();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (String key : localFiles.keySet())
+		{
+			final File localFile = localFiles.get(key);
+			final URL remoteUrl = remoteUrls.get(key);
+			futures.add(CompletableFuture.runAsync(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						put(remoteUrl, localFile);
+					}
+					catch (IOException e)
+					{
+						throw new CompletionException(e);
+					}
+				}
+			}, executor));
+		}
+		return CompletableFuture.allOf(futures
+				.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+	/**
+	 * This returns the URL of the directory of the file
+	 */
+	public URL getStoreUrl(URL remoteFileUrl)
+	{
+		return HttpTransfer.getParentUrl(remoteFileUrl);
+	}
+
+	/**
+	 * Makes the server refuse the request if the file is not the version
+	 */
+	private static void setPrecondition(HttpURLConnection connection,
+			RemoteFileVersion version)
+	{
+		String eTag = version.getETag();
+		// If-Match only takes strong ETags
+		if (eTag != null && !eTag.startsWith("W/")) connection
+				.setRequestProperty("If-Match", eTag);
+		else if (version.getLastModified() != null) connection
+				.setRequestProperty("If-Unmodified-Since",
+						version.getLastModified());
+	}
+
+	/**
+	 * @return the size of the whole file
+	 * @throws IOException
+	 *             if the range does not start where the download stopped
+	 */
+	private static long checkContentRange(HttpURLConnection connection,
+			URL remoteFileUrl, long written, RemoteFileVersion version)
+			throws IOException
+	{
+		String contentRange = connection.getHeaderField("Content-Range");
+		Matcher matcher = contentRange == null ? null : CONTENT_RANGE_PATTERN
+				.matcher(contentRange);
+		if (matcher == null || !matcher.matches()
+				|| Long.parseLong(matcher.group(1)) != written) throw new HttpTransfer.HttpStatusException(
+				remoteFileUrl + ": unexpected Content-Range " + contentRange
+						+ " from " + written, connection.getResponseCode());
+		if ("*".equals(matcher.group(3))) return version.getSize();
+		return Long.parseLong(matcher.group(3));
+	}
+
+	/**
+	 * Streams the response to the end of the file
+	 */
+	private static void transfer(InputStream inputStream,
+			FileOutputStream fileOutputStream) throws IOException
+	{
+		byte[] buffer = new byte[HttpTransfer.BUFFER_SIZE];
+		int n;
+		while ((n = inputStream.read(buffer)) != -1)
+			fileOutputStream.write(buffer, 0, n);
+	}
+
+	private void put(URL remoteUrl, File localFile) throws IOException
+	{
+		HttpURLConnection connection = open("PUT", remoteUrl);
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(localFile.length());
+		try
+		{
+			OutputStream outputStream = connection.getOutputStream();
+			FileInputStream fileInputStream = new FileInputStream(localFile);
+			try
+			{
+				byte[] buffer = new byte[HttpTransfer.BUFFER_SIZE];
+				int n;
+				while ((n = fileInputStream.read(buffer)) != -1)
+					outputStream.write(buffer, 0, n);
+			}
+			finally
+			{
+				fileInputStream.close();
+			}
+			outputStream.close();
+			HttpTransfer.checkResponse(connection, remoteUrl);
+		}
+		finally
+		{
+			close(connection);
+		}
+	}
+
+	/**
+	 * Waits for one of maxConnections; the connection must be given back
+	 * with close()
+	 */
+	private HttpURLConnection open(String method, URL url) throws IOException
+	{
+		try
+		{
+			this.connections.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a "
+					+ "connection to " + url.getHost());
+		}
+		boolean isOpen = false;
+		try
+		{
+			HttpURLConnection connection = (HttpURLConnection) url
+					.openConnection();
+			connection.setRequestMethod(method);
+			connection.setConnectTimeout(this.connectTimeoutMillis);
+			connection.setReadTimeout(this.readTimeoutMillis);
+			connection.setUseCaches(false);
+			isOpen = true;
+			return connection;
+		}
+		finally
+		{
+			if (!isOpen) this.connections.release();
+		}
+	}
+
+	private void close(HttpURLConnection connection)
+	{
+		try
+		{
+			HttpTransfer.release(connection);
+		}
+		finally
+		{
+			this.connections.release();
+		}
+	}
+
+	public int getMaxResumes()
+	{
+		return maxResumes;
+	}
+
+	public void setMaxResumes(int maxResumes)
+	{
+		this.maxResumes = maxResumes;
+	}
+
+	public int getConnectTimeoutMillis()
+	{
+		return connectTimeoutMillis;
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis)
+	{
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public int getReadTimeoutMillis()
+	{
+		return readTimeoutMillis;
+	}
+
+	public void setReadTimeoutMillis(int readTimeoutMillis)
+	{
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections
+	 *            the most requests open at once; to be set before the
+	 *            handler is used
+	 */
+	public void setMaxConnections(int maxConnections)
+	{
+		this.maxConnections = maxConnections;
+		this.connections = new Semaphore(maxConnections, true);
+	}
+}
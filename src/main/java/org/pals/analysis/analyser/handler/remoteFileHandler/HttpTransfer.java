@@ -0,0 +1,202 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * What the HTTP based handlers share. HttpURLConnections are kept alive and
+ * reused by the JRE only if their responses are read to the end and closed,
+ * which release() does whether the request succeeded or not.
+ *
+ * @author Yoichi
+ *
+ */
+final class HttpTransfer
+{
+	static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * the most of an unread response that is read to keep the connection;
+	 * with more left, it is cheaper to close it
+	 */
+	static final long MAX_DRAIN_BYTES = 256 * 1024;
+
+	private HttpTransfer()
+	{
+	}
+
+	/**
+	 * A response with an unsuccessful status; unlike a broken connection,
+	 * trying again does not help
+	 */
+	static class HttpStatusException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		HttpStatusException(String message, int status)
+		{
+			super(message);
+			this.status = status;
+		}
+
+		int getStatus()
+		{
+			return status;
+		}
+	}
+
+	/**
+	 * @param connection
+	 * @param url
+	 * @throws HttpStatusException
+	 *             with the body of the response, if the status is not 2xx
+	 * @throws IOException
+	 */
+	static void checkResponse(HttpURLConnection connection, URL url)
+			throws IOException
+	{
+		int responseCode = connection.getResponseCode();
+		if (responseCode >= 200 && responseCode < 300) return;
+		String body = "";
+		InputStream errorStream = connection.getErrorStream();
+		if (errorStream != null) body = readFully(errorStream);
+		throw new HttpStatusException(connection.getRequestMethod() + " "
+				+ url + ": " + responseCode + " " + body, responseCode);
+	}
+
+	/**
+	 * Reads and discards what is left of the response and closes it, so that
+	 * the connection goes back to the keep-alive cache. A broken connection,
+	 * or one with more than MAX_DRAIN_BYTES left, e.g. of a download that
+	 * failed half way, is closed instead.
+	 */
+	static void release(HttpURLConnection connection)
+	{
+		try
+		{
+			InputStream inputStream = connection.getResponseCode() < 400 ? connection
+					.getInputStream() : connection.getErrorStream();
+			if (inputStream == null) return;
+			if (drain(inputStream)) inputStream.close();
+			else
+				// closes the socket rather than letting the JRE read the rest
+				connection.disconnect();
+		}
+		catch (IOException e)
+		{
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * @param inputStream
+	 * @return true if the stream ended, false if more than MAX_DRAIN_BYTES
+	 *         were left
+	 * @throws IOException
+	 */
+	static boolean drain(InputStream inputStream) throws IOException
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long drained = 0;
+		int n;
+		while ((n = inputStream.read(buffer)) != -1)
+		{
+			drained += n;
+			if (drained > MAX_DRAIN_BYTES) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param connection
+	 *            with a successful response to a GET or HEAD of the whole file
+	 * @return the version in the headers of the response
+	 */
+	static RemoteFileVersion getVersion(HttpURLConnection connection)
+	{
+		return new RemoteFileVersion(connection.getHeaderField("ETag"),
+				connection.getHeaderField("Last-Modified"),
+				connection.getContentLengthLong());
+	}
+
+	static String readFully(InputStream inputStream) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = inputStream.read(buffer)) != -1)
+				bytes.write(buffer, 0, n);
+			return bytes.toString("UTF-8");
+		}
+		finally
+		{
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Waits for transfers started on the I/O pool
+	 *
+	 * @param future
+	 * @param what
+	 *            for the message of an interruption
+	 * @throws IOException
+	 *             the failure of the transfers
+	 */
+	static void await(CompletableFuture<?> future, String what)
+			throws IOException
+	{
+		try
+		{
+			future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while " + what);
+		}
+		catch (ExecutionException e)
+		{
+			throw toIOException(e.getCause());
+		}
+	}
+
+	static IOException toIOException(Throwable e)
+	{
+		if (e instanceof CompletionException && e.getCause() != null) e = e
+				.getCause();
+		if (e instanceof IOException) return (IOException) e;
+		return new IOException(e);
+	}
+
+	/**
+	 * @param remoteFileUrl
+	 * @return the URL up to the last slash of the path, without the slash
+	 */
+	static URL getParentUrl(URL remoteFileUrl)
+	{
+		String urlStr = remoteFileUrl.toExternalForm();
+		int queryIndex = urlStr.indexOf('?');
+		if (queryIndex >= 0) urlStr = urlStr.substring(0, queryIndex);
+		try
+		{
+			return new URL(urlStr.substring(0, urlStr.lastIndexOf('/')));
+		}
+		catch (MalformedURLException e)
+		{
+			// ignore. This should not happen
+			return null;
+		}
+	}
+}
@@ -5,10 +5,42 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface RemoteFileHandler
 {
 	public abstract void copyRemoteFileToLocal(URL remoteFileUrl, File localFile) throws IOException;
+	/**
+	 * Copies a remote file only if it is still the given version, e.g. the one
+	 * a cache keys it by
+	 *
+	 * @param remoteFileUrl
+	 * @param localFile
+	 * @param version
+	 *            from getVersion()
+	 * @throws IOException
+	 *             also if the file is no longer that version
+	 */
+	public abstract void copyRemoteFileToLocal(URL remoteFileUrl, File localFile, RemoteFileVersion version) throws IOException;
 	public abstract void storeFilesIntoStore(Map<String, File> localFiles, Map<String, URL> remoteUrls) throws IOException;
+	/**
+	 * Stores the files concurrently on the shared I/O pool of
+	 * UrlProtocolHandlerFactory
+	 *
+	 * @param localFiles
+	 * @param remoteUrls
+	 * @return completed when every file is stored, or exceptionally with the
+	 *         first failure
+	 */
+	public abstract CompletableFuture<Void> storeFilesIntoStoreAsync(Map<String, File> localFiles, Map<String, URL> remoteUrls);
 	public abstract URL getStoreUrl(URL remoteFileUrl);
+	/**
+	 * Tells the version of a remote file without reading it, e.g. for a cache
+	 *
+	 * @param remoteFileUrl
+	 * @return the version; without a validator if the store does not give one
+	 * @throws IOException
+	 *             e.g. if the file does not exist
+	 */
+	public abstract RemoteFileVersion getVersion(URL remoteFileUrl) throws IOException;
 }
@@ -0,0 +1,109 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+/**
+ * What identifies the content of a remote file without reading it: the ETag
+ * and the Last-Modified time the server gave, and the size. Any of them may
+ * be unknown.
+ *
+ * @author Yoichi
+ *
+ */
+public class RemoteFileVersion
+{
+	private final String eTag;
+	private final String lastModified;
+	private final long size;
+
+	/**
+	 * @param eTag
+	 *            may be null
+	 * @param lastModified
+	 *            as the server wrote it; may be null
+	 * @param size
+	 *            -1 if unknown
+	 */
+	public RemoteFileVersion(String eTag, String lastModified, long size)
+	{
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+		this.size = size;
+	}
+
+	/**
+	 * @return true if a server can tell whether the file has changed
+	 */
+	public boolean hasValidator()
+	{
+		return this.eTag != null || this.lastModified != null;
+	}
+
+	/**
+	 * @return a validator for If-Range, which takes a strong ETag or a date
+	 */
+	public String getRangeValidator()
+	{
+		if (this.eTag != null && !this.eTag.startsWith("W/")) return this.eTag;
+		return this.lastModified;
+	}
+
+	/**
+	 * @param other
+	 *            e.g. the version of the response to a download
+	 * @return true if other is the same content: it has the same ETag, or the
+	 *         same modification time if this has no ETag, and the same size if
+	 *         both are known
+	 */
+	public boolean matches(RemoteFileVersion other)
+	{
+		if (this.size >= 0 && other.size >= 0 && this.size != other.size) return false;
+		if (this.eTag != null) return this.eTag.equals(other.eTag);
+		return equals(this.lastModified, other.lastModified);
+	}
+
+	public String getETag()
+	{
+		return eTag;
+	}
+
+	public String getLastModified()
+	{
+		return lastModified;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (!(o instanceof RemoteFileVersion)) return false;
+		RemoteFileVersion other = (RemoteFileVersion) o;
+		return this.size == other.size && equals(this.eTag, other.eTag)
+				&& equals(this.lastModified, other.lastModified);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = (int) (this.size ^ (this.size >>> 32));
+		hash = 31 * hash + (this.eTag == null ? 0 : this.eTag.hashCode());
+		hash = 31 * hash
+				+ (this.lastModified == null ? 0 : this.lastModified.hashCode());
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "eTag=" + this.eTag + " lastModified=" + this.lastModified
+				+ " size=" + this.size;
+	}
+
+	private static boolean equals(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+}
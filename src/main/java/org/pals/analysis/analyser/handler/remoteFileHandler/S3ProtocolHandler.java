@@ -1,29 +1,645 @@
 package org.pals.analysis.analyser.handler.remoteFileHandler;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.log4j.Logger;
+
+/**
+ * Transfers files from and to S3, or an S3-compatible store such as MinIO,
+ * over HTTP(S). Object URLs are either virtual-hosted, e.g.
+ * https://bucket.s3.amazonaws.com/key, or path-style, e.g.
+ * http://localhost:9000/bucket/key for an endpoint registered with
+ * UrlProtocolHandlerFactory.registerPattern(); the request goes to the URL as
+ * it is, so the bucket need not be known.
+ *
+ * An object larger than multipartThreshold is downloaded by ranged GETs of
+ * partSize bytes, which run in parallel on the shared I/O pool and write at
+ * their offsets of a temporary file; the ETag of the object is sent with
+ * If-Match, so the parts can't come from different versions. A file larger
+ * than multipartThreshold is uploaded by a multipart upload whose parts are
+ * also sent in parallel; a failed upload is aborted, so no parts are left
+ * behind to be charged for. Smaller ones take a single GET or PUT.
+ *
+ * The requests are signed with AWS Signature Version 4 when an access key is
+ * set, which is by default the one of the AWS_ACCESS_KEY_ID and
+ * AWS_SECRET_ACCESS_KEY environment variables; without one they are
+ * anonymous. The connections are HttpURLConnections, which the JRE keeps
+ * alive and reuses per host, up to the http.maxConnections system property,
+ * as long as every response is read to the end and closed.
+ *
+ * @author Yoichi
+ *
+ */
 public class S3ProtocolHandler implements RemoteFileHandler
 {
+	private final static Logger LOGGER = Logger
+			.getLogger(S3ProtocolHandler.class.getName());
+
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final Pattern UPLOAD_ID_PATTERN = Pattern
+			.compile("<UploadId>([^<]+)</UploadId>");
+	private static final Pattern REGION_PATTERN = Pattern
+			.compile("(?:^|\\.)s3[.-]([a-z0-9-]+)\\.amazonaws\\.com$");
+
+	/** used unless the host names one, as in s3.ap-southeast-2.amazonaws.com */
+	private String region = "us-east-1";
+	private String accessKey = System.getenv("AWS_ACCESS_KEY_ID");
+	private String secretKey = System.getenv("AWS_SECRET_ACCESS_KEY");
+	/** S3 requires at least 5 MiB for every part but the last */
+	private long partSize = 8L * 1024 * 1024;
+	private long multipartThreshold = 16L * 1024 * 1024;
+	private int connectTimeoutMillis = 10000;
+	private int readTimeoutMillis = 60000;
 
+	/**
+	 * Downloads an object, in parallel ranges if it is large
+	 */
 	public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile)
+			throws IOException
+	{
+		URL objectUrl = toObjectUrl(remoteFileUrl);
+		download(objectUrl, localFile, head(objectUrl));
+	}
+
+	/**
+	 * Downloads the object only if it is still the given version. The GETs
+	 * send its ETag with If-Match, so S3 fails them with 412 if the object has
+	 * changed; a version without one is checked by a HEAD first.
+	 */
+	public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile,
+			RemoteFileVersion version) throws IOException
+	{
+		URL objectUrl = toObjectUrl(remoteFileUrl);
+		if (version.getETag() == null || version.getSize() < 0)
+		{
+			RemoteFileVersion current = head(objectUrl);
+			if (!version.matches(current)) throw new IOException(objectUrl
+					+ " has changed: " + current + " instead of " + version);
+			version = current;
+		}
+		download(objectUrl, localFile, version);
+	}
+
+	/**
+	 * HEADs the object
+	 */
+	public RemoteFileVersion getVersion(URL remoteFileUrl) throws IOException
+	{
+		return head(toObjectUrl(remoteFileUrl));
+	}
+
+	/**
+	 * @param objectUrl
+	 * @param localFile
+	 * @param version
+	 *            of the object, with its ETag and size
+	 * @throws IOException
+	 */
+	private void download(final URL objectUrl, File localFile,
+			RemoteFileVersion version) throws IOException
 	{
-		// TODO Auto-generated method stub
+		long size = version.getSize();
+		String eTag = version.getETag();
 
+		File tempFile = new File(localFile.getAbsoluteFile().getParentFile(),
+				localFile.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+		boolean isCopied = false;
+		try
+		{
+			final FileChannel channel = randomAccessFile.getChannel();
+			if (size <= this.multipartThreshold) get(objectUrl, eTag, 0, size,
+					false, channel);
+			else
+			{
+				randomAccessFile.setLength(size);
+				getRanges(objectUrl, eTag, size, channel);
+			}
+			randomAccessFile.close();
+			randomAccessFile = null;
+			FileProtocolHandler.rename(tempFile, localFile);
+			isCopied = true;
+		}
+		finally
+		{
+			if (randomAccessFile != null) randomAccessFile.close();
+			if (!isCopied) tempFile.delete();
+		}
 	}
 
+	/**
+	 * Stores the files; blocks until all are stored
+	 */
 	public void storeFilesIntoStore(Map<String, File> localFiles,
-			Map<String, URL> remoteUrls)
+			Map<String, URL> remoteUrls) throws IOException
 	{
-		// TODO Auto-generated method stub
+		HttpTransfer.await(storeFilesIntoStoreAsync(localFiles, remoteUrls),
+				"storing");
+	}
 
+	/**
+	 * Uploads every file concurrently, each by a single PUT or a multipart
+	 * upload
+	 */
+	public CompletableFuture<Void> storeFilesIntoStoreAsync(
+			Map<String, File> localFiles, Map<String, URL> remoteUrls)
+	{
+		ExecutorService executor = UrlProtocolHandlerFactory.getIoExecutor();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (String key : localFiles.keySet())
+		{
+			File localFile = localFiles.get(key);
+			try
+			{
+				futures.add(upload(localFile, toObjectUrl(remoteUrls.get(key)),
+						executor));
+			}
+			catch (MalformedURLException e)
+			{
+				CompletableFuture<Void> failed = new CompletableFuture<Void>();
+				failed.completeExceptionally(e);
+				futures.add(failed);
+			}
+		}
+		return CompletableFuture.allOf(futures
+				.toArray(new CompletableFuture<?>[futures.size()]));
 	}
 
+	/**
+	 * This returns the URL of the "directory" of the object, i.e. its key up
+	 * to the last slash, without the slash
+	 */
 	public URL getStoreUrl(URL remoteFileUrl)
 	{
-		// TODO Auto-generated method stub
-		return null;
+		return HttpTransfer.getParentUrl(remoteFileUrl);
+	}
+
+	private RemoteFileVersion head(URL objectUrl) throws IOException
+	{
+		HttpURLConnection connection = request("HEAD", objectUrl,
+				new TreeMap<String, String>(), -1);
+		try
+		{
+			HttpTransfer.checkResponse(connection, objectUrl);
+			return HttpTransfer.getVersion(connection);
+		}
+		finally
+		{
+			HttpTransfer.release(connection);
+		}
+	}
+
+	private void getRanges(final URL objectUrl, final String eTag, long size,
+			final FileChannel channel) throws IOException
+	{
+		ExecutorService executor = UrlProtocolHandlerFactory.getIoExecutor();
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (long start = 0; start < size; start += this.partSize)
+		{
+			final long rangeStart = start;
+			final long rangeLength = Math.min(this.partSize, size - start);
+			futures.add(CompletableFuture.runAsync(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						get(objectUrl, eTag, rangeStart, rangeLength, true,
+								channel);
+					}
+					catch (IOException e)
+					{
+						throw new CompletionException(e);
+					}
+				}
+			}, executor));
+		}
+		HttpTransfer.await(CompletableFuture.allOf(futures
+				.toArray(new CompletableFuture<?>[futures.size()])),
+				"downloading " + objectUrl);
+		LOGGER.debug("downloaded " + objectUrl + " in " + futures.size()
+				+ " ranges");
+	}
+
+	/**
+	 * GETs the object, or a range of it, into the channel at the start of the
+	 * range
+	 *
+	 * @param objectUrl
+	 * @param eTag
+	 *            sent as If-Match, if not null
+	 * @param start
+	 * @param length
+	 *            expected, or -1 if unknown
+	 * @param isRange
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void get(URL objectUrl, String eTag, long start, long length,
+			boolean isRange, FileChannel channel) throws IOException
+	{
+		HttpURLConnection connection = request("GET", objectUrl,
+				new TreeMap<String, String>(), -1);
+		if (eTag != null) connection.setRequestProperty("If-Match", eTag);
+		if (isRange) connection.setRequestProperty("Range", "bytes=" + start
+				+ "-" + (start + length - 1));
+		try
+		{
+			HttpTransfer.checkResponse(connection, objectUrl);
+			if (isRange
+					&& connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) throw new IOException(
+					objectUrl + " does not support ranges");
+			InputStream inputStream = connection.getInputStream();
+			byte[] buffer = new byte[HttpTransfer.BUFFER_SIZE];
+			long position = start;
+			int n;
+			while ((n = inputStream.read(buffer)) != -1)
+			{
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, n);
+				while (byteBuffer.hasRemaining())
+					position += channel.write(byteBuffer, position);
+			}
+			if (length >= 0 && position - start != length) throw new IOException(
+					objectUrl + " was truncated: " + (position - start)
+							+ " of " + length + " bytes");
+		}
+		finally
+		{
+			HttpTransfer.release(connection);
+		}
+	}
+
+	private CompletableFuture<Void> upload(final File file, final URL objectUrl,
+			final ExecutorService executor)
+	{
+		final long size = file.length();
+		if (size <= this.multipartThreshold) return CompletableFuture.runAsync(
+				new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							put(objectUrl, new TreeMap<String, String>(), file,
+									0, size);
+						}
+						catch (IOException e)
+						{
+							throw new CompletionException(e);
+						}
+					}
+				}, executor);
+
+		return CompletableFuture.supplyAsync(new Supplier<String>()
+		{
+			public String get()
+			{
+				try
+				{
+					return initiateMultipartUpload(objectUrl);
+				}
+				catch (IOException e)
+				{
+					throw new CompletionException(e);
+				}
+			}
+		}, executor).thenCompose(new Function<String, CompletionStage<Void>>()
+		{
+			public CompletionStage<Void> apply(String uploadId)
+			{
+				return uploadParts(file, size, objectUrl, uploadId, executor);
+			}
+		});
+	}
+
+	/**
+	 * PUTs the parts in parallel, then completes the upload, or aborts it if
+	 * a part failed
+	 */
+	private CompletableFuture<Void> uploadParts(final File file, long size,
+			final URL objectUrl, final String uploadId,
+			ExecutorService executor)
+	{
+		int numOfParts = (int) ((size + this.partSize - 1) / this.partSize);
+		final String[] eTags = new String[numOfParts];
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < numOfParts; i++)
+		{
+			final int partIndex = i;
+			final long start = i * this.partSize;
+			final long length = Math.min(this.partSize, size - start);
+			futures.add(CompletableFuture.runAsync(new Runnable()
+			{
+				public void run()
+				{
+					SortedMap<String, String> parameters = new TreeMap<String, String>();
+					parameters.put("partNumber", String.valueOf(partIndex + 1));
+					parameters.put("uploadId", uploadId);
+					try
+					{
+						eTags[partIndex] = put(objectUrl, parameters, file,
+								start, length);
+					}
+					catch (IOException e)
+					{
+						throw new CompletionException(e);
+					}
+				}
+			}, executor));
+		}
+		return CompletableFuture.allOf(
+				futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.handleAsync(new BiFunction<Void, Throwable, Void>()
+				{
+					public Void apply(Void ignore, Throwable e)
+					{
+						if (e == null)
+						{
+							try
+							{
+								completeMultipartUpload(objectUrl, uploadId,
+										eTags);
+								return null;
+							}
+							catch (IOException completeException)
+							{
+								e = completeException;
+							}
+						}
+						abortMultipartUpload(objectUrl, uploadId);
+						throw e instanceof CompletionException ? (CompletionException) e
+								: new CompletionException(e);
+					}
+				}, executor);
+	}
+
+	/**
+	 * PUTs a range of the file
+	 *
+	 * @return the ETag of the object or the part
+	 * @throws IOException
+	 */
+	private String put(URL objectUrl, SortedMap<String, String> parameters,
+			File file, long start, long length) throws IOException
+	{
+		HttpURLConnection connection = request("PUT", objectUrl, parameters,
+				length);
+		try
+		{
+			OutputStream outputStream = connection.getOutputStream();
+			FileInputStream fileInputStream = new FileInputStream(file);
+			try
+			{
+				FileChannel channel = fileInputStream.getChannel();
+				channel.position(start);
+				ByteBuffer buffer = ByteBuffer.allocate(HttpTransfer.BUFFER_SIZE);
+				long remaining = length;
+				while (remaining > 0)
+				{
+					buffer.clear();
+					if (remaining < buffer.capacity()) buffer
+							.limit((int) remaining);
+					int n = channel.read(buffer);
+					if (n == -1) throw new IOException(file
+							+ " was truncated while being uploaded");
+					outputStream.write(buffer.array(), 0, n);
+					remaining -= n;
+				}
+			}
+			finally
+			{
+				fileInputStream.close();
+			}
+			outputStream.close();
+			HttpTransfer.checkResponse(connection, objectUrl);
+			return connection.getHeaderField("ETag");
+		}
+		finally
+		{
+			HttpTransfer.release(connection);
+		}
+	}
+
+	private String initiateMultipartUpload(URL objectUrl) throws IOException
+	{
+		SortedMap<String, String> parameters = new TreeMap<String, String>();
+		parameters.put("uploads", "");
+		String response = post(objectUrl, parameters, new byte[0]);
+		Matcher matcher = UPLOAD_ID_PATTERN.matcher(response);
+		if (!matcher.find()) throw new IOException("no UploadId for "
+				+ objectUrl + ": " + response);
+		return matcher.group(1);
+	}
+
+	private void completeMultipartUpload(URL objectUrl, String uploadId,
+			String[] eTags) throws IOException
+	{
+		StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+		for (int i = 0; i < eTags.length; i++)
+			body.append("<Part><PartNumber>").append(i + 1)
+					.append("</PartNumber><ETag>").append(eTags[i])
+					.append("</ETag></Part>");
+		body.append("</CompleteMultipartUpload>");
+		SortedMap<String, String> parameters = new TreeMap<String, String>();
+		parameters.put("uploadId", uploadId);
+		String response = post(objectUrl, parameters, body.toString()
+				.getBytes("UTF-8"));
+		// S3 may report a failure in the body of a 200 response
+		if (response.contains("<Error>")) throw new IOException(
+				"can't complete the upload of " + objectUrl + ": " + response);
+		LOGGER.debug("uploaded " + objectUrl + " in " + eTags.length
+				+ " parts");
+	}
+
+	private void abortMultipartUpload(URL objectUrl, String uploadId)
+	{
+		SortedMap<String, String> parameters = new TreeMap<String, String>();
+		parameters.put("uploadId", uploadId);
+		try
+		{
+			HttpURLConnection connection = request("DELETE", objectUrl,
+					parameters, -1);
+			try
+			{
+				HttpTransfer.checkResponse(connection, objectUrl);
+			}
+			finally
+			{
+				HttpTransfer.release(connection);
+			}
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("can't abort the upload " + uploadId + " of "
+					+ objectUrl + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the response body
+	 */
+	private String post(URL objectUrl, SortedMap<String, String> parameters,
+			byte[] body) throws IOException
+	{
+		HttpURLConnection connection = request("POST", objectUrl, parameters,
+				body.length);
+		try
+		{
+			OutputStream outputStream = connection.getOutputStream();
+			outputStream.write(body);
+			outputStream.close();
+			HttpTransfer.checkResponse(connection, objectUrl);
+			return HttpTransfer.readFully(connection.getInputStream());
+		}
+		finally
+		{
+			HttpTransfer.release(connection);
+		}
+	}
+
+	/**
+	 * Opens a signed connection
+	 *
+	 * @param method
+	 * @param objectUrl
+	 * @param parameters
+	 * @param contentLength
+	 *            of the body to be written, or -1 for none
+	 * @return
+	 * @throws IOException
+	 */
+	private HttpURLConnection request(String method, URL objectUrl,
+			SortedMap<String, String> parameters, long contentLength)
+			throws IOException
+	{
+		String query = AwsV4Signer.canonicalQuery(parameters);
+		URL url = query.isEmpty() ? objectUrl : new URL(objectUrl + "?"
+				+ query);
+		HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(this.connectTimeoutMillis);
+		connection.setReadTimeout(this.readTimeoutMillis);
+		connection.setUseCaches(false);
+		if (contentLength >= 0)
+		{
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(contentLength);
+		}
+		if (this.accessKey != null && this.secretKey != null) new AwsV4Signer(
+				this.accessKey, this.secretKey, getRegion(objectUrl)).sign(
+				connection, method, objectUrl, parameters, new Date());
+		return connection;
+	}
+
+	/**
+	 * @param url
+	 * @return the URL without the user information and with its path encoded
+	 *         as it is signed
+	 * @throws MalformedURLException
+	 */
+	private URL toObjectUrl(URL url) throws MalformedURLException
+	{
+		return new URL(url.getProtocol(), url.getHost(), url.getPort(),
+				AwsV4Signer.encodePath(AwsV4Signer.decodePath(url.getPath())));
+	}
+
+	private String getRegion(URL url)
+	{
+		Matcher matcher = REGION_PATTERN.matcher(url.getHost());
+		if (matcher.find() && !"external-1".equals(matcher.group(1))) return matcher
+				.group(1);
+		return this.region;
+	}
+
+	public String getRegion()
+	{
+		return region;
+	}
+
+	public void setRegion(String region)
+	{
+		this.region = region;
+	}
+
+	public String getAccessKey()
+	{
+		return accessKey;
+	}
+
+	public void setAccessKey(String accessKey)
+	{
+		this.accessKey = accessKey;
+	}
+
+	public void setSecretKey(String secretKey)
+	{
+		this.secretKey = secretKey;
 	}
 
+	public long getPartSize()
+	{
+		return partSize;
+	}
+
+	public void setPartSize(long partSize)
+	{
+		this.partSize = partSize;
+	}
+
+	public long getMultipartThreshold()
+	{
+		return multipartThreshold;
+	}
+
+	public void setMultipartThreshold(long multipartThreshold)
+	{
+		this.multipartThreshold = multipartThreshold;
+	}
+
+	public int getConnectTimeoutMillis()
+	{
+		return connectTimeoutMillis;
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis)
+	{
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public int getReadTimeoutMillis()
+	{
+		return readTimeoutMillis;
+	}
+
+	public void setReadTimeoutMillis(int readTimeoutMillis)
+	{
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
 }
@@ -1,17 +1,161 @@
 package org.pals.analysis.analyser.handler.remoteFileHandler;
 
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Gives the RemoteFileHandler of a URL protocol. The handlers are shared by
+ * all requests, so they must be thread-safe; register() replaces one, e.g.
+ * with a configured instance.
+ *
+ * Some stores can't be told by the protocol, e.g. S3 objects are https URLs,
+ * so getHandler(URL) first tries the URL patterns added by registerPattern(),
+ * in the order they were added, and then the protocol. The virtual-hosted
+ * S3 URLs go to the S3ProtocolHandler.
+ *
+ * The asynchronous transfers of all handlers share one I/O pool with a fixed
+ * number of threads, so that the uploads of many requests do not open
+ * unbounded numbers of files or connections at once.
+ *
+ * @author Yoichi
+ *
+ */
 public class UrlProtocolHandlerFactory
 {
 	public static final String FILE_PROTOCOL = "file";
-	public static final String S3_PROTOCOL = "https://(.*)@(.*).s3.amazonaws.com/(.*)";
+	/** virtual-hosted S3 URLs, e.g. https://bucket.s3.ap-southeast-2.amazonaws.com/key */
+	public static final String S3_URL_PATTERN = "https?://([^/@]*@)?([^/]+\\.)?s3([.-][a-z0-9-]+)?\\.amazonaws\\.com(:[0-9]+)?/.*";
 	public static final String HOST = null;
+	public static final int DEFAULT_IO_THREADS = 4;
+
+	private static final Map<String, RemoteFileHandler> HANDLERS = new ConcurrentHashMap<String, RemoteFileHandler>();
+	private static final CopyOnWriteArrayList<PatternHandler> PATTERN_HANDLERS = new CopyOnWriteArrayList<PatternHandler>();
+	static
+	{
+		HANDLERS.put(FILE_PROTOCOL, new FileProtocolHandler());
+		HttpProtocolHandler httpProtocolHandler = new HttpProtocolHandler();
+		HANDLERS.put(HttpProtocolHandler.HTTP_PROTOCOL, httpProtocolHandler);
+		HANDLERS.put(HttpProtocolHandler.HTTPS_PROTOCOL, httpProtocolHandler);
+		registerPattern(S3_URL_PATTERN, new S3ProtocolHandler());
+	}
 
+	private static ExecutorService ioExecutor;
+
+	/**
+	 * @param protocol
+	 * @return the handler, or null if the protocol is not supported
+	 */
 	public static RemoteFileHandler getHandler(String protocol)
 	{
-		RemoteFileHandler handler = null;
-		if(protocol.equals(FILE_PROTOCOL)) handler = new FileProtocolHandler();
-		else if(protocol.equals(S3_PROTOCOL)) handler = new S3ProtocolHandler();
-		else handler = null;
-		return handler;
+		return HANDLERS.get(protocol);
+	}
+
+	/**
+	 * @param url
+	 * @return the handler of the first pattern the URL matches, or else of its
+	 *         protocol, or null if the URL is not supported
+	 */
+	public static RemoteFileHandler getHandler(URL url)
+	{
+		String urlStr = url.toExternalForm();
+		for (PatternHandler patternHandler : PATTERN_HANDLERS)
+		{
+			if (patternHandler.pattern.matcher(urlStr).matches()) return patternHandler.handler;
+		}
+		return getHandler(url.getProtocol());
+	}
+
+	public static void register(String protocol, RemoteFileHandler handler)
+	{
+		HANDLERS.put(protocol, handler);
+	}
+
+	/**
+	 * Adds a URL pattern, or replaces the handler of one already added
+	 *
+	 * @param regex
+	 *            matched against the whole URL
+	 * @param handler
+	 */
+	public static synchronized void registerPattern(String regex,
+			RemoteFileHandler handler)
+	{
+		PatternHandler patternHandler = new PatternHandler(regex, handler);
+		for (int i = 0; i < PATTERN_HANDLERS.size(); i++)
+		{
+			if (PATTERN_HANDLERS.get(i).pattern.pattern().equals(regex))
+			{
+				PATTERN_HANDLERS.set(i, patternHandler);
+				return;
+			}
+		}
+		PATTERN_HANDLERS.add(patternHandler);
+	}
+
+	/**
+	 * @return the shared I/O pool, created with DEFAULT_IO_THREADS on first use
+	 */
+	public static synchronized ExecutorService getIoExecutor()
+	{
+		if (ioExecutor == null) ioExecutor = createIoExecutor(DEFAULT_IO_THREADS);
+		return ioExecutor;
+	}
+
+	/**
+	 * Replaces the shared I/O pool. The tasks already queued on the old pool
+	 * still run, but a transfer that has more steps to submit fails, so this
+	 * should be called before any transfer starts.
+	 *
+	 * @param numOfThreads
+	 */
+	public static synchronized void setIoThreads(int numOfThreads)
+	{
+		ExecutorService oldExecutor = ioExecutor;
+		ioExecutor = createIoExecutor(numOfThreads);
+		if (oldExecutor != null) oldExecutor.shutdown();
+	}
+
+	public static synchronized void shutdownIoExecutor()
+	{
+		if (ioExecutor != null) ioExecutor.shutdown();
+		ioExecutor = null;
+	}
+
+	private static ExecutorService createIoExecutor(int numOfThreads)
+	{
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadPoolExecutor(numOfThreads, numOfThreads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "remote-file-io-"
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	private static class PatternHandler
+	{
+		private final Pattern pattern;
+		private final RemoteFileHandler handler;
+
+		PatternHandler(String regex, RemoteFileHandler handler)
+		{
+			this.pattern = Pattern.compile(regex);
+			this.handler = handler;
+		}
 	}
 }
@@ -0,0 +1,480 @@
+package org.pals.analysis.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.rabbitmq.AnalysisMessageParser;
+import org.pals.analysis.rabbitmq.AnalysisMessageParserJackson;
+import org.pals.analysis.rabbitmq.AnalysisWorker;
+import org.pals.analysis.rabbitmq.MessageParserException;
+import org.pals.analysis.request.AnalysisBatchRequest;
+import org.pals.analysis.request.AnalysisBatchRequest.ReplyMode;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * An asynchronous client of the analysis server for many concurrent callers,
+ * e.g. the portal, over one channel.
+ *
+ * send() publishes a request and returns a CompletableFuture of its reply at
+ * once. A single consumer on the reply queue completes the futures by the
+ * correlationId, so any number of requests can be outstanding, up to
+ * maxInFlight: send() blocks while the window is full. A request whose reply
+ * does not arrive within its timeout completes with a TimeoutException, and a
+ * reply arriving later is dropped. The timeout is also sent as the deadline
+ * and the expiration of the message, so the server does not analyse a request
+ * that nobody waits for any more.
+ *
+ * The replies come to an exclusive server-named queue or, with
+ * directReplyTo, to the amq.rabbitmq.reply-to pseudo-queue of RabbitMQ 3.4 or
+ * later, which needs no queue at all.
+ *
+ * sendBatch() sends many requests as one AnalysisBatchRequest. Its future
+ * completes with the aggregated reply in either reply mode: a STREAM batch is
+ * aggregated by the client, and the listener, if any, gets each reply as it
+ * arrives.
+ *
+ * @author Yoichi
+ *
+ */
+public class AnalysisClient
+{
+	private final static Logger LOGGER = Logger.getLogger(AnalysisClient.class
+			.getName());
+
+	public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+	private static final String EXCHANGE = "";
+	private static final boolean AUTO_ACKNOWLEDGE = true;
+
+	private final Connection connection;
+	private String requestQueueName = "pals_analysis";
+	private String contentType = AnalysisMessageParserJackson.CONTENT_TYPE_JSON;
+	private AnalysisMessageParser parser = AnalysisMessageParserJackson.INSTANCE;
+	private int maxInFlight = 256;
+	private long defaultTimeoutMillis = 600000;
+	private boolean directReplyTo = false;
+
+	private Channel channel;
+	private String replyQueueName;
+	private Semaphore window;
+	private ScheduledExecutorService timer;
+	private final Map<String, PendingCall> pendingCalls = new ConcurrentHashMap<String, PendingCall>();
+	private final Object publishLock = new Object();
+
+	/**
+	 * @param connection
+	 *            the caller keeps the ownership; close() does not close it
+	 */
+	public AnalysisClient(Connection connection)
+	{
+		this.connection = connection;
+	}
+
+	/**
+	 * Opens the channel and starts consuming replies
+	 *
+	 * @throws IOException
+	 */
+	public void init() throws IOException
+	{
+		this.window = new Semaphore(this.maxInFlight);
+		this.timer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable,
+								"analysis-client-timer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		this.channel = this.connection.createChannel();
+		if (this.directReplyTo) this.replyQueueName = DIRECT_REPLY_TO;
+		else
+			this.replyQueueName = this.channel.queueDeclare().getQueue();
+
+		// direct reply-to requires the consumer before the first publish
+		this.channel.basicConsume(this.replyQueueName, AUTO_ACKNOWLEDGE,
+				new DefaultConsumer(this.channel)
+				{
+					@Override
+					public void handleDelivery(String consumerTag,
+							Envelope envelope, BasicProperties properties,
+							byte[] body)
+					{
+						handleReply(properties, body);
+					}
+
+					@Override
+					public void handleShutdownSignal(String consumerTag,
+							ShutdownSignalException sig)
+					{
+						failAll(new IOException("reply channel closed: "
+								+ sig.getMessage()));
+					}
+				});
+	}
+
+	/**
+	 * Sends a request with the default timeout
+	 *
+	 * @param request
+	 * @return
+	 * @throws InterruptedException
+	 *             if interrupted while the window is full
+	 */
+	public CompletableFuture<AnalysisReply> send(AnalysisRequest request)
+			throws InterruptedException
+	{
+		return send(request, this.defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a request. It blocks only while maxInFlight requests are
+	 * outstanding, and at most for the timeout.
+	 *
+	 * @param request
+	 * @param timeout
+	 *            from now until the reply
+	 * @param unit
+	 * @return the future reply
+	 * @throws InterruptedException
+	 *             if interrupted while the window is full
+	 */
+	public CompletableFuture<AnalysisReply> send(AnalysisRequest request,
+			long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return call(request, null, null, timeout, unit);
+	}
+
+	/**
+	 * Sends many requests in one message. The batch counts as one request in
+	 * the in-flight window.
+	 *
+	 * @param batch
+	 * @param listener
+	 *            gets the replies of a STREAM batch one by one; may be null
+	 * @param timeout
+	 *            from now until the last reply
+	 * @param unit
+	 * @return the future aggregated reply
+	 * @throws InterruptedException
+	 *             if interrupted while the window is full
+	 */
+	public CompletableFuture<AnalysisReply> sendBatch(
+			AnalysisBatchRequest batch, BatchListener listener, long timeout,
+			TimeUnit unit) throws InterruptedException
+	{
+		return call(null, batch, listener, timeout, unit);
+	}
+
+	private CompletableFuture<AnalysisReply> call(AnalysisRequest request,
+			AnalysisBatchRequest batch, BatchListener listener, long timeout,
+			TimeUnit unit) throws InterruptedException
+	{
+		final CompletableFuture<AnalysisReply> future = new CompletableFuture<AnalysisReply>();
+		long timeoutMillis = unit.toMillis(timeout);
+		long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (!this.window.tryAcquire(timeout, unit))
+		{
+			future.completeExceptionally(new TimeoutException(
+					"too many requests in flight"));
+			return future;
+		}
+
+		final String corrId = UUID.randomUUID().toString();
+		final PendingCall call = new PendingCall(future, batch, listener);
+		this.pendingCalls.put(corrId, call);
+		long remaining = Math.max(0, deadline - System.nanoTime());
+		call.timeoutTask = this.timer.schedule(new Runnable()
+		{
+			public void run()
+			{
+				complete(corrId, null, new TimeoutException("no reply within "
+						+ call.getAgeMillis() + " ms"));
+			}
+		}, remaining, TimeUnit.NANOSECONDS);
+
+		try
+		{
+			byte[] body;
+			String type = null;
+			if (batch == null) body = this.parser.serializeRequestAsBytes(
+					this.contentType, request);
+			else
+			{
+				body = this.parser.serializeBatchRequestAsBytes(
+						this.contentType, batch);
+				type = AnalysisBatchRequest.MESSAGE_TYPE;
+			}
+			Map<String, Object> headers = new HashMap<String, Object>();
+			headers.put(AnalysisWorker.DEADLINE_HEADER, deadlineMillis);
+			BasicProperties props = new BasicProperties.Builder()
+					.correlationId(corrId).replyTo(this.replyQueueName)
+					.contentType(this.contentType).type(type)
+					.headers(headers)
+					.expiration(String.valueOf(timeoutMillis)).build();
+			// a channel must not be used to publish from several threads
+			synchronized (this.publishLock)
+			{
+				this.channel.basicPublish(EXCHANGE, this.requestQueueName,
+						props, body);
+			}
+		}
+		catch (MessageParserException e)
+		{
+			complete(corrId, null, e);
+		}
+		catch (IOException e)
+		{
+			complete(corrId, null, e);
+		}
+		return future;
+	}
+
+	/**
+	 * Fails the outstanding requests and closes the channel
+	 */
+	public void close()
+	{
+		failAll(new IOException("client closed"));
+		if (this.timer != null) this.timer.shutdownNow();
+		if (this.channel != null && this.channel.isOpen())
+		{
+			try
+			{
+				this.channel.close();
+			}
+			catch (Exception ignore)
+			{
+			}
+		}
+	}
+
+	public int getNumOfPendingCalls()
+	{
+		return this.pendingCalls.size();
+	}
+
+	private void handleReply(BasicProperties properties, byte[] body)
+	{
+		String corrId = properties.getCorrelationId();
+		PendingCall call = corrId == null ? null : this.pendingCalls
+				.get(corrId);
+		if (call == null)
+		{
+			LOGGER.debug("dropping reply to unknown or expired request "
+					+ corrId);
+			return;
+		}
+		String replyContentType = properties.getContentType();
+		if (replyContentType == null) replyContentType = this.contentType;
+		try
+		{
+			AnalysisReply reply = this.parser.deserializeReply(
+					replyContentType, body);
+			Integer index = getBatchIndex(properties);
+			if (call.parts == null || index == null) complete(corrId, reply,
+					null);
+			else if (call.addPart(index, reply))
+				complete(corrId, AnalysisBatchRequest.aggregate(
+						call.batchId, Arrays.asList(call.parts)), null);
+		}
+		catch (MessageParserException e)
+		{
+			complete(corrId, null, e);
+		}
+	}
+
+	private static Integer getBatchIndex(BasicProperties properties)
+	{
+		if (properties.getHeaders() == null) return null;
+		Object index = properties.getHeaders().get(
+				AnalysisBatchRequest.BATCH_INDEX_HEADER);
+		if (index instanceof Number) return ((Number) index).intValue();
+		return null;
+	}
+
+	/**
+	 * Completes a call once, whichever of the reply, the timeout or a failure
+	 * comes first
+	 */
+	private void complete(String corrId, AnalysisReply reply, Exception e)
+	{
+		PendingCall call = this.pendingCalls.remove(corrId);
+		if (call == null) return;
+		this.window.release();
+		if (call.timeoutTask != null) call.timeoutTask.cancel(false);
+		if (e == null) call.future.complete(reply);
+		else
+			call.future.completeExceptionally(e);
+	}
+
+	private void failAll(Exception e)
+	{
+		List<String> corrIds = new ArrayList<String>(this.pendingCalls.keySet());
+		for (String corrId : corrIds)
+		{
+			complete(corrId, null, e);
+		}
+	}
+
+	/**
+	 * Receives the replies of a STREAM batch
+	 */
+	public static interface BatchListener
+	{
+		/**
+		 * Called on the consumer thread, so it must not block
+		 *
+		 * @param index
+		 *            of the request in the batch
+		 * @param reply
+		 */
+		public void onReply(int index, AnalysisReply reply);
+	}
+
+	private static class PendingCall
+	{
+		private final CompletableFuture<AnalysisReply> future;
+		private final long startTime = System.currentTimeMillis();
+		private volatile ScheduledFuture<?> timeoutTask;
+		/** the replies of a STREAM batch, null otherwise */
+		private final AnalysisReply[] parts;
+		private final UUID batchId;
+		private final BatchListener listener;
+		private int numOfParts = 0;
+
+		PendingCall(CompletableFuture<AnalysisReply> future,
+				AnalysisBatchRequest batch, BatchListener listener)
+		{
+			this.future = future;
+			this.listener = listener;
+			if (batch != null && batch.getReplyMode() == ReplyMode.STREAM
+					&& batch.getRequests() != null
+					&& !batch.getRequests().isEmpty())
+			{
+				this.parts = new AnalysisReply[batch.getRequests().size()];
+				this.batchId = batch.getBatchId();
+			}
+			else
+			{
+				this.parts = null;
+				this.batchId = null;
+			}
+		}
+
+		/**
+		 * @return true if it was the last missing reply
+		 */
+		boolean addPart(int index, AnalysisReply reply)
+		{
+			if (index < 0 || index >= this.parts.length) return false;
+			boolean isLast;
+			synchronized (this)
+			{
+				// a redelivered batch may reply twice
+				if (this.parts[index] != null) return false;
+				this.parts[index] = reply;
+				isLast = ++this.numOfParts == this.parts.length;
+			}
+			if (this.listener != null) this.listener.onReply(index, reply);
+			return isLast;
+		}
+
+		long getAgeMillis()
+		{
+			return System.currentTimeMillis() - this.startTime;
+		}
+	}
+
+	public String getRequestQueueName()
+	{
+		return requestQueueName;
+	}
+
+	public void setRequestQueueName(String requestQueueName)
+	{
+		this.requestQueueName = requestQueueName;
+	}
+
+	public String getContentType()
+	{
+		return contentType;
+	}
+
+	public void setContentType(String contentType)
+	{
+		this.contentType = contentType;
+	}
+
+	public AnalysisMessageParser getParser()
+	{
+		return parser;
+	}
+
+	public void setParser(AnalysisMessageParser parser)
+	{
+		this.parser = parser;
+	}
+
+	public int getMaxInFlight()
+	{
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight)
+	{
+		this.maxInFlight = maxInFlight;
+	}
+
+	public long getDefaultTimeoutMillis()
+	{
+		return defaultTimeoutMillis;
+	}
+
+	public void setDefaultTimeoutMillis(long defaultTimeoutMillis)
+	{
+		this.defaultTimeoutMillis = defaultTimeoutMillis;
+	}
+
+	public boolean isDirectReplyTo()
+	{
+		return directReplyTo;
+	}
+
+	public void setDirectReplyTo(boolean directReplyTo)
+	{
+		this.directReplyTo = directReplyTo;
+	}
+
+	public String getReplyQueueName()
+	{
+		return replyQueueName;
+	}
+}
@@ -0,0 +1,324 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * Publishes the replies of one worker channel and acknowledges its deliveries
+ * exactly once.
+ *
+ * A delivery is finished when its reply has been confirmed by the broker (or
+ * just published, if confirms are disabled). Finished deliveries are not
+ * acknowledged one by one: one basicAck with multiple=true covers all of them
+ * up to the oldest delivery that is still in progress, so a slow request
+ * holds back the acks of the later ones rather than letting them be lost.
+ * The acks are sent when batchSize deliveries are waiting, or by a timer
+ * every flushIntervalMillis.
+ *
+ * A delivery with more than one reply, e.g. a streamed batch, declares the
+ * number of its replies with expect(), and it is finished when all of them
+ * are confirmed.
+ *
+ * A negatively confirmed reply makes its delivery be rejected and requeued,
+ * so it is analysed again (at-least-once). On close(), the deliveries whose
+ * replies are not confirmed yet stay unacknowledged and are redelivered by
+ * the broker.
+ *
+ * @author Yoichi
+ *
+ */
+public class AckTracker implements ConfirmListener
+{
+	private final static Logger LOGGER = Logger.getLogger(AckTracker.class
+			.getName());
+	private static final boolean MULTIPLE = true;
+
+	private final Channel channel;
+	private final boolean confirmEnabled;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+
+	/** delivered and not finished yet */
+	private final TreeSet<Long> inProgress = new TreeSet<Long>();
+	/** finished and not acknowledged yet */
+	private final TreeSet<Long> toAck = new TreeSet<Long>();
+	/** reply publish sequence numbers to delivery tags, until confirmed */
+	private final ConcurrentSkipListMap<Long, Long> unconfirmed = new ConcurrentSkipListMap<Long, Long>();
+	/** delivery tags to the number of their messages not confirmed yet */
+	private final ConcurrentHashMap<Long, AtomicInteger> expected = new ConcurrentHashMap<Long, AtomicInteger>();
+	private final Object publishLock = new Object();
+	private ScheduledExecutorService flusher;
+	private long numOfAckCalls = 0;
+	private long numOfAcked = 0;
+
+	public AckTracker(Channel channel, boolean confirmEnabled, int batchSize,
+			long flushIntervalMillis)
+	{
+		this.channel = channel;
+		this.confirmEnabled = confirmEnabled;
+		this.batchSize = Math.max(1, batchSize);
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Puts the channel into the confirm mode and starts the flush timer. It
+	 * must be called before the consumer is registered.
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException
+	{
+		if (this.confirmEnabled)
+		{
+			this.channel.addConfirmListener(this);
+			this.channel.confirmSelect();
+		}
+		if (this.batchSize > 1)
+		{
+			this.flusher = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory()
+					{
+						public Thread newThread(Runnable runnable)
+						{
+							Thread thread = new Thread(runnable, "ack-flusher");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			this.flusher.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					flush();
+				}
+			}, this.flushIntervalMillis, this.flushIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the waiting acks and stops the timer
+	 */
+	public void close()
+	{
+		if (this.flusher != null) this.flusher.shutdownNow();
+		flush();
+		synchronized (this)
+		{
+			if (!this.inProgress.isEmpty()) LOGGER.info(this.inProgress.size()
+					+ " deliveries left unacknowledged for redelivery");
+		}
+	}
+
+	/**
+	 * Must be called for every delivery, in the order of delivery, before it
+	 * is processed
+	 *
+	 * @param deliveryTag
+	 */
+	public synchronized void delivered(long deliveryTag)
+	{
+		this.inProgress.add(deliveryTag);
+	}
+
+	/**
+	 * Declares that a delivery is finished by numOfMessages messages rather
+	 * than one. It must be called before the first of them is published.
+	 *
+	 * @param deliveryTag
+	 * @param numOfMessages
+	 */
+	public void expect(long deliveryTag, int numOfMessages)
+	{
+		if (numOfMessages > 1) this.expected.put(deliveryTag,
+				new AtomicInteger(numOfMessages));
+	}
+
+	/**
+	 * Publishes a message on behalf of a delivery, i.e. its reply or its retry.
+	 * The delivery is acknowledged once the broker has confirmed the message.
+	 *
+	 * @param exchange
+	 * @param routingKey
+	 * @param props
+	 * @param body
+	 * @param deliveryTag
+	 * @throws IOException
+	 */
+	public void publish(String exchange, String routingKey,
+			BasicProperties props, byte[] body, long deliveryTag)
+			throws IOException
+	{
+		if (!this.confirmEnabled)
+		{
+			this.channel.basicPublish(exchange, routingKey, props, body);
+			confirmed(deliveryTag);
+			return;
+		}
+		// the sequence number must be taken together with the publish
+		synchronized (this.publishLock)
+		{
+			long seqNo = this.channel.getNextPublishSeqNo();
+			this.unconfirmed.put(seqNo, deliveryTag);
+			try
+			{
+				this.channel.basicPublish(exchange, routingKey, props, body);
+			}
+			catch (IOException e)
+			{
+				this.unconfirmed.remove(seqNo);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Rejects a delivery at once. It is no longer in progress even if the
+	 * reject fails, since the broker then redelivers it with the channel, and
+	 * the finished deliveries it held back are acknowledged.
+	 *
+	 * @param deliveryTag
+	 * @param requeue
+	 * @throws IOException
+	 */
+	public synchronized void reject(long deliveryTag, boolean requeue)
+			throws IOException
+	{
+		this.expected.remove(deliveryTag);
+		// e.g. the second nack of a delivery with several messages
+		if (!this.inProgress.remove(deliveryTag)) return;
+		try
+		{
+			this.channel.basicReject(deliveryTag, requeue);
+		}
+		finally
+		{
+			if (this.toAck.size() >= this.batchSize) flush();
+		}
+	}
+
+	public void handleAck(long seqNo, boolean multiple)
+	{
+		for (long deliveryTag : removeConfirmed(seqNo, multiple).values())
+		{
+			confirmed(deliveryTag);
+		}
+	}
+
+	public void handleNack(long seqNo, boolean multiple)
+	{
+		for (long deliveryTag : removeConfirmed(seqNo, multiple).values())
+		{
+			LOGGER.warn("reply to delivery " + deliveryTag
+					+ " not confirmed; requeueing the request");
+			try
+			{
+				reject(deliveryTag, true);
+			}
+			catch (IOException e)
+			{
+				LOGGER.error("can't reject delivery " + deliveryTag + ": "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Acknowledges, with one basicAck, all finished deliveries older than the
+	 * oldest delivery in progress
+	 */
+	public synchronized void flush()
+	{
+		Long ackUpTo;
+		if (this.inProgress.isEmpty()) ackUpTo = this.toAck.isEmpty() ? null
+				: this.toAck.last();
+		else
+			ackUpTo = this.toAck.lower(this.inProgress.first());
+		if (ackUpTo == null) return;
+
+		try
+		{
+			this.channel.basicAck(ackUpTo, MULTIPLE);
+			SortedSet<Long> acked = this.toAck.headSet(ackUpTo, true);
+			this.numOfAcked += acked.size();
+			acked.clear();
+			this.numOfAckCalls++;
+		}
+		catch (IOException e)
+		{
+			// the channel is gone, and the broker will redeliver
+			LOGGER.error("can't acknowledge up to " + ackUpTo + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Finishes the delivery when its last expected message is confirmed
+	 *
+	 * @param deliveryTag
+	 */
+	private void confirmed(long deliveryTag)
+	{
+		AtomicInteger remaining = this.expected.get(deliveryTag);
+		if (remaining != null)
+		{
+			if (remaining.decrementAndGet() > 0) return;
+			this.expected.remove(deliveryTag);
+		}
+		finished(deliveryTag);
+	}
+
+	private synchronized void finished(long deliveryTag)
+	{
+		if (!this.inProgress.remove(deliveryTag)) return;
+		this.toAck.add(deliveryTag);
+		if (this.toAck.size() >= this.batchSize) flush();
+	}
+
+	private NavigableMap<Long, Long> removeConfirmed(long seqNo,
+			boolean multiple)
+	{
+		NavigableMap<Long, Long> confirmed;
+		if (multiple) confirmed = this.unconfirmed.headMap(seqNo, true);
+		else
+			confirmed = this.unconfirmed.subMap(seqNo, true, seqNo, true);
+		// copy before clearing the view
+		NavigableMap<Long, Long> copy = new TreeMap<Long, Long>(confirmed);
+		confirmed.clear();
+		return copy;
+	}
+
+	/**
+	 * @return the deliveries delivered and not finished yet
+	 */
+	public synchronized int getNumOfInProgress()
+	{
+		return this.inProgress.size();
+	}
+
+	public synchronized long getNumOfAckCalls()
+	{
+		return numOfAckCalls;
+	}
+
+	public synchronized long getNumOfAcked()
+	{
+		return numOfAcked;
+	}
+}
@@ -0,0 +1,271 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Owns a small number of AMQP connections to the broker and hands out
+ * channels on them, so the workers share connections rather than opening one
+ * each. Channels are spread over the connections round robin.
+ *
+ * The client library of this version does not recover connections by itself.
+ * A connection that has been closed, e.g. by a broker restart, is reopened by
+ * the next createChannel() call. The callers (workers, autoscaler) recover
+ * their own topology and consumers on the new channel, and call
+ * getReconnectDelayMillis() to back off between failed attempts.
+ *
+ * @author Yoichi
+ *
+ */
+public class AmqpConnectionManager
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(AmqpConnectionManager.class.getName());
+
+	private String host = "localhost";
+	private int port = ConnectionFactory.DEFAULT_AMQP_PORT;
+	private String username = ConnectionFactory.DEFAULT_USER;
+	private String password = ConnectionFactory.DEFAULT_PASS;
+	private String virtualHost = ConnectionFactory.DEFAULT_VHOST;
+	private int numOfConnections = 1;
+	/** seconds; detects a dead broker or network */
+	private int heartbeat = 30;
+	private long initialReconnectDelayMillis = 1000;
+	private long maxReconnectDelayMillis = 60000;
+
+	private ConnectionFactory factory;
+	private Connection[] connections;
+	private int nextConnection = 0;
+	private boolean isDestroyed = false;
+
+	public synchronized void init()
+	{
+		this.factory = new ConnectionFactory();
+		this.factory.setHost(this.host);
+		this.factory.setPort(this.port);
+		this.factory.setUsername(this.username);
+		this.factory.setPassword(this.password);
+		this.factory.setVirtualHost(this.virtualHost);
+		this.factory.setRequestedHeartbeat(this.heartbeat);
+		this.connections = new Connection[Math.max(1, this.numOfConnections)];
+		this.isDestroyed = false;
+	}
+
+	/**
+	 * Opens a channel on the next connection, reopening the connection if it
+	 * has been closed. The connection is opened without holding the lock, so
+	 * a broker that does not answer does not hold up the channels of the
+	 * other connections.
+	 *
+	 * @return
+	 * @throws IOException
+	 *             if the broker can't be reached
+	 */
+	public Channel createChannel() throws IOException
+	{
+		int index;
+		Connection connection;
+		synchronized (this)
+		{
+			checkNotDestroyed();
+			if (this.factory == null) init();
+			index = this.nextConnection;
+			this.nextConnection = (index + 1) % this.connections.length;
+			connection = this.connections[index];
+		}
+		if (connection == null || !connection.isOpen())
+		{
+			Connection opened = openConnection(index);
+			Connection toClose = null;
+			synchronized (this)
+			{
+				if (this.isDestroyed) toClose = opened;
+				else
+				{
+					connection = this.connections[index];
+					// another thread may have reopened it meanwhile
+					if (connection == null || !connection.isOpen())
+					{
+						connection = opened;
+						this.connections[index] = opened;
+					}
+					else
+						toClose = opened;
+				}
+			}
+			if (toClose != null) close(toClose);
+			checkNotDestroyed();
+		}
+		return connection.createChannel();
+	}
+
+	/**
+	 * @param numOfFailures
+	 *            consecutive failed attempts, from 1
+	 * @return the exponential backoff delay before the next attempt
+	 */
+	public long getReconnectDelayMillis(int numOfFailures)
+	{
+		long delay = this.initialReconnectDelayMillis;
+		for (int i = 1; i < numOfFailures && delay < this.maxReconnectDelayMillis; i++)
+			delay *= 2;
+		return Math.min(delay, this.maxReconnectDelayMillis);
+	}
+
+	public void destroy()
+	{
+		Connection[] toClose;
+		synchronized (this)
+		{
+			this.isDestroyed = true;
+			toClose = this.connections;
+			this.connections = null;
+			this.factory = null;
+		}
+		if (toClose == null) return;
+		for (Connection connection : toClose)
+		{
+			if (connection != null) close(connection);
+		}
+		LOGGER.info("AMQP connections to " + this.host + ":" + this.port
+				+ " closed");
+	}
+
+	private synchronized void checkNotDestroyed() throws IOException
+	{
+		if (this.isDestroyed) throw new IOException(
+				"connection manager is destroyed");
+	}
+
+	private static void close(Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}
+		catch (Exception ignore)
+		{
+		}
+	}
+
+	private Connection openConnection(final int index) throws IOException
+	{
+		ConnectionFactory factory;
+		synchronized (this)
+		{
+			factory = this.factory;
+		}
+		if (factory == null) throw new IOException(
+				"connection manager is destroyed");
+		Connection connection = factory.newConnection();
+		connection.addShutdownListener(new ShutdownListener()
+		{
+			public void shutdownCompleted(ShutdownSignalException cause)
+			{
+				if (!cause.isInitiatedByApplication()) LOGGER
+						.warn("AMQP connection " + index + " lost: "
+								+ cause.getMessage());
+			}
+		});
+		LOGGER.info("AMQP connection " + index + " opened to " + this.host
+				+ ":" + this.port);
+		return connection;
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public void setHost(String host)
+	{
+		this.host = host;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public void setPort(int port)
+	{
+		this.port = port;
+	}
+
+	public String getUsername()
+	{
+		return username;
+	}
+
+	public void setUsername(String username)
+	{
+		this.username = username;
+	}
+
+	public String getPassword()
+	{
+		return password;
+	}
+
+	public void setPassword(String password)
+	{
+		this.password = password;
+	}
+
+	public String getVirtualHost()
+	{
+		return virtualHost;
+	}
+
+	public void setVirtualHost(String virtualHost)
+	{
+		this.virtualHost = virtualHost;
+	}
+
+	public int getNumOfConnections()
+	{
+		return numOfConnections;
+	}
+
+	public void setNumOfConnections(int numOfConnections)
+	{
+		this.numOfConnections = numOfConnections;
+	}
+
+	public int getHeartbeat()
+	{
+		return heartbeat;
+	}
+
+	public void setHeartbeat(int heartbeat)
+	{
+		this.heartbeat = heartbeat;
+	}
+
+	public long getInitialReconnectDelayMillis()
+	{
+		return initialReconnectDelayMillis;
+	}
+
+	public void setInitialReconnectDelayMillis(long initialReconnectDelayMillis)
+	{
+		this.initialReconnectDelayMillis = initialReconnectDelayMillis;
+	}
+
+	public long getMaxReconnectDelayMillis()
+	{
+		return maxReconnectDelayMillis;
+	}
+
+	public void setMaxReconnectDelayMillis(long maxReconnectDelayMillis)
+	{
+		this.maxReconnectDelayMillis = maxReconnectDelayMillis;
+	}
+}
@@ -1,19 +1,61 @@
 package org.pals.analysis.rabbitmq;
 
+import org.pals.analysis.request.AnalysisBatchRequest;
 import org.pals.analysis.request.AnalysisReply;
 import org.pals.analysis.request.AnalysisRequest;
 
+/**
+ * Converts requests and replies to and from messages. Implementations must be
+ * thread-safe, so one instance can be shared by all workers.
+ * 
+ * @author Yoichi
+ * 
+ */
 public interface AnalysisMessageParser
 {
+	/**
+	 * @param contentType
+	 *            the AMQP contentType of a message
+	 * @return true if messages of the contentType can be parsed
+	 */
+	abstract public boolean isSupported(String contentType);
+
 	abstract public String serializeRequest(String contentType,
 			AnalysisRequest request) throws MessageParserException;
 
+	abstract public byte[] serializeRequestAsBytes(String contentType,
+			AnalysisRequest request) throws MessageParserException;
+
 	abstract public AnalysisRequest deserializeRequest(String contentType,
 			String message) throws MessageParserException;
 
+	/**
+	 * Reads the request directly from a delivery body
+	 */
+	abstract public AnalysisRequest deserializeRequest(String contentType,
+			byte[] body) throws MessageParserException;
+
+	abstract public byte[] serializeBatchRequestAsBytes(String contentType,
+			AnalysisBatchRequest batch) throws MessageParserException;
+
+	/**
+	 * Reads a message whose type is AnalysisBatchRequest.MESSAGE_TYPE
+	 */
+	abstract public AnalysisBatchRequest deserializeBatchRequest(
+			String contentType, byte[] body) throws MessageParserException;
+
 	abstract public String serializeReply(String contentType,
 			AnalysisReply reply) throws MessageParserException;
 
+	/**
+	 * Writes the reply directly as a message body
+	 */
+	abstract public byte[] serializeReplyAsBytes(String contentType,
+			AnalysisReply reply) throws MessageParserException;
+
 	abstract public AnalysisReply deserializeReply(String contentType,
 			String responseMsg) throws MessageParserException;
+
+	abstract public AnalysisReply deserializeReply(String contentType,
+			byte[] body) throws MessageParserException;
 }
@@ -1,18 +1,34 @@
 package org.pals.analysis.rabbitmq;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.pals.analysis.request.AnalysisBatchRequest;
 import org.pals.analysis.request.AnalysisReply;
 import org.pals.analysis.request.AnalysisRequest;
 
-import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 /**
- * A trivial class to wrap Jackson. We could use different
- * serializer/deserializer, if the contentType is not application/json.
+ * A trivial class to wrap Jackson. The encoding is chosen per message from
+ * the contentType: application/json, or the binary Smile encoding
+ * (application/x-jackson-smile), which is smaller and faster to encode for
+ * large analysisResults. Other Jackson data formats can be added with
+ * registerContentType(). Parameters such as "; charset=UTF-8" are ignored.
+ * 
+ * The ObjectReaders and ObjectWriters are built once and are immutable, so
+ * this class is thread-safe and workers share INSTANCE. Jackson recycles its
+ * parsing and output buffers per thread, so reading from and writing to
+ * byte[] does not create intermediate Strings or char buffers.
+ * 
+ * The String methods only accept textual content types.
  * 
  * @author Yoichi
  * 
@@ -20,11 +36,43 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 public class AnalysisMessageParserJackson implements AnalysisMessageParser
 {
 	public static final String CONTENT_TYPE_JSON = "application/json";
-	private static ObjectMapper MAPPER;
+	public static final String CONTENT_TYPE_SMILE = "application/x-jackson-smile";
+
+	/** codecs by content type */
+	private static final Map<String, Codec> CODECS = new ConcurrentHashMap<String, Codec>();
+
+	static
+	{
+		registerContentType(CONTENT_TYPE_JSON, new JsonFactory(), false);
+		registerContentType(CONTENT_TYPE_SMILE, new SmileFactory(), true);
+	}
+
+	public static final AnalysisMessageParserJackson INSTANCE = new AnalysisMessageParserJackson();
 
 	public AnalysisMessageParserJackson()
 	{
-		MAPPER = new ObjectMapper();
+		super();
+	}
+
+	/**
+	 * Adds or replaces the encoding for a content type
+	 * 
+	 * @param contentType
+	 * @param factory
+	 *            the Jackson data format, e.g. JsonFactory
+	 * @param isBinary
+	 *            true if the messages are not text
+	 */
+	public static void registerContentType(String contentType,
+			JsonFactory factory, boolean isBinary)
+	{
+		CODECS.put(normalise(contentType), new Codec(new ObjectMapper(factory),
+				isBinary));
+	}
+
+	public boolean isSupported(String contentType)
+	{
+		return contentType != null && CODECS.containsKey(normalise(contentType));
 	}
 
 	/**
@@ -38,45 +86,85 @@ public class AnalysisMessageParserJackson implements AnalysisMessageParser
 	public String serializeRequest(String contentType, AnalysisRequest request)
 			throws MessageParserException
 	{
-		String requestMsg = null;
-		if (CONTENT_TYPE_JSON.equals(contentType)) try
+		Codec codec = getTextCodec(contentType);
+		try
+		{
+			return codec.requestWriter.writeValueAsString(request);
+		}
+		catch (JsonProcessingException e)
+		{
+			throw new MessageParserException(e);
+		}
+	}
+
+	public byte[] serializeRequestAsBytes(String contentType,
+			AnalysisRequest request) throws MessageParserException
+	{
+		Codec codec = getCodec(contentType);
+		try
 		{
-			requestMsg = MAPPER.writeValueAsString(request);
+			return codec.requestWriter.writeValueAsBytes(request);
 		}
 		catch (JsonProcessingException e)
 		{
 			throw new MessageParserException(e);
 		}
-		else
-			throw new MessageParserException("unkown contentType: "
-					+ contentType);
-		return requestMsg;
 	}
 
 	public AnalysisRequest deserializeRequest(String contentType, String message)
 			throws MessageParserException
 	{
-		AnalysisRequest request = null;
-		if (CONTENT_TYPE_JSON.equals(contentType)) try
+		Codec codec = getTextCodec(contentType);
+		try
 		{
-			request = MAPPER.readValue(message, AnalysisRequest.class);
+			return codec.requestReader.readValue(message);
 		}
-		catch (JsonParseException e)
+		catch (IOException e)
 		{
 			throw new MessageParserException(e);
 		}
-		catch (JsonMappingException e)
+	}
+
+	public AnalysisRequest deserializeRequest(String contentType, byte[] body)
+			throws MessageParserException
+	{
+		Codec codec = getCodec(contentType);
+		try
+		{
+			return codec.requestReader.readValue(body);
+		}
+		catch (IOException e)
+		{
+			throw new MessageParserException(e);
+		}
+	}
+
+	public byte[] serializeBatchRequestAsBytes(String contentType,
+			AnalysisBatchRequest batch) throws MessageParserException
+	{
+		Codec codec = getCodec(contentType);
+		try
+		{
+			return codec.batchWriter.writeValueAsBytes(batch);
+		}
+		catch (JsonProcessingException e)
 		{
 			throw new MessageParserException(e);
 		}
+	}
+
+	public AnalysisBatchRequest deserializeBatchRequest(String contentType,
+			byte[] body) throws MessageParserException
+	{
+		Codec codec = getCodec(contentType);
+		try
+		{
+			return codec.batchReader.readValue(body);
+		}
 		catch (IOException e)
 		{
 			throw new MessageParserException(e);
 		}
-		else
-			throw new MessageParserException("unkown contentType: "
-					+ contentType);
-		return request;
 	}
 
 	/**
@@ -90,19 +178,29 @@ public class AnalysisMessageParserJackson implements AnalysisMessageParser
 	public String serializeReply(String contentType, AnalysisReply reply)
 			throws MessageParserException
 	{
-		String responseMsg = null;
-		if (CONTENT_TYPE_JSON.equals(contentType)) try
+		Codec codec = getTextCodec(contentType);
+		try
 		{
-			responseMsg = MAPPER.writeValueAsString(reply);
+			return codec.replyWriter.writeValueAsString(reply);
+		}
+		catch (JsonProcessingException e)
+		{
+			throw new MessageParserException(e);
+		}
+	}
+
+	public byte[] serializeReplyAsBytes(String contentType, AnalysisReply reply)
+			throws MessageParserException
+	{
+		Codec codec = getCodec(contentType);
+		try
+		{
+			return codec.replyWriter.writeValueAsBytes(reply);
 		}
 		catch (JsonProcessingException e)
 		{
 			throw new MessageParserException(e);
 		}
-		else
-			throw new MessageParserException("unkown contentType: "
-					+ contentType);
-		return responseMsg;
 	}
 
 	/**
@@ -116,26 +214,80 @@ public class AnalysisMessageParserJackson implements AnalysisMessageParser
 	public AnalysisReply deserializeReply(String contentType, String responseMsg)
 			throws MessageParserException
 	{
-		AnalysisReply reply = null;
-		if (CONTENT_TYPE_JSON.equals(contentType)) try
+		Codec codec = getTextCodec(contentType);
+		try
 		{
-			reply = MAPPER.readValue(responseMsg, AnalysisReply.class);
+			return codec.replyReader.readValue(responseMsg);
 		}
-		catch (JsonParseException e)
+		catch (IOException e)
 		{
 			throw new MessageParserException(e);
 		}
-		catch (JsonMappingException e)
+	}
+
+	public AnalysisReply deserializeReply(String contentType, byte[] body)
+			throws MessageParserException
+	{
+		Codec codec = getCodec(contentType);
+		try
 		{
-			throw new MessageParserException(e);
+			return codec.replyReader.readValue(body);
 		}
 		catch (IOException e)
 		{
 			throw new MessageParserException(e);
 		}
-		else
-			throw new MessageParserException("unkown contentType: "
-					+ contentType);
-		return reply;
+	}
+
+	private static Codec getCodec(String contentType)
+			throws MessageParserException
+	{
+		Codec codec = null;
+		if (contentType != null) codec = CODECS.get(normalise(contentType));
+		if (codec == null) throw new MessageParserException(
+				"unkown contentType: " + contentType);
+		return codec;
+	}
+
+	private static Codec getTextCodec(String contentType)
+			throws MessageParserException
+	{
+		Codec codec = getCodec(contentType);
+		if (codec.isBinary) throw new MessageParserException(
+				"binary contentType can't be a String: " + contentType);
+		return codec;
+	}
+
+	/**
+	 * @param contentType
+	 * @return the media type without parameters, in lower case
+	 */
+	private static String normalise(String contentType)
+	{
+		int semicolon = contentType.indexOf(';');
+		if (semicolon >= 0) contentType = contentType.substring(0, semicolon);
+		return contentType.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	private static class Codec
+	{
+		private final ObjectReader requestReader;
+		private final ObjectReader replyReader;
+		private final ObjectReader batchReader;
+		private final ObjectWriter requestWriter;
+		private final ObjectWriter replyWriter;
+		private final ObjectWriter batchWriter;
+		private final boolean isBinary;
+
+		Codec(ObjectMapper mapper, boolean isBinary)
+		{
+			this.requestReader = mapper.reader(AnalysisRequest.class);
+			this.replyReader = mapper.reader(AnalysisReply.class);
+			this.batchReader = mapper.reader(AnalysisBatchRequest.class);
+			this.requestWriter = mapper.writerWithType(AnalysisRequest.class);
+			this.replyWriter = mapper.writerWithType(AnalysisReply.class);
+			this.batchWriter = mapper.writerWithType(AnalysisBatchRequest.class);
+			this.isBinary = isBinary;
+		}
 	}
 }
@@ -1,13 +1,31 @@
 package org.pals.analysis.rabbitmq;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 
 import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.Analyser;
+import org.pals.analysis.analyser.AnalyserImpl;
+import org.pals.analysis.analyser.CoalescingAnalyser;
+import org.pals.analysis.analyser.handler.AnalysisPipeline;
+import org.pals.analysis.analyser.handler.RequestHandlerRegistry;
+import org.pals.analysis.analyser.handler.cache.CSV2NetCDFResultCache;
+import org.pals.analysis.analyser.handler.cache.RemoteFileCache;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePool;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePoolImpl;
+import org.pals.analysis.analyser.handler.dao.RserveSupervisor;
+import org.pals.analysis.analyser.handler.remoteFileHandler.RemoteFileHandler;
+import org.pals.analysis.analyser.handler.remoteFileHandler.UrlProtocolHandlerFactory;
+import org.pals.analysis.request.AnalysisException;
 
 /**
  * A RabbitMQ version of the analysis server to start running workers. It can be
@@ -22,32 +40,79 @@ import org.apache.log4j.Logger;
  * Therefore, this server can be run in the same JVM as that runs clients or in
  * an independent JVM. Clients should send messages to the Channel directly. In
  * addition, the RabbitMQ server should be installed on the localhost and be
- * running. Note: The number of workers is defined in the web.xml. TODO: The
- * number of workers may be changed at runtime. TODO: This class should be a
- * singleton, unless queue name can change per instance.
- * 
+ * running. Note: The initial number of workers is defined in the
+ * applicationContext.xml. If autoscaling is enabled, WorkerAutoscaler changes
+ * the number at runtime between minWorkers and maxWorkers. TODO: This class
+ * should be a singleton, unless queue name can change per instance.
+ *
+ * The Rserve pool, the caches, the protocol handlers, the pipeline, the AMQP
+ * connections, the retry handler and the autoscaler are built and configured
+ * in the applicationContext.xml. init() starts them in order and destroy()
+ * stops them; the ones that are not set are left out, or built with their
+ * defaults if the workers need them.
+ *
  * @author Yoichi
- * 
+ *
  */
 public class AnalysisServlet extends HttpServlet
 {
 	private final static Logger LOGGER = Logger.getLogger(AnalysisServlet.class
 			.getName());
 	private static final long serialVersionUID = -1975361388372623587L;
-	
+	/** how long destroy() waits for the workers to finish their deliveries */
+	private static final long SHUTDOWN_WAIT = 65000;
+
 	private long sleepDuration = 10000;
 	private boolean isRunningAsMain = false;
 	private boolean isRunningAsServlet = true;
-	
+
 	// default values
-	// TODO: These may be set by using IoC
 	private String rpcQueueName = "pals_analysis";
 	private String inputDataDirPath = "/tmp/palsAnalyser/input";
 	private String outputDataDirPath = "/tmp/palsAnalyser/output";
 	private int numOfWorkers = 4;
+	private boolean pushMode = true;
+	private int workerConcurrency = 1;
+	private boolean confirmEnabled = true;
+	private int ackBatchSize = 16;
+	/** threads analysing the requests of batches, shared by all workers */
+	private int batchConcurrency = 4;
+	/** let concurrent identical requests share one analysis */
+	private boolean coalescingEnabled = true;
+	/** the longest time a request may take from its delivery; 0 for no limit */
+	private long maxAnalysisTime = 3600000;
+	/** threads of the I/O pool shared by the uploads of all requests */
+	private int storeIoThreads = UrlProtocolHandlerFactory.DEFAULT_IO_THREADS;
+
+	/** local Rserve daemons for the engine pool; may be null */
+	private RserveSupervisor rserveSupervisor;
+	/** Rserve sessions shared by all workers */
+	private PalsRserveEnginePool enginePool;
+	/** of http(s) and S3 input files, used by their handlers; may be null */
+	private RemoteFileCache inputCache;
+	/** by URL protocol; may be null */
+	private Map<String, RemoteFileHandler> protocolHandlers;
+	/** by URL pattern, tried in order before the protocol; may be null */
+	private Map<String, RemoteFileHandler> urlPatternHandlers;
+	/** may be null */
+	private CSV2NetCDFResultCache resultCache;
+	/** may be null */
+	private AnalysisPipeline pipeline;
+	private RequestHandlerRegistry handlerRegistry;
+	private AmqpConnectionManager connectionManager;
+	private RetryHandler retryHandler;
+	/** may be null */
+	private WorkerAutoscaler autoscaler;
+
+	/** shared by all workers */
+	private Analyser analyser;
+	private ExecutorService batchExecutor;
+	private int nextWorkerId = 0;
 
 	private List<Thread> threads;
 	private List<AnalysisWorker> workers;
+	/** of stopped workers that may still be finishing their deliveries */
+	private List<Thread> drainingThreads;
 
 	/**
 	 * Constructor
@@ -56,6 +121,7 @@ public class AnalysisServlet extends HttpServlet
 	{
 		this.threads = new ArrayList<Thread>();
 		this.workers = new ArrayList<AnalysisWorker>();
+		this.drainingThreads = new ArrayList<Thread>();
 	}
 
 	@Override
@@ -63,60 +129,257 @@ public class AnalysisServlet extends HttpServlet
 	{
 		if (this.threads == null) this.threads = new ArrayList<Thread>();
 		if (this.workers == null) this.workers = new ArrayList<AnalysisWorker>();
+		if (this.drainingThreads == null) this.drainingThreads = new ArrayList<Thread>();
+
+		if (this.enginePool == null) this.enginePool = new PalsRserveEnginePoolImpl();
+		try
+		{
+			// the daemons must listen before the pool connects to them
+			if (this.rserveSupervisor != null) this.rserveSupervisor.start();
+			this.enginePool.init();
+		}
+		catch (AnalysisException e)
+		{
+			throw new ServletException(e);
+		}
+
+		UrlProtocolHandlerFactory.setIoThreads(this.storeIoThreads);
+		try
+		{
+			if (this.inputCache != null) this.inputCache.init();
+			if (this.resultCache != null) this.resultCache.init();
+		}
+		catch (IOException e)
+		{
+			throw new ServletException(e);
+		}
+		if (this.protocolHandlers != null) for (Map.Entry<String, RemoteFileHandler> entry : this.protocolHandlers
+				.entrySet())
+		{
+			UrlProtocolHandlerFactory.register(entry.getKey(), entry.getValue());
+		}
+		if (this.urlPatternHandlers != null) for (Map.Entry<String, RemoteFileHandler> entry : this.urlPatternHandlers
+				.entrySet())
+		{
+			UrlProtocolHandlerFactory.registerPattern(entry.getKey(),
+					entry.getValue());
+		}
+		if (this.pipeline != null) this.pipeline.init();
+
+		// handlers configured in the applicationContext.xml take precedence
+		if (this.handlerRegistry == null) this.handlerRegistry = new RequestHandlerRegistry();
+		this.handlerRegistry.registerDefaults(this.enginePool, this.resultCache,
+				this.pipeline);
+
+		this.analyser = new AnalyserImpl(this.enginePool, this.handlerRegistry);
+		if (this.coalescingEnabled) this.analyser = new CoalescingAnalyser(
+				this.analyser);
+
+		if (this.connectionManager == null) this.connectionManager = new AmqpConnectionManager();
+		this.connectionManager.init();
+		connect();
+
+		if (this.retryHandler == null) this.retryHandler = new RetryHandler(
+				this.rpcQueueName);
+
+		this.batchExecutor = Executors.newFixedThreadPool(this.batchConcurrency);
 
 		for (int i = 0; i < this.numOfWorkers; i++)
 		{
-			// worker is a Runnable
-			String workerId = String.valueOf(i);
-			File inputDataDir = new File(inputDataDirPath);
-			File outputDataDir = new File(outputDataDirPath);
-			AnalysisWorker worker = new AnalysisWorker(workerId, rpcQueueName,
-					inputDataDir, outputDataDir);
-			workers.add(worker);
-			worker.init();
-			// Create a new thread with the worker
-			Thread thread = new Thread(worker, workerId);
-			thread.start();
-			threads.add(thread);
-			LOGGER.info("workerId=" + workerId + " created and started");
+			startWorker();
+		}
+
+		if (this.autoscaler != null)
+		{
+			this.autoscaler.setServlet(this);
+			this.autoscaler.setEnginePool(this.enginePool);
+			this.autoscaler.setRpcQueueName(this.rpcQueueName);
+			this.autoscaler.start();
 		}
 
 		super.init();
 	}
 
+	/**
+	 * Opens the first connection to the broker. If the broker can't be
+	 * reached yet, the workers start anyway and keep reconnecting with backoff
+	 * until it can, as they do when the connection is lost later.
+	 */
+	private void connect()
+	{
+		try
+		{
+			this.connectionManager.createChannel().close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("can't reach the AMQP broker yet, the workers keep "
+					+ "retrying: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates a worker and starts its thread
+	 *
+	 * @return the new worker
+	 */
+	public synchronized AnalysisWorker startWorker()
+	{
+		// worker is a Runnable
+		String workerId = String.valueOf(this.nextWorkerId++);
+		File inputDataDir = new File(inputDataDirPath);
+		File outputDataDir = new File(outputDataDirPath);
+		AnalysisWorker worker = new AnalysisWorker(workerId, rpcQueueName,
+				inputDataDir, outputDataDir);
+		worker.setPushMode(this.pushMode);
+		worker.setConcurrency(this.workerConcurrency);
+		worker.setConfirmEnabled(this.confirmEnabled);
+		worker.setAckBatchSize(this.ackBatchSize);
+		worker.setRetryHandler(this.retryHandler);
+		worker.setConnectionManager(this.connectionManager);
+		worker.setBatchExecutor(this.batchExecutor);
+		worker.setMaxAnalysisMillis(this.maxAnalysisTime);
+		worker.setAnalyser(this.analyser);
+		workers.add(worker);
+		worker.init();
+		// Create a new thread with the worker
+		Thread thread = new Thread(worker, workerId);
+		thread.start();
+		threads.add(thread);
+		LOGGER.info("workerId=" + workerId + " created and started");
+		return worker;
+	}
+
+	/**
+	 * Stops the most recently started worker. The worker cancels its consumer
+	 * and finishes the deliveries in hand before its thread ends, so nothing
+	 * is interrupted; destroy() waits for the thread.
+	 *
+	 * @return false if there is no worker to stop
+	 */
+	public synchronized boolean stopWorker()
+	{
+		if (this.workers.isEmpty()) return false;
+		int last = this.workers.size() - 1;
+		AnalysisWorker worker = this.workers.remove(last);
+		Thread thread = this.threads.remove(last);
+		worker.destroy();
+		for (Iterator<Thread> i = this.drainingThreads.iterator(); i.hasNext();)
+		{
+			if (!i.next().isAlive()) i.remove();
+		}
+		this.drainingThreads.add(thread);
+		LOGGER.info("workerId=" + worker.getWorkerId() + " stopping");
+		return true;
+	}
+
+	public synchronized int getNumOfRunningWorkers()
+	{
+		return this.workers.size();
+	}
+
+	/**
+	 * @return the deliveries the workers have taken and not acknowledged yet
+	 */
+	public synchronized int getNumOfInFlight()
+	{
+		int numOfInFlight = 0;
+		for (AnalysisWorker worker : this.workers)
+			numOfInFlight += worker.getNumOfInFlight();
+		return numOfInFlight;
+	}
+
+	/**
+	 * @return the mean of the workers' recent service times, 0 if unknown
+	 */
+	public synchronized double getAverageServiceMillis()
+	{
+		double sum = 0;
+		int n = 0;
+		for (AnalysisWorker worker : this.workers)
+		{
+			if (worker.getNumOfProcessed() == 0) continue;
+			sum += worker.getAverageServiceMillis();
+			n++;
+		}
+		return n == 0 ? 0 : sum / n;
+	}
+
 	@Override
 	public void destroy()
 	{
 		if (this.isRunningAsMain) this.isRunningAsMain = false;
 
-		for (Object o : workers)
-		{
-			AnalysisWorker worker = (AnalysisWorker) o;
-			String workerId = worker.getWorkerId();
-			LOGGER.info("[worker " + workerId + "] calling destroy()");
-			worker.destroy(); // this sets isRunning to false
-			worker = null;
-		}
-		workers.clear(); // same as above
-		workers = null;
-		LOGGER.info("references to all workers are removed");
-		for (Object o : threads)
-		{
-			Thread thread = (Thread) o;
-			String threadName = thread.getName();
-			/**
-			 * threads should have terminated normally. If they have not,
-			 * however, it may be necessary to interrupt them
-			 */
-			thread.interrupt(); // stop the sleeping loop so the thread can
-								// terminate as normal
-			thread = null;
-			LOGGER.info("[thread " + threadName
-					+ "] thread interrupted and made to null");
-		}
-		threads.clear(); // same as above
-		threads = null;
-		LOGGER.info("references to all threads are removed");
+		if (this.autoscaler != null) this.autoscaler.stop();
+
+		List<Thread> stoppingThreads;
+		synchronized (this)
+		{
+			for (AnalysisWorker worker : this.workers)
+			{
+				LOGGER.info("[worker " + worker.getWorkerId()
+						+ "] calling destroy()");
+				// the worker stops consuming and finishes what it has, without
+				// an interrupt that could break an R evaluation or a publish
+				worker.destroy();
+			}
+			this.workers.clear();
+			stoppingThreads = new ArrayList<Thread>(this.threads);
+			stoppingThreads.addAll(this.drainingThreads);
+			this.threads.clear();
+			this.drainingThreads.clear();
+		}
+
+		// let the workers, including those already stopped, finish the
+		// deliveries in hand on their channels
+		long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+		for (Thread thread : stoppingThreads)
+		{
+			long waitMillis = deadline - System.currentTimeMillis();
+			if (waitMillis <= 0) break;
+			try
+			{
+				thread.join(waitMillis);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (Thread thread : stoppingThreads)
+		{
+			if (thread.isAlive()) LOGGER.warn("[thread " + thread.getName()
+					+ "] still running after " + SHUTDOWN_WAIT + " ms");
+		}
+		if (this.connectionManager != null) this.connectionManager.destroy();
+		if (this.batchExecutor != null) this.batchExecutor.shutdownNow();
+		this.batchExecutor = null;
+
+		if (this.pipeline != null) this.pipeline.destroy();
+		UrlProtocolHandlerFactory.shutdownIoExecutor();
+		if (this.enginePool != null)
+		{
+			LOGGER.info("R sessions killed at deadlines="
+					+ this.enginePool.getWatchdog().getNumOfKilled());
+			this.enginePool.destroy();
+		}
+		if (this.rserveSupervisor != null) this.rserveSupervisor.destroy();
+		if (this.resultCache != null) LOGGER.info("result cache hits="
+				+ this.resultCache.getHitCount() + " misses="
+				+ this.resultCache.getMissCount());
+		if (this.inputCache != null) LOGGER.info("input cache hits="
+				+ this.inputCache.getHitCount() + " misses="
+				+ this.inputCache.getMissCount() + " shared downloads="
+				+ this.inputCache.getSharedCount());
+		if (this.analyser instanceof CoalescingAnalyser) LOGGER
+				.info("coalesced requests="
+						+ ((CoalescingAnalyser) this.analyser)
+								.getNumOfCoalesced());
+		this.analyser = null;
+		if (this.retryHandler != null) LOGGER.info("retries="
+				+ this.retryHandler.getNumOfRetries() + " deadLettered="
+				+ this.retryHandler.getNumOfDeadLettered());
 
 		super.destroy();
 	}
@@ -151,6 +414,233 @@ public class AnalysisServlet extends HttpServlet
 		this.numOfWorkers = numOfWorkers;
 	}
 
+	public boolean isPushMode()
+	{
+		return pushMode;
+	}
+
+	public void setPushMode(boolean pushMode)
+	{
+		this.pushMode = pushMode;
+	}
+
+	public int getWorkerConcurrency()
+	{
+		return workerConcurrency;
+	}
+
+	public void setWorkerConcurrency(int workerConcurrency)
+	{
+		this.workerConcurrency = workerConcurrency;
+	}
+
+	public RserveSupervisor getRserveSupervisor()
+	{
+		return rserveSupervisor;
+	}
+
+	public void setRserveSupervisor(RserveSupervisor rserveSupervisor)
+	{
+		this.rserveSupervisor = rserveSupervisor;
+	}
+
+	public PalsRserveEnginePool getEnginePool()
+	{
+		return enginePool;
+	}
+
+	/**
+	 * @param enginePool
+	 *            a PalsRserveEnginePoolImpl, or a PalsRserveClusterPool of
+	 *            several hosts; a PalsRserveEnginePoolImpl on localhost if not
+	 *            set
+	 */
+	public void setEnginePool(PalsRserveEnginePool enginePool)
+	{
+		this.enginePool = enginePool;
+	}
+
+	public RemoteFileCache getInputCache()
+	{
+		return inputCache;
+	}
+
+	/**
+	 * @param inputCache
+	 *            initialised by init(); the CachingRemoteFileHandlers of the
+	 *            protocol handlers use it
+	 */
+	public void setInputCache(RemoteFileCache inputCache)
+	{
+		this.inputCache = inputCache;
+	}
+
+	public Map<String, RemoteFileHandler> getProtocolHandlers()
+	{
+		return protocolHandlers;
+	}
+
+	/**
+	 * @param protocolHandlers
+	 *            registered with UrlProtocolHandlerFactory by init()
+	 */
+	public void setProtocolHandlers(
+			Map<String, RemoteFileHandler> protocolHandlers)
+	{
+		this.protocolHandlers = protocolHandlers;
+	}
+
+	public Map<String, RemoteFileHandler> getUrlPatternHandlers()
+	{
+		return urlPatternHandlers;
+	}
+
+	/**
+	 * @param urlPatternHandlers
+	 *            registered with UrlProtocolHandlerFactory by init(), in order
+	 */
+	public void setUrlPatternHandlers(
+			Map<String, RemoteFileHandler> urlPatternHandlers)
+	{
+		this.urlPatternHandlers = urlPatternHandlers;
+	}
+
+	public AnalysisPipeline getPipeline()
+	{
+		return pipeline;
+	}
+
+	public void setPipeline(AnalysisPipeline pipeline)
+	{
+		this.pipeline = pipeline;
+	}
+
+	public RequestHandlerRegistry getHandlerRegistry()
+	{
+		return handlerRegistry;
+	}
+
+	public void setHandlerRegistry(RequestHandlerRegistry handlerRegistry)
+	{
+		this.handlerRegistry = handlerRegistry;
+	}
+
+	public AmqpConnectionManager getConnectionManager()
+	{
+		return connectionManager;
+	}
+
+	public void setConnectionManager(AmqpConnectionManager connectionManager)
+	{
+		this.connectionManager = connectionManager;
+	}
+
+	public boolean isConfirmEnabled()
+	{
+		return confirmEnabled;
+	}
+
+	public void setConfirmEnabled(boolean confirmEnabled)
+	{
+		this.confirmEnabled = confirmEnabled;
+	}
+
+	public int getAckBatchSize()
+	{
+		return ackBatchSize;
+	}
+
+	public void setAckBatchSize(int ackBatchSize)
+	{
+		this.ackBatchSize = ackBatchSize;
+	}
+
+	public int getBatchConcurrency()
+	{
+		return batchConcurrency;
+	}
+
+	public void setBatchConcurrency(int batchConcurrency)
+	{
+		this.batchConcurrency = batchConcurrency;
+	}
+
+	public long getMaxAnalysisTime()
+	{
+		return maxAnalysisTime;
+	}
+
+	public void setMaxAnalysisTime(long maxAnalysisTime)
+	{
+		this.maxAnalysisTime = maxAnalysisTime;
+	}
+
+	public boolean isCoalescingEnabled()
+	{
+		return coalescingEnabled;
+	}
+
+	public void setCoalescingEnabled(boolean coalescingEnabled)
+	{
+		this.coalescingEnabled = coalescingEnabled;
+	}
+
+	/**
+	 * @return the retry and dead-letter counters, null before init() if not
+	 *         set
+	 */
+	public RetryHandler getRetryHandler()
+	{
+		return retryHandler;
+	}
+
+	public void setRetryHandler(RetryHandler retryHandler)
+	{
+		this.retryHandler = retryHandler;
+	}
+
+	public WorkerAutoscaler getAutoscaler()
+	{
+		return autoscaler;
+	}
+
+	/**
+	 * @param autoscaler
+	 *            init() gives it this servlet, the engine pool and the queue
+	 *            name; no autoscaling if null
+	 */
+	public void setAutoscaler(WorkerAutoscaler autoscaler)
+	{
+		this.autoscaler = autoscaler;
+	}
+
+	public int getStoreIoThreads()
+	{
+		return storeIoThreads;
+	}
+
+	public void setStoreIoThreads(int storeIoThreads)
+	{
+		this.storeIoThreads = storeIoThreads;
+	}
+
+	/**
+	 * @return the result cache, e.g. for its hit/miss counts, or null
+	 */
+	public CSV2NetCDFResultCache getResultCache()
+	{
+		return resultCache;
+	}
+
+	/**
+	 * @param resultCache
+	 *            initialised by init()
+	 */
+	public void setResultCache(CSV2NetCDFResultCache resultCache)
+	{
+		this.resultCache = resultCache;
+	}
+
 	public String getRpcQueueName()
 	{
 		return rpcQueueName;
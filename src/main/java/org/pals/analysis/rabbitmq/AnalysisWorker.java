@@ -2,28 +2,71 @@ package org.pals.analysis.rabbitmq;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.apache.log4j.Logger;
 import org.pals.analysis.analyser.Analyser;
 import org.pals.analysis.analyser.AnalyserImpl;
+import org.pals.analysis.request.AnalysisBatchRequest;
+import org.pals.analysis.request.AnalysisBatchRequest.ReplyMode;
 import org.pals.analysis.request.AnalysisException;
 import org.pals.analysis.request.AnalysisReply;
 import org.pals.analysis.request.AnalysisReply.Status;
 import org.pals.analysis.request.AnalysisRequest;
+import org.pals.analysis.request.AnalysisTimeoutException;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * Worker is a user of RabbitMQ Consumer. It needs to be a thread because it is
  * started and managed by an analysis server application.
  * 
+ * The worker has two consumer modes. In the push mode (default), RabbitMQ
+ * calls back handleDelivery() and the delivery is handed to a bounded executor
+ * of "concurrency" threads, so the throughput is limited only by the analysis
+ * cost. The push mode does not free the worker thread, though: it stays
+ * blocked on a lock until destroy(), the loss of the channel or the
+ * cancellation of the consumer, so every worker still takes one thread besides
+ * its executor. In the poll mode, the worker thread pulls deliveries one by
+ * one with QueueingConsumer and sleeps between them.
+ * 
+ * A message of the type AnalysisBatchRequest.MESSAGE_TYPE carries many
+ * requests. They are analysed in parallel on the batch executor, which is
+ * normally shared by all workers and sized to the Rserve engine pool, and
+ * replied either as one aggregated reply or as a stream of per-request
+ * replies. The delivery is acknowledged when all its replies are confirmed.
+ * 
+ * A request may have a deadline, from the DEADLINE_HEADER (epoch millis), the
+ * AMQP expiration (relative to the timestamp, or else to the delivery) or the
+ * request itself, whichever is earliest, and at most maxAnalysisMillis after
+ * the delivery. A request delivered after its deadline is not analysed, and
+ * the handlers stop R at the deadline. Either way the reply has the TIMEOUT
+ * status.
+ * 
+ * The channel comes from an AmqpConnectionManager, normally shared with the
+ * other workers. When the channel or the connection is lost, the worker
+ * declares its queues and consumes again on a new channel.
+ * 
  * @author Yoichi
  * @see RPC server code:
  *      {http://www.rabbitmq.com/tutorials/tutorial-six-java.html}
@@ -34,6 +77,7 @@ public class AnalysisWorker implements Runnable
 {
 	private final static Logger LOGGER = Logger.getLogger(AnalysisWorker.class
 			.getName());
+	public static final String DEADLINE_HEADER = "x-pals-deadline";
 	private String rpcQueueName = "pals_analysis";
 	private static final String EXCHANGE = "";
 	private static final boolean DURABLE = true;
@@ -43,13 +87,43 @@ public class AnalysisWorker implements Runnable
 	/** expecting explicit acknowledgment */
 	private static final boolean NOT_AUTO_ACKNOWLEDGE = false;
 	private static final long SLEEP_DURATION = 100;
-	private static final boolean NOT_MULTIPLE = false;
-	private static final boolean DO_REQUEUE = true;
+	private static final long POLL_TIMEOUT = 1000;
+	private static final long SHUTDOWN_WAIT_SECONDS = 60;
+	/** weight of the latest sample in the average service time */
+	private static final double SERVICE_TIME_WEIGHT = 0.2;
 
-	protected boolean isRunning = false;
+	protected volatile boolean isRunning = false;
 	private String workerId;
 	private File inputDataDir;
 	private File outputDataDir;
+	private boolean pushMode = true;
+	/** number of deliveries analysed in parallel in the push mode */
+	private int concurrency = 1;
+	/** when null, init() creates an AnalyserImpl with its own engine pool */
+	private Analyser analyser;
+	private AnalysisMessageParser parser = AnalysisMessageParserJackson.INSTANCE;
+	/** when null, init() creates one with the default backoff */
+	private RetryHandler retryHandler;
+	/** when null, init() creates one to localhost */
+	private AmqpConnectionManager connectionManager;
+	/** publish replies in the publisher confirm mode */
+	private boolean confirmEnabled = true;
+	/** maximum number of deliveries acknowledged by one basicAck */
+	private int ackBatchSize = 16;
+	private long ackFlushIntervalMillis = 100;
+	/** analyses the requests of batches; when null, init() creates one */
+	private ExecutorService batchExecutor;
+	private int batchConcurrency = 4;
+	private boolean ownsBatchExecutor = false;
+	/** the longest time a request may take from its delivery; 0 for no limit */
+	private long maxAnalysisMillis = 0;
+	private long numOfExpired = 0;
+	private final Object runningLock = new Object();
+	private volatile boolean isConsumerCancelled = false;
+	/** of the channel being consumed, or null */
+	private volatile AckTracker currentAckTracker;
+	private double averageServiceMillis = 0;
+	private long numOfProcessed = 0;
 
 	public AnalysisWorker(String workerId, String rpcQueueName,
 			File inputDataDir, File outputDataDir)
@@ -62,58 +136,196 @@ public class AnalysisWorker implements Runnable
 
 	public void init()
 	{
+		if (this.analyser == null) this.analyser = new AnalyserImpl();
+		if (this.retryHandler == null) this.retryHandler = new RetryHandler(
+				this.rpcQueueName);
+		if (this.connectionManager == null)
+		{
+			this.connectionManager = new AmqpConnectionManager();
+			this.connectionManager.init();
+		}
+		if (this.batchExecutor == null)
+		{
+			this.batchExecutor = Executors.newFixedThreadPool(
+					this.batchConcurrency, new ThreadFactory()
+					{
+						public Thread newThread(Runnable runnable)
+						{
+							Thread thread = new Thread(runnable, "batch-"
+									+ workerId);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			this.ownsBatchExecutor = true;
+		}
 		this.isRunning = true;
 	}
 
 	public void destroy()
 	{
-		this.isRunning = false;
+		synchronized (this.runningLock)
+		{
+			this.isRunning = false;
+			this.runningLock.notifyAll();
+		}
+		// the deliveries in hand still finish their batches
+		if (this.ownsBatchExecutor) this.batchExecutor.shutdown();
 	}
 
 	/**
-	 * Thread's run method. It waits for the message within a while loop
+	 * Thread's run method. It opens a channel and consumes messages in the
+	 * push or poll mode until the worker is destroyed. If the channel or its
+	 * connection is lost, it opens a new channel, declares the queues and
+	 * registers the consumer again, backing off while the broker is
+	 * unreachable.
 	 */
 	public void run()
 	{
-		Connection connection = null;
-		Channel channel = null;
+		int numOfFailures = 0;
+		while (this.isRunning)
+		{
+			Channel channel = null;
+			try
+			{
+				channel = this.connectionManager.createChannel();
+				watchChannel(channel);
+
+				channel.queueDeclare(rpcQueueName, DURABLE, NOT_EXCLUSIVE,
+						NOT_AUTO_DELETE, NO_ARGUMENT);
+				this.retryHandler.declareQueues(channel);
+				numOfFailures = 0;
+
+				if (this.pushMode) consumePushed(channel);
+				else
+					consumePolled(channel);
+				if (this.isRunning) throw new IOException(
+						"channel closed or consumer cancelled");
+				LOGGER.info("[worker " + this.workerId
+						+ "] exited the while loop");
+			}
+			catch (InterruptedException e)
+			{
+				LOGGER.info("[worker " + this.workerId + "] interrupted");
+				this.isRunning = false;
+			}
+			catch (IOException e)
+			{
+				recover(++numOfFailures, e);
+			}
+			catch (ShutdownSignalException e)
+			{
+				recover(++numOfFailures, e);
+			}
+			catch (ConsumerCancelledException e)
+			{
+				recover(++numOfFailures, e);
+			}
+			finally
+			{
+				closeChannel(channel);
+			}
+		}
+		LOGGER.info("[worker " + this.workerId
+				+ "] exiting thread's run() method");
+	}
+
+	/**
+	 * Waits before the next attempt to consume, unless destroyed meanwhile
+	 * 
+	 * @param numOfFailures
+	 * @param e
+	 */
+	private void recover(int numOfFailures, Exception e)
+	{
+		if (!this.isRunning) return;
+		long delay = this.connectionManager
+				.getReconnectDelayMillis(numOfFailures);
+		LOGGER.error("[worker " + this.workerId + "] " + e.getMessage()
+				+ "; reconnecting in " + delay + " ms");
 		try
 		{
-			ConnectionFactory factory = new ConnectionFactory();
-			factory.setHost("localhost");
+			synchronized (this.runningLock)
+			{
+				if (this.isRunning) this.runningLock.wait(delay);
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			this.isRunning = false;
+		}
+	}
 
-			connection = factory.newConnection();
-			channel = connection.createChannel();
+	/**
+	 * Wakes up consumePushed() when the channel is closed by the broker or a
+	 * connection failure
+	 * 
+	 * @param channel
+	 */
+	private void watchChannel(Channel channel)
+	{
+		channel.addShutdownListener(new ShutdownListener()
+		{
+			public void shutdownCompleted(ShutdownSignalException cause)
+			{
+				synchronized (runningLock)
+				{
+					runningLock.notifyAll();
+				}
+			}
+		});
+	}
 
-			channel.queueDeclare(rpcQueueName, DURABLE, NOT_EXCLUSIVE,
-					NOT_AUTO_DELETE, NO_ARGUMENT);
+	private void closeChannel(Channel channel)
+	{
+		if (channel == null || !channel.isOpen()) return;
+		try
+		{
+			channel.close();
+			LOGGER.info("[worker " + this.workerId + "] channel closed");
+		}
+		catch (Exception ignore)
+		{
+		}
+	}
 
-			channel.basicQos(1);
+	/**
+	 * Poll mode: it waits for the message within a while loop and sleeps after
+	 * each message. It waits at most POLL_TIMEOUT at a time, so that the loop
+	 * ends soon after destroy() without interrupting an analysis, and then
+	 * cancels the consumer.
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void consumePolled(Channel channel) throws IOException,
+			InterruptedException
+	{
+		channel.basicQos(1);
+		AckTracker ackTracker = createAckTracker(channel, 1);
 
-			// consumer is sometimes called "callback" by RabbitMQ
-			QueueingConsumer consumer = new QueueingConsumer(channel);
+		// consumer is sometimes called "callback" by RabbitMQ
+		QueueingConsumer consumer = new QueueingConsumer(channel);
 
-			channel.basicConsume(rpcQueueName, NOT_AUTO_ACKNOWLEDGE, consumer);
+		String consumerTag = channel.basicConsume(rpcQueueName,
+				NOT_AUTO_ACKNOWLEDGE, consumer);
 
-			LOGGER.info("[worker " + this.workerId + "] ready and waiting");
+		LOGGER.info("[worker " + this.workerId + "] ready and waiting");
 
+		try
+		{
 			while (this.isRunning)
 			{
-				QueueingConsumer.Delivery delivery = consumer.nextDelivery();
+				QueueingConsumer.Delivery delivery = consumer
+						.nextDelivery(POLL_TIMEOUT);
+				if (delivery == null) continue;
 				long deliveryTag = delivery.getEnvelope().getDeliveryTag();
-				try
-				{
-					processDelivery(channel, delivery);
-					// Notify the queue that it has processed the message
-					// successfully.
-					channel.basicAck(deliveryTag, NOT_MULTIPLE);
-				}
-				catch (MessageParserException ignore)
-				{
-					// This should be from a bug in the message parser code
-					ignore.printStackTrace();
-					channel.basicReject(deliveryTag, DO_REQUEUE);
-				}
+				ackTracker.delivered(deliveryTag);
+				// the tracker acknowledges the delivery once the reply is
+				// confirmed
+				handleDeliveryTask(ackTracker, delivery.getEnvelope(),
+						delivery.getProperties(), delivery.getBody());
 				try
 				{
 					Thread.sleep(SLEEP_DURATION);
@@ -124,34 +336,166 @@ public class AnalysisWorker implements Runnable
 					this.isRunning = false;
 				}
 			}
-			LOGGER.info("[worker " + this.workerId + "] exited the while loop");
+		}
+		finally
+		{
+			// a delivery not taken yet is redelivered to another worker
+			if (channel.isOpen()) channel.basicCancel(consumerTag);
+			ackTracker.close();
+			this.currentAckTracker = null;
+		}
+	}
+
+	/**
+	 * Push mode: RabbitMQ pushes deliveries to handleDelivery(), which passes
+	 * them to a bounded executor without any fixed sleep. The prefetch count
+	 * equals the executor's threads plus its queue capacity, so the executor
+	 * never has to reject a delivery. This thread stays blocked until destroy(),
+	 * an interrupt or the loss of the channel, then cancels the consumer and
+	 * lets the executor finish the deliveries in hand.
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void consumePushed(final Channel channel) throws IOException,
+			InterruptedException
+	{
+		final ExecutorService executor = new ThreadPoolExecutor(
+				this.concurrency, this.concurrency, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.concurrency),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		int prefetchCount = 2 * this.concurrency;
+		channel.basicQos(prefetchCount);
+		final AckTracker ackTracker = createAckTracker(channel,
+				prefetchCount);
+
+		this.isConsumerCancelled = false;
+		DefaultConsumer consumer = new DefaultConsumer(channel)
+		{
+			@Override
+			public void handleCancel(String consumerTag)
+			{
+				// e.g. the queue has been deleted
+				synchronized (runningLock)
+				{
+					isConsumerCancelled = true;
+					runningLock.notifyAll();
+				}
+			}
+
+			@Override
+			public void handleDelivery(String consumerTag,
+					final Envelope envelope, final BasicProperties properties,
+					final byte[] body) throws IOException
+			{
+				// in the order of delivery, before any task can finish
+				ackTracker.delivered(envelope.getDeliveryTag());
+				executor.execute(new Runnable()
+				{
+					public void run()
+					{
+						handleDeliveryTask(ackTracker, envelope, properties,
+								body);
+					}
+				});
+			}
+		};
+		String consumerTag = channel.basicConsume(rpcQueueName,
+				NOT_AUTO_ACKNOWLEDGE, consumer);
+
+		LOGGER.info("[worker " + this.workerId + "] ready and waiting ("
+				+ this.concurrency + " threads)");
+
+		try
+		{
+			synchronized (this.runningLock)
+			{
+				while (this.isRunning && channel.isOpen()
+						&& !this.isConsumerCancelled)
+					this.runningLock.wait();
+			}
 		}
 		catch (InterruptedException e)
 		{
 			LOGGER.info("[worker " + this.workerId + "] interrupted");
+			this.isRunning = false;
+		}
+		finally
+		{
+			if (channel.isOpen() && !this.isConsumerCancelled) channel
+					.basicCancel(consumerTag);
+			executor.shutdown();
+			executor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+			ackTracker.close();
+			this.currentAckTracker = null;
+		}
+	}
+
+	/**
+	 * Processes one delivery in either mode. A delivery that fails with
+	 * anything but an AnalysisException, which is replied as an ERROR, is
+	 * passed to the RetryHandler instead of being requeued.
+	 * 
+	 * @param ackTracker
+	 * @param envelope
+	 * @param properties
+	 * @param body
+	 */
+	private void handleDeliveryTask(AckTracker ackTracker, Envelope envelope,
+			BasicProperties properties, byte[] body)
+	{
+		try
+		{
+			try
+			{
+				processDelivery(ackTracker, envelope, properties, body);
+			}
+			catch (MessageParserException e)
+			{
+				// a malformed message, or a bug in the message parser code
+				LOGGER.error("[worker " + this.workerId + "] "
+						+ e.getMessage());
+				this.retryHandler.retry(ackTracker, envelope, properties,
+						body, "MessageParserException: " + e.getMessage());
+			}
+			catch (RuntimeException e)
+			{
+				LOGGER.error("[worker " + this.workerId + "] ", e);
+				this.retryHandler.retry(ackTracker, envelope, properties,
+						body, e.toString());
+			}
 		}
 		catch (IOException e)
 		{
+			// neither the reply nor the retry is published; left in progress,
+			// the delivery would hold back the acks of all later ones
 			LOGGER.error("[worker " + this.workerId + "] IOException");
 			LOGGER.error(e.getMessage());
+			requeue(ackTracker, envelope.getDeliveryTag());
 		}
-		finally
+	}
+
+	/**
+	 * Gives a delivery back to the broker, e.g. after its reply can't be
+	 * published. If even that fails, the channel is broken and the broker
+	 * redelivers it when the channel is closed.
+	 * 
+	 * @param ackTracker
+	 * @param deliveryTag
+	 */
+	private void requeue(AckTracker ackTracker, long deliveryTag)
+	{
+		try
 		{
-			if (connection != null)
-			{
-				try
-				{
-					connection.close();
-					LOGGER.info("[worker " + this.workerId
-							+ "] connection closed");
-				}
-				catch (Exception ignore)
-				{
-				}
-			}
+			ackTracker.reject(deliveryTag, true);
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("[worker " + this.workerId + "] can't requeue "
+					+ deliveryTag + ": " + e.getMessage());
 		}
-		LOGGER.info("[worker " + this.workerId
-				+ "] exiting thread's run() method");
 	}
 
 	/**
@@ -160,56 +504,370 @@ public class AnalysisWorker implements Runnable
 	 * re-posts the result back into the channel. The reply is recognized by the
 	 * correlationId.
 	 * 
-	 * @param channel
-	 * @param delivery
+	 * @param ackTracker
+	 *            publishes the reply and acknowledges the delivery
+	 * @param envelope
+	 * @param props
+	 * @param body
 	 * @throws IOException
 	 * @throws MessageParserException
 	 */
-	private void processDelivery(Channel channel,
-			QueueingConsumer.Delivery delivery) throws IOException, MessageParserException
-			
+	private void processDelivery(AckTracker ackTracker, Envelope envelope,
+			BasicProperties props, byte[] body) throws IOException,
+			MessageParserException
 	{
-		BasicProperties props = delivery.getProperties();
+		long startTime = System.currentTimeMillis();
 		String contentType = props.getContentType();
+		// the reply is encoded in the same content type as the request
 		BasicProperties replyProps = new BasicProperties.Builder()
-				.correlationId(props.getCorrelationId()).build();
+				.correlationId(props.getCorrelationId())
+				.contentType(contentType).build();
+
+		AnalysisMessageParser parser = this.parser;
+		if (!parser.isSupported(contentType))
+		{
+			// no reply can be encoded, and another attempt would not help
+			this.retryHandler.deadLetter(ackTracker, envelope, props, body,
+					"unknown contentType: " + contentType);
+			return;
+		}
 
-		AnalysisMessageParser parser = new AnalysisMessageParserJackson();
+		long deadline = getDeadline(props, startTime);
+		if (AnalysisBatchRequest.MESSAGE_TYPE.equals(props.getType()))
+		{
+			processBatch(ackTracker, envelope, props, body, deadline);
+			return;
+		}
 
 		AnalysisRequest request = null;
 		Analyser analyser = null;
 		AnalysisReply reply = null;
-		String response = null;
+		byte[] response = null;
 		try
 		{
-			String message = new String(delivery.getBody(), "UTF-8");
-			LOGGER.debug("[worker " + this.workerId + "] message: " + message);
-			
-			request = parser.deserializeRequest(contentType, message);
+			if (LOGGER.isDebugEnabled()) LOGGER.debug("[worker "
+					+ this.workerId + "] message: " + new String(body, "UTF-8"));
+
+			request = parser.deserializeRequest(contentType, body);
+			request.setDeadline(earliest(request.getDeadline(), deadline));
 
 			String reqId = request.getRequestId().toString();
 			String analysisName = request.getAnalysisName();
 			LOGGER.info("[worker " + this.workerId + "] " + reqId + ": "
 					+ analysisName);
+			checkDeadline(request);
 
-			analyser = new AnalyserImpl();
+			analyser = this.analyser;
 
 			reply = analyser.analyse(request, inputDataDir,
 					outputDataDir);
 
-			response = parser.serializeReply(contentType, reply);			
+			response = parser.serializeReplyAsBytes(contentType, reply);
 		}
 		catch (AnalysisException e)
 		{
 			String eMsg = e.getMessage();
 			LOGGER.warn("[worker " + this.workerId + "] ERROR: " + eMsg);
 			reply = createReplyFromException(request, e);
-			response = parser.serializeReply(contentType, reply);
+			response = parser.serializeReplyAsBytes(contentType, reply);
 		}
 		
-		channel.basicPublish(EXCHANGE, props.getReplyTo(), replyProps,
-				response.getBytes("UTF-8"));
-		channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+		ackTracker.publish(EXCHANGE, props.getReplyTo(), replyProps,
+				response, envelope.getDeliveryTag());
+		recordServiceTime(System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Analyses the requests of a batch in parallel on the batch executor and
+	 * replies to them as the batch asks. A failed request gets an ERROR reply
+	 * and does not fail the others.
+	 * 
+	 * @param ackTracker
+	 * @param envelope
+	 * @param props
+	 * @param body
+	 * @throws IOException
+	 * @throws MessageParserException
+	 */
+	private void processBatch(final AckTracker ackTracker,
+			final Envelope envelope, final BasicProperties props, byte[] body,
+			long deadline) throws IOException, MessageParserException
+	{
+		final AnalysisBatchRequest batch = this.parser.deserializeBatchRequest(
+				props.getContentType(), body);
+		final List<AnalysisRequest> requests = batch.getRequests() == null ? Collections
+				.<AnalysisRequest> emptyList() : batch.getRequests();
+		final int size = requests.size();
+		for (AnalysisRequest request : requests)
+		{
+			request.setDeadline(earliest(request.getDeadline(), deadline));
+		}
+		// an empty batch is answered with an empty aggregated reply
+		final boolean isStream = batch.getReplyMode() == ReplyMode.STREAM
+				&& size > 0;
+		LOGGER.info("[worker " + this.workerId + "] batch "
+				+ batch.getBatchId() + ": " + size + " requests, "
+				+ batch.getReplyMode());
+		if (isStream) ackTracker.expect(envelope.getDeliveryTag(), size);
+
+		List<CompletableFuture<AnalysisReply>> futures = new ArrayList<CompletableFuture<AnalysisReply>>(
+				size);
+		for (int i = 0; i < size; i++)
+		{
+			final int index = i;
+			futures.add(CompletableFuture.supplyAsync(
+					new Supplier<AnalysisReply>()
+					{
+						public AnalysisReply get()
+						{
+							AnalysisReply reply = analyseItem(requests
+									.get(index));
+							if (isStream) publishBatchReply(ackTracker,
+									envelope, props, batch, index, size, reply);
+							return reply;
+						}
+					}, this.batchExecutor));
+		}
+		List<AnalysisReply> replies = new ArrayList<AnalysisReply>(size);
+		for (CompletableFuture<AnalysisReply> future : futures)
+		{
+			replies.add(future.join());
+		}
+		if (isStream) return;
+
+		AnalysisReply reply = AnalysisBatchRequest.aggregate(
+				batch.getBatchId(), replies);
+		ackTracker.publish(EXCHANGE, props.getReplyTo(),
+				createBatchReplyProps(props, batch, null, size),
+				this.parser.serializeReplyAsBytes(props.getContentType(),
+						reply), envelope.getDeliveryTag());
+	}
+
+	/**
+	 * @param request
+	 * @return the reply, or an ERROR reply if the analysis failed
+	 */
+	private AnalysisReply analyseItem(AnalysisRequest request)
+	{
+		long startTime = System.currentTimeMillis();
+		try
+		{
+			checkDeadline(request);
+			return this.analyser.analyse(request, inputDataDir, outputDataDir);
+		}
+		catch (AnalysisException e)
+		{
+			LOGGER.warn("[worker " + this.workerId + "] ERROR: "
+					+ e.getMessage());
+			return createReplyFromException(request, e);
+		}
+		catch (RuntimeException e)
+		{
+			LOGGER.error("[worker " + this.workerId + "] ", e);
+			return createReplyFromException(request, e);
+		}
+		finally
+		{
+			recordServiceTime(System.currentTimeMillis() - startTime);
+		}
+	}
+
+	/**
+	 * Publishes the reply to one request of a STREAM batch
+	 */
+	private void publishBatchReply(AckTracker ackTracker, Envelope envelope,
+			BasicProperties props, AnalysisBatchRequest batch, int index,
+			int size, AnalysisReply reply)
+	{
+		String contentType = props.getContentType();
+		try
+		{
+			byte[] response;
+			try
+			{
+				response = this.parser.serializeReplyAsBytes(contentType,
+						reply);
+			}
+			catch (MessageParserException e)
+			{
+				response = this.parser.serializeReplyAsBytes(contentType,
+						createReplyFromException(batch.getRequests()
+								.get(index), e));
+			}
+			ackTracker.publish(EXCHANGE, props.getReplyTo(),
+					createBatchReplyProps(props, batch, index, size),
+					response, envelope.getDeliveryTag());
+		}
+		catch (Exception e)
+		{
+			// its last reply would never be confirmed; the whole batch is
+			// requeued instead, and the replies still to come are ignored
+			LOGGER.error("[worker " + this.workerId + "] can't reply to "
+					+ index + " of batch " + batch.getBatchId() + ": "
+					+ e.getMessage());
+			requeue(ackTracker, envelope.getDeliveryTag());
+		}
+	}
+
+	private static BasicProperties createBatchReplyProps(
+			BasicProperties props, AnalysisBatchRequest batch, Integer index,
+			int size)
+	{
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(AnalysisBatchRequest.BATCH_ID_HEADER,
+				String.valueOf(batch.getBatchId()));
+		headers.put(AnalysisBatchRequest.BATCH_SIZE_HEADER, size);
+		if (index != null) headers.put(AnalysisBatchRequest.BATCH_INDEX_HEADER,
+				index);
+		return new BasicProperties.Builder()
+				.correlationId(props.getCorrelationId())
+				.contentType(props.getContentType()).headers(headers).build();
+	}
+
+	/**
+	 * @param props
+	 * @param deliveryTime
+	 * @return the earliest deadline of the delivery, or 0 if none
+	 */
+	long getDeadline(BasicProperties props, long deliveryTime)
+	{
+		long deadline = 0;
+		if (this.maxAnalysisMillis > 0) deadline = deliveryTime
+				+ this.maxAnalysisMillis;
+
+		Map<String, Object> headers = props.getHeaders();
+		Object value = headers == null ? null : headers.get(DEADLINE_HEADER);
+		if (value != null)
+		{
+			// a number, or a string from some clients
+			try
+			{
+				deadline = earliest(deadline, value instanceof Number ? ((Number) value)
+						.longValue() : Long.parseLong(value.toString().trim()));
+			}
+			catch (NumberFormatException e)
+			{
+				LOGGER.warn("[worker " + this.workerId + "] invalid "
+						+ DEADLINE_HEADER + ": " + value);
+			}
+		}
+
+		String expiration = props.getExpiration();
+		if (expiration != null)
+		{
+			try
+			{
+				long sentTime = props.getTimestamp() == null ? deliveryTime
+						: props.getTimestamp().getTime();
+				deadline = earliest(deadline,
+						sentTime + Long.parseLong(expiration.trim()));
+			}
+			catch (NumberFormatException e)
+			{
+				LOGGER.warn("[worker " + this.workerId
+						+ "] invalid expiration: " + expiration);
+			}
+		}
+		return deadline;
+	}
+
+	/**
+	 * @param deadline1
+	 *            0 for none
+	 * @param deadline2
+	 *            0 for none
+	 * @return the earlier deadline, 0 if neither
+	 */
+	private static long earliest(long deadline1, long deadline2)
+	{
+		if (deadline1 <= 0) return Math.max(0, deadline2);
+		if (deadline2 <= 0) return deadline1;
+		return Math.min(deadline1, deadline2);
+	}
+
+	/**
+	 * Skips the analysis of a request whose client has given up already
+	 * 
+	 * @param request
+	 * @throws AnalysisTimeoutException
+	 */
+	private void checkDeadline(AnalysisRequest request)
+			throws AnalysisTimeoutException
+	{
+		long deadline = request.getDeadline();
+		if (deadline <= 0 || System.currentTimeMillis() < deadline) return;
+		synchronized (this)
+		{
+			this.numOfExpired++;
+		}
+		throw new AnalysisTimeoutException("deadline passed "
+				+ (System.currentTimeMillis() - deadline)
+				+ " ms before the analysis");
+	}
+
+	/**
+	 * @param channel
+	 * @param prefetchCount
+	 * @return a started tracker whose batches fit into the prefetch window
+	 * @throws IOException
+	 */
+	private AckTracker createAckTracker(Channel channel, int prefetchCount)
+			throws IOException
+	{
+		int batchSize = Math.max(1,
+				Math.min(this.ackBatchSize, prefetchCount / 2));
+		AckTracker ackTracker = new AckTracker(channel, this.confirmEnabled,
+				batchSize, this.ackFlushIntervalMillis);
+		ackTracker.start();
+		this.currentAckTracker = ackTracker;
+		return ackTracker;
+	}
+
+	/**
+	 * Updates the exponentially weighted average of the service time
+	 * 
+	 * @param serviceMillis
+	 */
+	private synchronized void recordServiceTime(long serviceMillis)
+	{
+		if (this.numOfProcessed == 0) this.averageServiceMillis = serviceMillis;
+		else
+			this.averageServiceMillis += SERVICE_TIME_WEIGHT
+					* (serviceMillis - this.averageServiceMillis);
+		this.numOfProcessed++;
+	}
+
+	/**
+	 * @return the recent average time to process one delivery, or 0 if none
+	 *         has been processed yet
+	 */
+	public synchronized double getAverageServiceMillis()
+	{
+		return averageServiceMillis;
+	}
+
+	/**
+	 * @return the deliveries taken from the queue and not acknowledged yet,
+	 *         i.e. in analysis, waiting in the executor or for the
+	 *         confirmation of their replies
+	 */
+	public int getNumOfInFlight()
+	{
+		AckTracker ackTracker = this.currentAckTracker;
+		return ackTracker == null ? 0 : ackTracker.getNumOfInProgress();
+	}
+
+	public synchronized long getNumOfProcessed()
+	{
+		return numOfProcessed;
+	}
+
+	/**
+	 * @return the requests skipped because their deadlines had passed
+	 */
+	public synchronized long getNumOfExpired()
+	{
+		return numOfExpired;
 	}
 
 	/**
@@ -225,7 +883,8 @@ public class AnalysisWorker implements Runnable
 			Exception e)
 	{
 		UUID RequestId = request.getRequestId();
-		Status status = Status.ERROR;
+		Status status = e instanceof AnalysisTimeoutException ? Status.TIMEOUT
+				: Status.ERROR;
 		String analysisName = request.getAnalysisName();
 		Map<String, Object> analysisResults = new HashMap<String, Object>();
 		analysisResults.put("analysisName", analysisName);
@@ -239,4 +898,129 @@ public class AnalysisWorker implements Runnable
 	{
 		return workerId;
 	}
+
+	public boolean isPushMode()
+	{
+		return pushMode;
+	}
+
+	public void setPushMode(boolean pushMode)
+	{
+		this.pushMode = pushMode;
+	}
+
+	public int getConcurrency()
+	{
+		return concurrency;
+	}
+
+	public void setConcurrency(int concurrency)
+	{
+		this.concurrency = concurrency;
+	}
+
+	public Analyser getAnalyser()
+	{
+		return analyser;
+	}
+
+	public void setAnalyser(Analyser analyser)
+	{
+		this.analyser = analyser;
+	}
+
+	public boolean isConfirmEnabled()
+	{
+		return confirmEnabled;
+	}
+
+	public void setConfirmEnabled(boolean confirmEnabled)
+	{
+		this.confirmEnabled = confirmEnabled;
+	}
+
+	public int getAckBatchSize()
+	{
+		return ackBatchSize;
+	}
+
+	public void setAckBatchSize(int ackBatchSize)
+	{
+		this.ackBatchSize = ackBatchSize;
+	}
+
+	public long getAckFlushIntervalMillis()
+	{
+		return ackFlushIntervalMillis;
+	}
+
+	public void setAckFlushIntervalMillis(long ackFlushIntervalMillis)
+	{
+		this.ackFlushIntervalMillis = ackFlushIntervalMillis;
+	}
+
+	public ExecutorService getBatchExecutor()
+	{
+		return batchExecutor;
+	}
+
+	/**
+	 * @param batchExecutor
+	 *            shared by the workers; its owner shuts it down
+	 */
+	public void setBatchExecutor(ExecutorService batchExecutor)
+	{
+		this.batchExecutor = batchExecutor;
+		this.ownsBatchExecutor = false;
+	}
+
+	public int getBatchConcurrency()
+	{
+		return batchConcurrency;
+	}
+
+	public void setBatchConcurrency(int batchConcurrency)
+	{
+		this.batchConcurrency = batchConcurrency;
+	}
+
+	public long getMaxAnalysisMillis()
+	{
+		return maxAnalysisMillis;
+	}
+
+	public void setMaxAnalysisMillis(long maxAnalysisMillis)
+	{
+		this.maxAnalysisMillis = maxAnalysisMillis;
+	}
+
+	public AmqpConnectionManager getConnectionManager()
+	{
+		return connectionManager;
+	}
+
+	public void setConnectionManager(AmqpConnectionManager connectionManager)
+	{
+		this.connectionManager = connectionManager;
+	}
+
+	public RetryHandler getRetryHandler()
+	{
+		return retryHandler;
+	}
+
+	public void setRetryHandler(RetryHandler retryHandler)
+	{
+		this.retryHandler = retryHandler;
+	}
+
+	public AnalysisMessageParser getParser()
+	{
+		return parser;
+	}
+
+	public void setParser(AnalysisMessageParser parser)
+	{
+		this.parser = parser;
+	}
 }
\ No newline at end of file
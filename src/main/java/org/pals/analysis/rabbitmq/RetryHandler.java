@@ -0,0 +1,270 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Retries failed deliveries with exponential backoff and dead-letters them
+ * after maxAttempts attempts, instead of requeueing them at the head of the
+ * request queue forever.
+ *
+ * A failed delivery is republished with its attempt count in the
+ * x-pals-attempts header to a retry queue, which has no consumer. The retry
+ * queue's message TTL is the backoff delay, and when it expires the broker
+ * dead-letters the message back into the request queue. There is one retry
+ * queue per delay, e.g. pals_analysis.retry.4000, because a queue only
+ * expires the message at its head. After the last attempt the message goes
+ * to the dead-letter queue, e.g. pals_analysis.dead, with the failure reason
+ * in the x-pals-failure-reason header.
+ *
+ * The original delivery is acknowledged only when the broker has confirmed
+ * the republished message. One instance is shared by all workers, and it
+ * counts the retries and dead letters for monitoring.
+ *
+ * @author Yoichi
+ *
+ */
+public class RetryHandler
+{
+	private final static Logger LOGGER = Logger.getLogger(RetryHandler.class
+			.getName());
+
+	public static final String ATTEMPTS_HEADER = "x-pals-attempts";
+	public static final String FAILURE_REASON_HEADER = "x-pals-failure-reason";
+	public static final String FAILED_AT_HEADER = "x-pals-failed-at";
+	private static final String EXCHANGE = "";
+	private static final boolean DURABLE = true;
+	private static final boolean NOT_EXCLUSIVE = false;
+	private static final boolean NOT_AUTO_DELETE = false;
+
+	private final String rpcQueueName;
+	private int maxAttempts = 5;
+	private long initialDelayMillis = 1000;
+	private double backoffMultiplier = 4;
+	private long maxDelayMillis = 300000;
+
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicLong numOfRetries = new AtomicLong();
+	private final AtomicLong numOfDeadLettered = new AtomicLong();
+
+	public RetryHandler(String rpcQueueName)
+	{
+		this.rpcQueueName = rpcQueueName;
+	}
+
+	/**
+	 * Declares the retry queues and the dead-letter queue. It is idempotent,
+	 * so every worker calls it on its own channel.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void declareQueues(Channel channel) throws IOException
+	{
+		for (int attempt = 1; attempt < this.maxAttempts; attempt++)
+		{
+			long delay = getDelayMillis(attempt);
+			Map<String, Object> arguments = new HashMap<String, Object>();
+			arguments.put("x-message-ttl", delay);
+			arguments.put("x-dead-letter-exchange", EXCHANGE);
+			arguments.put("x-dead-letter-routing-key", this.rpcQueueName);
+			channel.queueDeclare(getRetryQueueName(delay), DURABLE,
+					NOT_EXCLUSIVE, NOT_AUTO_DELETE, arguments);
+		}
+		channel.queueDeclare(getDeadLetterQueueName(), DURABLE, NOT_EXCLUSIVE,
+				NOT_AUTO_DELETE, null);
+	}
+
+	/**
+	 * Schedules another attempt of a failed delivery, or dead-letters it if
+	 * it has had maxAttempts attempts
+	 *
+	 * @param ackTracker
+	 *            acknowledges the delivery when the broker has the copy
+	 * @param envelope
+	 * @param props
+	 * @param body
+	 * @param reason
+	 * @throws IOException
+	 */
+	public void retry(AckTracker ackTracker, Envelope envelope,
+			BasicProperties props, byte[] body, String reason)
+			throws IOException
+	{
+		int attempts = getAttempts(props) + 1;
+		if (attempts >= this.maxAttempts)
+		{
+			deadLetter(ackTracker, envelope, props, body, reason);
+			return;
+		}
+		long delay = getDelayMillis(attempts);
+		LOGGER.warn("attempt " + attempts + " of delivery "
+				+ props.getCorrelationId() + " failed (" + reason
+				+ "); retrying in " + delay + " ms");
+		Map<String, Object> headers = copyHeaders(props);
+		headers.put(ATTEMPTS_HEADER, attempts);
+		ackTracker.publish(EXCHANGE, getRetryQueueName(delay), props.builder()
+				.headers(headers).build(), body, envelope.getDeliveryTag());
+		this.numOfRetries.incrementAndGet();
+	}
+
+	/**
+	 * Moves a delivery to the dead-letter queue without any further attempt
+	 *
+	 * @param ackTracker
+	 * @param envelope
+	 * @param props
+	 * @param body
+	 * @param reason
+	 * @throws IOException
+	 */
+	public void deadLetter(AckTracker ackTracker, Envelope envelope,
+			BasicProperties props, byte[] body, String reason)
+			throws IOException
+	{
+		LOGGER.error("dead-lettering delivery " + props.getCorrelationId()
+				+ ": " + reason);
+		Map<String, Object> headers = copyHeaders(props);
+		headers.put(ATTEMPTS_HEADER, getAttempts(props) + 1);
+		headers.put(FAILURE_REASON_HEADER, String.valueOf(reason));
+		headers.put(FAILED_AT_HEADER, System.currentTimeMillis());
+		ackTracker.publish(EXCHANGE, getDeadLetterQueueName(), props.builder()
+				.headers(headers).build(), body, envelope.getDeliveryTag());
+		this.numOfDeadLettered.incrementAndGet();
+	}
+
+	/**
+	 * @param attempt
+	 *            the number of the failed attempt, from 1
+	 * @return the delay before the next attempt
+	 */
+	long getDelayMillis(int attempt)
+	{
+		double delay = this.initialDelayMillis
+				* Math.pow(this.backoffMultiplier, attempt - 1);
+		return (long) Math.min(delay, this.maxDelayMillis);
+	}
+
+	String getRetryQueueName(long delayMillis)
+	{
+		return this.rpcQueueName + ".retry." + delayMillis;
+	}
+
+	public String getDeadLetterQueueName()
+	{
+		return this.rpcQueueName + ".dead";
+	}
+
+	/**
+	 * @param props
+	 * @return the number of attempts made before this delivery
+	 */
+	static int getAttempts(BasicProperties props)
+	{
+		Map<String, Object> headers = props.getHeaders();
+		if (headers == null) return 0;
+		Object attempts = headers.get(ATTEMPTS_HEADER);
+		if (attempts instanceof Number) return ((Number) attempts).intValue();
+		if (attempts == null) return 0;
+		try
+		{
+			return Integer.parseInt(attempts.toString());
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	private static Map<String, Object> copyHeaders(BasicProperties props)
+	{
+		Map<String, Object> headers = new HashMap<String, Object>();
+		if (props.getHeaders() != null) headers.putAll(props.getHeaders());
+		return headers;
+	}
+
+	public long getNumOfRetries()
+	{
+		return numOfRetries.get();
+	}
+
+	public long getNumOfDeadLettered()
+	{
+		return numOfDeadLettered.get();
+	}
+
+	/**
+	 * @return retries per minute since the start
+	 */
+	public double getRetryRate()
+	{
+		return perMinute(this.numOfRetries.get());
+	}
+
+	/**
+	 * @return dead letters per minute since the start
+	 */
+	public double getDeadLetterRate()
+	{
+		return perMinute(this.numOfDeadLettered.get());
+	}
+
+	private double perMinute(long count)
+	{
+		long elapsed = Math.max(1, System.currentTimeMillis() - this.startTime);
+		return count * 60000.0 / elapsed;
+	}
+
+	public String getRpcQueueName()
+	{
+		return rpcQueueName;
+	}
+
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts)
+	{
+		this.maxAttempts = maxAttempts;
+	}
+
+	public long getInitialDelayMillis()
+	{
+		return initialDelayMillis;
+	}
+
+	public void setInitialDelayMillis(long initialDelayMillis)
+	{
+		this.initialDelayMillis = initialDelayMillis;
+	}
+
+	public double getBackoffMultiplier()
+	{
+		return backoffMultiplier;
+	}
+
+	public void setBackoffMultiplier(double backoffMultiplier)
+	{
+		this.backoffMultiplier = backoffMultiplier;
+	}
+
+	public long getMaxDelayMillis()
+	{
+		return maxDelayMillis;
+	}
+
+	public void setMaxDelayMillis(long maxDelayMillis)
+	{
+		this.maxDelayMillis = maxDelayMillis;
+	}
+}
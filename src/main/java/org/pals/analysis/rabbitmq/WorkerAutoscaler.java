@@ -0,0 +1,306 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.handler.dao.PalsRserveEnginePool;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Grows and shrinks the workers of an AnalysisServlet between minWorkers and
+ * maxWorkers.
+ *
+ * Every intervalMillis it reads the number of ready messages in the request
+ * queue with a passive queueDeclare, adds the messages the workers have taken
+ * and not acknowledged yet, which the queue no longer counts as ready, and
+ * estimates how many workers are needed to process them within
+ * targetLatencyMillis from the workers' recent average service time. So a
+ * busy pool is not shrunk just because the workers have prefetched the queue
+ * empty. It only grows while the Rserve pool has spare engines, since
+ * more workers than R sessions only wait for the pool. It shrinks one worker
+ * at a time after the estimate has been lower than the current number for
+ * shrinkAfterChecks checks in a row, and the stopped worker finishes its
+ * deliveries in hand before it closes.
+ *
+ * @author Yoichi
+ *
+ */
+public class WorkerAutoscaler implements Runnable
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(WorkerAutoscaler.class.getName());
+
+	private AnalysisServlet servlet;
+	private PalsRserveEnginePool enginePool;
+	private String rpcQueueName = "pals_analysis";
+	private int minWorkers = 1;
+	private int maxWorkers = 8;
+	private long intervalMillis = 10000;
+	private long targetLatencyMillis = 60000;
+	private int shrinkAfterChecks = 3;
+
+	private ScheduledExecutorService scheduler;
+	private Channel channel;
+	private int numOfLowChecks = 0;
+
+	/**
+	 * For the applicationContext.xml; the servlet and the engine pool are set
+	 * as properties
+	 */
+	public WorkerAutoscaler()
+	{
+	}
+
+	public WorkerAutoscaler(AnalysisServlet servlet,
+			PalsRserveEnginePool enginePool)
+	{
+		this.servlet = servlet;
+		this.enginePool = enginePool;
+	}
+
+	public void start()
+	{
+		this.scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory()
+				{
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "autoscaler");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.scheduler.scheduleWithFixedDelay(this, this.intervalMillis,
+				this.intervalMillis, TimeUnit.MILLISECONDS);
+		LOGGER.info("autoscaler started: " + this.minWorkers + ".."
+				+ this.maxWorkers + " workers");
+	}
+
+	public void stop()
+	{
+		if (this.scheduler != null) this.scheduler.shutdownNow();
+		closeChannel();
+	}
+
+	/**
+	 * One check
+	 */
+	public void run()
+	{
+		try
+		{
+			int queueDepth = getQueueDepth();
+			int numOfInFlight = this.servlet.getNumOfInFlight();
+			int numOfWorkers = this.servlet.getNumOfRunningWorkers();
+			int desired = computeDesiredWorkers(queueDepth, numOfInFlight,
+					numOfWorkers,
+					this.servlet.getAverageServiceMillis(),
+					this.servlet.getWorkerConcurrency(),
+					this.enginePool.getNumOfSpareEngines());
+
+			int next = nextNumOfWorkers(numOfWorkers, desired);
+			if (next > numOfWorkers)
+			{
+				LOGGER.info("queue depth " + queueDepth + ", in flight "
+						+ numOfInFlight + ": growing to " + next + " workers");
+				for (int i = numOfWorkers; i < next; i++)
+					this.servlet.startWorker();
+			}
+			else
+				if (next < numOfWorkers)
+				{
+					LOGGER.info("queue depth " + queueDepth + ", in flight "
+							+ numOfInFlight + ": shrinking to " + next
+							+ " workers");
+					this.servlet.stopWorker();
+				}
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("autoscaler can't read the queue depth: "
+					+ e.getMessage());
+			closeChannel();
+		}
+		catch (RuntimeException e)
+		{
+			// a scheduled task must not die
+			LOGGER.error("autoscaler", e);
+		}
+	}
+
+	/**
+	 * The scaling rule, without side effects
+	 *
+	 * @param queueDepth
+	 *            ready messages
+	 * @param numOfInFlight
+	 *            messages taken by the workers and not acknowledged yet
+	 * @param numOfWorkers
+	 *            current workers
+	 * @param averageServiceMillis
+	 *            0 if unknown
+	 * @param concurrency
+	 *            deliveries per worker
+	 * @param numOfSpareEngines
+	 *            Rserve engines that can be borrowed now
+	 * @return the number of workers wanted, within minWorkers and maxWorkers
+	 */
+	int computeDesiredWorkers(int queueDepth, int numOfInFlight,
+			int numOfWorkers, double averageServiceMillis, int concurrency,
+			int numOfSpareEngines)
+	{
+		int numOfMessages = queueDepth + numOfInFlight;
+		int desired;
+		if (numOfMessages == 0) desired = this.minWorkers;
+		else
+			if (averageServiceMillis <= 0) desired = numOfWorkers + 1;
+			else
+			{
+				double neededSlots = numOfMessages * averageServiceMillis
+						/ this.targetLatencyMillis;
+				desired = (int) Math.ceil(neededSlots / concurrency);
+			}
+
+		if (desired > numOfWorkers)
+		{
+			// no point in more workers than R sessions to run them
+			int affordable = numOfWorkers + numOfSpareEngines / concurrency;
+			desired = Math.min(desired, affordable);
+		}
+		desired = Math.max(desired, this.minWorkers);
+		desired = Math.min(desired, this.maxWorkers);
+		return desired;
+	}
+
+	/**
+	 * Grows to the desired number at once, but shrinks by one worker only
+	 * after shrinkAfterChecks checks in a row have wanted fewer
+	 *
+	 * @param numOfWorkers
+	 *            current workers
+	 * @param desired
+	 *            from computeDesiredWorkers()
+	 * @return the number of workers to have after this check
+	 */
+	int nextNumOfWorkers(int numOfWorkers, int desired)
+	{
+		if (desired >= numOfWorkers)
+		{
+			this.numOfLowChecks = 0;
+			return desired;
+		}
+		if (++this.numOfLowChecks < this.shrinkAfterChecks) return numOfWorkers;
+		this.numOfLowChecks = 0;
+		return numOfWorkers - 1;
+	}
+
+	private int getQueueDepth() throws IOException
+	{
+		if (this.channel == null || !this.channel.isOpen())
+		{
+			this.channel = this.servlet.getConnectionManager().createChannel();
+		}
+		return this.channel.queueDeclarePassive(this.rpcQueueName)
+				.getMessageCount();
+	}
+
+	private void closeChannel()
+	{
+		if (this.channel != null && this.channel.isOpen())
+		{
+			try
+			{
+				this.channel.close();
+			}
+			catch (Exception ignore)
+			{
+			}
+		}
+		this.channel = null;
+	}
+
+	public AnalysisServlet getServlet()
+	{
+		return servlet;
+	}
+
+	public void setServlet(AnalysisServlet servlet)
+	{
+		this.servlet = servlet;
+	}
+
+	public PalsRserveEnginePool getEnginePool()
+	{
+		return enginePool;
+	}
+
+	public void setEnginePool(PalsRserveEnginePool enginePool)
+	{
+		this.enginePool = enginePool;
+	}
+
+	public String getRpcQueueName()
+	{
+		return rpcQueueName;
+	}
+
+	public void setRpcQueueName(String rpcQueueName)
+	{
+		this.rpcQueueName = rpcQueueName;
+	}
+
+	public int getMinWorkers()
+	{
+		return minWorkers;
+	}
+
+	public void setMinWorkers(int minWorkers)
+	{
+		this.minWorkers = minWorkers;
+	}
+
+	public int getMaxWorkers()
+	{
+		return maxWorkers;
+	}
+
+	public void setMaxWorkers(int maxWorkers)
+	{
+		this.maxWorkers = maxWorkers;
+	}
+
+	public long getIntervalMillis()
+	{
+		return intervalMillis;
+	}
+
+	public void setIntervalMillis(long intervalMillis)
+	{
+		this.intervalMillis = intervalMillis;
+	}
+
+	public long getTargetLatencyMillis()
+	{
+		return targetLatencyMillis;
+	}
+
+	public void setTargetLatencyMillis(long targetLatencyMillis)
+	{
+		this.targetLatencyMillis = targetLatencyMillis;
+	}
+
+	public int getShrinkAfterChecks()
+	{
+		return shrinkAfterChecks;
+	}
+
+	public void setShrinkAfterChecks(int shrinkAfterChecks)
+	{
+		this.shrinkAfterChecks = shrinkAfterChecks;
+	}
+}
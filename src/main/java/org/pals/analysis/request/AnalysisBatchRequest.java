@@ -0,0 +1,103 @@
+package org.pals.analysis.request;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.pals.analysis.request.AnalysisReply.Status;
+
+/**
+ * Many AnalysisRequests sent as one message, e.g. the conversion of all sites
+ * of a data release. The message is told from a single request by its AMQP
+ * type property, MESSAGE_TYPE.
+ *
+ * The server analyses the requests in parallel. With AGGREGATE, it replies
+ * once, when all of them are done, with the per-request replies in the order
+ * of the requests (see aggregate()). With STREAM, it replies to each request
+ * as soon as it is done; every reply carries the batchId and the index of its
+ * request in the BATCH_ID_HEADER and BATCH_INDEX_HEADER headers.
+ *
+ * @author Yoichi
+ *
+ */
+public class AnalysisBatchRequest
+{
+	public static final String MESSAGE_TYPE = "AnalysisBatchRequest";
+	public static final String BATCH_ID_HEADER = "x-pals-batch-id";
+	public static final String BATCH_INDEX_HEADER = "x-pals-batch-index";
+	public static final String BATCH_SIZE_HEADER = "x-pals-batch-size";
+	/** key of the per-request replies in an aggregated reply */
+	public static final String REPLIES = "replies";
+
+	public static enum ReplyMode
+	{
+		AGGREGATE, STREAM
+	};
+
+	private UUID batchId;
+	private ReplyMode replyMode = ReplyMode.AGGREGATE;
+	private List<AnalysisRequest> requests;
+
+	public AnalysisBatchRequest()
+	{
+		this(new ArrayList<AnalysisRequest>(), ReplyMode.AGGREGATE);
+	}
+
+	public AnalysisBatchRequest(List<AnalysisRequest> requests,
+			ReplyMode replyMode)
+	{
+		this.batchId = UUID.randomUUID();
+		this.requests = requests;
+		this.replyMode = replyMode;
+	}
+
+	/**
+	 * Builds the single reply to an AGGREGATE batch. Its status is ERROR if any
+	 * of the replies is not NORMAL.
+	 *
+	 * @param batchId
+	 * @param replies
+	 *            in the order of the requests
+	 * @return
+	 */
+	public static AnalysisReply aggregate(UUID batchId,
+			List<AnalysisReply> replies)
+	{
+		Status status = Status.NORMAL;
+		for (AnalysisReply reply : replies)
+		{
+			if (reply == null || reply.getStatus() != Status.NORMAL)
+				status = Status.ERROR;
+		}
+		Map<String, Object> analysisResults = new HashMap<String, Object>();
+		analysisResults.put(REPLIES, replies);
+		return new AnalysisReply(batchId, status, analysisResults);
+	}
+
+	public UUID getBatchId()
+	{
+		return batchId;
+	}
+
+	public ReplyMode getReplyMode()
+	{
+		return replyMode;
+	}
+
+	public void setReplyMode(ReplyMode replyMode)
+	{
+		this.replyMode = replyMode;
+	}
+
+	public List<AnalysisRequest> getRequests()
+	{
+		return requests;
+	}
+
+	public void setRequests(List<AnalysisRequest> requests)
+	{
+		this.requests = requests;
+	}
+}
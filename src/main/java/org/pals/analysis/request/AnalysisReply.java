@@ -16,7 +16,7 @@ public class AnalysisReply
 
 	public static enum Status
 	{
-		NORMAL, ERROR
+		NORMAL, ERROR, TIMEOUT
 	};
 
 	public AnalysisReply()
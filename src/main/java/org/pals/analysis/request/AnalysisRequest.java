@@ -25,6 +25,8 @@ public class AnalysisRequest
 	private UUID requestId;
 	private String analysisName;
 	private Map<String, Object> analysisArguments;
+	/** epoch millis after which the reply is of no use; 0 if none */
+	private long deadline = 0;
 
 	public AnalysisRequest()
 	{
@@ -66,4 +68,14 @@ public class AnalysisRequest
 	{
 		return requestId;
 	}
+
+	public long getDeadline()
+	{
+		return deadline;
+	}
+
+	public void setDeadline(long deadline)
+	{
+		this.deadline = deadline;
+	}
 }
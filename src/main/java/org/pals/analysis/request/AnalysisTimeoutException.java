@@ -0,0 +1,23 @@
+package org.pals.analysis.request;
+
+/**
+ * The deadline of a request passed before its analysis finished. It is
+ * replied with the TIMEOUT status rather than ERROR.
+ * 
+ * @author Yoichi
+ * 
+ */
+public class AnalysisTimeoutException extends AnalysisException
+{
+	private static final long serialVersionUID = -6203937518360416145L;
+
+	public AnalysisTimeoutException(String msg)
+	{
+		super(msg);
+	}
+
+	public AnalysisTimeoutException(Throwable e, String msg)
+	{
+		super(e, msg);
+	}
+}
@@ -0,0 +1,314 @@
+package org.pals.analysis.analyser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pals.analysis.rabbitmq.AnalysisMessageParserJackson;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.pals.analysis.request.AnalysisTimeoutException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Concurrent identical requests are analysed once, and every caller gets the
+ * result with its own requestId.
+ *
+ * @author Yoichi
+ *
+ */
+public class CoalescingAnalyserTest
+{
+	private static final int NUM_OF_CALLERS = 8;
+	private static final File DATA_DIR = new File("/tmp");
+
+	@Test
+	public void testIdenticalRequestsShareOneAnalysis() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger numOfAnalyses = new AtomicInteger();
+		final CoalescingAnalyser analyser = new CoalescingAnalyser(
+				new Analyser()
+				{
+					public AnalysisReply analyse(AnalysisRequest request,
+							File inputDataDir, File outputDataDir)
+							throws AnalysisException
+					{
+						numOfAnalyses.incrementAndGet();
+						try
+						{
+							release.await(10, TimeUnit.SECONDS);
+						}
+						catch (InterruptedException e)
+						{
+							throw new AnalysisException(e);
+						}
+						Map<String, Object> results = new HashMap<String, Object>();
+						results.put("obsFlux", "file:///tmp/flux.nc");
+						return new AnalysisReply(request.getRequestId(),
+								AnalysisReply.Status.NORMAL, results);
+					}
+				});
+
+		ExecutorService callers = Executors.newFixedThreadPool(NUM_OF_CALLERS);
+		List<AnalysisRequest> requests = new ArrayList<AnalysisRequest>();
+		List<Future<AnalysisReply>> replies = new ArrayList<Future<AnalysisReply>>();
+		for (int i = 0; i < NUM_OF_CALLERS; i++)
+		{
+			// the same arguments in a different order
+			final AnalysisRequest request = i % 2 == 0 ? createRequest(
+					"{\"obsCSV\":\"file:///tmp/a.csv\",\"latitude\":\"1\"}")
+					: createRequest("{\"latitude\":\"1\",\"obsCSV\":\"file:///tmp/a.csv\"}");
+			requests.add(request);
+			replies.add(callers.submit(new Callable<AnalysisReply>()
+			{
+				public AnalysisReply call() throws Exception
+				{
+					return analyser.analyse(request, DATA_DIR, DATA_DIR);
+				}
+			}));
+		}
+		// let all the callers join before the analysis finishes
+		long deadline = System.currentTimeMillis() + 10000;
+		while (analyser.getNumOfCoalesced() < NUM_OF_CALLERS - 1)
+		{
+			Assert.assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		release.countDown();
+
+		for (int i = 0; i < NUM_OF_CALLERS; i++)
+		{
+			AnalysisReply reply = replies.get(i).get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(reply.getRequestId(), requests.get(i)
+					.getRequestId());
+			Assert.assertEquals(reply.getAnalysisResults().get("obsFlux"),
+					"file:///tmp/flux.nc");
+		}
+		Assert.assertEquals(numOfAnalyses.get(), 1);
+		Assert.assertEquals(analyser.getNumOfInFlight(), 0);
+		callers.shutdown();
+	}
+
+	@Test
+	public void testDifferentRequestsAreNotCoalesced() throws Exception
+	{
+		CoalescingAnalyser analyser = new CoalescingAnalyser(null);
+		AnalysisRequest a = createRequest("{\"obsCSV\":\"file:///tmp/a.csv\"}");
+		AnalysisRequest b = createRequest("{\"obsCSV\":\"file:///tmp/b.csv\"}");
+		Assert.assertNotEquals(analyser.createKey(a, DATA_DIR, DATA_DIR),
+				analyser.createKey(b, DATA_DIR, DATA_DIR));
+	}
+
+	@Test
+	public void testFollowerWaitsNoLongerThanItsDeadline() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		final CoalescingAnalyser analyser = new CoalescingAnalyser(
+				new Analyser()
+				{
+					public AnalysisReply analyse(AnalysisRequest request,
+							File inputDataDir, File outputDataDir)
+							throws AnalysisException
+					{
+						try
+						{
+							release.await(10, TimeUnit.SECONDS);
+						}
+						catch (InterruptedException e)
+						{
+							throw new AnalysisException(e);
+						}
+						// e.g. a handler with nothing to reply
+						return null;
+					}
+				});
+		ExecutorService callers = Executors.newFixedThreadPool(2);
+		try
+		{
+			final AnalysisRequest first = createRequest("{}");
+			Future<AnalysisReply> firstReply = callers
+					.submit(new Callable<AnalysisReply>()
+					{
+						public AnalysisReply call() throws Exception
+						{
+							return analyser.analyse(first, DATA_DIR, DATA_DIR);
+						}
+					});
+			awaitInFlight(analyser);
+
+			AnalysisRequest follower = createRequest("{}");
+			follower.setDeadline(System.currentTimeMillis() + 200);
+			long start = System.currentTimeMillis();
+			try
+			{
+				analyser.analyse(follower, DATA_DIR, DATA_DIR);
+				Assert.fail("the follower should time out");
+			}
+			catch (AnalysisTimeoutException expected)
+			{
+			}
+			Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+
+			// a null reply is passed on to the followers
+			Future<AnalysisReply> followerReply = callers
+					.submit(new Callable<AnalysisReply>()
+					{
+						public AnalysisReply call() throws Exception
+						{
+							return analyser.analyse(createRequest("{}"),
+									DATA_DIR, DATA_DIR);
+						}
+					});
+			long deadline = System.currentTimeMillis() + 10000;
+			while (analyser.getNumOfCoalesced() < 2)
+			{
+				Assert.assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			release.countDown();
+			Assert.assertNull(firstReply.get(10, TimeUnit.SECONDS));
+			Assert.assertNull(followerReply.get(10, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			release.countDown();
+			callers.shutdown();
+		}
+	}
+
+	@Test
+	public void testFollowerAnalysesAgainAfterEarlierTimeout()
+			throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger numOfAnalyses = new AtomicInteger();
+		final CoalescingAnalyser analyser = new CoalescingAnalyser(
+				new Analyser()
+				{
+					public AnalysisReply analyse(AnalysisRequest request,
+							File inputDataDir, File outputDataDir)
+							throws AnalysisException
+					{
+						if (numOfAnalyses.incrementAndGet() > 1) return new AnalysisReply(
+								request.getRequestId(),
+								AnalysisReply.Status.NORMAL, null);
+						try
+						{
+							release.await(10, TimeUnit.SECONDS);
+						}
+						catch (InterruptedException e)
+						{
+							throw new AnalysisException(e);
+						}
+						throw new AnalysisTimeoutException("deadline passed");
+					}
+				});
+		ExecutorService callers = Executors.newFixedThreadPool(2);
+		try
+		{
+			final AnalysisRequest first = createRequest("{}");
+			first.setDeadline(System.currentTimeMillis() + 60000);
+			Future<AnalysisReply> firstReply = callers
+					.submit(new Callable<AnalysisReply>()
+					{
+						public AnalysisReply call() throws Exception
+						{
+							return analyser.analyse(first, DATA_DIR, DATA_DIR);
+						}
+					});
+			awaitInFlight(analyser);
+
+			// joins, then outlives the deadline of the first request
+			final AnalysisRequest request = createRequest("{}");
+			Future<AnalysisReply> followerReply = callers
+					.submit(new Callable<AnalysisReply>()
+					{
+						public AnalysisReply call() throws Exception
+						{
+							return analyser.analyse(request, DATA_DIR,
+									DATA_DIR);
+						}
+					});
+			long deadline = System.currentTimeMillis() + 10000;
+			while (analyser.getNumOfCoalesced() < 1)
+			{
+				Assert.assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			release.countDown();
+			try
+			{
+				firstReply.get(10, TimeUnit.SECONDS);
+				Assert.fail("the first request should time out");
+			}
+			catch (ExecutionException e)
+			{
+				Assert.assertTrue(e.getCause() instanceof AnalysisTimeoutException);
+			}
+			AnalysisReply reply = followerReply.get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(reply.getStatus(), AnalysisReply.Status.NORMAL);
+			Assert.assertEquals(reply.getRequestId(), request.getRequestId());
+			Assert.assertEquals(numOfAnalyses.get(), 2);
+		}
+		finally
+		{
+			release.countDown();
+			callers.shutdown();
+		}
+	}
+
+	@Test
+	public void testOnlyCsvConversionsAreCoalescedByDefault()
+			throws Exception
+	{
+		CoalescingAnalyser analyser = new CoalescingAnalyser(null);
+		Assert.assertNotNull(analyser.createKey(createRequest("{}"), DATA_DIR,
+				DATA_DIR));
+		AnalysisRequest qcplot = new AnalysisRequest(AnalysisRequest.QCPLOT,
+				new HashMap<String, Object>());
+		Assert.assertNull(analyser.createKey(qcplot, DATA_DIR, DATA_DIR));
+
+		analyser.setAnalysisNames(null);
+		Assert.assertNotNull(analyser.createKey(qcplot, DATA_DIR, DATA_DIR));
+	}
+
+	private static void awaitInFlight(CoalescingAnalyser analyser)
+			throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (analyser.getNumOfInFlight() < 1)
+		{
+			Assert.assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * @param arguments
+	 *            in JSON
+	 * @return a CVS2NETCDF request with a new requestId
+	 */
+	private static AnalysisRequest createRequest(String arguments)
+			throws Exception
+	{
+		String json = "{\"requestId\":\"" + UUID.randomUUID()
+				+ "\",\"analysisName\":\"" + AnalysisRequest.CVS2NETCDF
+				+ "\",\"analysisArguments\":" + arguments + "}";
+		return AnalysisMessageParserJackson.INSTANCE.deserializeRequest(
+				AnalysisMessageParserJackson.CONTENT_TYPE_JSON, json);
+	}
+}
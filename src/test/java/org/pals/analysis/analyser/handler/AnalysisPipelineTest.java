@@ -0,0 +1,254 @@
+package org.pals.analysis.analyser.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisReply.Status;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * The stages overlap, a full queue holds the upstream stage back and a
+ * failing job is failed exactly once, with jobs that only record their
+ * stages.
+ *
+ * @author Yoichi
+ *
+ */
+public class AnalysisPipelineTest
+{
+	private static final long TIMEOUT_SECONDS = 10;
+
+	private AnalysisPipeline pipeline;
+	/** lets the computes of slow jobs finish */
+	private CountDownLatch release;
+
+	@BeforeMethod
+	public void setUp()
+	{
+		this.release = new CountDownLatch(1);
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		this.release.countDown();
+		if (this.pipeline != null) this.pipeline.destroy();
+	}
+
+	@Test
+	public void testComputeOverlapsFetchAndStore() throws Exception
+	{
+		createPipeline(1);
+		FakeJob previous = new FakeJob(null);
+		FakeJob slow = new FakeJob(null);
+		slow.isSlow = true;
+		FakeJob next = new FakeJob(null);
+		CompletableFuture<AnalysisReply> previousReply = this.pipeline
+				.submit(previous);
+		CompletableFuture<AnalysisReply> slowReply = this.pipeline.submit(slow);
+		CompletableFuture<AnalysisReply> nextReply = this.pipeline.submit(next);
+
+		// while the slow job is in R, the previous one is stored and the next
+		// one is fetched
+		Assert.assertTrue(slow.computing.await(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS));
+		Assert.assertEquals(previousReply.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.getStatus(), Status.NORMAL);
+		Assert.assertTrue(next.fetched.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		Assert.assertFalse(slowReply.isDone());
+		Assert.assertEquals(next.numOfComputes.get(), 0);
+
+		this.release.countDown();
+		Assert.assertEquals(slowReply.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.getStatus(), Status.NORMAL);
+		Assert.assertEquals(nextReply.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.getStatus(), Status.NORMAL);
+	}
+
+	@Test
+	public void testFullQueueBlocksUpstream() throws Exception
+	{
+		createPipeline(1);
+		List<FakeJob> jobs = new ArrayList<FakeJob>();
+		final List<CompletableFuture<AnalysisReply>> replies = new ArrayList<CompletableFuture<AnalysisReply>>();
+		// one in R, one in the compute queue, one fetched and waiting for
+		// the compute queue, and one in the fetch queue
+		for (int i = 0; i < 4; i++)
+		{
+			FakeJob job = new FakeJob(null);
+			job.isSlow = true;
+			jobs.add(job);
+			replies.add(this.pipeline.submit(job));
+		}
+		Assert.assertTrue(jobs.get(2).fetched.await(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS));
+
+		// so the next submit waits for room in the fetch queue
+		final FakeJob last = new FakeJob(null);
+		jobs.add(last);
+		ExecutorService submitter = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<CompletableFuture<AnalysisReply>> submitted = submitter
+					.submit(new Callable<CompletableFuture<AnalysisReply>>()
+					{
+						public CompletableFuture<AnalysisReply> call()
+						{
+							return pipeline.submit(last);
+						}
+					});
+			try
+			{
+				submitted.get(200, TimeUnit.MILLISECONDS);
+				Assert.fail("submit did not block");
+			}
+			catch (TimeoutException expected)
+			{
+			}
+			Assert.assertEquals(jobs.get(3).fetched.getCount(), 1);
+
+			this.release.countDown();
+			replies.add(submitted.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			submitter.shutdownNow();
+		}
+		for (CompletableFuture<AnalysisReply> reply : replies)
+			Assert.assertEquals(reply.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+					.getStatus(), Status.NORMAL);
+		// nothing was rejected
+		for (FakeJob job : jobs)
+			Assert.assertEquals(job.numOfFails.get(), 0);
+	}
+
+	@Test
+	public void testFailingStageFailsJobOnce() throws Exception
+	{
+		createPipeline(2);
+		String[] failingStages = { "fetch", "compute", "store",
+				"storeFuture" };
+		for (String failingStage : failingStages)
+		{
+			FakeJob job = new FakeJob(failingStage);
+			AnalysisReply reply = this.pipeline.submit(job).get(
+					TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			Assert.assertEquals(reply.getStatus(), Status.ERROR, failingStage);
+			Assert.assertEquals(job.numOfFails.get(), 1, failingStage);
+			Assert.assertEquals(job.failure.getMessage(), failingStage);
+		}
+		// a failed stage is the last one run
+		FakeJob job = new FakeJob("fetch");
+		this.pipeline.process(job);
+		Assert.assertEquals(job.numOfComputes.get(), 0);
+		Assert.assertEquals(job.numOfStores.get(), 0);
+	}
+
+	private void createPipeline(int queueCapacity)
+	{
+		this.pipeline = new AnalysisPipeline();
+		this.pipeline.setFetchThreads(1);
+		this.pipeline.setComputeThreads(1);
+		this.pipeline.setStoreThreads(1);
+		this.pipeline.setQueueCapacity(queueCapacity);
+		this.pipeline.init();
+	}
+
+	/**
+	 * Records its stages; a slow job computes until the test releases it
+	 */
+	private class FakeJob implements AnalysisPipeline.Job
+	{
+		private final String failingStage;
+		private final UUID requestId = UUID.randomUUID();
+		private volatile boolean isSlow = false;
+		private final CountDownLatch fetched = new CountDownLatch(1);
+		private final CountDownLatch computing = new CountDownLatch(1);
+		private final AtomicInteger numOfComputes = new AtomicInteger();
+		private final AtomicInteger numOfStores = new AtomicInteger();
+		private final AtomicInteger numOfFails = new AtomicInteger();
+		private volatile Exception failure;
+
+		/**
+		 * @param failingStage
+		 *            fetch, compute, store, storeFuture or null
+		 */
+		FakeJob(String failingStage)
+		{
+			this.failingStage = failingStage;
+		}
+
+		public void fetch() throws AnalysisException
+		{
+			if ("fetch".equals(this.failingStage)) throw new AnalysisException(
+					"fetch");
+			this.fetched.countDown();
+		}
+
+		public void compute() throws AnalysisException
+		{
+			this.numOfComputes.incrementAndGet();
+			this.computing.countDown();
+			if ("compute".equals(this.failingStage)) throw new AnalysisException(
+					"compute");
+			if (!this.isSlow) return;
+			try
+			{
+				release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				throw new AnalysisException(e);
+			}
+		}
+
+		public CompletableFuture<AnalysisReply> store()
+				throws AnalysisException
+		{
+			this.numOfStores.incrementAndGet();
+			if ("store".equals(this.failingStage)) throw new AnalysisException(
+					"store");
+			final CompletableFuture<AnalysisReply> future = new CompletableFuture<AnalysisReply>();
+			if ("storeFuture".equals(this.failingStage))
+			{
+				// an upload fails on another thread
+				new Thread(new Runnable()
+				{
+					public void run()
+					{
+						future.completeExceptionally(new AnalysisException(
+								"storeFuture"));
+					}
+				}).start();
+			}
+			else
+				future.complete(new AnalysisReply(this.requestId,
+						Status.NORMAL, new HashMap<String, Object>()));
+			return future;
+		}
+
+		public AnalysisReply fail(Exception e)
+		{
+			this.numOfFails.incrementAndGet();
+			this.failure = e;
+			return new AnalysisReply(this.requestId, Status.ERROR,
+					new HashMap<String, Object>());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package org.pals.analysis.analyser.handler;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Dispatch by exact analysis name and by prefix
+ * 
+ * @author Yoichi
+ * 
+ */
+public class RequestHandlerRegistryTest
+{
+	@Test
+	public void testDefaults()
+	{
+		RequestHandlerRegistry registry = new RequestHandlerRegistry();
+		registry.registerDefaults(null, null, null);
+		Assert.assertTrue(registry.getHandler(AnalysisRequest.CVS2NETCDF) instanceof CSV2NetCDFHandler);
+		Assert.assertTrue(registry.getHandler("OBSFLUX") instanceof ObsPlotHandler);
+		Assert.assertTrue(registry.getHandler("BENCHTAIRE") instanceof BenchPlotHandler);
+		Assert.assertNull(registry.getHandler("UNKNOWN"));
+		Assert.assertNull(registry.getHandler(null));
+		// the same instance serves every request
+		Assert.assertSame(registry.getHandler("OBSFLUX"),
+				registry.getHandler("OBSMET"));
+	}
+
+	@Test
+	public void testConfiguredHandlersTakePrecedence()
+	{
+		RequestHandler qcPlot = new NamedHandler();
+		RequestHandler obsFlux = new NamedHandler();
+		RequestHandlerRegistry registry = new RequestHandlerRegistry();
+		registry.setHandlers(Collections.singletonMap(AnalysisRequest.QCPLOT,
+				qcPlot));
+		registry.setPrefixHandlers(Collections.singletonMap("OBSFLUX",
+				obsFlux));
+		registry.registerDefaults(null, null, null);
+
+		Assert.assertSame(registry.getHandler(AnalysisRequest.QCPLOT), qcPlot);
+		// the longest prefix wins, whatever the registration order
+		Assert.assertSame(registry.getHandler("OBSFLUXNEE"), obsFlux);
+		Assert.assertTrue(registry.getHandler("OBSMET") instanceof ObsPlotHandler);
+	}
+
+	private static class NamedHandler implements RequestHandler
+	{
+		public AnalysisReply handleRequest(AnalysisRequest request,
+				File inputDataDir, File outputDataDir)
+		{
+			return new AnalysisReply(request.getRequestId());
+		}
+	}
+}
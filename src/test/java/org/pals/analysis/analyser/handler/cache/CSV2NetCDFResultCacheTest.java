@@ -0,0 +1,192 @@
+package org.pals.analysis.analyser.handler.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Keys, least recently used eviction, pinning and entries left by a previous
+ * run.
+ *
+ * @author Yoichi
+ *
+ */
+public class CSV2NetCDFResultCacheTest
+{
+	private static final int SIZE = 1000;
+
+	private File dir;
+	private File cacheDir;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		this.dir = Files.createTempDirectory("pals").toFile();
+		this.cacheDir = new File(this.dir, "cache");
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		delete(this.dir);
+	}
+
+	@Test
+	public void testKeyNormalisesNumbers() throws Exception
+	{
+		CSV2NetCDFResultCache cache = createCache(SIZE);
+		File csv = write("site.csv", "DateTime,Rnet\n2000-01-01,1.5\n");
+		String key = cache.createKey(csv, arguments("135", "-35.5"));
+		Assert.assertEquals(cache.createKey(csv, arguments("135.0", " -35.50")),
+				key);
+		Assert.assertNotEquals(cache.createKey(csv, arguments("136", "-35.5")),
+				key);
+
+		File other = write("other.csv", "DateTime,Rnet\n2000-01-01,2.5\n");
+		Assert.assertNotEquals(cache.createKey(other, arguments("135", "-35.5")),
+				key);
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		CSV2NetCDFResultCache cache = createCache(2 * SIZE + SIZE / 2);
+		putAndRelease(cache, "a");
+		putAndRelease(cache, "b");
+		// a becomes the most recently used
+		Assert.assertNotNull(cache.acquire("a"));
+		cache.release("a");
+		putAndRelease(cache, "c");
+
+		Assert.assertEquals(cache.getNumOfEntries(), 2);
+		Assert.assertEquals(cache.getTotalBytes(), 2 * SIZE);
+		Assert.assertNull(cache.acquire("b"));
+		Assert.assertFalse(new File(this.cacheDir, "b").exists());
+		Assert.assertNotNull(cache.acquire("a"));
+		Assert.assertNotNull(cache.acquire("c"));
+	}
+
+	@Test
+	public void testPinnedEntryIsNotEvicted() throws Exception
+	{
+		CSV2NetCDFResultCache cache = createCache(SIZE);
+		Map<String, File> pinned = cache.put("a", outputFiles("a"));
+		putAndRelease(cache, "b");
+
+		// a is the least recently used, but still in use
+		Assert.assertEquals(cache.getNumOfEntries(), 1);
+		Assert.assertTrue(pinned.get("obsFlux").isFile());
+		Assert.assertNull(cache.acquire("b"));
+
+		cache.release("a");
+		putAndRelease(cache, "c");
+		Assert.assertNull(cache.acquire("a"));
+		Assert.assertFalse(pinned.get("obsFlux").exists());
+		Assert.assertEquals(cache.getTotalBytes(), SIZE);
+	}
+
+	@Test
+	public void testRacingPutReusesEntry() throws Exception
+	{
+		CSV2NetCDFResultCache cache = createCache(10 * SIZE);
+		Map<String, File> first = cache.put("a", outputFiles("a"));
+		Map<String, File> secondOutputs = outputFiles("a2");
+		Map<String, File> second = cache.put("a", secondOutputs);
+
+		Assert.assertEquals(second, first);
+		Assert.assertEquals(cache.getNumOfEntries(), 1);
+		Assert.assertEquals(cache.getTotalBytes(), SIZE);
+		// the outputs of the losing put are gone, with its temporary entry
+		for (File file : secondOutputs.values())
+			Assert.assertFalse(file.exists());
+		Assert.assertEquals(this.cacheDir.list(), new String[] { "a" });
+		Assert.assertEquals(
+				new String(Files.readAllBytes(first.get("obsFlux").toPath()),
+						"UTF-8").charAt(0), 'a');
+	}
+
+	@Test
+	public void testInitLoadsPreviousEntries() throws Exception
+	{
+		CSV2NetCDFResultCache cache = createCache(10 * SIZE);
+		putAndRelease(cache, "a");
+		// left by an interrupted put, and by someone else
+		Assert.assertTrue(new File(this.cacheDir, "b.1234.tmp").mkdir());
+		Files.write(new File(this.cacheDir, "README").toPath(),
+				new byte[] { 1 });
+
+		CSV2NetCDFResultCache reopened = new CSV2NetCDFResultCache(
+				this.cacheDir, 10 * SIZE);
+		reopened.init();
+		Assert.assertEquals(reopened.getNumOfEntries(), 1);
+		Assert.assertEquals(reopened.getTotalBytes(), SIZE);
+		Assert.assertNotNull(reopened.acquire("a"));
+		Assert.assertFalse(new File(this.cacheDir, "b.1234.tmp").exists());
+	}
+
+	private CSV2NetCDFResultCache createCache(long maxBytes)
+			throws IOException
+	{
+		CSV2NetCDFResultCache cache = new CSV2NetCDFResultCache(this.cacheDir,
+				maxBytes);
+		cache.init();
+		return cache;
+	}
+
+	private void putAndRelease(CSV2NetCDFResultCache cache, String key)
+			throws IOException
+	{
+		cache.put(key, outputFiles(key));
+		cache.release(key);
+	}
+
+	/**
+	 * @return two output files of SIZE bytes together, filled with the name
+	 */
+	private Map<String, File> outputFiles(String name) throws IOException
+	{
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		files.put("obsFlux", write(name + ".flux.nc", fill(name, SIZE / 2)));
+		files.put("obsMet", write(name + ".met.nc", fill(name, SIZE / 2)));
+		return files;
+	}
+
+	private static String fill(String name, int size)
+	{
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length() < size)
+			sb.append(name.charAt(sb.length() % name.length()));
+		return sb.toString();
+	}
+
+	private File write(String name, String content) throws IOException
+	{
+		File file = new File(this.dir, name);
+		Files.write(file.toPath(), content.getBytes("UTF-8"));
+		return file;
+	}
+
+	private static Map<String, String> arguments(String longitude,
+			String latitude)
+	{
+		Map<String, String> arguments = new LinkedHashMap<String, String>();
+		arguments.put("longitude", longitude);
+		arguments.put("latitude", latitude);
+		return arguments;
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null) for (File child : files)
+			delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,393 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pals.analysis.analyser.handler.CSV2NetCDFHandler;
+import org.pals.analysis.request.AnalysisTimeoutException;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * The Java conversion writes the flux and met files that the R conversion
+ * does. testReferenceFiles() compares them with files produced by
+ * convertSpreadsheetToNcdf: for every &lt;name&gt;.csv in the reference
+ * directory of the test resources, or in the directory of the
+ * pals.referenceDir system property, it expects &lt;name&gt;_flux.nc and
+ * &lt;name&gt;_met.nc written by R with generate.R there.
+ *
+ * @author Yoichi
+ *
+ */
+public class CSV2NetCDFDaoJavaTest
+{
+	public static final String REFERENCE_DIR_PROPERTY = "pals.referenceDir";
+	private static final String REFERENCE_RESOURCE = "/reference";
+	private static final double TOLERANCE = 1e-4;
+
+	@Test
+	public void testConversion() throws Exception
+	{
+		File csv = File.createTempFile("pals", ".csv");
+		Writer writer = new FileWriter(csv);
+		writer.write("LocDate,LocHoD,SWdown,SWdownFlag,Tair,Qle,Qh,Other\n");
+		writer.write(",,W/m2,-,K,W/m2,W/m2,-\n");
+		writer.write("1/1/2003,0,0,1,280.5,10,-9999,7\n");
+		writer.write("1/1/2003,0.5,NA,0,281.25,,20,7\n");
+		writer.write("1/1/2003,1,100,1,282,30,40,7\n");
+		writer.close();
+		File flux = File.createTempFile("pals", "_flux.nc");
+		File met = File.createTempFile("pals", "_met.nc");
+
+		Map<String, File> files = new CSV2NetCDFDaoJava().convertCSV2NetCDF(
+				csv, flux, met, "user", "site", "1.0", "148.15", "-35.65",
+				"1200", "50", 0);
+		Assert.assertEquals(files.get(CSV2NetCDFHandler.OBS_FLUX), flux);
+
+		NetCDFFile metFile = new NetCDFFile(met);
+		Assert.assertEquals(metFile.numOfRecords, 3);
+		Assert.assertEquals(metFile.read("time"), new double[] { 0, 1800,
+				3600 });
+		Assert.assertEquals(metFile.getAttribute("time", "units"),
+				"seconds since 2003-01-01 00:00:00");
+		Assert.assertEquals(metFile.read("SWdown"), new double[] { 0, -9999,
+				100 });
+		Assert.assertEquals(metFile.getAttribute("SWdown", "units"), "W/m2");
+		Assert.assertEquals(metFile.read("SWdown_qc"), new double[] { 1, 0, 1 });
+		Assert.assertEquals(metFile.read("Tair"), new double[] { 280.5,
+				281.25, 282 });
+		Assert.assertEquals(metFile.read("latitude")[0], -35.65, TOLERANCE);
+		Assert.assertEquals(metFile.read("reference_height")[0], 50.0);
+		Assert.assertFalse(metFile.variables.containsKey("Qle"));
+		Assert.assertFalse(metFile.variables.containsKey("Other"));
+		Assert.assertEquals(metFile.globalAttributes.get("PALS_dataset_name"),
+				"site");
+
+		NetCDFFile fluxFile = new NetCDFFile(flux);
+		Assert.assertEquals(fluxFile.read("Qle"), new double[] { 10, -9999, 30 });
+		Assert.assertEquals(fluxFile.read("Qh"), new double[] { -9999, 20, 40 });
+		Assert.assertFalse(fluxFile.variables.containsKey("Tair"));
+
+		csv.delete();
+		flux.delete();
+		met.delete();
+	}
+
+	@Test
+	public void testSecondFlagColumnIsIgnored() throws Exception
+	{
+		File csv = File.createTempFile("pals", ".csv");
+		Writer writer = new FileWriter(csv);
+		writer.write("LocDate,LocHoD,SWdown,SWdownFlag,SWdown_qc\n");
+		writer.write("1/1/2003,0,10,1,0\n");
+		writer.write("1/1/2003,0.5,20,1,0\n");
+		writer.close();
+		File flux = File.createTempFile("pals", "_flux.nc");
+		File met = File.createTempFile("pals", "_met.nc");
+
+		new CSV2NetCDFDaoJava().convertCSV2NetCDF(csv, flux, met, "user",
+				"site", "1.0", "0", "0", "0", "0", 0);
+		NetCDFFile metFile = new NetCDFFile(met);
+		Assert.assertEquals(metFile.numOfVariables, 7);
+		Assert.assertEquals(metFile.read("SWdown_qc"), new double[] { 1, 1 });
+
+		csv.delete();
+		flux.delete();
+		met.delete();
+	}
+
+	@Test
+	public void testDeadline() throws Exception
+	{
+		File csv = File.createTempFile("pals", ".csv");
+		Writer writer = new FileWriter(csv);
+		writer.write("LocDate,LocHoD,Qle\n");
+		for (int i = 0; i < 10; i++)
+			writer.write("1/1/2003," + (i % 24) + ",1\n");
+		writer.close();
+		File flux = File.createTempFile("pals", "_flux.nc");
+		File met = File.createTempFile("pals", "_met.nc");
+		try
+		{
+			new CSV2NetCDFDaoJava().convertCSV2NetCDF(csv, flux, met, "user",
+					"site", "1.0", "0", "0", "0", "0",
+					System.currentTimeMillis() - 1);
+			Assert.fail("the deadline has passed");
+		}
+		catch (AnalysisTimeoutException expected)
+		{
+		}
+		// no partial outputs are left behind
+		Assert.assertFalse(flux.exists());
+		Assert.assertFalse(met.exists());
+		csv.delete();
+	}
+
+	@Test
+	public void testReferenceFiles() throws Exception
+	{
+		String referenceDirPath = System.getProperty(REFERENCE_DIR_PROPERTY);
+		File referenceDir = referenceDirPath != null ? new File(
+				referenceDirPath) : new File(getClass().getResource(
+				REFERENCE_RESOURCE).toURI());
+		File[] csvFiles = referenceDir.listFiles();
+		Assert.assertNotNull(csvFiles, referenceDir.toString());
+		int numOfCompared = 0;
+		List<String> missing = new ArrayList<String>();
+		for (File csv : csvFiles)
+		{
+			if (!csv.getName().endsWith(".csv")) continue;
+			String name = csv.getName().substring(0,
+					csv.getName().length() - 4);
+			File referenceFlux = new File(referenceDir, name + "_flux.nc");
+			File referenceMetFile = new File(referenceDir, name + "_met.nc");
+			if (!referenceFlux.isFile() || !referenceMetFile.isFile())
+			{
+				missing.add(name);
+				continue;
+			}
+			File flux = File.createTempFile(name, "_flux.nc");
+			File met = File.createTempFile(name, "_met.nc");
+			NetCDFFile referenceMet = new NetCDFFile(referenceMetFile);
+			new CSV2NetCDFDaoJava().convertCSV2NetCDF(csv, flux, met, "user",
+					name, "1", String.valueOf(referenceMet.read("longitude")[0]),
+					String.valueOf(referenceMet.read("latitude")[0]),
+					String.valueOf(referenceMet.read("elevation")[0]),
+					String.valueOf(referenceMet.read("reference_height")[0]), 0);
+			assertEquivalent(new NetCDFFile(flux), new NetCDFFile(
+					referenceFlux), name);
+			assertEquivalent(new NetCDFFile(met), referenceMet, name);
+			flux.delete();
+			met.delete();
+			numOfCompared++;
+		}
+		if (!missing.isEmpty()) throw new SkipException(
+				"no R outputs for " + missing + " in " + referenceDir
+						+ "; write them with generate.R");
+		Assert.assertTrue(numOfCompared > 0, "no reference spreadsheets in "
+				+ referenceDir);
+	}
+
+	/**
+	 * The variables of the reference, their units and values are the same;
+	 * the times are compared as offsets from the first.
+	 */
+	private static void assertEquivalent(NetCDFFile actual,
+			NetCDFFile reference, String name) throws IOException
+	{
+		Assert.assertEquals(actual.numOfRecords, reference.numOfRecords, name);
+		for (String variable : reference.variables.keySet())
+		{
+			String message = name + ": " + variable;
+			Assert.assertTrue(actual.variables.containsKey(variable), message);
+			Assert.assertEquals(actual.getAttribute(variable, "units"),
+					reference.getAttribute(variable, "units"), message);
+			double[] expected = reference.read(variable);
+			double[] values = actual.read(variable);
+			Assert.assertEquals(values.length, expected.length, message);
+			boolean isTime = "time".equals(variable);
+			for (int i = 0; i < values.length; i++)
+			{
+				if (isTime) Assert.assertEquals(values[i] - values[0],
+						expected[i] - expected[0], TOLERANCE, message);
+				else
+					Assert.assertEquals(values[i], expected[i],
+							Math.max(TOLERANCE, Math.abs(expected[i]) * 1e-6),
+							message + "[" + i + "]");
+			}
+		}
+	}
+
+	/**
+	 * Just enough of a NetCDF classic format reader for the tests
+	 */
+	static class NetCDFFile
+	{
+		private final File file;
+		private int numOfRecords;
+		private int numOfVariables;
+		private final List<Integer> dimensionLengths = new ArrayList<Integer>();
+		private final Map<String, Object> globalAttributes = new LinkedHashMap<String, Object>();
+		private final Map<String, Var> variables = new LinkedHashMap<String, Var>();
+		private int recordSize = 0;
+
+		NetCDFFile(File file) throws IOException
+		{
+			this.file = file;
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try
+			{
+				byte[] magic = new byte[4];
+				in.readFully(magic);
+				Assert.assertEquals(new String(magic, 0, 3, "US-ASCII"), "CDF");
+				Assert.assertEquals(magic[3], 1, "only CDF-1 is supported");
+				this.numOfRecords = in.readInt();
+				in.readInt();
+				int numOfDimensions = in.readInt();
+				for (int i = 0; i < numOfDimensions; i++)
+				{
+					readName(in);
+					this.dimensionLengths.add(in.readInt());
+				}
+				readAttributes(in, this.globalAttributes);
+				in.readInt();
+				this.numOfVariables = in.readInt();
+				List<Var> recordVars = new ArrayList<Var>();
+				for (int i = 0; i < this.numOfVariables; i++)
+				{
+					Var var = new Var();
+					String name = readName(in);
+					int[] dimensions = new int[in.readInt()];
+					var.numOfValues = 1;
+					for (int d = 0; d < dimensions.length; d++)
+					{
+						dimensions[d] = in.readInt();
+						int length = this.dimensionLengths.get(dimensions[d]);
+						if (d == 0 && length == 0) var.isRecord = true;
+						else
+							var.numOfValues *= length;
+					}
+					readAttributes(in, var.attributes);
+					var.type = in.readInt();
+					var.vsize = in.readInt();
+					var.begin = in.readInt();
+					this.variables.put(name, var);
+					if (var.isRecord) recordVars.add(var);
+				}
+				for (Var var : recordVars)
+					this.recordSize += recordVars.size() == 1 ? var.numOfValues
+							* sizeOf(var.type) : var.vsize;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		Object getAttribute(String variable, String name)
+		{
+			return this.variables.get(variable).attributes.get(name);
+		}
+
+		double[] read(String name) throws IOException
+		{
+			Var var = this.variables.get(name);
+			Assert.assertNotNull(var, name);
+			int numOfSlabs = var.isRecord ? this.numOfRecords : 1;
+			double[] values = new double[numOfSlabs * var.numOfValues];
+			RandomAccessFile raf = new RandomAccessFile(
+					this.file, "r");
+			try
+			{
+				for (int r = 0; r < numOfSlabs; r++)
+				{
+					raf.seek(var.begin + (long) r * this.recordSize);
+					for (int i = 0; i < var.numOfValues; i++)
+						values[r * var.numOfValues + i] = readValue(raf,
+								var.type);
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+			return values;
+		}
+
+		private static double readValue(DataInput in, int type)
+				throws IOException
+		{
+			switch (type)
+			{
+			case NetCDFClassicWriter.NC_BYTE:
+				return in.readByte();
+			case NetCDFClassicWriter.NC_SHORT:
+				return in.readShort();
+			case NetCDFClassicWriter.NC_INT:
+				return in.readInt();
+			case NetCDFClassicWriter.NC_FLOAT:
+				return in.readFloat();
+			default:
+				return in.readDouble();
+			}
+		}
+
+		private static int sizeOf(int type)
+		{
+			switch (type)
+			{
+			case NetCDFClassicWriter.NC_BYTE:
+			case NetCDFClassicWriter.NC_CHAR:
+				return 1;
+			case NetCDFClassicWriter.NC_SHORT:
+				return 2;
+			case NetCDFClassicWriter.NC_DOUBLE:
+				return 8;
+			default:
+				return 4;
+			}
+		}
+
+		private static void readAttributes(DataInputStream in,
+				Map<String, Object> attributes) throws IOException
+		{
+			in.readInt();
+			int numOfAttributes = in.readInt();
+			for (int i = 0; i < numOfAttributes; i++)
+			{
+				String name = readName(in);
+				int type = in.readInt();
+				int n = in.readInt();
+				if (type == NetCDFClassicWriter.NC_CHAR)
+				{
+					byte[] chars = new byte[n];
+					in.readFully(chars);
+					skipPadding(in, n);
+					attributes.put(name, new String(chars, "UTF-8"));
+					continue;
+				}
+				double value = 0;
+				for (int v = 0; v < n; v++)
+					value = readValue(in, type);
+				skipPadding(in, n * sizeOf(type));
+				attributes.put(name, value);
+			}
+		}
+
+		private static String readName(DataInputStream in) throws IOException
+		{
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			skipPadding(in, bytes.length);
+			return new String(bytes, "UTF-8");
+		}
+
+		private static void skipPadding(DataInputStream in, int length)
+				throws IOException
+		{
+			int padding = (4 - length % 4) % 4;
+			in.skipBytes(padding);
+		}
+	}
+
+	private static class Var
+	{
+		private boolean isRecord = false;
+		private int numOfValues;
+		private int type;
+		private int vsize;
+		private long begin;
+		private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+	}
+}
@@ -0,0 +1,214 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pals.analysis.request.AnalysisException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Engines are borrowed from the least loaded healthy host; a failing host is
+ * taken out of rotation and put back by a successful probe, and a busy one
+ * stays in rotation.
+ *
+ * @author Yoichi
+ *
+ */
+public class PalsRserveClusterPoolTest
+{
+	@Test
+	public void testLeastLoadedRouting() throws Exception
+	{
+		FakePool a = new FakePool("a");
+		FakePool b = new FakePool("b");
+		PalsRserveClusterPool cluster = createCluster(a, b);
+
+		List<PalsRserveEngine> engines = new ArrayList<PalsRserveEngine>();
+		for (int i = 0; i < 4; i++)
+			engines.add(cluster.borrowEngine());
+		Assert.assertEquals(cluster.getInFlight().get("a"), Integer.valueOf(2));
+		Assert.assertEquals(cluster.getInFlight().get("b"), Integer.valueOf(2));
+
+		// b finishes its evaluations, so it gets the next two
+		for (PalsRserveEngine engine : engines)
+		{
+			if ("b".equals(engine.getHost())) cluster.returnEngine(engine);
+		}
+		Assert.assertEquals(cluster.borrowEngine().getHost(), "b");
+		Assert.assertEquals(cluster.borrowEngine().getHost(), "b");
+		Assert.assertEquals(cluster.getInFlight().get("a"), Integer.valueOf(2));
+		Assert.assertEquals(b.numOfReturned, 2);
+	}
+
+	@Test
+	public void testFailover() throws Exception
+	{
+		FakePool a = new FakePool("a");
+		FakePool b = new FakePool("b");
+		PalsRserveClusterPool cluster = createCluster(a, b);
+
+		b.isDown = true;
+		for (int i = 0; i < 3; i++)
+			Assert.assertEquals(cluster.borrowEngine().getHost(), "a");
+		Assert.assertEquals(cluster.getHealthyEndpoints().size(), 1);
+		// b is not tried again until it is probed
+		Assert.assertEquals(b.numOfBorrowAttempts, 1);
+
+		cluster.probeDownEndpoints();
+		Assert.assertEquals(cluster.getHealthyEndpoints().size(), 1);
+
+		b.isDown = false;
+		cluster.probeDownEndpoints();
+		Assert.assertEquals(cluster.getHealthyEndpoints().size(), 2);
+		Assert.assertEquals(cluster.borrowEngine().getHost(), "b");
+
+		a.isDown = true;
+		b.isDown = true;
+		try
+		{
+			cluster.borrowEngine();
+			Assert.fail("all hosts are down");
+		}
+		catch (AnalysisException expected)
+		{
+		}
+		Assert.assertTrue(cluster.getHealthyEndpoints().isEmpty());
+		// all are tried when none is healthy
+		a.isDown = false;
+		Assert.assertEquals(cluster.borrowEngine().getHost(), "a");
+		Assert.assertEquals(cluster.getHealthyEndpoints().size(), 1);
+	}
+
+	@Test
+	public void testBusyHostStaysInRotation() throws Exception
+	{
+		FakePool a = new FakePool("a");
+		FakePool b = new FakePool("b");
+		a.maxSize = 1;
+		b.maxSize = 1;
+		PalsRserveClusterPool cluster = createCluster(a, b);
+		PalsRserveEngine first = cluster.borrowEngine();
+		cluster.borrowEngine();
+		Assert.assertEquals(a.waits, Arrays.asList(0L));
+		Assert.assertEquals(b.waits, Arrays.asList(0L));
+
+		try
+		{
+			cluster.borrowEngine(100);
+			Assert.fail("all engines are in use");
+		}
+		catch (PoolExhaustedException expected)
+		{
+		}
+		Assert.assertEquals(cluster.getHealthyEndpoints().size(), 2);
+		// only one of them is waited on
+		Assert.assertEquals(a.waits.size() + b.waits.size(), 5);
+		Assert.assertTrue(a.waits.contains(100L) != b.waits.contains(100L));
+
+		cluster.returnEngine(first);
+		Assert.assertEquals(cluster.borrowEngine().getHost(), first.getHost());
+	}
+
+	@Test
+	public void testProbeDoesNotWait() throws Exception
+	{
+		FakePool a = new FakePool("a");
+		FakePool b = new FakePool("b");
+		PalsRserveClusterPool cluster = createCluster(a, b);
+		b.isDown = true;
+		cluster.borrowEngine();
+		cluster.borrowEngine();
+		Assert.assertEquals(cluster.getHealthyEndpoints(), Arrays.asList("a"));
+
+		// back, but with all its engines in use
+		b.isDown = false;
+		b.maxSize = 0;
+		cluster.probeDownEndpoints();
+		Assert.assertEquals(cluster.getHealthyEndpoints(), Arrays.asList("a"));
+		Assert.assertEquals(b.waits.get(b.waits.size() - 1), Long.valueOf(0));
+
+		b.maxSize = 1;
+		cluster.probeDownEndpoints();
+		Assert.assertEquals(cluster.getHealthyEndpoints().size(), 2);
+	}
+
+	private static PalsRserveClusterPool createCluster(FakePool... pools)
+	{
+		Map<String, PalsRserveEnginePool> byName = new LinkedHashMap<String, PalsRserveEnginePool>();
+		for (FakePool pool : pools)
+			byName.put(pool.host, pool);
+		return new PalsRserveClusterPool(byName);
+	}
+
+	/**
+	 * Hands out unconnected engines of its host, unless it is down. It does
+	 * not wait when all maxSize engines are in use, but records how long it was
+	 * asked to.
+	 */
+	private static class FakePool implements PalsRserveEnginePool
+	{
+		private final String host;
+		private volatile boolean isDown = false;
+		private int maxSize = Integer.MAX_VALUE;
+		private int numOfInUse = 0;
+		private int numOfBorrowAttempts = 0;
+		private int numOfReturned = 0;
+		/** the maxWaitMillis of each borrow; -1 for the pool's own */
+		private final List<Long> waits = new ArrayList<Long>();
+
+		FakePool(String host)
+		{
+			this.host = host;
+		}
+
+		public void init()
+		{
+		}
+
+		public PalsRserveEngine borrowEngine() throws AnalysisException
+		{
+			return borrowEngine(-1);
+		}
+
+		public synchronized PalsRserveEngine borrowEngine(long maxWaitMillis)
+				throws AnalysisException
+		{
+			this.numOfBorrowAttempts++;
+			this.waits.add(maxWaitMillis);
+			if (this.isDown) throw new AnalysisException(this.host
+					+ " is down");
+			if (this.numOfInUse >= this.maxSize) throw new PoolExhaustedException(
+					this.host + " is busy");
+			this.numOfInUse++;
+			return new PalsRserveEngine(this.host, 16311);
+		}
+
+		public synchronized void returnEngine(PalsRserveEngine engine)
+		{
+			this.numOfInUse--;
+			this.numOfReturned++;
+		}
+
+		public void invalidateEngine(PalsRserveEngine engine)
+		{
+		}
+
+		public RserveWatchdog getWatchdog()
+		{
+			return null;
+		}
+
+		public int getNumOfSpareEngines()
+		{
+			return 0;
+		}
+
+		public void destroy()
+		{
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.pals.analysis.request.AnalysisException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Borrowing, returning, eviction and recycling of the pooled engines, which
+ * are unconnected stand-ins made by the engine factory.
+ *
+ * @author Yoichi
+ *
+ */
+public class PalsRserveEnginePoolImplTest
+{
+	private PalsRserveEnginePoolImpl pool;
+	private final List<FakeEngine> created = new ArrayList<FakeEngine>();
+
+	@AfterMethod
+	public void tearDown()
+	{
+		if (this.pool != null) this.pool.destroy();
+		this.pool = null;
+		this.created.clear();
+	}
+
+	@Test
+	public void testReturnedEnginesAreReusedLastInFirstOut() throws Exception
+	{
+		createPool(0, 3);
+		PalsRserveEngine first = this.pool.borrowEngine();
+		PalsRserveEngine second = this.pool.borrowEngine();
+		Assert.assertEquals(this.pool.getNumOfEngines(), 2);
+
+		this.pool.returnEngine(first);
+		this.pool.returnEngine(second);
+		Assert.assertEquals(this.pool.getNumOfIdleEngines(), 2);
+		Assert.assertSame(this.pool.borrowEngine(), second);
+		Assert.assertSame(this.pool.borrowEngine(), first);
+		Assert.assertEquals(this.created.size(), 2);
+	}
+
+	@Test
+	public void testBorrowWaitsAtMaxSize() throws Exception
+	{
+		createPool(0, 1);
+		this.pool.setMaxWaitMillis(200);
+		final PalsRserveEngine engine = this.pool.borrowEngine();
+		Assert.assertEquals(this.pool.getNumOfSpareEngines(), 0);
+
+		long start = System.currentTimeMillis();
+		try
+		{
+			this.pool.borrowEngine();
+			Assert.fail("the pool is exhausted");
+		}
+		catch (AnalysisException expected)
+		{
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+
+		// a waiting borrower gets the engine when it is returned
+		this.pool.setMaxWaitMillis(10000);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<PalsRserveEngine> waiting = executor
+					.submit(new Callable<PalsRserveEngine>()
+					{
+						public PalsRserveEngine call() throws Exception
+						{
+							return pool.borrowEngine();
+						}
+					});
+			Thread.sleep(100);
+			Assert.assertFalse(waiting.isDone());
+			this.pool.returnEngine(engine);
+			Assert.assertSame(waiting.get(10, TimeUnit.SECONDS), engine);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		Assert.assertEquals(this.created.size(), 1);
+	}
+
+	@Test
+	public void testIdleEnginesAreEvictedDownToMinSize() throws Exception
+	{
+		this.pool = new PalsRserveEnginePoolImpl("localhost", 16311, 1, 3);
+		this.pool.setEngineFactory(new FakeEngineFactory());
+		this.pool.setIdleTimeoutMillis(100);
+		this.pool.setEvictionIntervalMillis(50);
+		this.pool.init();
+		List<PalsRserveEngine> engines = new ArrayList<PalsRserveEngine>();
+		for (int i = 0; i < 3; i++)
+			engines.add(this.pool.borrowEngine());
+		for (PalsRserveEngine engine : engines)
+			this.pool.returnEngine(engine);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (this.pool.getNumOfEngines() > 1)
+		{
+			Assert.assertTrue(System.currentTimeMillis() < deadline,
+					"idle engines were not evicted");
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(this.pool.getNumOfIdleEngines(), 1);
+		Assert.assertEquals(numOfClosed(), 2);
+	}
+
+	@Test
+	public void testInvalidatedEngineIsClosed() throws Exception
+	{
+		createPool(0, 2);
+		FakeEngine engine = (FakeEngine) this.pool.borrowEngine();
+		this.pool.invalidateEngine(engine);
+		Assert.assertTrue(engine.isClosed);
+		Assert.assertEquals(this.pool.getNumOfEngines(), 0);
+
+		// a broken idle engine is discarded on borrow
+		FakeEngine broken = (FakeEngine) this.pool.borrowEngine();
+		this.pool.returnEngine(broken);
+		broken.isValid = false;
+		Assert.assertNotSame(this.pool.borrowEngine(), broken);
+		Assert.assertTrue(broken.isClosed);
+		Assert.assertEquals(this.pool.getNumOfEngines(), 1);
+	}
+
+	@Test
+	public void testEngineIsRecycledAfterMaxEvaluations() throws Exception
+	{
+		createPool(0, 2);
+		this.pool.setMaxEvaluationsPerEngine(2);
+		FakeEngine engine = (FakeEngine) this.pool.borrowEngine();
+		this.pool.returnEngine(engine);
+		Assert.assertSame(this.pool.borrowEngine(), engine);
+		this.pool.returnEngine(engine);
+
+		Assert.assertTrue(engine.isClosed);
+		Assert.assertEquals(this.pool.getNumOfRecycled(), 1);
+		Assert.assertEquals(this.pool.getNumOfIdleEngines(), 0);
+		Assert.assertNotSame(this.pool.borrowEngine(), engine);
+	}
+
+	@Test
+	public void testUnconnectedEngineIsInvalid()
+	{
+		PalsRserveEngine engine = new PalsRserveEngine("localhost", 16311);
+		Assert.assertEquals(engine.getPort(), 16311);
+		Assert.assertFalse(engine.isValid());
+		Assert.assertTrue(engine.kill());
+		engine.close();
+	}
+
+	private void createPool(int minSize, int maxSize) throws AnalysisException
+	{
+		this.pool = new PalsRserveEnginePoolImpl("localhost", 16311, minSize,
+				maxSize);
+		this.pool.setEngineFactory(new FakeEngineFactory());
+		this.pool.init();
+	}
+
+	private synchronized int numOfClosed()
+	{
+		int numOfClosed = 0;
+		for (FakeEngine engine : this.created)
+		{
+			if (engine.isClosed) numOfClosed++;
+		}
+		return numOfClosed;
+	}
+
+	private class FakeEngineFactory implements
+			PalsRserveEnginePoolImpl.EngineFactory
+	{
+		public PalsRserveEngine createEngine(String host, int port,
+				String display)
+		{
+			FakeEngine engine = new FakeEngine(host, port);
+			synchronized (PalsRserveEnginePoolImplTest.this)
+			{
+				created.add(engine);
+			}
+			return engine;
+		}
+	}
+
+	/**
+	 * An engine without a connection that counts its evaluations
+	 */
+	private static class FakeEngine extends PalsRserveEngine
+	{
+		private volatile boolean isValid = true;
+		private volatile boolean isClosed = false;
+		private int numOfEvaluations = 0;
+
+		FakeEngine(String host, int port)
+		{
+			super(host, port);
+		}
+
+		@Override
+		public boolean isValid()
+		{
+			return this.isValid && !this.isClosed;
+		}
+
+		@Override
+		public double reset()
+		{
+			this.numOfEvaluations++;
+			return 0;
+		}
+
+		@Override
+		public int getNumOfEvaluations()
+		{
+			return this.numOfEvaluations;
+		}
+
+		@Override
+		public void close()
+		{
+			this.isClosed = true;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.rosuda.REngine.REXP;
+import org.rosuda.REngine.REXPDouble;
+import org.rosuda.REngine.REXPLogical;
+import org.rosuda.REngine.REXPRaw;
+import org.rosuda.REngine.Rserve.RConnection;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * A file up to 1 MiB is moved as one raw vector, a larger one is streamed in
+ * chunks of 64 KiB through the buffer of the thread. The R session is a map
+ * of remote files rather than an Rserve connection.
+ *
+ * @author Yoichi
+ *
+ */
+public class RserveFileTransferTest
+{
+	private static final int MIB = 1024 * 1024;
+	private static final int CHUNK_SIZE = 65536;
+
+	private File dir;
+	private FakeTransfer transfer;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		this.dir = Files.createTempDirectory("pals").toFile();
+		this.transfer = new FakeTransfer();
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		File[] files = this.dir.listFiles();
+		if (files != null) for (File file : files)
+			file.delete();
+		this.dir.delete();
+	}
+
+	@Test
+	public void testOneMiBIsMovedRaw() throws Exception
+	{
+		byte[] content = createContent(MIB);
+		this.transfer.upload(null, write("up.nc", content), "remote.nc");
+		Assert.assertEquals(this.transfer.numOfRawWrites, 1);
+		Assert.assertTrue(this.transfer.chunks.isEmpty());
+		Assert.assertEquals(this.transfer.remoteFiles.get("remote.nc"),
+				content);
+
+		File local = new File(this.dir, "down.nc");
+		this.transfer.download(null, "remote.nc", local);
+		Assert.assertEquals(this.transfer.numOfRawReads, 1);
+		Assert.assertEquals(this.transfer.numOfOpened, 0);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()), content);
+	}
+
+	@Test
+	public void testOneMiBPlusOneIsStreamed() throws Exception
+	{
+		byte[] content = createContent(MIB + 1);
+		this.transfer.upload(null, write("up.nc", content), "remote.nc");
+		Assert.assertEquals(this.transfer.numOfRawWrites, 0);
+		Assert.assertEquals(this.transfer.remoteFiles.get("remote.nc"),
+				content);
+		assertChunks(MIB + 1);
+
+		this.transfer.chunks.clear();
+		File local = new File(this.dir, "down.nc");
+		this.transfer.download(null, "remote.nc", local);
+		Assert.assertEquals(this.transfer.numOfRawReads, 0);
+		Assert.assertEquals(this.transfer.numOfOpened, 1);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()), content);
+		assertChunks(MIB + 1);
+	}
+
+	@Test
+	public void testLastChunkIsPartial() throws Exception
+	{
+		int size = MIB + 3 * CHUNK_SIZE + 1000;
+		byte[] content = createContent(size);
+		this.transfer.upload(null, write("up.nc", content), "remote.nc");
+		Assert.assertEquals(this.transfer.remoteFiles.get("remote.nc"),
+				content);
+		assertChunks(size);
+		Assert.assertEquals(this.transfer.chunks
+				.get(this.transfer.chunks.size() - 1).intValue(), 1000);
+	}
+
+	@Test
+	public void testBufferIsReusedByThread() throws Exception
+	{
+		final File file = write("up.nc", createContent(MIB + 1));
+		this.transfer.upload(null, file, "a.nc");
+		this.transfer.download(null, "a.nc", new File(this.dir, "down.nc"));
+		Assert.assertEquals(this.transfer.buffers.size(), 1);
+
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try
+		{
+			other.submit(new Callable<Void>()
+			{
+				public Void call() throws Exception
+				{
+					transfer.upload(null, file, "b.nc");
+					return null;
+				}
+			}).get(10, TimeUnit.SECONDS);
+		}
+		finally
+		{
+			other.shutdown();
+		}
+		Assert.assertEquals(this.transfer.buffers.size(), 2);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testMissingRemoteFile() throws Exception
+	{
+		this.transfer.download(null, "missing.nc", new File(this.dir,
+				"down.nc"));
+	}
+
+	/**
+	 * @param size
+	 *            streamed in full chunks and one partial chunk, if any
+	 */
+	private void assertChunks(int size)
+	{
+		List<Integer> chunks = this.transfer.chunks;
+		Assert.assertEquals(chunks.size(), (size + CHUNK_SIZE - 1)
+				/ CHUNK_SIZE);
+		for (int i = 0; i < chunks.size() - 1; i++)
+			Assert.assertEquals(chunks.get(i).intValue(), CHUNK_SIZE);
+		Assert.assertEquals(chunks.get(chunks.size() - 1).intValue(),
+				size % CHUNK_SIZE == 0 ? CHUNK_SIZE : size % CHUNK_SIZE);
+	}
+
+	private static byte[] createContent(int size)
+	{
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	private File write(String name, byte[] content) throws IOException
+	{
+		File file = new File(this.dir, name);
+		Files.write(file.toPath(), content);
+		return file;
+	}
+
+	/**
+	 * Keeps the remote files in memory, and records the chunks streamed and
+	 * the buffers they were streamed through
+	 */
+	private static class FakeTransfer extends RserveFileTransfer
+	{
+		private final Map<String, byte[]> remoteFiles = new HashMap<String, byte[]>();
+		private final List<Integer> chunks = new ArrayList<Integer>();
+		private final List<byte[]> buffers = new ArrayList<byte[]>();
+		private int numOfRawWrites = 0;
+		private int numOfRawReads = 0;
+		private int numOfOpened = 0;
+
+		@Override
+		void writeBin(RConnection connection, byte[] bytes, String remoteName)
+		{
+			this.numOfRawWrites++;
+			this.remoteFiles.put(remoteName, bytes.clone());
+		}
+
+		@Override
+		REXP readBinOrSize(RConnection connection, String remoteName)
+		{
+			byte[] content = this.remoteFiles.get(remoteName);
+			if (content == null) return new REXPLogical(REXPLogical.NA);
+			if (content.length > getRawTransferMaxBytes()) return new REXPDouble(
+					content.length);
+			this.numOfRawReads++;
+			return new REXPRaw(content.clone());
+		}
+
+		@Override
+		OutputStream createFile(RConnection connection, final String remoteName)
+		{
+			return new ByteArrayOutputStream()
+			{
+				@Override
+				public synchronized void write(byte[] b, int off, int len)
+				{
+					record(b, len);
+					super.write(b, off, len);
+				}
+
+				@Override
+				public void close()
+				{
+					remoteFiles.put(remoteName, toByteArray());
+				}
+			};
+		}
+
+		@Override
+		InputStream openFile(RConnection connection, String remoteName)
+		{
+			this.numOfOpened++;
+			return new ByteArrayInputStream(this.remoteFiles.get(remoteName))
+			{
+				@Override
+				public synchronized int read(byte[] b, int off, int len)
+				{
+					int n = super.read(b, off, len);
+					if (n > 0) record(b, n);
+					return n;
+				}
+			};
+		}
+
+		/**
+		 * @param buffer
+		 *            a chunk was streamed through
+		 * @param len
+		 *            of the chunk
+		 */
+		private synchronized void record(byte[] buffer, int len)
+		{
+			this.chunks.add(len);
+			for (byte[] known : this.buffers)
+			{
+				if (known == buffer) return;
+			}
+			this.buffers.add(buffer);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.pals.analysis.analyser.handler.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * The supervisor starts a daemon per port, once, restarts one that dies and
+ * kills the processes a daemon has forked. The daemons are stand-ins that only
+ * listen on their port.
+ *
+ * @author Yoichi
+ *
+ */
+public class RserveSupervisorTest
+{
+	@Test
+	public void testRestartsDeadDaemon() throws Exception
+	{
+		int basePort = findFreePort();
+		RserveSupervisor supervisor = new RserveSupervisor();
+		supervisor.setCommand(fakeDaemonCommand());
+		supervisor.setBasePort(basePort);
+		supervisor.setNumOfDaemons(2);
+		supervisor.setRestartDelayMillis(100);
+		supervisor.start();
+		try
+		{
+			Assert.assertEquals(supervisor.getEndpoints(), Arrays.asList(
+					"localhost:" + basePort, "localhost:" + (basePort + 1)));
+
+			Process first = supervisor.getProcess(basePort);
+			first.destroy();
+			first.waitFor();
+			long deadline = System.currentTimeMillis() + 20000;
+			while (supervisor.getNumOfRestarts() < 1)
+			{
+				Assert.assertTrue(System.currentTimeMillis() < deadline,
+						"the daemon was not restarted");
+				Thread.sleep(50);
+			}
+			Assert.assertNotSame(supervisor.getProcess(basePort), first);
+			Assert.assertTrue(RserveSupervisor.awaitListening(basePort,
+					System.currentTimeMillis() + 20000));
+		}
+		finally
+		{
+			supervisor.destroy();
+		}
+		Assert.assertEquals(supervisor.getNumOfRestarts(), 1);
+	}
+
+	@Test
+	public void testSecondStartIsIgnored() throws Exception
+	{
+		int basePort = findFreePort();
+		RserveSupervisor supervisor = new RserveSupervisor();
+		supervisor.setCommand(fakeDaemonCommand());
+		supervisor.setBasePort(basePort);
+		supervisor.setNumOfDaemons(2);
+		supervisor.start();
+		try
+		{
+			Process first = supervisor.getProcess(basePort);
+			supervisor.start();
+			Assert.assertEquals(supervisor.getNumOfStartedDaemons(), 2);
+			Assert.assertSame(supervisor.getProcess(basePort), first);
+		}
+		finally
+		{
+			supervisor.destroy();
+		}
+		Assert.assertEquals(supervisor.getNumOfStartedDaemons(), 0);
+	}
+
+	@Test
+	public void testDestroyKillsForkedProcesses() throws Exception
+	{
+		File shell = new File("/bin/sh");
+		if (!shell.canExecute()) throw new SkipException("no " + shell);
+		try
+		{
+			Class.forName("java.lang.ProcessHandle");
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new SkipException("forked processes are only killed on Java 9+");
+		}
+		int basePort = findFreePort();
+		// the shell stands in for Rserve, and its child for a forked session
+		StringBuilder child = new StringBuilder();
+		for (String argument : fakeDaemonCommand())
+			child.append("'").append(argument).append("' ");
+		RserveSupervisor supervisor = new RserveSupervisor();
+		supervisor.setCommand(Arrays.asList(shell.getPath(), "-c", child
+				+ "& wait"));
+		supervisor.setBasePort(basePort);
+		supervisor.setNumOfDaemons(1);
+		supervisor.start();
+		supervisor.destroy();
+
+		long deadline = System.currentTimeMillis() + 20000;
+		while (isListening(basePort))
+		{
+			Assert.assertTrue(System.currentTimeMillis() < deadline,
+					"the forked process is still running");
+			Thread.sleep(50);
+		}
+	}
+
+	private static int findFreePort() throws IOException
+	{
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		return port;
+	}
+
+	private static List<String> fakeDaemonCommand()
+	{
+		return Arrays.asList(System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java", "-cp",
+				System.getProperty("java.class.path"),
+				FakeDaemon.class.getName(), RserveSupervisor.PORT_PLACEHOLDER);
+	}
+
+	private static boolean isListening(int port)
+	{
+		try
+		{
+			new Socket("localhost", port).close();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Accepts and closes connections on the port of its argument
+	 */
+	public static class FakeDaemon
+	{
+		public static void main(String[] args) throws IOException
+		{
+			ServerSocket serverSocket = new ServerSocket(
+					Integer.parseInt(args[0]));
+			while (true)
+				serverSocket.accept().close();
+		}
+	}
+}
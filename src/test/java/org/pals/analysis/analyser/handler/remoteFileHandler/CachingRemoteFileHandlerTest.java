@@ -0,0 +1,257 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pals.analysis.analyser.handler.cache.RemoteFileCache;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Concurrent requests for one file share a download, a changed file is
+ * downloaded again, a file that changes during a download is not cached and
+ * the least recently used files are evicted.
+ *
+ * @author Yoichi
+ *
+ */
+public class CachingRemoteFileHandlerTest
+{
+	private static final int SIZE = 1000;
+
+	private File dir;
+	private CountingHandler remote;
+	private RemoteFileCache cache;
+	private CachingRemoteFileHandler handler;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		this.dir = Files.createTempDirectory("pals").toFile();
+		File cacheDir = new File(this.dir, "cache");
+		this.cache = new RemoteFileCache(cacheDir, 2 * SIZE + SIZE / 2);
+		this.cache.init();
+		this.remote = new CountingHandler();
+		this.handler = new CachingRemoteFileHandler(this.remote, this.cache);
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		delete(this.dir);
+	}
+
+	@Test
+	public void testConcurrentRequestsShareDownload() throws Exception
+	{
+		final URL url = new URL("http://portal/site.csv");
+		int numOfRequests = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors
+				.newFixedThreadPool(numOfRequests);
+		try
+		{
+			List<Future<File>> futures = new ArrayList<Future<File>>();
+			for (int i = 0; i < numOfRequests; i++)
+			{
+				final File local = new File(this.dir, "local" + i + ".csv");
+				futures.add(executor.submit(new Callable<File>()
+				{
+					public File call() throws Exception
+					{
+						start.await();
+						handler.copyRemoteFileToLocal(url, local);
+						return local;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<File> future : futures)
+			{
+				File local = future.get();
+				Assert.assertEquals(Files.readAllBytes(local.toPath()),
+						this.remote.content(url));
+				// the requests delete their inputs
+				Assert.assertTrue(local.delete());
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		Assert.assertEquals(this.remote.downloads.get(), 1);
+		Assert.assertEquals(this.cache.getMissCount(), 1);
+		Assert.assertEquals(this.cache.getNumOfEntries(), 1);
+
+		// a changed file is downloaded again
+		this.remote.version.incrementAndGet();
+		File local = new File(this.dir, "local.csv");
+		this.handler.copyRemoteFileToLocal(url, local);
+		Assert.assertEquals(this.remote.downloads.get(), 2);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()),
+				this.remote.content(url));
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		File local = new File(this.dir, "local.csv");
+		URL a = new URL("http://portal/a.csv");
+		URL b = new URL("http://portal/b.csv");
+		URL c = new URL("http://portal/c.csv");
+		this.handler.copyRemoteFileToLocal(a, local);
+		this.handler.copyRemoteFileToLocal(b, local);
+		// a becomes the most recently used
+		this.handler.copyRemoteFileToLocal(a, local);
+		this.handler.copyRemoteFileToLocal(c, local);
+		Assert.assertEquals(this.remote.downloads.get(), 3);
+		Assert.assertEquals(this.cache.getNumOfEntries(), 2);
+		Assert.assertEquals(this.cache.getTotalBytes(), 2 * SIZE);
+
+		this.handler.copyRemoteFileToLocal(a, local);
+		Assert.assertEquals(this.remote.downloads.get(), 3);
+		this.handler.copyRemoteFileToLocal(b, local);
+		Assert.assertEquals(this.remote.downloads.get(), 4);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()),
+				this.remote.content(b));
+	}
+
+	@Test
+	public void testFileChangedAfterHeadIsNotCached() throws Exception
+	{
+		URL url = new URL("http://portal/site.csv");
+		File local = new File(this.dir, "local.csv");
+		this.remote.changesBeforeDownload.set(true);
+		try
+		{
+			this.handler.copyRemoteFileToLocal(url, local);
+			Assert.fail("copied a file that changed after the HEAD");
+		}
+		catch (IOException expected)
+		{
+		}
+		Assert.assertFalse(local.exists());
+		Assert.assertEquals(this.cache.getNumOfEntries(), 0);
+
+		// the next request asks for the new version
+		this.handler.copyRemoteFileToLocal(url, local);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()),
+				this.remote.content(url));
+		Assert.assertEquals(this.remote.downloads.get(), 2);
+		Assert.assertEquals(this.cache.getNumOfEntries(), 1);
+	}
+
+	@Test
+	public void testInitLoadsPreviousEntries() throws Exception
+	{
+		URL url = new URL("http://portal/site.csv");
+		this.handler.copyRemoteFileToLocal(url, new File(this.dir, "local.csv"));
+		File cacheDir = this.cache.getCacheDir();
+		// left by an interrupted download, and by someone else
+		Files.write(new File(cacheDir, "b.1234.tmp").toPath(), new byte[] { 1 });
+		File strayDir = new File(cacheDir, "backup");
+		Assert.assertTrue(strayDir.mkdir());
+		Files.write(new File(strayDir, "site.csv").toPath(), new byte[SIZE]);
+
+		RemoteFileCache reopened = new RemoteFileCache(cacheDir,
+				this.cache.getMaxBytes());
+		reopened.init();
+		Assert.assertEquals(reopened.getNumOfEntries(), 1);
+		Assert.assertEquals(reopened.getTotalBytes(), SIZE);
+		Assert.assertFalse(new File(cacheDir, "b.1234.tmp").exists());
+		Assert.assertTrue(strayDir.isDirectory());
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null) for (File child : files)
+			delete(child);
+		file.delete();
+	}
+
+	/**
+	 * Serves SIZE bytes made of the URL and the version, slowly
+	 */
+	private static class CountingHandler implements RemoteFileHandler
+	{
+		final AtomicInteger version = new AtomicInteger(1);
+		final AtomicInteger downloads = new AtomicInteger();
+		/** makes the next download find a newer version than the HEAD */
+		final AtomicBoolean changesBeforeDownload = new AtomicBoolean();
+
+		byte[] content(URL url)
+		{
+			byte[] content = new byte[SIZE];
+			byte[] seed = (url + "#" + this.version.get()).getBytes();
+			for (int i = 0; i < SIZE; i++)
+				content[i] = seed[i % seed.length];
+			return content;
+		}
+
+		/**
+		 * The cache only downloads a version it has asked for
+		 */
+		public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public void copyRemoteFileToLocal(URL remoteFileUrl, File localFile,
+				RemoteFileVersion version) throws IOException
+		{
+			this.downloads.incrementAndGet();
+			if (this.changesBeforeDownload.compareAndSet(true, false)) this.version
+					.incrementAndGet();
+			if (!version.matches(getVersion(remoteFileUrl))) throw new IOException(
+					remoteFileUrl + " has changed");
+			try
+			{
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			Files.write(localFile.toPath(), content(remoteFileUrl));
+		}
+
+		public RemoteFileVersion getVersion(URL remoteFileUrl)
+		{
+			return new RemoteFileVersion("\"" + this.version.get() + "\"",
+					null, SIZE);
+		}
+
+		public void storeFilesIntoStore(Map<String, File> localFiles,
+				Map<String, URL> remoteUrls)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public CompletableFuture<Void> storeFilesIntoStoreAsync(
+				Map<String, File> localFiles, Map<String, URL> remoteUrls)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public URL getStoreUrl(URL remoteFileUrl)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.pals.analysis.analyser.handler.cache.CSV2NetCDFResultCache;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Files are linked when possible and otherwise copied whole, and the digest
+ * computed on the way gives the same result cache key as reading the file.
+ * A file that has changed since its version was asked for is not copied. The
+ * asynchronous store copies all the files and fails as a whole.
+ *
+ * @author Yoichi
+ *
+ */
+public class FileProtocolHandlerTest
+{
+	private File dir;
+	private File source;
+	private byte[] content;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		this.dir = Files.createTempDirectory("pals").toFile();
+		this.source = new File(this.dir, "site.csv");
+		// larger than one digest buffer
+		this.content = new byte[3 * 1024 * 1024 + 17];
+		new Random(1).nextBytes(this.content);
+		Files.write(this.source.toPath(), this.content);
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		for (File file : this.dir.listFiles())
+			file.delete();
+		this.dir.delete();
+	}
+
+	@Test
+	public void testLink() throws Exception
+	{
+		FileProtocolHandler handler = new FileProtocolHandler();
+		File local = new File(this.dir, "local.csv");
+		MessageDigest digest = CSV2NetCDFResultCache.createDigest();
+		handler.ingest(this.source.toURI().toURL(), local, digest);
+		Assert.assertTrue(Files.isSameFile(local.toPath(), this.source.toPath()));
+		assertSameKey(digest, local);
+
+		// the local copy goes away, the stored file stays
+		File stored = new File(this.dir, "stored.nc");
+		handler.storeFilesIntoStore(Collections.singletonMap("obsFlux", local),
+				Collections.singletonMap("obsFlux", stored.toURI().toURL()));
+		local.delete();
+		Assert.assertEquals(Files.readAllBytes(stored.toPath()), this.content);
+
+		// an existing destination is replaced, and no temporary name is left
+		File other = new File(this.dir, "other.nc");
+		Files.write(other.toPath(), new byte[] { 1, 2, 3 });
+		Assert.assertTrue(FileProtocolHandler.link(other, stored));
+		Assert.assertTrue(Files.isSameFile(stored.toPath(), other.toPath()));
+		Assert.assertEquals(this.dir.list().length, 3);
+	}
+
+	@Test
+	public void testCopy() throws Exception
+	{
+		FileProtocolHandler handler = new FileProtocolHandler();
+		handler.setLinkEnabled(false);
+		File local = new File(this.dir, "local.csv");
+		Files.write(local.toPath(), new byte[] { 1, 2, 3 });
+		MessageDigest digest = CSV2NetCDFResultCache.createDigest();
+		handler.ingest(this.source.toURI().toURL(), local, digest);
+		Assert.assertFalse(Files.isSameFile(local.toPath(),
+				this.source.toPath()));
+		Assert.assertEquals(Files.readAllBytes(local.toPath()), this.content);
+		assertSameKey(digest, local);
+
+		File stored = new File(this.dir, "stored.nc");
+		FileProtocolHandler.copyFile(local, stored);
+		Assert.assertEquals(Files.readAllBytes(stored.toPath()), this.content);
+		// no temporary files are left
+		Assert.assertEquals(this.dir.listFiles().length, 3);
+	}
+
+	@Test
+	public void testChangedFileIsNotCopied() throws Exception
+	{
+		FileProtocolHandler handler = new FileProtocolHandler();
+		URL url = this.source.toURI().toURL();
+		RemoteFileVersion version = handler.getVersion(url);
+		File local = new File(this.dir, "local.csv");
+		handler.copyRemoteFileToLocal(url, local, version);
+		Assert.assertTrue(local.delete());
+
+		Assert.assertTrue(this.source.setLastModified(this.source
+				.lastModified() - 60000));
+		try
+		{
+			handler.copyRemoteFileToLocal(url, local, version);
+			Assert.fail("copied a changed file");
+		}
+		catch (IOException expected)
+		{
+		}
+		Assert.assertFalse(local.exists());
+	}
+
+	@Test
+	public void testStoreAsync() throws Exception
+	{
+		FileProtocolHandler handler = new FileProtocolHandler();
+		handler.setLinkEnabled(false);
+		File empty = new File(this.dir, "empty.csv");
+		Files.write(empty.toPath(), new byte[0]);
+		Map<String, File> localFiles = new LinkedHashMap<String, File>();
+		localFiles.put("obsFlux", this.source);
+		localFiles.put("obsMet", empty);
+		Map<String, URL> remoteUrls = new LinkedHashMap<String, URL>();
+		File storedFlux = new File(this.dir, "stored.flux.nc");
+		File storedMet = new File(this.dir, "stored.met.nc");
+		remoteUrls.put("obsFlux", storedFlux.toURI().toURL());
+		remoteUrls.put("obsMet", storedMet.toURI().toURL());
+
+		handler.storeFilesIntoStoreAsync(localFiles, remoteUrls).get();
+		Assert.assertEquals(Files.readAllBytes(storedFlux.toPath()),
+				this.content);
+		Assert.assertEquals(storedMet.length(), 0);
+		Assert.assertEquals(this.dir.listFiles().length, 4);
+
+		localFiles.put("obsMet", new File(this.dir, "missing.csv"));
+		CompletableFuture<Void> future = handler.storeFilesIntoStoreAsync(
+				localFiles, remoteUrls);
+		try
+		{
+			future.get();
+			Assert.fail("a missing file was stored");
+		}
+		catch (ExecutionException e)
+		{
+			// expected
+		}
+		// no temporary files are left
+		Assert.assertEquals(this.dir.listFiles().length, 4);
+	}
+
+	private void assertSameKey(MessageDigest digest, File file)
+			throws Exception
+	{
+		CSV2NetCDFResultCache cache = new CSV2NetCDFResultCache(this.dir, 0);
+		Map<String, String> arguments = new LinkedHashMap<String, String>();
+		arguments.put("latitude", "1");
+		Assert.assertEquals(cache.createKey(digest, arguments),
+				cache.createKey(file, arguments));
+	}
+}
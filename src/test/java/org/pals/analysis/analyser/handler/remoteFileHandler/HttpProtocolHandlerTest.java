@@ -0,0 +1,354 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A broken download is resumed from where it stopped, a download conditional
+ * on a version fails if the file has changed and files are stored with PUT,
+ * no more at once than maxConnections, against a local HTTP server.
+ *
+ * @author Yoichi
+ *
+ */
+public class HttpProtocolHandlerTest
+{
+	private static final String E_TAG = "\"v1\"";
+	private static final String LAST_MODIFIED = "Tue, 01 Oct 2013 10:00:00 GMT";
+
+	private FakeServer server;
+	private HttpProtocolHandler handler;
+	private File dir;
+	private byte[] content;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		this.content = new byte[1024 * 1024 + 17];
+		new Random(1).nextBytes(this.content);
+		this.server = new FakeServer(this.content);
+		this.handler = new HttpProtocolHandler();
+		this.dir = Files.createTempDirectory("pals").toFile();
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		this.server.stop();
+		for (File file : this.dir.listFiles())
+			file.delete();
+		this.dir.delete();
+	}
+
+	@Test
+	public void testResumesBrokenDownload() throws Exception
+	{
+		this.server.isBreaking.set(true);
+		File local = new File(this.dir, "local.csv");
+		RemoteFileVersion version = this.handler.download(
+				this.server.url("/site.csv"), local, null);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()), this.content);
+		Assert.assertEquals(version.getETag(), E_TAG);
+		Assert.assertEquals(this.server.ranges,
+				Arrays.asList("bytes=" + FakeServer.BREAK_AFTER + "-"));
+		// no temporary files are left
+		Assert.assertEquals(this.dir.listFiles().length, 1);
+	}
+
+	@Test
+	public void testConditionalGet() throws Exception
+	{
+		File local = new File(this.dir, "local.csv");
+		RemoteFileVersion version = this.handler.getVersion(this.server
+				.url("/site.csv"));
+		Assert.assertEquals(version, new RemoteFileVersion(E_TAG,
+				LAST_MODIFIED, this.content.length));
+		Assert.assertEquals(this.handler.download(
+				this.server.url("/site.csv"), local, version), version);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()), this.content);
+		Assert.assertEquals(this.server.preconditions,
+				Arrays.asList("If-Match: " + E_TAG));
+
+		// the file has changed since the version was asked for
+		assertChanged(new RemoteFileVersion("\"v0\"", LAST_MODIFIED,
+				this.content.length));
+		// a weak ETag can't be matched, so the modification time is sent
+		assertChanged(new RemoteFileVersion("W/\"v1\"",
+				"Mon, 30 Sep 2013 10:00:00 GMT", this.content.length));
+		Assert.assertEquals(this.server.preconditions.get(2),
+				"If-Unmodified-Since: Mon, 30 Sep 2013 10:00:00 GMT");
+
+		// a server that ignores the preconditions sends the new file
+		this.server.ignoresPreconditions = true;
+		assertChanged(new RemoteFileVersion("\"v0\"", LAST_MODIFIED,
+				this.content.length));
+		Assert.assertEquals(this.dir.listFiles().length, 1);
+	}
+
+	@Test
+	public void testStore() throws Exception
+	{
+		File local = new File(this.dir, "r.flux.nc");
+		Files.write(local.toPath(), this.content);
+		URL storeUrl = this.handler.getStoreUrl(this.server
+				.url("/store/site.csv"));
+		Assert.assertEquals(storeUrl, this.server.url("/store"));
+		this.handler.storeFilesIntoStoreAsync(
+				Collections.singletonMap("obsFlux", local),
+				Collections.singletonMap("obsFlux", new URL(storeUrl
+						+ "/r.flux.nc"))).get();
+		Assert.assertEquals(this.server.stored.get("/store/r.flux.nc"),
+				this.content);
+	}
+
+	@Test
+	public void testLimitsConnections() throws Exception
+	{
+		this.handler.setMaxConnections(2);
+		Map<String, File> localFiles = new HashMap<String, File>();
+		Map<String, URL> remoteUrls = new HashMap<String, URL>();
+		for (int i = 0; i < 6; i++)
+		{
+			File local = new File(this.dir, "r" + i + ".nc");
+			Files.write(local.toPath(), this.content);
+			localFiles.put("r" + i, local);
+			remoteUrls.put("r" + i, this.server.url("/store/r" + i + ".nc"));
+		}
+		UrlProtocolHandlerFactory.setIoThreads(6);
+		try
+		{
+			this.handler.storeFilesIntoStore(localFiles, remoteUrls);
+		}
+		finally
+		{
+			UrlProtocolHandlerFactory.shutdownIoExecutor();
+		}
+		Assert.assertEquals(this.server.stored.size(), 6);
+		Assert.assertEquals(this.server.maxPuts.get(), 2);
+	}
+
+	@Test
+	public void testDrainsOnlySmallRemainders() throws Exception
+	{
+		int max = (int) HttpTransfer.MAX_DRAIN_BYTES;
+		Assert.assertTrue(HttpTransfer.drain(new ByteArrayInputStream(
+				new byte[max])));
+		// the rest of a large download is not read to keep the connection
+		ByteArrayInputStream large = new ByteArrayInputStream(this.content);
+		Assert.assertFalse(HttpTransfer.drain(large));
+		Assert.assertTrue(large.available() > 0);
+	}
+
+	private void assertChanged(RemoteFileVersion version) throws Exception
+	{
+		File other = new File(this.dir, "other.csv");
+		try
+		{
+			this.handler.download(this.server.url("/site.csv"), other,
+					version);
+			Assert.fail("downloaded a changed file");
+		}
+		catch (HttpTransfer.HttpStatusException e)
+		{
+			Assert.assertEquals(e.getStatus(), 412);
+		}
+		Assert.assertFalse(other.exists());
+	}
+
+	/**
+	 * Serves one file and keeps what is PUT. While isBreaking, a full GET
+	 * closes the connection after BREAK_AFTER bytes.
+	 */
+	private static class FakeServer implements HttpHandler
+	{
+		static final int BREAK_AFTER = 100000;
+
+		final AtomicBoolean isBreaking = new AtomicBoolean();
+		final List<String> ranges = new CopyOnWriteArrayList<String>();
+		final List<String> preconditions = new CopyOnWriteArrayList<String>();
+		volatile boolean ignoresPreconditions = false;
+		final Map<String, byte[]> stored = new ConcurrentHashMap<String, byte[]>();
+		/** the most PUTs served at once */
+		final AtomicInteger maxPuts = new AtomicInteger();
+		private final AtomicInteger numOfPuts = new AtomicInteger();
+
+		private final byte[] content;
+		private final HttpServer server;
+		private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		FakeServer(byte[] content) throws IOException
+		{
+			this.content = content;
+			this.server = HttpServer.create(new InetSocketAddress("localhost",
+					0), 0);
+			this.server.createContext("/", this);
+			this.server.setExecutor(this.executor);
+			this.server.start();
+		}
+
+		URL url(String path) throws IOException
+		{
+			return new URL("http://localhost:"
+					+ this.server.getAddress().getPort() + path);
+		}
+
+		void stop()
+		{
+			this.server.stop(0);
+			this.executor.shutdownNow();
+		}
+
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			try
+			{
+				if ("PUT".equals(exchange.getRequestMethod()))
+				{
+					int numOfPuts = this.numOfPuts.incrementAndGet();
+					try
+					{
+						synchronized (this.maxPuts)
+						{
+							if (numOfPuts > this.maxPuts.get()) this.maxPuts
+									.set(numOfPuts);
+						}
+						this.stored.put(exchange.getRequestURI().getPath(),
+								readFully(exchange.getRequestBody()));
+						// long enough for the other uploads to come in
+						Thread.sleep(100);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						this.numOfPuts.decrementAndGet();
+					}
+					exchange.sendResponseHeaders(201, -1);
+					return;
+				}
+				exchange.getResponseHeaders().set("ETag", E_TAG);
+				exchange.getResponseHeaders().set("Last-Modified",
+						LAST_MODIFIED);
+				if (!this.ignoresPreconditions && !isPreconditionMet(exchange))
+				{
+					exchange.sendResponseHeaders(412, -1);
+					return;
+				}
+				if ("HEAD".equals(exchange.getRequestMethod()))
+				{
+					exchange.getResponseHeaders().set("Content-Length",
+							String.valueOf(this.content.length));
+					exchange.sendResponseHeaders(200, -1);
+					return;
+				}
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				if (range != null
+						&& E_TAG.equals(exchange.getRequestHeaders().getFirst(
+								"If-Range")))
+				{
+					this.ranges.add(range);
+					int start = Integer.parseInt(range.substring(
+							"bytes=".length(), range.length() - 1));
+					exchange.getResponseHeaders().set(
+							"Content-Range",
+							"bytes " + start + "-" + (this.content.length - 1)
+									+ "/" + this.content.length);
+					exchange.sendResponseHeaders(206, this.content.length
+							- start);
+					OutputStream outputStream = exchange.getResponseBody();
+					outputStream.write(this.content, start,
+							this.content.length - start);
+					outputStream.close();
+					return;
+				}
+				exchange.sendResponseHeaders(200, this.content.length);
+				OutputStream outputStream = exchange.getResponseBody();
+				if (this.isBreaking.compareAndSet(true, false))
+				{
+					outputStream.write(this.content, 0, BREAK_AFTER);
+					outputStream.flush();
+					// closing it short of the length breaks the connection
+					return;
+				}
+				outputStream.write(this.content);
+				outputStream.close();
+			}
+			finally
+			{
+				try
+				{
+					exchange.close();
+				}
+				catch (RuntimeException e)
+				{
+					// the broken response
+				}
+			}
+		}
+
+		/**
+		 * Records the precondition of the request
+		 *
+		 * @return true if there is none, or the file meets it
+		 */
+		private boolean isPreconditionMet(HttpExchange exchange)
+		{
+			String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+			String ifUnmodifiedSince = exchange.getRequestHeaders().getFirst(
+					"If-Unmodified-Since");
+			if (ifMatch != null)
+			{
+				this.preconditions.add("If-Match: " + ifMatch);
+				return E_TAG.equals(ifMatch);
+			}
+			if (ifUnmodifiedSince != null)
+			{
+				this.preconditions.add("If-Unmodified-Since: "
+						+ ifUnmodifiedSince);
+				return LAST_MODIFIED.equals(ifUnmodifiedSince);
+			}
+			return true;
+		}
+
+		private static byte[] readFully(InputStream inputStream)
+				throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = inputStream.read(buffer)) != -1)
+				bytes.write(buffer, 0, n);
+			return bytes.toByteArray();
+		}
+	}
+}
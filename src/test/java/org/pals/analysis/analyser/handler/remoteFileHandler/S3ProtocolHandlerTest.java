@@ -0,0 +1,383 @@
+package org.pals.analysis.analyser.handler.remoteFileHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Large objects are downloaded in ranges and uploaded in parts, against an
+ * in-memory stand-in for an S3-compatible store; an object that has changed
+ * since its version was asked for is not downloaded, and a failed multipart
+ * upload is aborted.
+ *
+ * @author Yoichi
+ *
+ */
+public class S3ProtocolHandlerTest
+{
+	private static final int PART_SIZE = 1024 * 1024;
+
+	private FakeS3 s3;
+	private S3ProtocolHandler handler;
+	private File dir;
+	private byte[] content;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		this.s3 = new FakeS3();
+		this.handler = new S3ProtocolHandler();
+		this.handler.setAccessKey(FakeS3.ACCESS_KEY);
+		this.handler.setSecretKey("secret");
+		this.handler.setPartSize(PART_SIZE);
+		this.handler.setMultipartThreshold(PART_SIZE);
+		this.dir = Files.createTempDirectory("pals").toFile();
+		this.content = new byte[3 * PART_SIZE + 17];
+		new Random(1).nextBytes(this.content);
+	}
+
+	@AfterMethod
+	public void tearDown()
+	{
+		this.s3.stop();
+		for (File file : this.dir.listFiles())
+			file.delete();
+		this.dir.delete();
+	}
+
+	@Test
+	public void testRouting() throws Exception
+	{
+		Assert.assertTrue(UrlProtocolHandlerFactory.getHandler(new URL(
+				"https://archive.s3.ap-southeast-2.amazonaws.com/site/a.csv")) instanceof S3ProtocolHandler);
+		Assert.assertTrue(UrlProtocolHandlerFactory.getHandler(new URL(
+				"file:///tmp/a.csv")) instanceof FileProtocolHandler);
+		Assert.assertEquals(
+				this.handler.getStoreUrl(this.s3.url("/archive/site/a.csv")),
+				this.s3.url("/archive/site"));
+	}
+
+	@Test
+	public void testRangedDownload() throws Exception
+	{
+		this.s3.objects.put("/archive/site data.csv", this.content);
+		File local = new File(this.dir, "local.csv");
+		this.handler.copyRemoteFileToLocal(
+				this.s3.url("/archive/site%20data.csv"), local);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()), this.content);
+		Assert.assertEquals(this.s3.rangedGets.get(), 4);
+		// no temporary files are left
+		Assert.assertEquals(this.dir.listFiles().length, 1);
+	}
+
+	@Test
+	public void testChangedObjectIsNotDownloaded() throws Exception
+	{
+		this.s3.objects.put("/archive/site.csv", this.content);
+		URL url = this.s3.url("/archive/site.csv");
+		RemoteFileVersion version = this.handler.getVersion(url);
+		File local = new File(this.dir, "local.csv");
+		this.handler.copyRemoteFileToLocal(url, local, version);
+		Assert.assertEquals(Files.readAllBytes(local.toPath()), this.content);
+		Assert.assertTrue(local.delete());
+
+		// the ranged GETs send the ETag of the HEAD with If-Match
+		byte[] changed = this.content.clone();
+		changed[0]++;
+		this.s3.objects.put("/archive/site.csv", changed);
+		try
+		{
+			this.handler.copyRemoteFileToLocal(url, local, version);
+			Assert.fail("downloaded a changed object");
+		}
+		catch (HttpTransfer.HttpStatusException e)
+		{
+			Assert.assertEquals(e.getStatus(), 412);
+		}
+		Assert.assertEquals(this.dir.listFiles().length, 0);
+	}
+
+	@Test
+	public void testMultipartUpload() throws Exception
+	{
+		File flux = new File(this.dir, "flux.nc");
+		Files.write(flux.toPath(), this.content);
+		File met = new File(this.dir, "met.nc");
+		Files.write(met.toPath(), new byte[] { 1, 2, 3 });
+		Map<String, File> localFiles = new LinkedHashMap<String, File>();
+		localFiles.put("obsFlux", flux);
+		localFiles.put("obsMet", met);
+		Map<String, URL> remoteUrls = new LinkedHashMap<String, URL>();
+		remoteUrls.put("obsFlux", this.s3.url("/archive/out/r.flux.nc"));
+		remoteUrls.put("obsMet", this.s3.url("/archive/out/r.met.nc"));
+
+		this.handler.storeFilesIntoStoreAsync(localFiles, remoteUrls).get();
+		Assert.assertEquals(this.s3.objects.get("/archive/out/r.flux.nc"),
+				this.content);
+		Assert.assertEquals(this.s3.objects.get("/archive/out/r.met.nc"),
+				new byte[] { 1, 2, 3 });
+		Assert.assertEquals(this.s3.parts.get(), 4);
+		Assert.assertTrue(this.s3.uploads.isEmpty());
+	}
+
+	@Test
+	public void testFailedUploadIsAborted() throws Exception
+	{
+		File flux = new File(this.dir, "flux.nc");
+		Files.write(flux.toPath(), this.content);
+		this.s3.failingPartNumber = 2;
+		try
+		{
+			this.handler.storeFilesIntoStoreAsync(
+					Collections.singletonMap("obsFlux", flux),
+					Collections.singletonMap("obsFlux",
+							this.s3.url("/archive/out/r.flux.nc"))).get();
+			Assert.fail("the upload did not fail");
+		}
+		catch (ExecutionException e)
+		{
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+		Assert.assertEquals(this.s3.aborts.get(), 1);
+		Assert.assertTrue(this.s3.uploads.isEmpty());
+		Assert.assertFalse(this.s3.objects.containsKey("/archive/out/r.flux.nc"));
+	}
+
+	/**
+	 * Objects by path, with the S3 operations the handler uses
+	 */
+	private static class FakeS3 implements HttpHandler
+	{
+		static final String ACCESS_KEY = "test";
+		private static final Pattern PART_PATTERN = Pattern
+				.compile("<PartNumber>(\\d+)</PartNumber><ETag>([^<]*)</ETag>");
+
+		final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+		final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+		final AtomicInteger rangedGets = new AtomicInteger();
+		final AtomicInteger parts = new AtomicInteger();
+		final AtomicInteger aborts = new AtomicInteger();
+		volatile int failingPartNumber = -1;
+
+		private final HttpServer server;
+		private final ExecutorService executor = Executors.newFixedThreadPool(8);
+		private final AtomicInteger uploadCount = new AtomicInteger();
+
+		FakeS3() throws IOException
+		{
+			this.server = HttpServer.create(new InetSocketAddress("localhost",
+					0), 0);
+			this.server.createContext("/", this);
+			this.server.setExecutor(this.executor);
+			this.server.start();
+		}
+
+		URL url(String path) throws IOException
+		{
+			return new URL("http://localhost:"
+					+ this.server.getAddress().getPort() + path);
+		}
+
+		void stop()
+		{
+			this.server.stop(0);
+			this.executor.shutdownNow();
+		}
+
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			try
+			{
+				String authorization = exchange.getRequestHeaders().getFirst(
+						"Authorization");
+				if (authorization == null
+						|| !authorization.startsWith(AwsV4Signer.ALGORITHM
+								+ " Credential=" + ACCESS_KEY + "/")) respond(
+						exchange, 403, new byte[0]);
+				else
+					dispatch(exchange);
+			}
+			finally
+			{
+				exchange.close();
+			}
+		}
+
+		private void dispatch(HttpExchange exchange) throws IOException
+		{
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getPath();
+			Map<String, String> query = parseQuery(exchange.getRequestURI()
+					.getRawQuery());
+			byte[] body = readFully(exchange.getRequestBody());
+			String uploadId = query.get("uploadId");
+
+			if ("HEAD".equals(method))
+			{
+				byte[] object = this.objects.get(path);
+				if (object == null)
+				{
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Length",
+						String.valueOf(object.length));
+				exchange.getResponseHeaders().set("ETag", eTag(object));
+				exchange.sendResponseHeaders(200, -1);
+			}
+			else if ("GET".equals(method))
+			{
+				byte[] object = this.objects.get(path);
+				if (object == null)
+				{
+					respond(exchange, 404, new byte[0]);
+					return;
+				}
+				String ifMatch = exchange.getRequestHeaders().getFirst(
+						"If-Match");
+				if (ifMatch != null && !ifMatch.equals(eTag(object)))
+				{
+					respond(exchange, 412, new byte[0]);
+					return;
+				}
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				if (range == null)
+				{
+					respond(exchange, 200, object);
+					return;
+				}
+				this.rangedGets.incrementAndGet();
+				String[] bounds = range.substring("bytes=".length()).split("-");
+				int start = Integer.parseInt(bounds[0]);
+				int end = Math.min(Integer.parseInt(bounds[1]),
+						object.length - 1);
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + start + "-" + end + "/" + object.length);
+				respond(exchange, 206,
+						Arrays.copyOfRange(object, start, end + 1));
+			}
+			else if ("PUT".equals(method) && uploadId != null)
+			{
+				int partNumber = Integer.parseInt(query.get("partNumber"));
+				Map<Integer, byte[]> upload = this.uploads.get(uploadId);
+				if (upload == null || partNumber == this.failingPartNumber)
+				{
+					respond(exchange, 500, "<Error/>".getBytes("UTF-8"));
+					return;
+				}
+				this.parts.incrementAndGet();
+				upload.put(partNumber, body);
+				exchange.getResponseHeaders().set("ETag", eTag(body));
+				respond(exchange, 200, new byte[0]);
+			}
+			else if ("PUT".equals(method))
+			{
+				this.objects.put(path, body);
+				exchange.getResponseHeaders().set("ETag", eTag(body));
+				respond(exchange, 200, new byte[0]);
+			}
+			else if ("POST".equals(method) && query.containsKey("uploads"))
+			{
+				String newUploadId = "upload-"
+						+ this.uploadCount.incrementAndGet();
+				this.uploads.put(newUploadId, new TreeMap<Integer, byte[]>());
+				respond(exchange, 200, ("<InitiateMultipartUploadResult><UploadId>"
+						+ newUploadId + "</UploadId></InitiateMultipartUploadResult>")
+						.getBytes("UTF-8"));
+			}
+			else if ("POST".equals(method) && uploadId != null)
+			{
+				Map<Integer, byte[]> upload = this.uploads.remove(uploadId);
+				ByteArrayOutputStream object = new ByteArrayOutputStream();
+				Matcher matcher = PART_PATTERN.matcher(new String(body,
+						"UTF-8"));
+				while (matcher.find())
+				{
+					byte[] part = upload.get(Integer.valueOf(matcher.group(1)));
+					Assert.assertEquals(matcher.group(2), eTag(part));
+					object.write(part);
+				}
+				this.objects.put(path, object.toByteArray());
+				respond(exchange, 200,
+						"<CompleteMultipartUploadResult/>".getBytes("UTF-8"));
+			}
+			else if ("DELETE".equals(method) && uploadId != null)
+			{
+				this.uploads.remove(uploadId);
+				this.aborts.incrementAndGet();
+				exchange.sendResponseHeaders(204, -1);
+			}
+			else
+				respond(exchange, 400, new byte[0]);
+		}
+
+		private static String eTag(byte[] content)
+		{
+			return "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"";
+		}
+
+		private static Map<String, String> parseQuery(String query)
+		{
+			Map<String, String> parameters = new TreeMap<String, String>();
+			if (query == null) return parameters;
+			for (String parameter : query.split("&"))
+			{
+				int index = parameter.indexOf('=');
+				if (index < 0) parameters.put(parameter, "");
+				else
+					parameters.put(parameter.substring(0, index),
+							parameter.substring(index + 1));
+			}
+			return parameters;
+		}
+
+		private static void respond(HttpExchange exchange, int status,
+				byte[] body) throws IOException
+		{
+			exchange.sendResponseHeaders(status, body.length == 0 ? -1
+					: body.length);
+			if (body.length == 0) return;
+			OutputStream outputStream = exchange.getResponseBody();
+			outputStream.write(body);
+			outputStream.close();
+		}
+
+		private static byte[] readFully(InputStream inputStream)
+				throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = inputStream.read(buffer)) != -1)
+				bytes.write(buffer, 0, n);
+			return bytes.toByteArray();
+		}
+	}
+}
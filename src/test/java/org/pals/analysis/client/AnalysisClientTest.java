@@ -0,0 +1,188 @@
+package org.pals.analysis.client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pals.analysis.rabbitmq.AnalysisMessageParserJackson;
+import org.pals.analysis.rabbitmq.FakeChannel;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/**
+ * Many requests are pipelined over one channel within the in-flight window,
+ * and each reply completes the future of its own request.
+ *
+ * @author Yoichi
+ *
+ */
+public class AnalysisClientTest
+{
+	private static final String DROP = "DROP";
+
+	@Test
+	public void testConcurrentRequests() throws Exception
+	{
+		FakeBroker broker = new FakeBroker();
+		AnalysisClient client = new AnalysisClient(broker.createConnection());
+		client.setMaxInFlight(16);
+		client.init();
+		Assert.assertEquals(client.getReplyQueueName(), "amq.gen-reply");
+
+		List<CompletableFuture<AnalysisReply>> futures = new ArrayList<CompletableFuture<AnalysisReply>>();
+		for (int i = 0; i < 200; i++)
+		{
+			Map<String, Object> arguments = new HashMap<String, Object>();
+			arguments.put("index", i);
+			futures.add(client.send(new AnalysisRequest("OBS" + i, arguments),
+					10, TimeUnit.SECONDS));
+		}
+		for (int i = 0; i < futures.size(); i++)
+		{
+			AnalysisReply reply = futures.get(i).get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(reply.getAnalysisResults().get("analysisName"),
+					"OBS" + i);
+		}
+		Assert.assertEquals(broker.numOfPublished.get(), 200);
+		Assert.assertTrue(broker.maxOutstanding.get() <= 16,
+				"window exceeded: " + broker.maxOutstanding.get());
+		Assert.assertEquals(client.getNumOfPendingCalls(), 0);
+		client.close();
+		broker.responder.shutdownNow();
+	}
+
+	@Test
+	public void testTimeout() throws Exception
+	{
+		FakeBroker broker = new FakeBroker();
+		AnalysisClient client = new AnalysisClient(broker.createConnection());
+		client.setDirectReplyTo(true);
+		client.setMaxInFlight(1);
+		client.init();
+		Assert.assertEquals(client.getReplyQueueName(),
+				AnalysisClient.DIRECT_REPLY_TO);
+
+		CompletableFuture<AnalysisReply> future = client.send(
+				new AnalysisRequest(DROP, null), 100, TimeUnit.MILLISECONDS);
+		try
+		{
+			future.get(10, TimeUnit.SECONDS);
+			Assert.fail("the request should time out");
+		}
+		catch (ExecutionException e)
+		{
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertEquals(client.getNumOfPendingCalls(), 0);
+
+		// the window permit came back
+		Assert.assertNotNull(client.send(new AnalysisRequest("OBS", null))
+				.get(10, TimeUnit.SECONDS));
+		client.close();
+		broker.responder.shutdownNow();
+	}
+
+	/**
+	 * Replies to every request except DROP on another thread, like a worker
+	 */
+	private static class FakeBroker extends FakeChannel
+	{
+		private final ExecutorService responder = Executors
+				.newFixedThreadPool(4);
+		private final AtomicInteger numOfPublished = new AtomicInteger();
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicInteger maxOutstanding = new AtomicInteger();
+
+		Connection createConnection()
+		{
+			return (Connection) Proxy.newProxyInstance(
+					Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new InvocationHandler()
+					{
+						public Object invoke(Object proxy, Method method,
+								Object[] args)
+						{
+							if ("createChannel".equals(method.getName()))
+								return createProxy();
+							return null;
+						}
+					});
+		}
+
+		@Override
+		protected Object handle(String name, Object[] args) throws Exception
+		{
+			if ("queueDeclare".equals(name))
+				return new AMQImpl.Queue.DeclareOk("amq.gen-reply", 0, 1);
+			if ("basicPublish".equals(name))
+			{
+				this.numOfPublished.incrementAndGet();
+				int now = this.outstanding.incrementAndGet();
+				while (true)
+				{
+					int max = this.maxOutstanding.get();
+					if (now <= max
+							|| this.maxOutstanding.compareAndSet(max, now))
+						break;
+				}
+				reply((BasicProperties) args[2], (byte[]) args[3]);
+			}
+			return null;
+		}
+
+		private void reply(final BasicProperties props, final byte[] body)
+				throws Exception
+		{
+			final AnalysisRequest request = AnalysisMessageParserJackson.INSTANCE
+					.deserializeRequest(props.getContentType(), body);
+			if (DROP.equals(request.getAnalysisName()))
+			{
+				this.outstanding.decrementAndGet();
+				return;
+			}
+			this.responder.submit(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						Thread.sleep(1);
+						Map<String, Object> results = new HashMap<String, Object>();
+						results.put("analysisName", request.getAnalysisName());
+						byte[] replyBody = AnalysisMessageParserJackson.INSTANCE
+								.serializeReplyAsBytes(
+										props.getContentType(),
+										new AnalysisReply(request
+												.getRequestId(),
+												AnalysisReply.Status.NORMAL,
+												results));
+						outstanding.decrementAndGet();
+						getConsumer().handleDelivery("ctag", null, props,
+								replyBody);
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pals.analysis.analyser.handler.CSV2NetCDFHandler;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * JMH benchmark of the worker's per-delivery message handling: decoding a
+ * request body and encoding its reply.
+ * 
+ * perDelivery is what the worker used to do, i.e. a new ObjectMapper per
+ * delivery and a String in both directions. shared is the shared parser
+ * reading from and writing to byte[]. Run it with the GC profiler to see the
+ * allocation per operation:
+ * 
+ * java -cp target/test-classes:target/classes:... \
+ * org.pals.analysis.rabbitmq.AnalysisMessageParserBenchmark
+ * 
+ * It is not a TestNG test and is not in testng.xml.
+ * 
+ * @author Yoichi
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisMessageParserBenchmark
+{
+	private final static String JSON_TYPE = "application/json";
+
+	private byte[] requestBody;
+	private AnalysisReply reply;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		// the arguments CSV2NetCDFHandler reads; the store is next to the CSV
+		Map<String, Object> arguments = new HashMap<String, Object>();
+		arguments.put(CSV2NetCDFHandler.OBS_CSV,
+				"file:///tmp/palsAnalyser/input/flux.csv");
+		arguments.put(CSV2NetCDFHandler.USER_NAME, "benchmark");
+		arguments.put(CSV2NetCDFHandler.DATA_SET_NAME, "TumbaFluxnet");
+		arguments.put(CSV2NetCDFHandler.DATA_SET_VERSION_NAME, "1.4");
+		arguments.put(CSV2NetCDFHandler.LONGITUDE, "148.15");
+		arguments.put(CSV2NetCDFHandler.LATITUDE, "-35.66");
+		arguments.put(CSV2NetCDFHandler.ELEVATION, "1200");
+		arguments.put(CSV2NetCDFHandler.TOWER_HEIGHT, "70");
+		AnalysisRequest request = new AnalysisRequest(
+				AnalysisRequest.CVS2NETCDF, arguments);
+		this.requestBody = AnalysisMessageParserJackson.INSTANCE
+				.serializeRequest(JSON_TYPE, request).getBytes("UTF-8");
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		results.put(CSV2NetCDFHandler.OBS_FLUX,
+				"file:///tmp/palsAnalyser/store/flux.nc");
+		results.put(CSV2NetCDFHandler.OBS_MET,
+				"file:///tmp/palsAnalyser/store/met.nc");
+		this.reply = new AnalysisReply(request.getRequestId(),
+				AnalysisReply.Status.NORMAL, results);
+	}
+
+	@Benchmark
+	public byte[] perDelivery() throws Exception
+	{
+		ObjectMapper mapper = new ObjectMapper();
+		String message = new String(this.requestBody, "UTF-8");
+		AnalysisRequest request = mapper.readValue(message,
+				AnalysisRequest.class);
+		this.reply.setRequestId(request.getRequestId());
+		return mapper.writeValueAsString(this.reply).getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public byte[] shared() throws MessageParserException,
+			UnsupportedEncodingException
+	{
+		AnalysisMessageParser parser = AnalysisMessageParserJackson.INSTANCE;
+		AnalysisRequest request = parser.deserializeRequest(JSON_TYPE,
+				this.requestBody);
+		this.reply.setRequestId(request.getRequestId());
+		return parser.serializeReplyAsBytes(JSON_TYPE, this.reply);
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		Options options = new OptionsBuilder()
+				.include(AnalysisMessageParserBenchmark.class.getSimpleName())
+				.addProfiler("gc").build();
+		new Runner(options).run();
+	}
+}
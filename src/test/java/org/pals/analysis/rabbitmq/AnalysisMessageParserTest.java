@@ -0,0 +1,92 @@
+package org.pals.analysis.rabbitmq;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Round trips of requests and replies through the content types of
+ * AnalysisMessageParserJackson
+ * 
+ * @author Yoichi
+ * 
+ */
+public class AnalysisMessageParserTest
+{
+	private final AnalysisMessageParser parser = AnalysisMessageParserJackson.INSTANCE;
+
+	@Test
+	public void testJsonWithCharset() throws MessageParserException
+	{
+		String contentType = "Application/JSON; charset=UTF-8";
+		Assert.assertTrue(parser.isSupported(contentType));
+		AnalysisRequest request = createRequest();
+		String message = parser.serializeRequest(contentType, request);
+		AnalysisRequest parsed = parser.deserializeRequest(contentType,
+				message);
+		Assert.assertEquals(parsed.getRequestId(), request.getRequestId());
+		Assert.assertEquals(parsed.getAnalysisArguments(),
+				request.getAnalysisArguments());
+	}
+
+	@Test
+	public void testSmile() throws MessageParserException
+	{
+		String contentType = AnalysisMessageParserJackson.CONTENT_TYPE_SMILE;
+		AnalysisRequest request = createRequest();
+		byte[] body = parser.serializeRequestAsBytes(contentType, request);
+		AnalysisRequest parsed = parser.deserializeRequest(contentType, body);
+		Assert.assertEquals(parsed.getRequestId(), request.getRequestId());
+		Assert.assertEquals(parsed.getAnalysisName(),
+				request.getAnalysisName());
+
+		AnalysisReply reply = createReply(request);
+		byte[] smile = parser.serializeReplyAsBytes(contentType, reply);
+		byte[] json = parser.serializeReplyAsBytes(
+				AnalysisMessageParserJackson.CONTENT_TYPE_JSON, reply);
+		Assert.assertTrue(smile.length < json.length, smile.length + " >= "
+				+ json.length);
+		AnalysisReply parsedReply = parser.deserializeReply(contentType, smile);
+		Assert.assertEquals(parsedReply.getStatus(), reply.getStatus());
+		Assert.assertEquals(parsedReply.getAnalysisResults(),
+				reply.getAnalysisResults());
+	}
+
+	@Test(expectedExceptions = MessageParserException.class)
+	public void testSmileIsNotAString() throws MessageParserException
+	{
+		parser.serializeRequest(
+				AnalysisMessageParserJackson.CONTENT_TYPE_SMILE,
+				createRequest());
+	}
+
+	@Test
+	public void testUnknownContentType()
+	{
+		Assert.assertFalse(parser.isSupported("text/plain"));
+		Assert.assertFalse(parser.isSupported(null));
+	}
+
+	private AnalysisRequest createRequest()
+	{
+		Map<String, Object> arguments = new HashMap<String, Object>();
+		arguments.put("csvFileUrl", "file:///tmp/flux.csv");
+		arguments.put("lat", "-35.66");
+		return new AnalysisRequest(AnalysisRequest.CVS2NETCDF, arguments);
+	}
+
+	private AnalysisReply createReply(AnalysisRequest request)
+	{
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (int i = 0; i < 100; i++)
+		{
+			results.put("obsFlux" + i, "file:///tmp/store/flux" + i + ".nc");
+		}
+		return new AnalysisReply(request.getRequestId(),
+				AnalysisReply.Status.NORMAL, results);
+	}
+}
@@ -74,7 +74,16 @@ public class AnalysisRequestTest
 
 		ConnectionFactory factory = new ConnectionFactory();
 		factory.setHost("localhost");
-		this.connection = factory.newConnection();
+		try
+		{
+			this.connection = factory.newConnection();
+		}
+		catch (IOException e)
+		{
+			// the workers would keep reconnecting to the broker
+			this.analysisServlet.destroy();
+			throw e;
+		}
 		this.channel = connection.createChannel();
 
 		this.replyQueueName = this.channel.queueDeclare().getQueue();
@@ -0,0 +1,223 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.pals.analysis.analyser.Analyser;
+import org.pals.analysis.request.AnalysisBatchRequest;
+import org.pals.analysis.request.AnalysisBatchRequest.ReplyMode;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * A batch is analysed in parallel and replied once (AGGREGATE) or per request
+ * (STREAM); a failed request does not fail the others, and the delivery is
+ * acknowledged once all its replies are published.
+ *
+ * @author Yoichi
+ *
+ */
+public class AnalysisWorkerBatchTest
+{
+	private static final String JSON_TYPE = "application/json";
+	private static final String QUEUE_NAME = "pals_analysis";
+	private static final int BATCH_SIZE = 5;
+	private static final String FAILING = "FAILING";
+
+	private ReplyRecordingChannel fake;
+	private AnalysisWorker worker;
+	private Thread thread;
+
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		this.fake = new ReplyRecordingChannel();
+		final Channel channel = this.fake.createProxy();
+		this.worker = new AnalysisWorker("test", QUEUE_NAME, new File("/tmp"),
+				new File("/tmp"));
+		this.worker.setConcurrency(2);
+		this.worker.setConfirmEnabled(false);
+		this.worker.setAckBatchSize(1);
+		this.worker.setAnalyser(new FakeAnalyser());
+		this.worker.init();
+		this.thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					worker.consumePushed(channel);
+				}
+				catch (Exception ignore)
+				{
+				}
+			}
+		});
+		this.thread.start();
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception
+	{
+		this.worker.destroy();
+		this.thread.interrupt();
+		this.thread.join();
+	}
+
+	@Test
+	public void testBatches() throws Exception
+	{
+		Consumer consumer = this.fake.awaitConsumer();
+		AnalysisMessageParser parser = AnalysisMessageParserJackson.INSTANCE;
+		deliver(consumer, parser, 1, ReplyMode.STREAM);
+		deliver(consumer, parser, 2, ReplyMode.AGGREGATE);
+		Assert.assertTrue(this.fake.acks.await(10, TimeUnit.SECONDS),
+				"the batches were not acknowledged");
+
+		Set<Integer> indices = new HashSet<Integer>();
+		AnalysisReply aggregated = null;
+		synchronized (this.fake.replies)
+		{
+			Assert.assertEquals(this.fake.replies.size(), BATCH_SIZE + 1);
+			for (int i = 0; i < this.fake.replies.size(); i++)
+			{
+				BasicProperties props = this.fake.replyProps.get(i);
+				AnalysisReply reply = parser.deserializeReply(JSON_TYPE,
+						this.fake.replies.get(i));
+				Object index = props.getHeaders().get(
+						AnalysisBatchRequest.BATCH_INDEX_HEADER);
+				if ("1".equals(props.getCorrelationId())) indices
+						.add((Integer) index);
+				else
+				{
+					Assert.assertNull(index);
+					aggregated = reply;
+				}
+			}
+		}
+		Assert.assertEquals(indices.size(), BATCH_SIZE);
+		Assert.assertNotNull(aggregated);
+		Assert.assertEquals(aggregated.getStatus(), AnalysisReply.Status.ERROR);
+		List<?> replies = (List<?>) aggregated.getAnalysisResults().get(
+				AnalysisBatchRequest.REPLIES);
+		Assert.assertEquals(replies.size(), BATCH_SIZE);
+	}
+
+	@Test
+	public void testUnpublishedStreamReplyRequeuesBatch() throws Exception
+	{
+		Consumer consumer = this.fake.awaitConsumer();
+		// one of the replies of the STREAM batch
+		this.fake.failingCorrelationId = "1";
+		AnalysisMessageParser parser = AnalysisMessageParserJackson.INSTANCE;
+		deliver(consumer, parser, 1, ReplyMode.STREAM);
+		deliver(consumer, parser, 2, ReplyMode.AGGREGATE);
+		Assert.assertTrue(this.fake.acks.await(10, TimeUnit.SECONDS),
+				"the later batch was held back");
+		synchronized (this.fake)
+		{
+			Assert.assertEquals(this.fake.requeued, Arrays.asList(1L));
+		}
+	}
+
+	private void deliver(Consumer consumer, AnalysisMessageParser parser,
+			long deliveryTag, ReplyMode replyMode) throws Exception
+	{
+		List<AnalysisRequest> requests = new ArrayList<AnalysisRequest>();
+		for (int i = 0; i < BATCH_SIZE; i++)
+		{
+			requests.add(new AnalysisRequest(i == 0 ? FAILING
+					: AnalysisRequest.QCPLOT, null));
+		}
+		AnalysisBatchRequest batch = new AnalysisBatchRequest(requests,
+				replyMode);
+		BasicProperties props = new BasicProperties.Builder()
+				.correlationId(String.valueOf(deliveryTag)).replyTo("reply")
+				.contentType(JSON_TYPE)
+				.type(AnalysisBatchRequest.MESSAGE_TYPE).build();
+		consumer.handleDelivery("ctag", new Envelope(deliveryTag, false, "",
+				QUEUE_NAME), props, parser.serializeBatchRequestAsBytes(
+				JSON_TYPE, batch));
+	}
+
+	private static class FakeAnalyser implements Analyser
+	{
+		public AnalysisReply analyse(AnalysisRequest request,
+				File inputDataDir, File outputDataDir) throws AnalysisException
+		{
+			if (FAILING.equals(request.getAnalysisName())) throw new AnalysisException(
+					"failed");
+			return new AnalysisReply(request.getRequestId(),
+					AnalysisReply.Status.NORMAL, null);
+		}
+	}
+
+	/**
+	 * Records the published replies and the acked and requeued deliveries;
+	 * the first publish with failingCorrelationId fails
+	 */
+	private static class ReplyRecordingChannel extends FakeChannel
+	{
+		private final CountDownLatch acks = new CountDownLatch(2);
+		private final List<BasicProperties> replyProps = new ArrayList<BasicProperties>();
+		private final List<byte[]> replies = new ArrayList<byte[]>();
+		private final List<Long> requeued = new ArrayList<Long>();
+		private long ackedUpTo = 0;
+		private String failingCorrelationId;
+
+		@Override
+		protected Object handle(String name, Object[] args)
+				throws IOException
+		{
+			if ("basicPublish".equals(name))
+			{
+				synchronized (this.replies)
+				{
+					if (((BasicProperties) args[2]).getCorrelationId().equals(
+							this.failingCorrelationId))
+					{
+						this.failingCorrelationId = null;
+						throw new IOException("connection reset");
+					}
+					this.replyProps.add((BasicProperties) args[2]);
+					this.replies.add((byte[]) args[3]);
+				}
+			}
+			if ("basicAck".equals(name))
+			{
+				synchronized (this)
+				{
+					long tag = (Long) args[0];
+					for (long i = this.ackedUpTo + 1; i <= tag; i++)
+						this.acks.countDown();
+					this.ackedUpTo = Math.max(this.ackedUpTo, tag);
+				}
+			}
+			if ("basicReject".equals(name) && (Boolean) args[1])
+			{
+				synchronized (this)
+				{
+					this.requeued.add((Long) args[0]);
+				}
+			}
+			return null;
+		}
+	}
+}
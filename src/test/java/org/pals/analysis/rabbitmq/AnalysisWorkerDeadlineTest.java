@@ -0,0 +1,131 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pals.analysis.analyser.Analyser;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * The deadline of a delivery is the earliest of its header, its expiration
+ * and maxAnalysisMillis, and a delivery past its deadline is replied TIMEOUT
+ * without being analysed.
+ * 
+ * @author Yoichi
+ * 
+ */
+public class AnalysisWorkerDeadlineTest
+{
+	private static final String JSON_TYPE = "application/json";
+
+	@Test
+	public void testDeadline()
+	{
+		AnalysisWorker worker = new AnalysisWorker("test", "pals_analysis",
+				new File("/tmp"), new File("/tmp"));
+		long now = 1000000;
+		Assert.assertEquals(worker.getDeadline(
+				new BasicProperties.Builder().build(), now), 0);
+
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(AnalysisWorker.DEADLINE_HEADER, now + 5000);
+		Assert.assertEquals(worker.getDeadline(new BasicProperties.Builder()
+				.headers(headers).expiration("9000").build(), now), now + 5000);
+		Assert.assertEquals(worker.getDeadline(new BasicProperties.Builder()
+				.headers(headers).expiration("9000")
+				.timestamp(new Date(now - 6000)).build(), now), now + 3000);
+
+		worker.setMaxAnalysisMillis(2000);
+		Assert.assertEquals(worker.getDeadline(new BasicProperties.Builder()
+				.headers(headers).build(), now), now + 2000);
+	}
+
+	@Test
+	public void testExpiredDeliveryIsNotAnalysed() throws Exception
+	{
+		final AtomicInteger numOfAnalyses = new AtomicInteger();
+		final CountDownLatch replied = new CountDownLatch(1);
+		final byte[][] reply = new byte[1][];
+		FakeChannel fake = new FakeChannel()
+		{
+			@Override
+			protected Object handle(String name, Object[] args)
+			{
+				if ("basicPublish".equals(name))
+				{
+					reply[0] = (byte[]) args[3];
+					replied.countDown();
+				}
+				return null;
+			}
+		};
+		final Channel channel = fake.createProxy();
+
+		final AnalysisWorker worker = new AnalysisWorker("test",
+				"pals_analysis", new File("/tmp"), new File("/tmp"));
+		worker.setConfirmEnabled(false);
+		worker.setAnalyser(new Analyser()
+		{
+			public AnalysisReply analyse(AnalysisRequest request,
+					File inputDataDir, File outputDataDir)
+					throws AnalysisException
+			{
+				numOfAnalyses.incrementAndGet();
+				return new AnalysisReply(request.getRequestId(),
+						AnalysisReply.Status.NORMAL, null);
+			}
+		});
+		worker.init();
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					worker.consumePushed(channel);
+				}
+				catch (Exception ignore)
+				{
+				}
+			}
+		});
+		thread.start();
+		Consumer consumer = fake.awaitConsumer();
+		Assert.assertNotNull(consumer);
+
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(AnalysisWorker.DEADLINE_HEADER,
+				System.currentTimeMillis() - 1);
+		BasicProperties props = new BasicProperties.Builder()
+				.correlationId("corrId").replyTo("reply")
+				.contentType(JSON_TYPE).headers(headers).build();
+		AnalysisMessageParser parser = AnalysisMessageParserJackson.INSTANCE;
+		consumer.handleDelivery("ctag", new Envelope(1, false, "",
+				"pals_analysis"), props, parser.serializeRequestAsBytes(
+				JSON_TYPE, new AnalysisRequest(AnalysisRequest.QCPLOT, null)));
+
+		Assert.assertTrue(replied.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(parser.deserializeReply(JSON_TYPE, reply[0])
+				.getStatus(), AnalysisReply.Status.TIMEOUT);
+		Assert.assertEquals(numOfAnalyses.get(), 0);
+		Assert.assertEquals(worker.getNumOfExpired(), 1);
+
+		worker.destroy();
+		thread.interrupt();
+		thread.join();
+	}
+}
@@ -0,0 +1,105 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * A worker keeps consuming across broker outages: it retries while no
+ * channel can be opened, and consumes again when its channel is closed.
+ * 
+ * @author Yoichi
+ * 
+ */
+public class AnalysisWorkerRecoveryTest
+{
+	@Test
+	public void testRecovery() throws Exception
+	{
+		final AtomicInteger numOfCreateCalls = new AtomicInteger();
+		final CountDownLatch consumed = new CountDownLatch(2);
+		final ClosableChannel[] fakes = new ClosableChannel[2];
+		AmqpConnectionManager manager = new AmqpConnectionManager()
+		{
+			@Override
+			public Channel createChannel() throws IOException
+			{
+				int n = numOfCreateCalls.incrementAndGet();
+				// the broker is down for the first attempt
+				if (n == 1) throw new IOException("connection refused");
+				ClosableChannel fake = new ClosableChannel(consumed);
+				fakes[Math.min(n - 2, 1)] = fake;
+				return fake.createProxy();
+			}
+		};
+		manager.setInitialReconnectDelayMillis(10);
+
+		AnalysisWorker worker = new AnalysisWorker("test", "pals_analysis",
+				new File("/tmp"), new File("/tmp"));
+		worker.setConnectionManager(manager);
+		worker.init();
+		Thread thread = new Thread(worker);
+		thread.start();
+
+		// wait for the first consumer, then drop its channel
+		long deadline = System.currentTimeMillis() + 10000;
+		while (fakes[0] == null || !fakes[0].isConsuming)
+		{
+			Assert.assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		fakes[0].shutDown();
+
+		Assert.assertTrue(consumed.await(10, TimeUnit.SECONDS),
+				"the worker did not consume again");
+		Assert.assertEquals(numOfCreateCalls.get(), 3);
+
+		worker.destroy();
+		thread.join(10000);
+		Assert.assertFalse(thread.isAlive());
+	}
+
+	/**
+	 * Counts the consumers and can be shut down like a lost channel
+	 */
+	private static class ClosableChannel extends FakeChannel
+	{
+		private final CountDownLatch consumed;
+		private volatile boolean isConsuming = false;
+		private ShutdownListener listener;
+
+		ClosableChannel(CountDownLatch consumed)
+		{
+			this.consumed = consumed;
+		}
+
+		void shutDown()
+		{
+			setOpen(false);
+			this.listener.shutdownCompleted(new ShutdownSignalException(false,
+					false, null, null));
+		}
+
+		@Override
+		protected Object handle(String name, Object[] args)
+		{
+			if ("addShutdownListener".equals(name))
+				this.listener = (ShutdownListener) args[0];
+			if ("basicConsume".equals(name))
+			{
+				this.isConsuming = true;
+				this.consumed.countDown();
+			}
+			return null;
+		}
+	}
+}
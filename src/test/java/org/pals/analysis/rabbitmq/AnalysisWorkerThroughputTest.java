@@ -0,0 +1,318 @@
+package org.pals.analysis.rabbitmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.pals.analysis.analyser.Analyser;
+import org.pals.analysis.request.AnalysisException;
+import org.pals.analysis.request.AnalysisReply;
+import org.pals.analysis.request.AnalysisRequest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * The poll and push consumer modes of AnalysisWorker, and a measurement of
+ * their throughput, which main() also runs. It does not need the RabbitMQ
+ * server or Rserve: the channel is a FakeChannel that confirms every publish
+ * at once and counts the acks, and the analyser is a fake which returns a
+ * NORMAL reply and records how many analyses run at once.
+ *
+ * @author Yoichi
+ */
+public class AnalysisWorkerThroughputTest
+{
+	private final static Logger LOGGER = Logger
+			.getLogger(AnalysisWorkerThroughputTest.class.getName());
+	private static final String JSON_TYPE = "application/json";
+	private static final String QUEUE_NAME = "pals_analysis";
+	private static final int NUM_OF_MESSAGES = 30;
+	private static final int CONCURRENCY = 4;
+
+	/**
+	 * Logs the rates of the two modes, with analyses that take no time; the
+	 * poll mode is held back by its sleep after every message. The rates
+	 * depend on the host, so nothing is asserted about them.
+	 */
+	@Test
+	public void measurePollAndPush() throws Exception
+	{
+		double pollRate = measure(false);
+		double pushRate = measure(true);
+		LOGGER.info("[throughput] poll mode: "
+				+ String.format("%.1f", pollRate) + " msg/s, push mode: "
+				+ String.format("%.1f", pushRate) + " msg/s, "
+				+ NUM_OF_MESSAGES + " messages");
+	}
+
+	/**
+	 * Runs measurePollAndPush() outside TestNG
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		new AnalysisWorkerThroughputTest().measurePollAndPush();
+	}
+
+	@Test
+	public void pushAnalysesDeliveriesConcurrently() throws Exception
+	{
+		// every analysis waits until CONCURRENCY of them are in flight
+		FakeAnalyser analyser = new FakeAnalyser(CONCURRENCY);
+		run(true, new AckCountingChannel(CONCURRENCY), analyser, CONCURRENCY);
+		Assert.assertEquals(analyser.maxInFlight, CONCURRENCY);
+		Assert.assertEquals(analyser.numOfTimeouts, 0);
+	}
+
+	@Test
+	public void pollAnalysesOneAtATime() throws Exception
+	{
+		FakeAnalyser analyser = new FakeAnalyser(1);
+		run(false, new AckCountingChannel(CONCURRENCY), analyser, CONCURRENCY);
+		Assert.assertEquals(analyser.maxInFlight, 1);
+	}
+
+	@Test
+	public void acksAreBatchedAndSentOnce() throws Exception
+	{
+		AckCountingChannel fake = new AckCountingChannel(NUM_OF_MESSAGES);
+		run(true, fake, new FakeAnalyser(1), NUM_OF_MESSAGES);
+		Assert.assertEquals(fake.numOfDoubleAcks, 0);
+		Assert.assertTrue(fake.numOfAckCalls < NUM_OF_MESSAGES,
+				"ack calls: " + fake.numOfAckCalls);
+	}
+
+	@Test
+	public void unpublishedReplyIsRequeued() throws Exception
+	{
+		AckCountingChannel fake = new AckCountingChannel(NUM_OF_MESSAGES);
+		fake.numOfFailingPublishes = 1;
+		run(true, fake, new FakeAnalyser(1), NUM_OF_MESSAGES);
+		// given back to the broker rather than holding back the later acks
+		Assert.assertEquals(fake.numOfRequeues, 1);
+	}
+
+	/**
+	 * @param pushMode
+	 * @return messages per second from the first delivery to the last ack
+	 * @throws Exception
+	 */
+	private double measure(boolean pushMode) throws Exception
+	{
+		long start = System.nanoTime();
+		run(pushMode, new AckCountingChannel(NUM_OF_MESSAGES),
+				new FakeAnalyser(1), NUM_OF_MESSAGES);
+		return NUM_OF_MESSAGES / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Runs a worker against the fake channel, delivers the messages and waits
+	 * until all of them are acknowledged.
+	 *
+	 * @param pushMode
+	 * @param fake
+	 * @param analyser
+	 * @param numOfMessages
+	 * @throws Exception
+	 */
+	private void run(boolean pushMode, final AckCountingChannel fake,
+			FakeAnalyser analyser, int numOfMessages) throws Exception
+	{
+		final Channel channel = fake.createProxy();
+		final AnalysisWorker worker = new AnalysisWorker("test", QUEUE_NAME,
+				new File("/tmp"), new File("/tmp"));
+		worker.setPushMode(pushMode);
+		worker.setConcurrency(CONCURRENCY);
+		worker.setAnalyser(analyser);
+		worker.init();
+
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					if (worker.isPushMode()) worker.consumePushed(channel);
+					else
+						worker.consumePolled(channel);
+				}
+				catch (Exception ignore)
+				{
+				}
+			}
+		});
+		thread.start();
+		Consumer consumer = fake.awaitConsumer();
+
+		AnalysisMessageParser parser = new AnalysisMessageParserJackson();
+		AnalysisRequest request = new AnalysisRequest(AnalysisRequest.QCPLOT,
+				new HashMap<String, Object>());
+		byte[] body = parser.serializeRequest(JSON_TYPE, request).getBytes(
+				"UTF-8");
+		BasicProperties props = new BasicProperties.Builder()
+				.correlationId("corrId").replyTo("reply").contentType(JSON_TYPE)
+				.build();
+
+		for (int i = 1; i <= numOfMessages; i++)
+		{
+			Envelope envelope = new Envelope(i, false, "", QUEUE_NAME);
+			consumer.handleDelivery("ctag", envelope, props, body);
+		}
+		boolean isDone = fake.acks.await(60, TimeUnit.SECONDS);
+
+		worker.destroy();
+		thread.interrupt();
+		thread.join();
+		Assert.assertTrue(isDone, "not all messages were acknowledged");
+		Assert.assertEquals(fake.numOfDoubleAcks, 0);
+	}
+
+	/**
+	 * Analyser that does no analysis at all. Each call waits until the given
+	 * number of calls are in flight, or for a second at most, so that analyses
+	 * that can run concurrently do.
+	 */
+	private static class FakeAnalyser implements Analyser
+	{
+		private final int awaitedInFlight;
+		private int inFlight = 0;
+		private int maxInFlight = 0;
+		private int numOfTimeouts = 0;
+
+		FakeAnalyser(int awaitedInFlight)
+		{
+			this.awaitedInFlight = awaitedInFlight;
+		}
+
+		public AnalysisReply analyse(AnalysisRequest request,
+				File inputDataDir, File outputDataDir) throws AnalysisException
+		{
+			synchronized (this)
+			{
+				this.inFlight++;
+				this.maxInFlight = Math.max(this.maxInFlight, this.inFlight);
+				notifyAll();
+				long deadline = System.currentTimeMillis() + 1000;
+				try
+				{
+					while (this.maxInFlight < this.awaitedInFlight)
+					{
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0)
+						{
+							this.numOfTimeouts++;
+							break;
+						}
+						wait(remaining);
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					this.inFlight--;
+				}
+			}
+			return new AnalysisReply(request.getRequestId(),
+					AnalysisReply.Status.NORMAL, new HashMap<String, Object>());
+		}
+	}
+
+	/**
+	 * Confirms the publishes and counts the acks of the delivery tags,
+	 * including those covered by multiple=true. A rejected delivery counts as
+	 * acknowledged, and the first numOfFailingPublishes publishes fail.
+	 */
+	private static class AckCountingChannel extends FakeChannel
+	{
+		private final CountDownLatch acks;
+		private final boolean[] isAcked;
+		private ConfirmListener confirmListener;
+		private boolean isConfirmMode = false;
+		private long nextPublishSeqNo = 1;
+		private int numOfAckCalls = 0;
+		private int numOfDoubleAcks = 0;
+		private int numOfFailingPublishes = 0;
+		private int numOfRequeues = 0;
+
+		AckCountingChannel(int numOfMessages)
+		{
+			this.acks = new CountDownLatch(numOfMessages);
+			this.isAcked = new boolean[numOfMessages + 1];
+		}
+
+		@Override
+		protected Object handle(String name, Object[] args) throws IOException
+		{
+			if ("basicAck".equals(name))
+			{
+				synchronized (this.isAcked)
+				{
+					int tag = ((Long) args[0]).intValue();
+					boolean multiple = (Boolean) args[1];
+					this.numOfAckCalls++;
+					if (this.isAcked[tag]) this.numOfDoubleAcks++;
+					for (int i = multiple ? 1 : tag; i <= tag; i++)
+					{
+						if (!this.isAcked[i])
+						{
+							this.isAcked[i] = true;
+							this.acks.countDown();
+						}
+					}
+				}
+			}
+			if ("basicReject".equals(name))
+			{
+				synchronized (this.isAcked)
+				{
+					int tag = ((Long) args[0]).intValue();
+					if ((Boolean) args[1]) this.numOfRequeues++;
+					if (this.isAcked[tag]) this.numOfDoubleAcks++;
+					this.isAcked[tag] = true;
+					this.acks.countDown();
+				}
+			}
+			if ("addConfirmListener".equals(name))
+			{
+				this.confirmListener = (ConfirmListener) args[0];
+			}
+			if ("confirmSelect".equals(name))
+			{
+				this.isConfirmMode = true;
+			}
+			if ("getNextPublishSeqNo".equals(name))
+			{
+				synchronized (this)
+				{
+					return this.isConfirmMode ? this.nextPublishSeqNo : 0L;
+				}
+			}
+			if ("basicPublish".equals(name) && this.isConfirmMode)
+			{
+				long seqNo;
+				synchronized (this)
+				{
+					if (this.numOfFailingPublishes > 0)
+					{
+						this.numOfFailingPublishes--;
+						throw new IOException("connection reset");
+					}
+					seqNo = this.nextPublishSeqNo++;
+				}
+				this.confirmListener.handleAck(seqNo, false);
+			}
+			return null;
+		}
+	}
+}
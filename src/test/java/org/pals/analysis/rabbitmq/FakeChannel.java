@@ -0,0 +1,97 @@
+package org.pals.analysis.rabbitmq;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+
+/**
+ * A stand-in for an AMQP channel, for the tests that run workers and clients
+ * without the RabbitMQ server. createProxy() returns a Channel whose calls
+ * come to handle(), which the tests override to record them or to answer
+ * them; the other calls do nothing and return false, zero or null.
+ *
+ * It remembers the consumer given to basicConsume(), and is open until
+ * setOpen(false).
+ *
+ * @author Yoichi
+ *
+ */
+public class FakeChannel implements InvocationHandler
+{
+	private final CountDownLatch consumerLatch = new CountDownLatch(1);
+	private volatile Consumer consumer;
+	private volatile boolean isOpen = true;
+
+	public Channel createProxy()
+	{
+		return (Channel) Proxy.newProxyInstance(
+				Channel.class.getClassLoader(),
+				new Class<?>[] { Channel.class }, this);
+	}
+
+	/**
+	 * @return the consumer, or null if none is registered within 10 seconds
+	 * @throws InterruptedException
+	 */
+	public Consumer awaitConsumer() throws InterruptedException
+	{
+		this.consumerLatch.await(10, TimeUnit.SECONDS);
+		return this.consumer;
+	}
+
+	public Consumer getConsumer()
+	{
+		return consumer;
+	}
+
+	public boolean isOpen()
+	{
+		return isOpen;
+	}
+
+	public void setOpen(boolean isOpen)
+	{
+		this.isOpen = isOpen;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable
+	{
+		String name = method.getName();
+		if ("basicConsume".equals(name))
+		{
+			this.consumer = (Consumer) args[args.length - 1];
+			this.consumerLatch.countDown();
+		}
+		Object result = handle(name, args);
+		if (result != null) return result;
+
+		if ("basicConsume".equals(name)) return "ctag";
+		if ("isOpen".equals(name)) return this.isOpen;
+		Class<?> returnType = method.getReturnType();
+		if (returnType == boolean.class) return false;
+		if (returnType == int.class) return 0;
+		if (returnType == long.class) return 0L;
+		return null;
+	}
+
+	/**
+	 * Called for every call of the channel
+	 *
+	 * @param name
+	 *            of the Channel method
+	 * @param args
+	 * @return the result of the call, or null for the default
+	 * @throws Exception
+	 *             thrown by the call, e.g. an IOException of a publish
+	 */
+	protected Object handle(String name, Object[] args) throws Exception
+	{
+		return null;
+	}
+}
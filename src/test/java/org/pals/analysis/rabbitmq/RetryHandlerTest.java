@@ -0,0 +1,97 @@
+package org.pals.analysis.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Routing of failed deliveries to the retry queues and the dead-letter queue.
+ * The channel is a FakeChannel that records the calls.
+ * 
+ * @author Yoichi
+ * 
+ */
+public class RetryHandlerTest
+{
+	private static final String QUEUE_NAME = "pals_analysis";
+	private static final byte[] BODY = "{not json".getBytes();
+
+	@Test
+	public void testBackoff()
+	{
+		RetryHandler retryHandler = new RetryHandler(QUEUE_NAME);
+		retryHandler.setMaxDelayMillis(20000);
+		Assert.assertEquals(retryHandler.getDelayMillis(1), 1000);
+		Assert.assertEquals(retryHandler.getDelayMillis(2), 4000);
+		Assert.assertEquals(retryHandler.getDelayMillis(3), 16000);
+		Assert.assertEquals(retryHandler.getDelayMillis(4), 20000);
+	}
+
+	@Test
+	public void testRetryThenDeadLetter() throws Exception
+	{
+		RecordingChannel recorder = new RecordingChannel();
+		Channel channel = recorder.createProxy();
+		RetryHandler retryHandler = new RetryHandler(QUEUE_NAME);
+		retryHandler.setMaxAttempts(3);
+		retryHandler.declareQueues(channel);
+		Assert.assertEquals(recorder.declaredQueues, Arrays.asList(
+				"pals_analysis.retry.1000", "pals_analysis.retry.4000",
+				"pals_analysis.dead"));
+
+		AckTracker ackTracker = new AckTracker(channel, false, 1, 100);
+		BasicProperties props = new BasicProperties.Builder()
+				.correlationId("corrId").build();
+		for (int tag = 1; tag <= 3; tag++)
+		{
+			ackTracker.delivered(tag);
+			retryHandler.retry(ackTracker, new Envelope(tag, false, "",
+					QUEUE_NAME), props, BODY, "MessageParserException");
+			// the broker delivers the republished copy again
+			props = recorder.lastProps;
+		}
+
+		Assert.assertEquals(recorder.routingKeys, Arrays.asList(
+				"pals_analysis.retry.1000", "pals_analysis.retry.4000",
+				"pals_analysis.dead"));
+		Map<String, Object> headers = recorder.lastProps.getHeaders();
+		Assert.assertEquals(headers.get(RetryHandler.ATTEMPTS_HEADER), 3);
+		Assert.assertEquals(headers.get(RetryHandler.FAILURE_REASON_HEADER),
+				"MessageParserException");
+		Assert.assertEquals(recorder.lastProps.getCorrelationId(), "corrId");
+		Assert.assertEquals(recorder.ackedTags, Arrays.asList(1L,
+				2L, 3L));
+		Assert.assertEquals(retryHandler.getNumOfRetries(), 2);
+		Assert.assertEquals(retryHandler.getNumOfDeadLettered(), 1);
+	}
+
+	private static class RecordingChannel extends FakeChannel
+	{
+		private final List<String> declaredQueues = new ArrayList<String>();
+		private final List<String> routingKeys = new ArrayList<String>();
+		private final List<Long> ackedTags = new ArrayList<Long>();
+		private BasicProperties lastProps;
+
+		@Override
+		protected Object handle(String name, Object[] args)
+		{
+			if ("queueDeclare".equals(name)) this.declaredQueues
+					.add((String) args[0]);
+			if ("basicPublish".equals(name))
+			{
+				this.routingKeys.add((String) args[1]);
+				this.lastProps = (BasicProperties) args[args.length - 2];
+			}
+			if ("basicAck".equals(name)) this.ackedTags.add((Long) args[0]);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.pals.analysis.rabbitmq;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * The scaling rule of the autoscaler, without a servlet or a broker.
+ *
+ * @author Yoichi
+ *
+ */
+public class WorkerAutoscalerTest
+{
+	private WorkerAutoscaler autoscaler;
+
+	@BeforeMethod
+	public void setUp()
+	{
+		this.autoscaler = new WorkerAutoscaler(null, null);
+		this.autoscaler.setMinWorkers(2);
+		this.autoscaler.setMaxWorkers(8);
+		this.autoscaler.setTargetLatencyMillis(60000);
+		this.autoscaler.setShrinkAfterChecks(3);
+	}
+
+	@Test
+	public void testBounds()
+	{
+		// an empty queue needs no more than the minimum
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(0, 0, 5, 1000, 1, 10), 2);
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(1, 0, 2, 1000, 1, 10), 2);
+		// 1000 slots are wanted, but no more than the maximum
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(1000, 0, 2, 60000, 1, 100),
+				8);
+	}
+
+	@Test
+	public void testInFlightMessagesCount()
+	{
+		// 5 workers of 2 have prefetched 4 each and emptied the queue; 20
+		// analyses of 30 s in a minute still need 10 slots
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(0, 20, 5, 30000, 2, 0),
+				5);
+		// they are only idle when nothing is in flight either
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(0, 0, 5, 30000, 2, 0), 2);
+	}
+
+	@Test
+	public void testGrowthIsCappedBySpareEngines()
+	{
+		// 100 messages of 6 s in a minute need 10 slots, i.e. 5 workers of 2
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(100, 0, 2, 6000, 2, 100), 5);
+		// but 4 spare engines only serve 2 more workers
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(100, 0, 2, 6000, 2, 4), 4);
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(100, 0, 2, 6000, 2, 0), 2);
+	}
+
+	@Test
+	public void testUnknownServiceTimeGrowsByOne()
+	{
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(50, 0, 3, 0, 1, 10), 4);
+		Assert.assertEquals(
+				this.autoscaler.computeDesiredWorkers(50, 0, 3, 0, 1, 0), 3);
+	}
+
+	@Test
+	public void testShrinksAfterChecksInARow()
+	{
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(4, 2), 4);
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(4, 2), 4);
+		// one worker at a time, however few are wanted
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(4, 2), 3);
+
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(3, 2), 3);
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(3, 2), 3);
+		// a check that wants as many starts the count again
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(3, 3), 3);
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(3, 2), 3);
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(3, 2), 3);
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(3, 2), 2);
+
+		// growth is not delayed
+		Assert.assertEquals(this.autoscaler.nextNumOfWorkers(2, 5), 5);
+	}
+}